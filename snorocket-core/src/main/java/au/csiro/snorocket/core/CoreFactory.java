@@ -21,16 +21,27 @@
 
 package au.csiro.snorocket.core;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
 import au.csiro.ontology.model.NamedConcept;
+import au.csiro.snorocket.core.util.AdaptiveConceptSet;
 import au.csiro.snorocket.core.util.IConceptSet;
 import au.csiro.snorocket.core.util.RoleSet;
-import au.csiro.snorocket.core.util.SparseConceptSet;
 
+/**
+ * Thread-safe factory. Lookups of existing concepts, roles and features do not
+ * lock. New ids are allocated while holding the factory's lock, so threads
+ * that ask for the same key at the same time get the same id. This is what
+ * deduplicates virtual concepts when axioms are normalised in parallel.
+ * 
+ * <p>
+ * An id is added to the key maps after its key has been stored, so a thread
+ * that gets an id from {@link #getConcept(Object)} can look its key up.
+ * </p>
+ */
 final public class CoreFactory implements IFactory {
     
     /**
@@ -49,31 +60,31 @@ final public class CoreFactory implements IFactory {
     final private int roleBase;
     final private int featureBase;
 
-    private Object[] concepts = new Object[SIZE_ESTIMATE];
-    final private Map<Object, Integer> conceptMap = new HashMap<Object, Integer>();
-    final private IConceptSet virtualConcepts = new SparseConceptSet(SIZE_ESTIMATE);
+    private volatile Object[] concepts = new Object[SIZE_ESTIMATE];
+    final private Map<Object, Integer> conceptMap = new ConcurrentHashMap<Object, Integer>();
+    final private IConceptSet virtualConcepts = new AdaptiveConceptSet(SIZE_ESTIMATE);
 
-    private Object[] roles = new Object[128];
-    final private Map<Object, Integer> roleMap = new HashMap<Object, Integer>();
+    private volatile Object[] roles = new Object[128];
+    final private Map<Object, Integer> roleMap = new ConcurrentHashMap<Object, Integer>();
     final private RoleSet virtualRoles = new RoleSet();
 
-    private String[] features = new String[128];
-    final private Map<String, Integer> featureNameMap = new HashMap<String, Integer>();
+    private volatile String[] features = new String[128];
+    final private Map<String, Integer> featureNameMap = new ConcurrentHashMap<String, Integer>();
 
     /**
      * Index of the next available Concept.
      */
-    private int conceptIdCounter = 0;
+    private volatile int conceptIdCounter = 0;
 
     /**
      * Index of the next available Role.
      */
-    private int roleIdCounter = 0;
+    private volatile int roleIdCounter = 0;
 
     /**
      * Index of the next available Feature.
      */
-    private int featureIdCounter = 0;
+    private volatile int featureIdCounter = 0;
     
     /**
      * Creates a new factory.
@@ -150,6 +161,14 @@ final public class CoreFactory implements IFactory {
             throw new IllegalArgumentException("Concept key must not be null");
         }
 
+        Integer result = conceptMap.get(key);
+        if (null == result) {
+            result = addConcept(key);
+        }
+        return result + conceptBase;
+    }
+
+    private synchronized int addConcept(Object key) {
         Integer result = conceptMap.get(key);
         if (null == result) {
             if (conceptIdCounter == concepts.length) {
@@ -163,10 +182,18 @@ final public class CoreFactory implements IFactory {
             result = conceptIdCounter++;
             conceptMap.put(key, result);
         }
-        return result + conceptBase;
+        return result;
     }
 
     public int getRole(Object key) {
+        Integer result = roleMap.get(key);
+        if (null == result) {
+            result = addRole(key);
+        }
+        return result + roleBase;
+    }
+
+    private synchronized int addRole(Object key) {
         Integer result = roleMap.get(key);
         if (null == result) {
             if (roleIdCounter == roles.length) {
@@ -181,10 +208,18 @@ final public class CoreFactory implements IFactory {
             result = roleIdCounter++;
             roleMap.put(key, result);
         }
-        return result + roleBase;
+        return result;
     }
 
     public int getFeature(String key) {
+        Integer result = featureNameMap.get(key);
+        if (null == result) {
+            result = addFeature(key);
+        }
+        return result + featureBase;
+    }
+
+    private synchronized int addFeature(String key) {
         Integer result = featureNameMap.get(key);
         if (null == result) {
             if (featureIdCounter == features.length) {
@@ -199,7 +234,7 @@ final public class CoreFactory implements IFactory {
             result = featureIdCounter++;
             featureNameMap.put(key, result);
         }
-        return result + featureBase;
+        return result;
     }
     
     public void setVirtualConcept(int id, boolean isVirtual) {
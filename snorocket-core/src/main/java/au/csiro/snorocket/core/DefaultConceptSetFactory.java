@@ -0,0 +1,103 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core;
+
+import au.csiro.snorocket.core.util.AdaptiveConceptSet;
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.SparseConceptHashSet;
+import au.csiro.snorocket.core.util.SparseConceptSet;
+
+/**
+ * The {@link ConceptSetFactory} used by {@link IConceptSet#FACTORY}. By
+ * default it creates {@link AdaptiveConceptSet}s. Setting the system property
+ * {@value #IMPLEMENTATION_PROPERTY} to {@value #SPARSE} selects the previous
+ * implementations: {@link SparseConceptHashSet} for general sets and
+ * {@link SparseConceptSet} for synchronized sets.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class DefaultConceptSetFactory implements SynchronizedConceptSetFactory {
+
+    /**
+     * The system property used to select the implementation.
+     */
+    public static final String IMPLEMENTATION_PROPERTY = "snorocket.conceptset";
+
+    /**
+     * Value of {@value #IMPLEMENTATION_PROPERTY} that selects the sorted array
+     * and hash based sets.
+     */
+    public static final String SPARSE = "sparse";
+
+    /**
+     * Value of {@value #IMPLEMENTATION_PROPERTY} that selects
+     * {@link AdaptiveConceptSet}. This is the default.
+     */
+    public static final String ADAPTIVE = "adaptive";
+
+    private final boolean adaptive;
+
+    /**
+     * Creates a factory that uses the implementation selected by the system
+     * property {@value #IMPLEMENTATION_PROPERTY}.
+     */
+    public DefaultConceptSetFactory() {
+        this(System.getProperty(IMPLEMENTATION_PROPERTY, ADAPTIVE));
+    }
+
+    /**
+     *
+     * @param implementation Either {@value #ADAPTIVE} or {@value #SPARSE}.
+     */
+    public DefaultConceptSetFactory(String implementation) {
+        if (ADAPTIVE.equals(implementation)) {
+            adaptive = true;
+        } else if (SPARSE.equals(implementation)) {
+            adaptive = false;
+        } else {
+            throw new IllegalArgumentException("Unknown concept set implementation: " + implementation);
+        }
+    }
+
+    public IConceptSet createConceptSet() {
+        return adaptive ? new AdaptiveConceptSet() : new SparseConceptHashSet();
+    }
+
+    public IConceptSet createConceptSet(final int size) {
+        return adaptive ? new AdaptiveConceptSet(size) : new SparseConceptHashSet(size);
+    }
+
+    public IConceptSet createConceptSet(final IConceptSet initial) {
+        final IConceptSet result;
+        if (null == initial) {
+            result = createConceptSet();
+        } else {
+            result = createConceptSet(initial.size());
+            result.addAll(initial);
+        }
+        return result;
+    }
+
+    public IConceptSet createSynchronizedConceptSet() {
+        return adaptive ? new AdaptiveConceptSet() : new SparseConceptSet();
+    }
+
+    /**
+     * Creates a set for concurrent readers with a factory if it is a
+     * {@link SynchronizedConceptSetFactory}, or a {@link SparseConceptSet}
+     * otherwise.
+     *
+     * @param factory
+     * @return
+     */
+    public static IConceptSet createSynchronizedConceptSet(ConceptSetFactory factory) {
+        if (factory instanceof SynchronizedConceptSetFactory) {
+            return ((SynchronizedConceptSetFactory) factory).createSynchronizedConceptSet();
+        }
+        return new SparseConceptSet();
+    }
+
+}
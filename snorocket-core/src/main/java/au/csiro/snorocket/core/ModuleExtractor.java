@@ -0,0 +1,528 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import au.csiro.snorocket.core.axioms.IConjunctionQueueEntry;
+import au.csiro.snorocket.core.axioms.NF1a;
+import au.csiro.snorocket.core.axioms.NF1b;
+import au.csiro.snorocket.core.axioms.NF2;
+import au.csiro.snorocket.core.axioms.NF3;
+import au.csiro.snorocket.core.axioms.NF4;
+import au.csiro.snorocket.core.axioms.NF5;
+import au.csiro.snorocket.core.axioms.NF6;
+import au.csiro.snorocket.core.axioms.NF7;
+import au.csiro.snorocket.core.axioms.NF8;
+import au.csiro.snorocket.core.axioms.NormalFormGCI;
+import au.csiro.snorocket.core.model.Datatype;
+import au.csiro.snorocket.core.util.ConceptRoleMap;
+import au.csiro.snorocket.core.util.FeatureSet;
+import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.IntIterator;
+import au.csiro.snorocket.core.util.LongQueue;
+import au.csiro.snorocket.core.util.MonotonicCollection;
+import au.csiro.snorocket.core.util.SparseConceptMap;
+
+/**
+ * Extracts the bottom-locality module of a signature from the normal forms
+ * of a {@link NormalisedOntology}. A normal form is bottom-local when
+ * replacing the symbols outside of the signature with BOTTOM turns it into a
+ * tautology, which only depends on the symbols of its left hand side:
+ *
+ * <ul>
+ * <li>A [ B, A [ r.B and A [ f.(o, v) are local unless A is in the signature</li>
+ * <li>A1 n A2 [ B is local unless A1 and A2 are in the signature</li>
+ * <li>r.A [ B is local unless r and A are in the signature</li>
+ * <li>f.(o, v) [ B is local unless f is in the signature</li>
+ * <li>r [ s is local unless r is in the signature</li>
+ * <li>r o s [ t is local unless r and s are in the signature</li>
+ * <li>Reflexive roles and terms with TOP on the left are never local</li>
+ * </ul>
+ *
+ * The module starts empty and each term that is not local is added to it,
+ * together with its symbols, until no more terms can be added. The module
+ * entails the same subsumptions between the concepts of the signature as the
+ * whole ontology. Virtual concepts are symbols like any other, and the
+ * normalisation is a conservative extension, so this also holds for the
+ * original axioms.
+ *
+ * <p>
+ * The terms of the module are copied into a new ontology with its own
+ * factory, so classifying it only costs as much as the module. Named
+ * concepts, roles and features keep their names. Virtual concepts get a key
+ * that is unique to the module.
+ * </p>
+ *
+ * <p>
+ * The terms can also be written to a stream as they are found, with the ids
+ * of the ontology, see {@link #write(IConceptSet, ObjectOutputStream)}. All
+ * the roles are then in the signature, so that the module can also saturate
+ * the edges from concepts outside of the signature. This is what a shard of
+ * {@link au.csiro.snorocket.core.concurrent.DistributedSaturation} needs for
+ * the contexts of its range.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+final class ModuleExtractor {
+
+    /**
+     * The number of terms written between two resets of the stream.
+     */
+    static final int RESET_INTERVAL = 1024;
+
+    private final NormalisedOntology ont;
+
+    private final IFactory factory;
+
+    /**
+     * The NF3 terms indexed by role. Only built by
+     * {@link #extract(IConceptSet)}.
+     */
+    private IConceptMap<MonotonicCollection<NF3>> nf3ByRole;
+
+    /**
+     * The NF4 terms indexed by their left hand side. Only built by
+     * {@link #extract(IConceptSet)}.
+     */
+    private IConceptMap<MonotonicCollection<NF4>> nf4ByR;
+
+    /**
+     * The symbols of the module that have been processed.
+     */
+    private final boolean[] concepts;
+
+    private final boolean[] roles;
+
+    private final FeatureSet features = new FeatureSet();
+
+    /**
+     * The symbols of the module that have not been processed yet.
+     */
+    private int[] conceptStack;
+
+    private int conceptTop = 0;
+
+    private int[] roleStack;
+
+    private int roleTop = 0;
+
+    private final List<NormalFormGCI> module = new ArrayList<NormalFormGCI>();
+
+    /**
+     * The stream the terms are written to instead of {@link #module}, if not
+     * null.
+     */
+    private ObjectOutputStream out;
+
+    /**
+     * The first error writing to {@link #out}.
+     */
+    private IOException error;
+
+    private long numWritten = 0;
+
+    /**
+     * Indicates if a symbol has been added to the module.
+     */
+    private final boolean[] conceptAdded;
+
+    private final boolean[] roleAdded;
+
+    ModuleExtractor(NormalisedOntology ont) {
+        this.ont = ont;
+        this.factory = ont.factory;
+        final int numConcepts = factory.getTotalConcepts();
+        final int numRoles = factory.getTotalRoles();
+        concepts = new boolean[numConcepts];
+        conceptAdded = new boolean[numConcepts];
+        conceptStack = new int[16];
+        roles = new boolean[numRoles];
+        roleAdded = new boolean[numRoles];
+        roleStack = new int[16];
+    }
+
+    /**
+     * Indexes the NF3 and NF4 terms by role, as needed when roles are added
+     * to the module one at a time.
+     */
+    private void indexRoles() {
+        final int numRoles = roles.length;
+        nf3ByRole = new SparseConceptMap<MonotonicCollection<NF3>>(numRoles, "nf3ByRole");
+        final ConceptRoleMap nf3 = ont.ontologyNF3;
+        for (IntIterator it = nf3.keyIterator(); it.hasNext();) {
+            final int a = it.next();
+            final ConceptRoleMap.Row row = nf3.get(a);
+            final long[] entries = row.getEntries();
+            for (int i = 0, n = row.size(); i < n; i++) {
+                final int r = row.getRole(i);
+                for (int j = row.start(i); j < row.end(i); j++) {
+                    add(nf3ByRole, r, NF3.getInstance(r, a, LongQueue.low(entries[j])));
+                }
+            }
+        }
+        nf4ByR = new SparseConceptMap<MonotonicCollection<NF4>>(numRoles, "nf4ByR");
+        for (NF4 nf4 : ont.ontologyNF4) {
+            add(nf4ByR, nf4.getR(), nf4);
+        }
+    }
+
+    private static <T> void add(IConceptMap<MonotonicCollection<T>> map, int key, T value) {
+        MonotonicCollection<T> set = map.get(key);
+        if (set == null) {
+            set = new MonotonicCollection<T>(2);
+            map.put(key, set);
+        }
+        set.add(value);
+    }
+
+    /**
+     * Returns a new ontology with the module of a signature.
+     *
+     * @param signature The concepts whose subsumptions must be preserved.
+     * @return NormalisedOntology
+     */
+    NormalisedOntology extract(IConceptSet signature) {
+        indexRoles();
+        addConcept(IFactory.TOP_CONCEPT);
+        for (IntIterator it = signature.iterator(); it.hasNext();) {
+            addConcept(it.next());
+        }
+        for (IntIterator it = ont.reflexiveRoles.iterator(); it.hasNext();) {
+            final int r = it.next();
+            add(new NF6(r));
+            addRole(r);
+        }
+
+        while (conceptTop > 0 || roleTop > 0) {
+            if (conceptTop > 0) {
+                processConcept(conceptStack[--conceptTop]);
+            } else {
+                processRole(roleStack[--roleTop]);
+            }
+        }
+
+        return copy();
+    }
+
+    /**
+     * Writes the module of a signature extended with all the roles to a
+     * stream, one term at a time and followed by null. The stream is reset
+     * every {@link #RESET_INTERVAL} terms so that it does not keep them.
+     *
+     * @param signature The concepts whose subsumptions must be preserved.
+     * @param out
+     * @return The number of terms written.
+     * @throws IOException
+     */
+    long write(IConceptSet signature, ObjectOutputStream out) throws IOException {
+        this.out = out;
+        // With every role in the signature NF3 terms are added with their
+        // concept, so the terms indexed by role are not needed
+        for (int r = 0; r < roles.length; r++) {
+            roles[r] = true;
+            roleAdded[r] = true;
+        }
+        for (IntIterator it = ont.reflexiveRoles.iterator(); it.hasNext();) {
+            add(new NF6(it.next()));
+        }
+        for (NF4 nf4 : ont.ontologyNF4) {
+            add(nf4);
+        }
+        for (NF5 nf5 : ont.ontologyNF5) {
+            add(nf5);
+        }
+        addConcept(IFactory.TOP_CONCEPT);
+        for (IntIterator it = signature.iterator(); it.hasNext();) {
+            addConcept(it.next());
+        }
+        while (conceptTop > 0) {
+            processConcept(conceptStack[--conceptTop]);
+        }
+        if (error != null) {
+            throw error;
+        }
+        out.writeObject(null);
+        out.reset();
+        return numWritten;
+    }
+
+    /**
+     * Adds a term to the module, or writes it.
+     *
+     * @param term
+     */
+    private void add(NormalFormGCI term) {
+        if (out == null) {
+            module.add(term);
+        } else if (error == null) {
+            try {
+                out.writeObject(term);
+                if (++numWritten % RESET_INTERVAL == 0) {
+                    out.reset();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private void addConcept(int a) {
+        if (!conceptAdded[a]) {
+            conceptAdded[a] = true;
+            if (conceptTop == conceptStack.length) {
+                conceptStack = Arrays.copyOf(conceptStack, conceptTop * 2);
+            }
+            conceptStack[conceptTop++] = a;
+        }
+    }
+
+    private void addRole(int r) {
+        if (!roleAdded[r]) {
+            roleAdded[r] = true;
+            if (roleTop == roleStack.length) {
+                roleStack = Arrays.copyOf(roleStack, roleTop * 2);
+            }
+            roleStack[roleTop++] = r;
+        }
+    }
+
+    /**
+     * Adds the terms that are not local once a feature is in the signature.
+     *
+     * @param f
+     */
+    private void addFeature(int f) {
+        if (features.contains(f)) {
+            return;
+        }
+        features.add(f);
+        final MonotonicCollection<NF8> nf8s = ont.ontologyNF8.get(f);
+        if (nf8s != null) {
+            for (NF8 nf8 : nf8s) {
+                add(nf8);
+                addConcept(nf8.rhsB);
+            }
+        }
+    }
+
+    /**
+     * Adds the terms that are not local once a concept is in the signature.
+     * Terms with two symbols on the left are added when the second one is
+     * processed.
+     *
+     * @param a
+     */
+    private void processConcept(int a) {
+        concepts[a] = true;
+
+        final MonotonicCollection<IConjunctionQueueEntry> nf1s = ont.getNF1Row(a);
+        if (nf1s != null) {
+            for (IConjunctionQueueEntry e : nf1s) {
+                final int bi = e.getBi();
+                if (bi == IFactory.TOP_CONCEPT) {
+                    add(NF1a.getInstance(a, e.getB()));
+                } else if (bi != a && concepts[bi]) {
+                    add(NF1b.getInstance(a, bi, e.getB()));
+                } else {
+                    continue;
+                }
+                addConcept(e.getB());
+            }
+        }
+
+        final MonotonicCollection<NF2> nf2s = ont.getNF2Row(a);
+        if (nf2s != null) {
+            for (NF2 nf2 : nf2s) {
+                add(nf2);
+                addRole(nf2.rhsR);
+                addConcept(nf2.rhsB);
+            }
+        }
+
+        final ConceptRoleMap.Row row = ont.ontologyNF3.get(a);
+        if (row != null) {
+            final long[] entries = row.getEntries();
+            for (int i = 0, n = row.size(); i < n; i++) {
+                final int r = row.getRole(i);
+                if (!roles[r]) {
+                    continue;
+                }
+                for (int j = row.start(i); j < row.end(i); j++) {
+                    final int b = LongQueue.low(entries[j]);
+                    add(NF3.getInstance(r, a, b));
+                    addConcept(b);
+                }
+            }
+        }
+
+        final MonotonicCollection<NF7> nf7s = ont.ontologyNF7.get(a);
+        if (nf7s != null) {
+            for (NF7 nf7 : nf7s) {
+                add(nf7);
+                addFeature(nf7.rhsD.getFeature());
+            }
+        }
+    }
+
+    /**
+     * Adds the terms that are not local once a role is in the signature.
+     *
+     * @param r
+     */
+    private void processRole(int r) {
+        roles[r] = true;
+
+        final MonotonicCollection<NF3> nf3s = nf3ByRole.get(r);
+        if (nf3s != null) {
+            for (NF3 nf3 : nf3s) {
+                if (concepts[nf3.lhsA]) {
+                    add(nf3);
+                    addConcept(nf3.rhsB);
+                }
+            }
+        }
+
+        final MonotonicCollection<NF4> nf4s = nf4ByR.get(r);
+        if (nf4s != null) {
+            for (NF4 nf4 : nf4s) {
+                add(nf4);
+                addRole(nf4.getS());
+            }
+        }
+
+        final MonotonicCollection<NF5> byR = ont.getNF5ByRRow(r);
+        if (byR != null) {
+            for (NF5 nf5 : byR) {
+                if (roles[nf5.getS()]) {
+                    add(nf5);
+                    addRole(nf5.getT());
+                }
+            }
+        }
+        final MonotonicCollection<NF5> byS = ont.getNF5BySRow(r);
+        if (byS != null) {
+            for (NF5 nf5 : byS) {
+                // r o r [ t was added above
+                if (nf5.getR() != r && roles[nf5.getR()]) {
+                    add(nf5);
+                    addRole(nf5.getT());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the module into a new ontology.
+     *
+     * @return NormalisedOntology
+     */
+    private NormalisedOntology copy() {
+        final IFactory to = new CoreFactory();
+        final NormalisedOntology res = new NormalisedOntology(to);
+        final int[] conceptMap = new int[concepts.length];
+        Arrays.fill(conceptMap, -1);
+        conceptMap[IFactory.TOP_CONCEPT] = IFactory.TOP_CONCEPT;
+        conceptMap[IFactory.BOTTOM_CONCEPT] = IFactory.BOTTOM_CONCEPT;
+        final int[] roleMap = new int[roles.length];
+        Arrays.fill(roleMap, -1);
+        for (int a = 0; a < concepts.length; a++) {
+            if (concepts[a] && conceptMap[a] < 0) {
+                if (factory.isVirtualConcept(a)) {
+                    conceptMap[a] = to.getConcept(new VirtualKey(a));
+                    to.setVirtualConcept(conceptMap[a], true);
+                } else {
+                    conceptMap[a] = to.getConcept(factory.lookupConceptId(a));
+                }
+            }
+        }
+        for (int r = 0; r < roles.length; r++) {
+            if (roles[r]) {
+                roleMap[r] = to.getRole(factory.lookupRoleId(r));
+            }
+        }
+
+        for (NormalFormGCI term : module) {
+            final NormalFormGCI copy;
+            if (term instanceof NF1a) {
+                final NF1a nf1 = (NF1a) term;
+                copy = NF1a.getInstance(conceptMap[nf1.lhsA()], conceptMap[nf1.b()]);
+            } else if (term instanceof NF1b) {
+                final NF1b nf1 = (NF1b) term;
+                copy = NF1b.getInstance(conceptMap[nf1.lhsA1()], conceptMap[nf1.lhsA2()], conceptMap[nf1.b()]);
+            } else if (term instanceof NF2) {
+                final NF2 nf2 = (NF2) term;
+                copy = NF2.getInstance(conceptMap[nf2.lhsA], roleMap[nf2.rhsR], conceptMap[nf2.rhsB]);
+            } else if (term instanceof NF3) {
+                final NF3 nf3 = (NF3) term;
+                copy = NF3.getInstance(roleMap[nf3.lhsR], conceptMap[nf3.lhsA], conceptMap[nf3.rhsB]);
+            } else if (term instanceof NF4) {
+                final NF4 nf4 = (NF4) term;
+                copy = new NF4(roleMap[nf4.getR()], roleMap[nf4.getS()]);
+            } else if (term instanceof NF5) {
+                final NF5 nf5 = (NF5) term;
+                copy = new NF5(roleMap[nf5.getR()], roleMap[nf5.getS()], roleMap[nf5.getT()]);
+            } else if (term instanceof NF6) {
+                copy = new NF6(roleMap[((NF6) term).getR()]);
+            } else if (term instanceof NF7) {
+                final NF7 nf7 = (NF7) term;
+                copy = NF7.getInstance(conceptMap[nf7.lhsA], copy(nf7.rhsD, to));
+            } else if (term instanceof NF8) {
+                final NF8 nf8 = (NF8) term;
+                copy = NF8.getInstance(copy(nf8.lhsD, to), conceptMap[nf8.rhsB]);
+            } else {
+                throw new IllegalArgumentException("Type of " + term + " must be one of NF1 through NF8");
+            }
+            res.addTerm(copy);
+        }
+        res.getRoleClosure();
+        return res;
+    }
+
+    private Datatype copy(Datatype d, IFactory to) {
+        return new Datatype(to.getFeature(factory.lookupFeatureId(d.getFeature())), d.getOperator(),
+                d.getLiteral());
+    }
+
+    /**
+     * The key of a virtual concept of the module, which only identifies the
+     * virtual concept it was copied from.
+     */
+    private static final class VirtualKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int concept;
+
+        VirtualKey(int concept) {
+            this.concept = concept;
+        }
+
+        @Override
+        public int hashCode() {
+            return concept;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof VirtualKey && ((VirtualKey) obj).concept == concept;
+        }
+
+        @Override
+        public String toString() {
+            return "virtual" + concept;
+        }
+
+    }
+
+}
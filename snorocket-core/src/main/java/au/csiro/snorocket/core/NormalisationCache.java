@@ -0,0 +1,531 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import au.csiro.snorocket.core.axioms.GCI;
+import au.csiro.snorocket.core.axioms.Inclusion;
+import au.csiro.snorocket.core.model.AbstractConcept;
+import au.csiro.snorocket.core.model.AbstractLiteral;
+import au.csiro.snorocket.core.model.Concept;
+import au.csiro.snorocket.core.model.Conjunction;
+import au.csiro.snorocket.core.model.Datatype;
+import au.csiro.snorocket.core.model.DateLiteral;
+import au.csiro.snorocket.core.model.Existential;
+
+/**
+ * On-disk cache of normalised concept inclusions, so that reloading a mostly
+ * unchanged ontology, for example a new release, skips the normalisation of
+ * the axioms that have not changed. See
+ * {@link NormalisedOntology#setNormalisationCache(NormalisationCache)}.
+ *
+ * <p>
+ * Inclusions are keyed by a fingerprint of their content: a 128 bit hash of
+ * the names of their concepts, roles and features and of their structure,
+ * which does not depend on ids or on the order of conjuncts. A cached entry
+ * holds the normal forms with the ids of the factory that created them,
+ * together with the names of the concepts, roles
+ * and features they use and the keys of their virtual concepts. When an entry
+ * is used its ids are mapped to the ids of the current factory, so virtual
+ * concepts are shared with the ones created by normalisation in the same way
+ * as if the inclusion had been normalised again. Role inclusions are not
+ * cached.
+ * </p>
+ *
+ * <p>
+ * The cache holds at most a fixed number of entries and evicts the least
+ * recently used ones, so entries of axioms that are no longer in the
+ * ontology age out over a few releases. Entries are saved in that order.
+ * Lookups and additions are synchronised, so the normalisation workers can
+ * share a cache.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class NormalisationCache {
+
+    private final static Logger log = Logger.getLogger(NormalisationCache.class);
+
+    /**
+     * Version of the file format. Files with a different version are
+     * ignored.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Number of entries written between resets of the object stream, which
+     * keeps its table of back references small.
+     */
+    private static final int RESET_INTERVAL = 1024;
+
+    private final File file;
+
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * Opens a cache stored in a file, which is created when the cache is
+     * first saved. A file that cannot be read is ignored.
+     *
+     * @param file
+     * @param maxEntries The maximum number of inclusions kept in the cache.
+     */
+    public NormalisationCache(File file, final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+        }
+        this.file = file;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (file.exists()) {
+            read();
+        }
+    }
+
+    private void read() {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final int version = ois.readInt();
+            if (version != VERSION) {
+                log.warn("Ignoring normalisation cache " + file + " with version " + version);
+                return;
+            }
+            final int n = ois.readInt();
+            for (int i = 0; i < n; i++) {
+                final Key key = new Key(ois.readLong(), ois.readLong());
+                entries.put(key, (Entry) ois.readObject());
+            }
+            if (log.isInfoEnabled())
+                log.info("Read " + entries.size() + " normalised inclusions from " + file);
+        } catch (Exception e) {
+            log.warn("Ignoring unreadable normalisation cache " + file, e);
+            entries.clear();
+        } finally {
+            if (ois != null) {
+                try { ois.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to its file. The file is replaced only once the new
+     * one has been written completely.
+     */
+    public synchronized void save() {
+        final File tmp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            oos.writeInt(VERSION);
+            oos.writeInt(entries.size());
+            int i = 0;
+            for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+                oos.writeLong(e.getKey().hi);
+                oos.writeLong(e.getKey().lo);
+                oos.writeObject(e.getValue());
+                if (++i % RESET_INTERVAL == 0) {
+                    oos.reset();
+                }
+            }
+            oos.close();
+            oos = null;
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            log.error("Problem saving normalisation cache.", e);
+            throw new RuntimeException(e);
+        } finally {
+            if (oos != null) {
+                try { oos.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Returns the normal forms of an inclusion in the ids of a factory,
+     * creating the concepts, roles and features they use if required, or
+     * null if the inclusion is not in the cache.
+     *
+     * @param key The fingerprint of the inclusion.
+     * @param factory
+     * @return Inclusion[]
+     */
+    public Inclusion[] get(Key key, IFactory factory) {
+        final Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return e.restore(factory);
+    }
+
+    /**
+     * Adds the normal forms of an inclusion.
+     *
+     * @param key The fingerprint of the inclusion.
+     * @param forms
+     * @param factory The factory that created the ids of the normal forms.
+     */
+    public void put(Key key, Collection<Inclusion> forms, IFactory factory) {
+        final Entry e = new Entry(forms, factory);
+        synchronized (this) {
+            entries.put(key, e);
+        }
+    }
+
+    /**
+     * Returns the fingerprint of an inclusion that has not been normalised
+     * yet.
+     *
+     * @param gci
+     * @param factory
+     * @return Key
+     */
+    public Key fingerprint(GCI gci, IFactory factory) {
+        final Hash h = new Hash();
+        h.add('[');
+        hash(gci.lhs(), factory, h);
+        h.add(']');
+        hash(gci.rhs(), factory, h);
+        return new Key(h.hi, h.lo);
+    }
+
+    private static void hash(AbstractConcept c, IFactory factory, Hash h) {
+        if (c instanceof Concept) {
+            final int id = c.hashCode();
+            if (id == IFactory.TOP_CONCEPT) {
+                h.add('T');
+            } else if (id == IFactory.BOTTOM_CONCEPT) {
+                h.add('B');
+            } else {
+                h.add('C');
+                h.add(factory.lookupConceptId(id).toString());
+            }
+        } else if (c instanceof Conjunction) {
+            // The conjuncts are sorted by id, so their hashes are sorted
+            // instead
+            final AbstractConcept[] cs = ((Conjunction) c).getConcepts();
+            final Key[] parts = new Key[cs.length];
+            for (int i = 0; i < cs.length; i++) {
+                final Hash part = new Hash();
+                hash(cs[i], factory, part);
+                parts[i] = new Key(part.hi, part.lo);
+            }
+            Arrays.sort(parts);
+            h.add('A');
+            h.add(cs.length);
+            for (Key part : parts) {
+                h.add(part.hi);
+                h.add(part.lo);
+            }
+        } else if (c instanceof Existential) {
+            final Existential e = (Existential) c;
+            h.add('E');
+            h.add(factory.lookupRoleId(e.getRole()).toString());
+            hash(e.getConcept(), factory, h);
+        } else if (c instanceof Datatype) {
+            final Datatype d = (Datatype) c;
+            final AbstractLiteral l = d.getLiteral();
+            h.add('D');
+            h.add(factory.lookupFeatureId(d.getFeature()));
+            h.add(d.getOperator().ordinal());
+            h.add(l.getClass().getName());
+            h.add(l instanceof DateLiteral ? String.valueOf(((DateLiteral) l).getValue().getTimeInMillis())
+                    : l.toString());
+        } else {
+            throw new RuntimeException("Unexpected AbstractConcept " + c.getClass().getName());
+        }
+    }
+
+    /**
+     * Returns the number of inclusions in the cache.
+     *
+     * @return int
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that found their inclusion.
+     *
+     * @return long
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find their inclusion.
+     *
+     * @return long
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The fingerprint of an inclusion.
+     */
+    public static final class Key implements Comparable<Key> {
+
+        private final long hi;
+
+        private final long lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lo ^ (lo >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hi == other.hi && lo == other.lo;
+        }
+
+        public int compareTo(Key other) {
+            if (hi != other.hi) {
+                return hi < other.hi ? -1 : 1;
+            }
+            return lo < other.lo ? -1 : lo == other.lo ? 0 : 1;
+        }
+
+    }
+
+    /**
+     * Two independent 64 bit hashes, fed a value at a time.
+     */
+    private static final class Hash {
+
+        long hi = 0xcbf29ce484222325L;
+
+        long lo = 0x84222325cbf29ce4L;
+
+        void add(long v) {
+            hi = (hi ^ v) * 0x100000001b3L;
+            lo = Long.rotateLeft(lo + v * 0x9e3779b97f4a7c15L, 31) * 0xbf58476d1ce4e5b9L;
+        }
+
+        void add(String s) {
+            add(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                add(s.charAt(i));
+            }
+        }
+
+    }
+
+    /**
+     * The normal forms of an inclusion with the ids of the factory that
+     * created them, and the keys needed to map those ids to another factory.
+     */
+    private static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final GCI[] forms;
+
+        /**
+         * The concepts used by the normal forms and by the keys of their
+         * virtual concepts, except TOP and BOTTOM. Virtual concepts come after
+         * the concepts in their keys.
+         */
+        private final int[] concepts;
+
+        /**
+         * The name of each concept, or its key if it is virtual.
+         */
+        private final Object[] conceptKeys;
+
+        private final int[] roles;
+
+        private final Object[] roleKeys;
+
+        private final int[] features;
+
+        private final String[] featureKeys;
+
+        Entry(Collection<Inclusion> forms, IFactory factory) {
+            this.forms = new GCI[forms.size()];
+            final List<Integer> cs = new ArrayList<Integer>();
+            final List<Integer> rs = new ArrayList<Integer>();
+            final List<Integer> fs = new ArrayList<Integer>();
+            int i = 0;
+            for (Inclusion form : forms) {
+                final GCI gci = (GCI) form;
+                this.forms[i++] = gci;
+                collect(gci.lhs(), factory, cs, rs, fs);
+                collect(gci.rhs(), factory, cs, rs, fs);
+            }
+
+            concepts = new int[cs.size()];
+            conceptKeys = new Object[cs.size()];
+            for (i = 0; i < concepts.length; i++) {
+                concepts[i] = cs.get(i);
+                conceptKeys[i] = factory.lookupConceptId(concepts[i]);
+            }
+            roles = new int[rs.size()];
+            roleKeys = new Object[rs.size()];
+            for (i = 0; i < roles.length; i++) {
+                roles[i] = rs.get(i);
+                roleKeys[i] = factory.lookupRoleId(roles[i]);
+            }
+            features = new int[fs.size()];
+            featureKeys = new String[fs.size()];
+            for (i = 0; i < features.length; i++) {
+                features[i] = fs.get(i);
+                featureKeys[i] = factory.lookupFeatureId(features[i]);
+            }
+        }
+
+        private static void collect(AbstractConcept c, IFactory factory, List<Integer> cs, List<Integer> rs,
+                List<Integer> fs) {
+            if (c instanceof Concept) {
+                final int id = c.hashCode();
+                if (id == IFactory.TOP_CONCEPT || id == IFactory.BOTTOM_CONCEPT || cs.contains(id)) {
+                    return;
+                }
+                final Object key = factory.lookupConceptId(id);
+                if (key instanceof AbstractConcept) {
+                    collect((AbstractConcept) key, factory, cs, rs, fs);
+                }
+                cs.add(id);
+            } else if (c instanceof Conjunction) {
+                for (AbstractConcept con : ((Conjunction) c).getConcepts()) {
+                    collect(con, factory, cs, rs, fs);
+                }
+            } else if (c instanceof Existential) {
+                final Existential e = (Existential) c;
+                if (!rs.contains(e.getRole())) {
+                    rs.add(e.getRole());
+                }
+                collect(e.getConcept(), factory, cs, rs, fs);
+            } else if (c instanceof Datatype) {
+                final int f = ((Datatype) c).getFeature();
+                if (!fs.contains(f)) {
+                    fs.add(f);
+                }
+            }
+        }
+
+        Inclusion[] restore(IFactory factory) {
+            final int[] roleMap = new int[roles.length];
+            for (int i = 0; i < roles.length; i++) {
+                roleMap[i] = factory.getRole(roleKeys[i]);
+            }
+            final int[] featureMap = new int[features.length];
+            for (int i = 0; i < features.length; i++) {
+                featureMap[i] = factory.getFeature(featureKeys[i]);
+            }
+            final int[] conceptMap = new int[concepts.length];
+            for (int i = 0; i < concepts.length; i++) {
+                final Object key = conceptKeys[i];
+                if (key instanceof AbstractConcept) {
+                    final AbstractConcept virtual = map((AbstractConcept) key, conceptMap, roleMap, featureMap);
+                    final boolean alreadyExists = factory.conceptExists(virtual);
+                    conceptMap[i] = factory.getConcept(virtual);
+                    if (!alreadyExists) {
+                        factory.setVirtualConcept(conceptMap[i], true);
+                    }
+                } else {
+                    conceptMap[i] = factory.getConcept(key);
+                }
+            }
+
+            final Inclusion[] res = new Inclusion[forms.length];
+            for (int i = 0; i < forms.length; i++) {
+                res[i] = new GCI(map(forms[i].lhs(), conceptMap, roleMap, featureMap),
+                        map(forms[i].rhs(), conceptMap, roleMap, featureMap));
+            }
+            return res;
+        }
+
+        /**
+         * Maps an expression with the ids of the factory that created this
+         * entry to the ids of the current one.
+         */
+        private AbstractConcept map(AbstractConcept c, int[] conceptMap, int[] roleMap, int[] featureMap) {
+            if (c instanceof Concept) {
+                final int id = c.hashCode();
+                if (id == IFactory.TOP_CONCEPT || id == IFactory.BOTTOM_CONCEPT) {
+                    return c;
+                }
+                return new Concept(conceptMap[indexOf(concepts, id)]);
+            } else if (c instanceof Conjunction) {
+                final AbstractConcept[] cs = ((Conjunction) c).getConcepts();
+                final AbstractConcept[] res = new AbstractConcept[cs.length];
+                for (int i = 0; i < cs.length; i++) {
+                    res[i] = map(cs[i], conceptMap, roleMap, featureMap);
+                }
+                return new Conjunction(res);
+            } else if (c instanceof Existential) {
+                final Existential e = (Existential) c;
+                return new Existential(roleMap[indexOf(roles, e.getRole())],
+                        map(e.getConcept(), conceptMap, roleMap, featureMap));
+            } else if (c instanceof Datatype) {
+                final Datatype d = (Datatype) c;
+                return new Datatype(featureMap[indexOf(features, d.getFeature())], d.getOperator(), d.getLiteral());
+            } else {
+                throw new RuntimeException("Unexpected AbstractConcept " + c.getClass().getName());
+            }
+        }
+
+        private static int indexOf(int[] ids, int id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("Id " + id + " missing from normalisation cache entry");
+        }
+
+    }
+
+}
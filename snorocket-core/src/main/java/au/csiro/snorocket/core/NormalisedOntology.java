@@ -21,9 +21,13 @@
 
 package au.csiro.snorocket.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -37,8 +41,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -54,7 +57,6 @@ import au.csiro.ontology.model.RoleInclusion;
 import au.csiro.ontology.util.Statistics;
 import au.csiro.snorocket.core.axioms.GCI;
 import au.csiro.snorocket.core.axioms.IConjunctionQueueEntry;
-import au.csiro.snorocket.core.axioms.IRoleQueueEntry;
 import au.csiro.snorocket.core.axioms.Inclusion;
 import au.csiro.snorocket.core.axioms.NF1a;
 import au.csiro.snorocket.core.axioms.NF1b;
@@ -69,8 +71,17 @@ import au.csiro.snorocket.core.axioms.NormalFormGCI;
 import au.csiro.snorocket.core.axioms.RI;
 import au.csiro.snorocket.core.concurrent.CR;
 import au.csiro.snorocket.core.concurrent.Context;
+import au.csiro.snorocket.core.concurrent.Outbox;
+import au.csiro.snorocket.core.concurrent.DistributedSaturation;
+import au.csiro.snorocket.core.concurrent.NormalisationWorker;
+import au.csiro.snorocket.core.concurrent.PartitionedSaturation;
+import au.csiro.snorocket.core.concurrent.PartitionedSaturation.Partition;
+import au.csiro.snorocket.core.concurrent.ReasonerExecutor;
+import au.csiro.snorocket.core.concurrent.SaturationState;
+import au.csiro.snorocket.core.concurrent.StealingWorker;
 import au.csiro.snorocket.core.concurrent.TaxonomyWorker1;
 import au.csiro.snorocket.core.concurrent.TaxonomyWorker2;
+import au.csiro.snorocket.core.concurrent.WorkStealingQueue;
 import au.csiro.snorocket.core.concurrent.Worker;
 import au.csiro.snorocket.core.model.AbstractConcept;
 import au.csiro.snorocket.core.model.AbstractLiteral;
@@ -82,8 +93,9 @@ import au.csiro.snorocket.core.model.Existential;
 import au.csiro.snorocket.core.model.IntegerLiteral;
 import au.csiro.snorocket.core.model.StringLiteral;
 import au.csiro.snorocket.core.util.AxiomSet;
+import au.csiro.snorocket.core.util.ConceptRoleMap;
+import au.csiro.snorocket.core.util.DatatypeIndex;
 import au.csiro.snorocket.core.util.DenseConceptMap;
-import au.csiro.snorocket.core.util.FastConceptHashSet;
 import au.csiro.snorocket.core.util.FastConceptMap;
 import au.csiro.snorocket.core.util.FeatureMap;
 import au.csiro.snorocket.core.util.FeatureSet;
@@ -91,9 +103,10 @@ import au.csiro.snorocket.core.util.IConceptMap;
 import au.csiro.snorocket.core.util.IConceptSet;
 import au.csiro.snorocket.core.util.IMonotonicCollection;
 import au.csiro.snorocket.core.util.IntIterator;
+import au.csiro.snorocket.core.util.LongQueue;
 import au.csiro.snorocket.core.util.MonotonicCollection;
-import au.csiro.snorocket.core.util.RoleSet;
-import au.csiro.snorocket.core.util.SparseConceptHashSet;
+import au.csiro.snorocket.core.util.PackedConceptMap;
+import au.csiro.snorocket.core.util.RoleClosure;
 import au.csiro.snorocket.core.util.SparseConceptMap;
 import au.csiro.snorocket.core.util.SparseConceptSet;
 
@@ -144,9 +157,9 @@ public class NormalisedOntology implements Serializable {
      * <li>Unknown usage profile for Role maps</li>
      * </ul>
      * 
-     * These terms are of the form r.A [ b and indexed by A.
+     * These terms are of the form r.A [ b and indexed by A and then by r.
      */
-    final protected IConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>> ontologyNF3;
+    final protected ConceptRoleMap ontologyNF3;
 
     /**
      * The set of NF4 terms in the ontology
@@ -158,6 +171,22 @@ public class NormalisedOntology implements Serializable {
      */
     final protected IMonotonicCollection<NF5> ontologyNF5;
 
+    /**
+     * The NF5 terms indexed by their first role.
+     * 
+     * These terms are of the form r o s [ t and are indexed by r.
+     */
+    final protected IConceptMap<MonotonicCollection<NF5>> ontologyNF5ByR = 
+            new SparseConceptMap<MonotonicCollection<NF5>>(10, "ontologyNF5ByR");
+
+    /**
+     * The NF5 terms indexed by their second role.
+     * 
+     * These terms are of the form r o s [ t and are indexed by s.
+     */
+    final protected IConceptMap<MonotonicCollection<NF5>> ontologyNF5ByS = 
+            new SparseConceptMap<MonotonicCollection<NF5>>(10, "ontologyNF5ByS");
+
     /**
      * The set of reflexive roles in the ontology
      */
@@ -177,10 +206,116 @@ public class NormalisedOntology implements Serializable {
      */
     final protected FeatureMap<MonotonicCollection<NF8>> ontologyNF8;
 
+    /**
+     * Frozen copies of the NF1, NF2 and NF5 indexes, read during saturation.
+     * Null until the first call to {@link #freeze()}.
+     */
+    private PackedConceptMap packedNF1;
+    
+    private PackedConceptMap packedNF2;
+    
+    private PackedConceptMap packedNF5ByR;
+    
+    private PackedConceptMap packedNF5ByS;
+
+    /**
+     * Indicates if the collections of the NF1, NF2 and NF5 indexes have been
+     * emptied by {@link #freeze()}. Their rows are then only in the packed
+     * copies, except for the rows that have been rebuilt since, see
+     * {@link #restoreCollections()}.
+     */
+    private boolean collectionsDropped = false;
+
+    /**
+     * The keys of the NF1, NF2 and NF5 indexes that have new terms since the
+     * last freeze. Only recorded once the indexes have been frozen.
+     */
+    private IConceptSet touchedNF1 = new SparseConceptSet();
+    
+    private IConceptSet touchedNF2 = new SparseConceptSet();
+    
+    private IConceptSet touchedNF5ByR = new SparseConceptSet();
+    
+    private IConceptSet touchedNF5ByS = new SparseConceptSet();
+
+    /**
+     * The frozen index of the NF8 terms, read during saturation. Null until
+     * the first call to {@link #freeze()}.
+     */
+    private DatatypeIndex datatypeIndex;
+
+    /**
+     * The features with new NF8 terms since the last freeze.
+     */
+    private FeatureSet touchedNF8 = new FeatureSet();
+    
+    private static final PackedConceptMap.Packer<IConjunctionQueueEntry> NF1_PACKER = 
+            new PackedConceptMap.Packer<IConjunctionQueueEntry>() {
+        public long pack(IConjunctionQueueEntry entry) {
+            return LongQueue.pack(entry.getBi(), entry.getB());
+        }
+    };
+    
+    private static final PackedConceptMap.Packer<NF2> NF2_PACKER = new PackedConceptMap.Packer<NF2>() {
+        public long pack(NF2 entry) {
+            return LongQueue.pack(entry.getR(), entry.getB());
+        }
+    };
+    
+    private static final PackedConceptMap.Packer<NF5> NF5_BY_R_PACKER = new PackedConceptMap.Packer<NF5>() {
+        public long pack(NF5 entry) {
+            return LongQueue.pack(entry.getS(), entry.getT());
+        }
+    };
+    
+    private static final PackedConceptMap.Packer<NF5> NF5_BY_S_PACKER = new PackedConceptMap.Packer<NF5>() {
+        public long pack(NF5 entry) {
+            return LongQueue.pack(entry.getR(), entry.getT());
+        }
+    };
+    
+    /**
+     * Rebuilds A n Bi [ B from the row of A. The entry of an NF1b term is
+     * only an {@link NF1b} in the row of the smaller of its two concepts, as
+     * it is only in the row of its first concept when it is loaded.
+     */
+    private static final PackedConceptMap.Unpacker<IConjunctionQueueEntry> NF1_UNPACKER = 
+            new PackedConceptMap.Unpacker<IConjunctionQueueEntry>() {
+        public IConjunctionQueueEntry unpack(int a, long entry) {
+            final int bi = LongQueue.high(entry);
+            final int b = LongQueue.low(entry);
+            if (bi == IFactory.TOP_CONCEPT) {
+                return NF1a.getInstance(a, b).getQueueEntry();
+            } else if (a <= bi) {
+                return NF1b.getInstance(a, bi, b).getQueueEntry1();
+            } else {
+                return NF1b.getInstance(bi, a, b).getQueueEntry2();
+            }
+        }
+    };
+    
+    private static final PackedConceptMap.Unpacker<NF2> NF2_UNPACKER = new PackedConceptMap.Unpacker<NF2>() {
+        public NF2 unpack(int a, long entry) {
+            return NF2.getInstance(a, LongQueue.high(entry), LongQueue.low(entry));
+        }
+    };
+    
+    private static final PackedConceptMap.Unpacker<NF5> NF5_BY_R_UNPACKER = new PackedConceptMap.Unpacker<NF5>() {
+        public NF5 unpack(int r, long entry) {
+            return new NF5(r, LongQueue.high(entry), LongQueue.low(entry));
+        }
+    };
+    
+    private static final PackedConceptMap.Unpacker<NF5> NF5_BY_S_UNPACKER = new PackedConceptMap.Unpacker<NF5>() {
+        public NF5 unpack(int s, long entry) {
+            return new NF5(LongQueue.high(entry), s, LongQueue.low(entry));
+        }
+    };
+
     /**
      * The queue of contexts to process.
      */
-    private final Queue<Context> todo = new ConcurrentLinkedQueue<Context>();
+    private Queue<Context> todo = new ConcurrentLinkedQueue<Context>();
 
     /**
      * The map of contexts by concept id.
@@ -188,9 +323,10 @@ public class NormalisedOntology implements Serializable {
     private final IConceptMap<Context> contextIndex;
 
     /**
-     * The global role closure.
+     * The reflexive-transitive closure of the role hierarchy. Set to null
+     * when a new NF4 term is added and recomputed on demand.
      */
-    private final Map<Integer, RoleSet> roleClosureCache;
+    private RoleClosure roleClosure;
 
     /**
      * A set of new contexts added in an incremental classification.
@@ -202,6 +338,115 @@ public class NormalisedOntology implements Serializable {
      */
     private int numThreads = Runtime.getRuntime().availableProcessors();
     
+    /**
+     * The time the idle threads of the executor are kept, or 0 to keep them
+     * until {@link #shutdown()}.
+     */
+    private long threadKeepAlive = ReasonerExecutor.DEFAULT_KEEP_ALIVE_MILLIS;
+    
+    /**
+     * Indicates if saturation uses per-thread deques with work stealing
+     * instead of a single shared queue of contexts.
+     */
+    private boolean workStealing = false;
+    
+    /**
+     * Indicates if contexts are seeded in told dependency order instead of in
+     * concept id order.
+     */
+    private boolean toldDependencyOrder = false;
+    
+    /**
+     * Indicates if contexts start with their told subsumptions, see
+     * {@link #setToldSubsumerSeeding(boolean)}.
+     */
+    private boolean toldSubsumerSeeding = false;
+    
+    /**
+     * The number of times the last classification processed a context, see
+     * {@link #getNumProcessedContexts()}.
+     */
+    private long numProcessedContexts = 0;
+    
+    /**
+     * The number of times the last full classification processed a context
+     * that had already been processed, see {@link #getNumReactivations()}.
+     */
+    private long numReactivations = 0;
+    
+    /**
+     * The number of concept queue entries added by the last classification,
+     * see {@link #getNumConceptEntries()}.
+     */
+    private long numConceptEntries = 0;
+    
+    /**
+     * The number of those entries that were dropped before being queued, see
+     * {@link #getNumSkippedConceptEntries()}.
+     */
+    private long numSkippedConceptEntries = 0;
+    
+    /**
+     * The number of told subsumptions the last full classification seeded,
+     * see {@link #getNumSeededSubsumptions()}.
+     */
+    private long numSeededSubsumptions = 0;
+    
+    /**
+     * Indicates if full classifications use the owner-computes engine, see
+     * {@link PartitionedSaturation}.
+     */
+    private boolean partitioned = false;
+    
+    /**
+     * The capacity of the queues between partitions, see
+     * {@link #setPartitionQueueCapacity(int)}.
+     */
+    private int partitionQueueCapacity = PartitionedSaturation.QUEUE_CAPACITY;
+    
+    /**
+     * The largest number of messages a partition held back during the last
+     * full classification, see {@link #getMaxPartitionBacklog()}.
+     */
+    private long maxPartitionBacklog = 0;
+    
+    /**
+     * Indicates if conjunctions are binarised so that they share their most
+     * frequent conjuncts, see
+     * {@link NormalisationWorker#factor(Collection, IFactory, Collection)}.
+     */
+    private boolean factorConjunctions = false;
+    
+    /**
+     * The maximum number of conjunctions kept to be factored together when
+     * axioms are loaded from an iterator.
+     */
+    private int factorWindow = DEFAULT_FACTOR_WINDOW;
+    
+    /**
+     * Runs full classifications in separate processes when set, see
+     * {@link DistributedSaturation}.
+     */
+    private transient DistributedSaturation distributedSaturation;
+    
+    /**
+     * Indicates if the contexts were collected from the shards of a
+     * distributed saturation, which only send the successors, and the
+     * predecessors have not been restored yet.
+     */
+    private boolean predecessorsMissing = false;
+    
+    /**
+     * Normal forms of previously normalised inclusions, if set.
+     */
+    private transient NormalisationCache normalisationCache;
+    
+    /**
+     * The threads used to run saturation and taxonomy construction. Created
+     * on first use and kept for later (incremental) classifications.
+     */
+    private transient ReasonerExecutor executor;
+    
     private boolean hasBeenIncrementallyClassified = false;
     
     private transient Map<String, Node> conceptNodeIndex;
@@ -223,20 +468,35 @@ public class NormalisedOntology implements Serializable {
     private final Set<Context> affectedContexts = 
             new ConcurrentSkipListSet<Context>(new ContextComparator());
     
+    /**
+     * The state shared by the contexts of this ontology during saturation.
+     */
+    private final SaturationState saturationState = new SaturationState();
+    
     /**
      * Normalised axioms added incrementally.
      */
     private AxiomSet as = new AxiomSet(); 
 
+    /**
+     * Returns the NF1 index. Once frozen its rows are rebuilt from the packed
+     * copy, and the next {@link #freeze()} empties it again, see
+     * {@link #restoreCollections()}. The same applies to the NF2 and NF5
+     * indexes.
+     * 
+     * @return
+     */
     public IConceptMap<MonotonicCollection<IConjunctionQueueEntry>> getOntologyNF1() {
+        restoreCollections();
         return ontologyNF1;
     }
 
     public IConceptMap<MonotonicCollection<NF2>> getOntologyNF2() {
+        restoreCollections();
         return ontologyNF2;
     }
 
-    public IConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>> getOntologyNF3() {
+    public ConceptRoleMap getOntologyNF3() {
         return ontologyNF3;
     }
 
@@ -248,6 +508,92 @@ public class NormalisedOntology implements Serializable {
         return ontologyNF5;
     }
 
+    public IConceptMap<MonotonicCollection<NF5>> getOntologyNF5ByR() {
+        restoreCollections();
+        return ontologyNF5ByR;
+    }
+
+    public IConceptMap<MonotonicCollection<NF5>> getOntologyNF5ByS() {
+        restoreCollections();
+        return ontologyNF5ByS;
+    }
+
+    /**
+     * Returns the NF1 entries of a concept, or null if it has none. If the
+     * collections have been emptied by {@link #freeze()} and its row has not
+     * been rebuilt, a copy is unpacked from the frozen index.
+     * 
+     * @param a
+     * @return
+     */
+    MonotonicCollection<IConjunctionQueueEntry> getNF1Row(int a) {
+        return getRow(ontologyNF1, packedNF1, a, NF1_UNPACKER);
+    }
+
+    MonotonicCollection<NF2> getNF2Row(int a) {
+        return getRow(ontologyNF2, packedNF2, a, NF2_UNPACKER);
+    }
+
+    MonotonicCollection<NF5> getNF5ByRRow(int r) {
+        return getRow(ontologyNF5ByR, packedNF5ByR, r, NF5_BY_R_UNPACKER);
+    }
+
+    MonotonicCollection<NF5> getNF5BySRow(int s) {
+        return getRow(ontologyNF5ByS, packedNF5ByS, s, NF5_BY_S_UNPACKER);
+    }
+
+    private <T> MonotonicCollection<T> getRow(IConceptMap<MonotonicCollection<T>> map, PackedConceptMap packed, 
+            int a, PackedConceptMap.Unpacker<T> unpacker) {
+        final MonotonicCollection<T> row = map.get(a);
+        if (row != null || !collectionsDropped) {
+            return row;
+        }
+        return packed.unpack(a, unpacker);
+    }
+
+    /**
+     * Puts the row of a key back into an index emptied by {@link #freeze()},
+     * so that new entries can be added to it.
+     * 
+     * @param map
+     * @param packed
+     * @param a
+     * @param unpacker
+     */
+    private <T> void restoreRow(IConceptMap<MonotonicCollection<T>> map, PackedConceptMap packed, int a,
+            PackedConceptMap.Unpacker<T> unpacker) {
+        if (collectionsDropped && map.get(a) == null) {
+            final MonotonicCollection<T> row = packed.unpack(a, unpacker);
+            if (row != null) {
+                map.put(a, row);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the collections of the NF1, NF2 and NF5 indexes from the
+     * packed copies if {@link #freeze()} has emptied them, for the methods
+     * that list the terms. They are emptied again by the next freeze.
+     */
+    protected synchronized void restoreCollections() {
+        if (!collectionsDropped) {
+            return;
+        }
+        for (int a = 0; a < packedNF1.capacity(); a++) {
+            restoreRow(ontologyNF1, packedNF1, a, NF1_UNPACKER);
+        }
+        for (int a = 0; a < packedNF2.capacity(); a++) {
+            restoreRow(ontologyNF2, packedNF2, a, NF2_UNPACKER);
+        }
+        for (int r = 0; r < packedNF5ByR.capacity(); r++) {
+            restoreRow(ontologyNF5ByR, packedNF5ByR, r, NF5_BY_R_UNPACKER);
+        }
+        for (int r = 0; r < packedNF5ByS.capacity(); r++) {
+            restoreRow(ontologyNF5ByS, packedNF5ByS, r, NF5_BY_S_UNPACKER);
+        }
+        collectionsDropped = false;
+    }
+
     public IConceptSet getReflexiveRoles() {
         return reflexiveRoles;
     }
@@ -256,6 +602,56 @@ public class NormalisedOntology implements Serializable {
         return ontologyNF7;
     }
 
+    /**
+     * Returns the frozen NF1 index, with the entries (Bi, B) of the terms
+     * A n Bi [ B packed by A. Null until {@link #freeze()} is called.
+     * 
+     * @return
+     */
+    public PackedConceptMap getPackedNF1() {
+        return packedNF1;
+    }
+    
+    /**
+     * Returns the frozen NF2 index, with the entries (r, B) of the terms
+     * A [ r.B packed by A.
+     * 
+     * @return
+     */
+    public PackedConceptMap getPackedNF2() {
+        return packedNF2;
+    }
+    
+    /**
+     * Returns the frozen NF5 index by first role, with the entries (s, t) of
+     * the terms r o s [ t packed by r.
+     * 
+     * @return
+     */
+    public PackedConceptMap getPackedNF5ByR() {
+        return packedNF5ByR;
+    }
+    
+    /**
+     * Returns the frozen NF5 index by second role, with the entries (r, t) of
+     * the terms r o s [ t packed by s.
+     * 
+     * @return
+     */
+    public PackedConceptMap getPackedNF5ByS() {
+        return packedNF5ByS;
+    }
+    
+    /**
+     * Returns the frozen index of the NF8 terms. Null until {@link #freeze()}
+     * is called.
+     * 
+     * @return
+     */
+    public DatatypeIndex getDatatypeIndex() {
+        return datatypeIndex;
+    }
+    
     public FeatureMap<MonotonicCollection<NF8>> getOntologyNF8() {
         return ontologyNF8;
     }
@@ -268,8 +664,23 @@ public class NormalisedOntology implements Serializable {
         return contextIndex;
     }
 
-    public Map<Integer, RoleSet> getRoleClosureCache() {
-        return roleClosureCache;
+    /**
+     * Returns the closure of the role hierarchy, computing it first if new
+     * roles or NF4 terms have been added since it was last computed.
+     * 
+     * @return
+     */
+    public synchronized RoleClosure getRoleClosure() {
+        final int numRoles = factory.getTotalRoles();
+        if (roleClosure == null || roleClosure.size() < numRoles) {
+            long start = System.currentTimeMillis();
+            roleClosure = new RoleClosure(numRoles, ontologyNF4);
+            if (roleClosure.getNumCycles() > 0 && log.isInfoEnabled()) {
+                log.info("Found " + roleClosure.getNumCycles() + " groups of equivalent roles");
+            }
+            Statistics.INSTANCE.setTime("role closure", System.currentTimeMillis() - start);
+        }
+        return roleClosure;
     }
 
     public Set<Context> getAffectedContexts() {
@@ -293,6 +704,18 @@ public class NormalisedOntology implements Serializable {
 
     final static int CONCEPT_COUNT_ESTIMATE = 500000;
 
+    /**
+     * The default number of axioms loaded at a time from an iterator, large
+     * enough for the parallel normaliser.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    /**
+     * The default maximum number of conjunctions factored together when
+     * axioms are loaded from an iterator.
+     */
+    public static final int DEFAULT_FACTOR_WINDOW = 1 << 16;
+
     /**
      * 
      * @param baseConceptCount
@@ -307,7 +730,7 @@ public class NormalisedOntology implements Serializable {
             factory,
             new DenseConceptMap<MonotonicCollection<IConjunctionQueueEntry>>(CONCEPT_COUNT_ESTIMATE),
             new SparseConceptMap<MonotonicCollection<NF2>>(CONCEPT_COUNT_ESTIMATE, "ontologyNF2"),
-            new SparseConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>>(CONCEPT_COUNT_ESTIMATE, "ontologyNF3"),
+            new ConceptRoleMap(CONCEPT_COUNT_ESTIMATE),
             new MonotonicCollection<NF4>(15), new MonotonicCollection<NF5>(1), 
             new SparseConceptMap<MonotonicCollection<NF7>>(10, "ontologyNF7"),
             new FeatureMap<MonotonicCollection<NF8>>(10)
@@ -329,14 +752,13 @@ public class NormalisedOntology implements Serializable {
             final IFactory factory,
             final IConceptMap<MonotonicCollection<IConjunctionQueueEntry>> nf1q,
             final IConceptMap<MonotonicCollection<NF2>> nf2q,
-            final IConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>> nf3q,
+            final ConceptRoleMap nf3q,
             final IMonotonicCollection<NF4> nf4q,
             final IMonotonicCollection<NF5> nf5q,
             final IConceptMap<MonotonicCollection<NF7>> nf7q,
             final FeatureMap<MonotonicCollection<NF8>> nf8q) {
         this.factory = factory;
         contextIndex = new FastConceptMap<Context>(factory.getTotalConcepts(), "");
-        roleClosureCache = new ConcurrentHashMap<Integer, RoleSet>(factory.getTotalRoles());
 
         this.ontologyNF1 = nf1q;
         this.ontologyNF2 = nf2q;
@@ -345,6 +767,10 @@ public class NormalisedOntology implements Serializable {
         this.ontologyNF5 = nf5q;
         this.ontologyNF7 = nf7q;
         this.ontologyNF8 = nf8q;
+
+        for (final NF5 nf5 : nf5q) {
+            indexNF5(nf5);
+        }
     }
 
     /**
@@ -365,6 +791,203 @@ public class NormalisedOntology implements Serializable {
         }
         
         Statistics.INSTANCE.setTime("indexing", System.currentTimeMillis() - start);
+        getRoleClosure();
+    }
+    
+    /**
+     * Normalises and loads the axioms returned by an iterator, batchSize at a
+     * time. Each batch is transformed, normalised and indexed before the next
+     * one is read, so the axioms of only one batch are held in memory and a
+     * lazy source is only consumed as fast as the axioms can be loaded.
+     * Normal forms shared by several batches are only indexed once, by
+     * looking them up in the index rows. If
+     * {@link #setFactorConjunctions(boolean)} is set, conjunctions of more
+     * than two concepts are kept and factored together, up to
+     * {@link #setFactorWindow(int)} at a time. Null axioms are ignored.
+     * 
+     * @param axioms
+     * @param batchSize The number of axioms per batch, for example
+     *            {@link #DEFAULT_BATCH_SIZE}.
+     */
+    public void loadAxioms(final Iterator<? extends Axiom> axioms, int batchSize) {
+        load(axioms, batchSize, false);
+    }
+    
+    /**
+     * Loads axioms for an incremental classification like
+     * {@link #loadIncremental(Set)}, batchSize at a time, see
+     * {@link #loadAxioms(Iterator, int)}.
+     * 
+     * @param axioms
+     * @param batchSize
+     */
+    public void loadIncremental(final Iterator<? extends Axiom> axioms, int batchSize) {
+        load(axioms, batchSize, true);
+    }
+    
+    private void load(final Iterator<? extends Axiom> axioms, int batchSize, boolean incremental) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        final List<Axiom> batch = new ArrayList<Axiom>(Math.min(batchSize, 1 << 16));
+        final Set<GCI> conjunctions = new HashSet<GCI>();
+        long numAxioms = 0;
+        long numIndexed = 0;
+        long normalisationTime = 0;
+        long indexingTime = 0;
+        while (axioms.hasNext()) {
+            batch.clear();
+            while (batch.size() < batchSize && axioms.hasNext()) {
+                final Axiom axiom = axioms.next();
+                if (axiom != null) {
+                    batch.add(axiom);
+                }
+            }
+            
+            long start = System.currentTimeMillis();
+            final Set<Inclusion> norm = normalise(batch, conjunctions);
+            if (!factorConjunctions || conjunctions.size() >= factorWindow) {
+                binarise(conjunctions, norm);
+                conjunctions.clear();
+            }
+            final long normalised = System.currentTimeMillis();
+            numIndexed += index(norm, incremental);
+            normalisationTime += normalised - start;
+            indexingTime += System.currentTimeMillis() - normalised;
+            numAxioms += batch.size();
+        }
+        batch.clear();
+        if (!conjunctions.isEmpty()) {
+            long start = System.currentTimeMillis();
+            final Set<Inclusion> norm = new HashSet<Inclusion>();
+            binarise(conjunctions, norm);
+            final long normalised = System.currentTimeMillis();
+            numIndexed += index(norm, incremental);
+            normalisationTime += normalised - start;
+            indexingTime += System.currentTimeMillis() - normalised;
+        }
+        
+        if (log.isInfoEnabled()) 
+            log.info("Loaded " + numAxioms + " axioms as " + numIndexed + " normalised axioms");
+        if (!incremental) {
+            Statistics.INSTANCE.setTime("normalisation", normalisationTime);
+            Statistics.INSTANCE.setTime("indexing", indexingTime);
+        }
+        // Picks up new roles and role inclusions once, rather than per batch
+        getRoleClosure();
+    }
+    
+    /**
+     * Indexes the normal forms that are not indexed yet.
+     * 
+     * @param norm
+     * @param incremental
+     * @return The number of normal forms indexed.
+     */
+    private int index(final Set<Inclusion> norm, boolean incremental) {
+        int num = 0;
+        for (Inclusion i : norm) {
+            final NormalFormGCI nf = i.getNormalForm();
+            if (isIndexed(nf)) {
+                continue;
+            }
+            if (incremental) {
+                as.addAxiom(nf);
+            }
+            addTerm(nf);
+            num++;
+        }
+        return num;
+    }
+    
+    /**
+     * Indicates if a normalised term has already been added, by looking it up
+     * in the row of the index it goes in. The rows are short, except for the
+     * role inclusions, which are few.
+     * 
+     * @param term
+     * @return
+     */
+    private boolean isIndexed(NormalFormGCI term) {
+        if (term instanceof NF1a) {
+            final NF1a nf1 = (NF1a) term;
+            return containsEntry(getNF1Row(nf1.lhsA()), IFactory.TOP_CONCEPT, nf1.b());
+        } else if (term instanceof NF1b) {
+            final NF1b nf1 = (NF1b) term;
+            return containsEntry(getNF1Row(nf1.lhsA1()), nf1.lhsA2(), nf1.b());
+        } else if (term instanceof NF2) {
+            final NF2 nf2 = (NF2) term;
+            final MonotonicCollection<NF2> nf2s = getNF2Row(nf2.lhsA);
+            if (nf2s != null) {
+                for (NF2 e : nf2s) {
+                    if (e.rhsR == nf2.rhsR && e.rhsB == nf2.rhsB) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } else if (term instanceof NF3) {
+            final NF3 nf3 = (NF3) term;
+            final IConjunctionQueueEntry entry = nf3.getQueueEntry();
+            return ontologyNF3.contains(nf3.lhsA, nf3.lhsR, LongQueue.pack(entry.getBi(), entry.getB()));
+        } else if (term instanceof NF4) {
+            final NF4 nf4 = (NF4) term;
+            for (NF4 e : ontologyNF4) {
+                if (e.getR() == nf4.getR() && e.getS() == nf4.getS()) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (term instanceof NF5) {
+            final NF5 nf5 = (NF5) term;
+            final MonotonicCollection<NF5> nf5s = getNF5ByRRow(nf5.getR());
+            if (nf5s != null) {
+                for (NF5 e : nf5s) {
+                    if (e.getS() == nf5.getS() && e.getT() == nf5.getT()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } else if (term instanceof NF6) {
+            return reflexiveRoles.contains(((NF6) term).getR());
+        } else if (term instanceof NF7) {
+            final NF7 nf7 = (NF7) term;
+            final MonotonicCollection<NF7> nf7s = ontologyNF7.get(nf7.lhsA);
+            if (nf7s != null) {
+                for (NF7 e : nf7s) {
+                    if (e.rhsD.equals(nf7.rhsD)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } else if (term instanceof NF8) {
+            final NF8 nf8 = (NF8) term;
+            final MonotonicCollection<NF8> nf8s = ontologyNF8.get(nf8.lhsD.getFeature());
+            if (nf8s != null) {
+                for (NF8 e : nf8s) {
+                    if (e.rhsB == nf8.rhsB && e.lhsD.equals(nf8.lhsD)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } else {
+            throw new IllegalArgumentException("Type of " + term
+                    + " must be one of NF1 through NF8");
+        }
+    }
+    
+    private static boolean containsEntry(MonotonicCollection<IConjunctionQueueEntry> entries, int bi, int b) {
+        if (entries != null) {
+            for (IConjunctionQueueEntry e : entries) {
+                if (e.getBi() == bi && e.getB() == b) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
     
     /**
@@ -375,6 +998,7 @@ public class NormalisedOntology implements Serializable {
      * TODO: inspect NF1bs and hierarchy to derive missing axioms!
      */
     public void prapareForInferred() {
+        restoreCollections();
         log.info("Adding additional axioms to calculate inferred axioms");
         int key = 0;
         
@@ -474,6 +1098,7 @@ public class NormalisedOntology implements Serializable {
     }
     
     public Collection<NF1b> getNF1bs() {
+        restoreCollections();
         Collection<NF1b> res = new HashSet<NF1b>();
         for(IntIterator it = ontologyNF1.keyIterator(); it.hasNext(); ) {
             int a = it.next();
@@ -490,13 +1115,14 @@ public class NormalisedOntology implements Serializable {
     }
     
     private boolean containsExistentialInNF3s(int r, int a, int b) {
-        ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> nf3Map = ontologyNF3.get(a);
-        if(nf3Map == null) return false;
-        Collection<IConjunctionQueueEntry> nf3s = nf3Map.get(r);
-        if(nf3s == null) return false;
+        ConceptRoleMap.Row row = ontologyNF3.get(a);
+        if(row == null) return false;
+        int idx = row.indexOf(r);
+        if(idx < 0) return false;
         
-        for(IConjunctionQueueEntry nf3 : nf3s) {
-            if(b == nf3.getB()) return true;
+        long[] nf3s = row.getEntries();
+        for(int i = row.start(idx); i < row.end(idx); i++) {
+            if(b == LongQueue.low(nf3s[i])) return true;
         }
         
         return false;
@@ -513,12 +1139,12 @@ public class NormalisedOntology implements Serializable {
     }
     
     /**
-     * Transforms a {@link Set} of {@link AbstractAxiom}s into a {@link Set} of {@link Inclusion}s.
+     * Transforms a {@link Collection} of {@link AbstractAxiom}s into a {@link Set} of {@link Inclusion}s.
      * 
      * @param axioms The axioms in the ontology model format.
      * @return The axioms in the internal model format.
      */
-    private Set<Inclusion> transformAxiom(final Set<? extends Axiom> axioms) {
+    private Set<Inclusion> transformAxiom(final Collection<? extends Axiom> axioms) {
         Set<Inclusion> res = new HashSet<Inclusion>();
         
         for(Axiom aa : axioms) {
@@ -605,57 +1231,18 @@ public class NormalisedOntology implements Serializable {
 
     /**
      * Returns a set of Inclusions in normal form suitable for classifying.
+     * With more than one thread the inclusions are split across the threads,
+     * see {@link NormalisationWorker}. The normal forms are the same, but the
+     * virtual concepts they introduce can get different ids. If a
+     * {@link NormalisationCache} is set, cached inclusions are not normalised
+     * again and the rest are normalised and cached, by the same workers.
+     * Conjunctions of more than two concepts are factored across all the
+     * inclusions if {@link #setFactorConjunctions(boolean)} is set.
      */
-    public Set<Inclusion> normalise(final Set<? extends Axiom> inclusions) {
-        
-        // Exhaustively apply NF1 to NF4
-        Set<Inclusion> newIs = transformAxiom(inclusions);
-        Set<Inclusion> oldIs = new HashSet<Inclusion>(newIs.size());
-        final Set<Inclusion> done = new HashSet<Inclusion>(newIs.size());
-
-        do {
-            final Set<Inclusion> tmp = oldIs;
-            oldIs = newIs;
-            newIs = tmp;
-            newIs.clear();
-
-            for (Inclusion i : oldIs) {
-                Inclusion[] s = i.normalise1(factory);
-                if (null != s) {
-                    for (int j = 0; j < s.length; j++) {
-                        if (null != s[j]) {
-                            newIs.add(s[j]);
-                        }
-                    }
-                } else {
-                    done.add(i);
-                }
-            }
-        } while (!newIs.isEmpty());
-
-        newIs.addAll(done);
-        done.clear();
-
-        // Then exhaustively apply NF5 to NF7
-        do {
-            final Set<Inclusion> tmp = oldIs;
-            oldIs = newIs;
-            newIs = tmp;
-            newIs.clear();
-
-            for (Inclusion i : oldIs) {
-                Inclusion[] s = i.normalise2(factory);
-                if (null != s) {
-                    for (int j = 0; j < s.length; j++) {
-                        if (null != s[j]) {
-                            newIs.add(s[j]);
-                        }
-                    }
-                } else {
-                    done.add(i);
-                }
-            }
-        } while (!newIs.isEmpty());
+    public Set<Inclusion> normalise(final Collection<? extends Axiom> inclusions) {
+        final Set<GCI> conjunctions = new HashSet<GCI>();
+        final Set<Inclusion> done = normalise(inclusions, conjunctions);
+        binarise(conjunctions, done);
         
         if(log.isTraceEnabled()) {
             log.trace("Normalised axioms:");
@@ -684,6 +1271,79 @@ public class NormalisedOntology implements Serializable {
         return done;
     }
     
+    /**
+     * Transforms and normalises a collection of axioms. Conjunctions of more
+     * than two concepts are left in conjunctions for
+     * {@link #binarise(Set, Set)} when they are factored or come from the
+     * normalisation cache, and binarised otherwise.
+     * 
+     * @param inclusions
+     * @param conjunctions
+     * @return
+     */
+    private Set<Inclusion> normalise(final Collection<? extends Axiom> inclusions, final Set<GCI> conjunctions) {
+        final Set<Inclusion> newIs = transformAxiom(inclusions);
+        final boolean parallel = numThreads > 1 && newIs.size() > NormalisationWorker.BLOCK_SIZE;
+        final Set<Inclusion> done;
+        if (parallel || normalisationCache != null) {
+            final long hits = normalisationCache != null ? normalisationCache.getHits() : 0;
+            final Inclusion[] is = newIs.toArray(new Inclusion[newIs.size()]);
+            final AtomicInteger next = new AtomicInteger();
+            final int numWorkers = parallel ? numThreads : 1;
+            final List<NormalisationWorker> workers = new ArrayList<NormalisationWorker>(numWorkers);
+            for (int j = 0; j < numWorkers; j++) {
+                workers.add(new NormalisationWorker(is, next, factory, factorConjunctions, normalisationCache));
+            }
+            if (parallel) {
+                getExecutor().runPhase(workers);
+            } else {
+                workers.get(0).run();
+            }
+            
+            done = workers.get(0).getResult();
+            for (int j = 0; j < numWorkers; j++) {
+                if (j > 0) {
+                    done.addAll(workers.get(j).getResult());
+                }
+                if (workers.get(j).getConjunctions() != null) {
+                    conjunctions.addAll(workers.get(j).getConjunctions());
+                }
+            }
+            if (normalisationCache != null && log.isInfoEnabled()) 
+                log.info("Found " + (normalisationCache.getHits() - hits) + " of " + newIs.size() 
+                        + " inclusions in the normalisation cache");
+        } else {
+            done = new HashSet<Inclusion>(newIs.size());
+            NormalisationWorker.normalise(newIs, factory, done, factorConjunctions ? conjunctions : null);
+        }
+        return done;
+    }
+    
+    /**
+     * Binarises conjunctions of more than two concepts and adds their normal
+     * forms to done. If {@link #setFactorConjunctions(boolean)} is set, they
+     * are factored across the whole set.
+     * 
+     * @param conjunctions
+     * @param done
+     */
+    private void binarise(final Set<GCI> conjunctions, final Set<Inclusion> done) {
+        if (conjunctions.isEmpty()) {
+            return;
+        }
+        if (factorConjunctions) {
+            final int numConcepts = factory.getTotalConcepts();
+            final int numDone = done.size();
+            NormalisationWorker.factor(conjunctions, factory, done);
+            if (log.isInfoEnabled())
+                log.info("Factored " + conjunctions.size() + " conjunctions into " + (done.size() - numDone) 
+                        + " inclusions with " + (factory.getTotalConcepts() - numConcepts) 
+                        + " new virtual concepts");
+        } else {
+            NormalisationWorker.normalise(new HashSet<Inclusion>(conjunctions), factory, done);
+        }
+    }
+    
     /**
      * Prints an object of the internal model using the string representation
      * of the corresponding object in the external model.
@@ -746,23 +1406,42 @@ public class NormalisedOntology implements Serializable {
         if (term instanceof NF1a) {
             final NF1a nf1 = (NF1a) term;
             final int a = nf1.lhsA();
+            restoreRow(ontologyNF1, packedNF1, a, NF1_UNPACKER);
             addTerms(ontologyNF1, a, nf1.getQueueEntry());
+            if (packedNF1 != null) {
+                touchedNF1.add(a);
+            }
         } else if (term instanceof NF1b) {
             final NF1b nf1 = (NF1b) term;
             final int a1 = nf1.lhsA1();
             final int a2 = nf1.lhsA2();
+            restoreRow(ontologyNF1, packedNF1, a1, NF1_UNPACKER);
+            restoreRow(ontologyNF1, packedNF1, a2, NF1_UNPACKER);
             addTerms(ontologyNF1, a1, nf1.getQueueEntry1());
             addTerms(ontologyNF1, a2, nf1.getQueueEntry2());
+            if (packedNF1 != null) {
+                touchedNF1.add(a1);
+                touchedNF1.add(a2);
+            }
         } else if (term instanceof NF2) {
             final NF2 nf2 = (NF2) term;
+            restoreRow(ontologyNF2, packedNF2, nf2.lhsA, NF2_UNPACKER);
             addTerms(ontologyNF2, nf2);
+            if (packedNF2 != null) {
+                touchedNF2.add(nf2.lhsA);
+            }
         } else if (term instanceof NF3) {
             final NF3 nf3 = (NF3) term;
             addTerms(ontologyNF3, nf3);
         } else if (term instanceof NF4) {
             ontologyNF4.add((NF4) term);
+            synchronized (this) {
+                roleClosure = null;
+            }
         } else if (term instanceof NF5) {
-            ontologyNF5.add((NF5) term);
+            final NF5 nf5 = (NF5) term;
+            ontologyNF5.add(nf5);
+            indexNF5(nf5);
         } else if (term instanceof NF6) {
             reflexiveRoles.add(((NF6) term).getR());
         } else if (term instanceof NF7) {
@@ -771,6 +1450,9 @@ public class NormalisedOntology implements Serializable {
         } else if (term instanceof NF8) {
             final NF8 nf8 = (NF8) term;
             addTerms(ontologyNF8, nf8);
+            if (datatypeIndex != null) {
+                touchedNF8.add(nf8.lhsD.getFeature());
+            }
         } else {
             throw new IllegalArgumentException("Type of " + term
                     + " must be one of NF1 through NF8");
@@ -813,25 +1495,40 @@ public class NormalisedOntology implements Serializable {
      * @param queue
      * @param nf3
      */
-    protected void addTerms(final IConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>> queue,
-            final NF3 nf3) {
-        ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> map = queue.get(nf3.lhsA);
-        Collection<IConjunctionQueueEntry> entry;
-        if (null == map) {
-            map = new ConcurrentHashMap<Integer, Collection<IConjunctionQueueEntry>>(
-                    factory.getTotalRoles());
-            queue.put(nf3.lhsA, map);
-            entry = null;
-        } else {
-            entry = map.get(nf3.lhsR);
+    protected void addTerms(final ConceptRoleMap queue, final NF3 nf3) {
+        final IConjunctionQueueEntry entry = nf3.getQueueEntry();
+        queue.add(nf3.lhsA, nf3.lhsR, LongQueue.pack(entry.getBi(), entry.getB()));
+    }
+    
+    /**
+     * Adds an NF5 term to the indexes by first and second role.
+     * 
+     * @param nf5
+     */
+    protected void indexNF5(final NF5 nf5) {
+        restoreRow(ontologyNF5ByR, packedNF5ByR, nf5.getR(), NF5_BY_R_UNPACKER);
+        restoreRow(ontologyNF5ByS, packedNF5ByS, nf5.getS(), NF5_BY_S_UNPACKER);
+        addTerms(ontologyNF5ByR, nf5.getR(), nf5);
+        addTerms(ontologyNF5ByS, nf5.getS(), nf5);
+        if (packedNF5ByR != null) {
+            touchedNF5ByR.add(nf5.getR());
+            touchedNF5ByS.add(nf5.getS());
         }
-        if (null == entry) {
-            entry = new HashSet<IConjunctionQueueEntry>();
-            entry.add(nf3.getQueueEntry());
-            map.put(nf3.lhsR, entry);
-        } else {
-            entry.add(nf3.getQueueEntry());
+    }
+
+    /**
+     * 
+     * @param entries
+     * @param r
+     * @param nf5
+     */
+    protected void addTerms(final IConceptMap<MonotonicCollection<NF5>> entries, final int r, final NF5 nf5) {
+        MonotonicCollection<NF5> set = entries.get(r);
+        if (null == set) {
+            set = new MonotonicCollection<NF5>(2);
+            entries.put(r, set);
         }
+        set.add(nf5);
     }
     
     protected void addTerms(final IConceptMap<MonotonicCollection<NF7>> entries, final NF7 nf7) {
@@ -857,6 +1554,105 @@ public class NormalisedOntology implements Serializable {
         set.add(nf8);
     }
     
+    /**
+     * Compacts the NF1, NF2 and NF5 indexes into the packed layout that is
+     * read during saturation, see {@link PackedConceptMap}, and indexes the
+     * NF8 terms for matching, see {@link DatatypeIndex}. The first call
+     * packs every row. Later calls, after an incremental load, copy the
+     * unchanged rows in bulk and only repack the rows of the concepts and
+     * roles that have new terms, and only index the features with new NF8
+     * terms again. The collections the NF1, NF2 and NF5 terms are loaded
+     * into are then emptied, so each entry is only held once, packed. A row
+     * is unpacked again when an incremental load adds to it, and all of them
+     * when the terms are listed, see {@link #restoreCollections()}, until
+     * the next freeze. The NF3 index is compacted in place, see
+     * {@link ConceptRoleMap#compact()}, and the NF4, NF5 and NF7 terms are
+     * kept as they are loaded. Does nothing if the packed
+     * indexes are up to date. {@link #classify()} and
+     * {@link #classifyIncremental()} call it before saturation, so calling it
+     * right after loading only moves the cost out of classification.
+     */
+    public synchronized void freeze() {
+        ontologyNF3.compact();
+        if (packedNF1 != null && touchedNF1.isEmpty() && touchedNF2.isEmpty() && touchedNF5ByR.isEmpty() 
+                && touchedNF5ByS.isEmpty() && touchedNF8.isEmpty()) {
+            dropCollections();
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final boolean first = packedNF1 == null;
+        final int numTouched = touchedNF1.size() + touchedNF2.size() + touchedNF5ByR.size() 
+                + touchedNF5ByS.size();
+        final int numConcepts = factory.getTotalConcepts();
+        final int numRoles = factory.getTotalRoles();
+        final long collections = log.isInfoEnabled() ? estimateCollectionsSize() : 0;
+        packedNF1 = PackedConceptMap.repack(packedNF1, ontologyNF1, numConcepts, touchedNF1, NF1_PACKER);
+        packedNF2 = PackedConceptMap.repack(packedNF2, ontologyNF2, numConcepts, touchedNF2, NF2_PACKER);
+        packedNF5ByR = PackedConceptMap.repack(packedNF5ByR, ontologyNF5ByR, numRoles, touchedNF5ByR, 
+                NF5_BY_R_PACKER);
+        packedNF5ByS = PackedConceptMap.repack(packedNF5ByS, ontologyNF5ByS, numRoles, touchedNF5ByS, 
+                NF5_BY_S_PACKER);
+        datatypeIndex = DatatypeIndex.build(datatypeIndex, ontologyNF8, touchedNF8);
+        dropCollections();
+        touchedNF1 = new SparseConceptSet();
+        touchedNF2 = new SparseConceptSet();
+        touchedNF5ByR = new SparseConceptSet();
+        touchedNF5ByS = new SparseConceptSet();
+        touchedNF8 = new FeatureSet();
+        final long time = System.currentTimeMillis() - start;
+        
+        if (log.isInfoEnabled()) {
+            final long numEntries = (long) packedNF1.size() + packedNF2.size() + packedNF5ByR.size() 
+                    + packedNF5ByS.size();
+            final long packed = packedNF1.estimateSize() + packedNF2.estimateSize() 
+                    + packedNF5ByR.estimateSize() + packedNF5ByS.estimateSize();
+            log.info((first ? "Froze " : "Repacked " + numTouched + " rows of ") + numEntries 
+                    + " NF1, NF2 and NF5 entries in " + time + " ms: about " + (packed >> 10) 
+                    + " KB packed, the collections held about " + (collections >> 10) + " KB before being emptied");
+        }
+        if (first) {
+            Statistics.INSTANCE.setTime("freezing", time);
+        }
+    }
+    
+    /**
+     * Returns an estimate of the heap used by the collections of the NF1, NF2
+     * and NF5 indexes, see {@link PackedConceptMap#estimateSize(IConceptMap)}.
+     * 
+     * @return long
+     */
+    private long estimateCollectionsSize() {
+        return PackedConceptMap.estimateSize(ontologyNF1) + PackedConceptMap.estimateSize(ontologyNF2) 
+                + PackedConceptMap.estimateSize(ontologyNF5ByR) + PackedConceptMap.estimateSize(ontologyNF5ByS);
+    }
+    
+    /**
+     * Empties the collections of the NF1, NF2 and NF5 indexes once their
+     * rows are packed.
+     */
+    private void dropCollections() {
+        ontologyNF1.clear();
+        ontologyNF2.clear();
+        ontologyNF5ByR.clear();
+        ontologyNF5ByS.clear();
+        collectionsDropped = true;
+    }
+    
+    /**
+     * Returns an estimate of the heap used by the NF1, NF2 and NF5 indexes:
+     * the packed copies and the rows of the collections that are not empty.
+     * 
+     * @return long
+     */
+    public synchronized long estimateIndexSize() {
+        long size = estimateCollectionsSize();
+        if (packedNF1 != null) {
+            size += packedNF1.estimateSize() + packedNF2.estimateSize() + packedNF5ByR.estimateSize() 
+                    + packedNF5ByS.estimateSize();
+        }
+        return size;
+    }
+    
     /**
      * 
      * @param incAxioms
@@ -871,6 +1667,9 @@ public class NormalisedOntology implements Serializable {
             as.addAxiom(nf);
             addTerm(nf);
         }
+        
+        // Picks up new roles and role inclusions
+        getRoleClosure();
     }
 
     /**
@@ -881,6 +1680,14 @@ public class NormalisedOntology implements Serializable {
     public void classifyIncremental() {
         if(as.isEmpty()) return;
         
+        restorePredecessors();
+        
+        // Repacks the rows that got new terms
+        freeze();
+        
+        // The scheduler might have changed since the last classification
+        saturationState.init(NormalisedOntology.this);
+        
         // Clear any state from previous incremental classifications
         newContexts.clear();
         affectedContexts.clear();
@@ -944,23 +1751,24 @@ public class NormalisedOntology implements Serializable {
         
         if(log.isInfoEnabled())
             log.info("Running saturation");
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-        for (int j = 0; j < numThreads; j++) {
-            Runnable worker = new Worker(todo);
-            executor.execute(worker);
+        if (workStealing) {
+            ((WorkStealingQueue) todo).init(numThreads);
         }
-
-        executor.shutdown();
-        while (!executor.isTerminated()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        List<Runnable> workers = new ArrayList<Runnable>(numThreads);
+        for (int j = 0; j < numThreads; j++) {
+            workers.add(createWorker(j));
         }
+        getExecutor().runPhase(workers);
 
         assert (todo.isEmpty());
 
+        numProcessedContexts = countProcessed(workers);
+        countConceptQueueEntries(workers);
+        if (log.isInfoEnabled()) {
+            log.info("Processed contexts " + numProcessedContexts + " times");
+            logConceptQueueEntries();
+        }
+
         // Stop tracking changes in reactivated contexts
         for (Context ctx : affectedContexts) {
             ctx.endTracking();
@@ -982,7 +1790,7 @@ public class NormalisedOntology implements Serializable {
         for (int j = 0; j < cids.length; j++) {
             int cid = cids[j];
             if (!contextIndex.containsKey(cid)) {
-                Context c = new Context(cid);
+                Context c = new Context(cid, saturationState);
                 contextIndex.put(cid, c);
                 if (c.activate()) {
                     todo.add(c);
@@ -1113,45 +1921,41 @@ public class NormalisedOntology implements Serializable {
         int size = as.getNf3Axioms().size();
         if (size == 0)
             return;
-        IConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>> deltaNF3 = 
-                new SparseConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>>(size);
+        ConceptRoleMap deltaNF3 = new ConceptRoleMap(size);
         for (NF3 nf3 : as.getNf3Axioms()) {
             addTerms(deltaNF3, nf3);
         }
 
         for (final IntIterator xItr = deltaNF3.keyIterator(); xItr.hasNext();) {
             final int x = xItr.next();
-            final ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> entries = deltaNF3
-                    .get(x);
-
-            final Set<Integer> keySet = entries.keySet();
-            for (int r : keySet) {
-                for (final IConjunctionQueueEntry entry : entries.get(r)) {
-                    for (final IntIterator aItr = subsumptions.keyIterator(); aItr
+            final ConceptRoleMap.Row entries = deltaNF3.get(x);
+
+            for (int i = 0; i < entries.size(); i++) {
+                final int r = entries.getRole(i);
+                for (final IntIterator aItr = subsumptions.keyIterator(); aItr
+                        .hasNext();) {
+                    final int a = aItr.next();
+                    boolean addIt = false;
+
+                    // Get all of a's successors with role r
+                    Context aCtx = contextIndex.get(a);
+                    IConceptSet cs = aCtx.getSucc().lookupConcept(r);
+                    for (final IntIterator bItr = cs.iterator(); bItr
                             .hasNext();) {
-                        final int a = aItr.next();
-                        boolean addIt = false;
-
-                        // Get all of a's successors with role r
-                        Context aCtx = contextIndex.get(a);
-                        IConceptSet cs = aCtx.getSucc().lookupConcept(r);
-                        for (final IntIterator bItr = cs.iterator(); bItr
-                                .hasNext();) {
-                            final int b = bItr.next();
-
-                            if (subsumptions.get(b).contains(x)) {
-                                addIt = true;
-                                break;
-                            }
+                        final int b = bItr.next();
+
+                        if (subsumptions.get(b).contains(x)) {
+                            addIt = true;
+                            break;
                         }
+                    }
 
-                        if (addIt) {
-                            aCtx.addConceptQueueEntry(entry);
-                            affectedContexts.add(aCtx);
-                            aCtx.startTracking();
-                            if (aCtx.activate()) {
-                                todo.add(aCtx);
-                            }
+                    if (addIt) {
+                        aCtx.addConceptQueueEntries(entries.getEntries(), entries.start(i), entries.end(i));
+                        affectedContexts.add(aCtx);
+                        aCtx.startTracking();
+                        if (aCtx.activate()) {
+                            todo.add(aCtx);
                         }
                     }
                 }
@@ -1182,22 +1986,7 @@ public class NormalisedOntology implements Serializable {
                 for (final IntIterator bItr = cs.iterator(); bItr.hasNext();) {
                     final int b = bItr.next();
 
-                    IRoleQueueEntry entry = new IRoleQueueEntry() {
-                        /**
-                         * Serialisation version.
-                         */
-                        private static final long serialVersionUID = 1L;
-
-                        public int getR() {
-                            return nf4.getS();
-                        }
-
-                        public int getB() {
-                            return b;
-                        }
-
-                    };
-                    aCtx.addRoleQueueEntry(entry);
+                    aCtx.addRoleQueueEntry(nf4.getS(), b);
                     affectedContexts.add(aCtx);
                     aCtx.startTracking();
                     if (aCtx.activate()) {
@@ -1237,22 +2026,7 @@ public class NormalisedOntology implements Serializable {
                         final int c = cItr.next();
 
                         if (!aCtx.getSucc().lookupConcept(t).contains(c)) {
-                            final IRoleQueueEntry entry = new IRoleQueueEntry() {
-
-                                /**
-                                 * Serialisation version.
-                                 */
-                                private static final long serialVersionUID = 1L;
-
-                                public int getR() {
-                                    return t;
-                                }
-
-                                public int getB() {
-                                    return c;
-                                }
-                            };
-                            aCtx.addRoleQueueEntry(entry);
+                            aCtx.addRoleQueueEntry(t, c);
                             affectedContexts.add(aCtx);
                             aCtx.startTracking();
                             if (aCtx.activate()) {
@@ -1394,14 +2168,54 @@ public class NormalisedOntology implements Serializable {
         if(log.isInfoEnabled())
             log.info("Classifying with " + numThreads + " threads");
 
-        Context.init(NormalisedOntology.this);
+        freeze();
+        saturationState.init(NormalisedOntology.this);
+        numProcessedContexts = 0;
+        numReactivations = 0;
+        numConceptEntries = 0;
+        numSkippedConceptEntries = 0;
+        numSeededSubsumptions = 0;
+        maxPartitionBacklog = 0;
+        
+        if (distributedSaturation != null) {
+            if(log.isInfoEnabled())
+                log.info("Running distributed saturation with " + distributedSaturation.getNumShards() + " shards");
+            distributedSaturation.saturate(this, saturationState);
+            predecessorsMissing = true;
+            hasBeenIncrementallyClassified = false;
+            Statistics.INSTANCE.setTime("classification",
+                    System.currentTimeMillis() - start);
+            return;
+        }
 
-        // Create contexts for init concepts in the ontology
+        // Create contexts for init concepts in the ontology, dependencies
+        // first if requested
         int numConcepts = factory.getTotalConcepts();
-        for (int i = 0; i < numConcepts; i++) {
-            Context c = new Context(i);
+        final int[] order = toldDependencyOrder ? computeToldDependencyOrder() : null;
+        final PartitionedSaturation engine = partitioned ? 
+                new PartitionedSaturation(numThreads, contextIndex, partitionQueueCapacity) : null;
+        long seedStart = System.currentTimeMillis();
+        int[][] told = toldSubsumerSeeding ? computeToldAncestors() : null;
+        if (told != null && log.isInfoEnabled()) {
+            long numTold = 0;
+            for (int[] ancestors : told) {
+                numTold += ancestors != null ? ancestors.length : 0;
+            }
+            log.info("Computed " + numTold + " told subsumptions in " + (System.currentTimeMillis() - seedStart) 
+                    + " ms");
+        }
+        for (int k = 0; k < numConcepts; k++) {
+            final int i = order != null ? order[k] : k;
+            Context c = new Context(i, saturationState);
+            if (told != null && told[i] != null) {
+                c.seed(told[i]);
+                numSeededSubsumptions += told[i].length;
+                told[i] = null;
+            }
             contextIndex.put(i, c);
-            if (c.activate()) {
+            if (engine != null) {
+                engine.add(c);
+            } else if (c.activate()) {
                 todo.add(c);
             }
             if(log.isTraceEnabled()) {
@@ -1409,29 +2223,56 @@ public class NormalisedOntology implements Serializable {
             }
         }
         
+        if (log.isDebugEnabled()) {
+            logContextMemory("before saturation");
+        }
         if(log.isInfoEnabled())
             log.info("Running saturation");
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-        for (int j = 0; j < numThreads; j++) {
-            Runnable worker = new Worker(todo);
-            executor.execute(worker);
-        }
-
-        executor.shutdown();
-        while (!executor.isTerminated()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        List<Runnable> workers = new ArrayList<Runnable>(numThreads);
+        if (engine != null) {
+            workers.addAll(engine.getPartitions());
+        } else {
+            if (workStealing) {
+                ((WorkStealingQueue) todo).init(numThreads);
+            }
+            for (int j = 0; j < numThreads; j++) {
+                workers.add(createWorker(j));
             }
         }
+        getExecutor().runPhase(workers);
 
         assert (todo.isEmpty());
 
+        if (engine != null) {
+            long numSent = 0;
+            for (Partition p : engine.getPartitions()) {
+                numSent += p.getNumSent();
+                maxPartitionBacklog = Math.max(maxPartitionBacklog, p.getMaxBacklog());
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Sent " + numSent + " messages between partitions, at most " + maxPartitionBacklog 
+                        + " held back by a partition");
+            }
+        }
+        numProcessedContexts = countProcessed(workers);
+        numReactivations = numProcessedContexts - numConcepts;
+        countConceptQueueEntries(workers);
+        if (log.isInfoEnabled()) {
+            log.info("Processed contexts " + numProcessedContexts + " times, " + numReactivations 
+                    + " reactivations");
+            logConceptQueueEntries();
+        }
         if (log.isTraceEnabled()) {
             log.trace("Processed " + contextIndex.size() + " contexts");
         }
+        if (workStealing && log.isDebugEnabled()) {
+            log.debug("Stole " + ((WorkStealingQueue) todo).getSteals() + " contexts");
+        }
+        if (log.isDebugEnabled()) {
+            logContextMemory("after saturation");
+        }
         
+        predecessorsMissing = false;
         hasBeenIncrementallyClassified = false;
         Statistics.INSTANCE.setTime("classification",
                 System.currentTimeMillis() - start);
@@ -1498,6 +2339,7 @@ public class NormalisedOntology implements Serializable {
      * @return R
      */
     public R getRelationships() {
+        restorePredecessors();
         R r = new R(factory.getTotalConcepts(), factory.getTotalRoles());
         
         // Collect subsumptions from context index
@@ -1534,6 +2376,7 @@ public class NormalisedOntology implements Serializable {
      * 
      */
     public void printStats() {
+        restoreCollections();
         System.err.println("stats");
         int count1 = countKeys(ontologyNF1);
         System.err.println("ontologyNF1QueueEntries: #keys=" + count1
@@ -1543,12 +2386,31 @@ public class NormalisedOntology implements Serializable {
         System.err.println("ontologyNF2: #keys=" + count2 + ", #Concepts="
                 + factory.getTotalConcepts() + " ratio="
                 + ((double) count2 / factory.getTotalConcepts()));
-        int count3 = countKeys(ontologyNF3);
+        int count3 = ontologyNF3.size();
         System.err.println("ontologyNF3QueueEntries: #keys=" + count3
                 + ", #Concepts=" + factory.getTotalConcepts() + " ratio="
                 + ((double) count3 / factory.getTotalConcepts()));
     }
 
+    /**
+     * Logs an estimate of the memory used by the contexts. See
+     * {@link Context#estimateSize()}.
+     * 
+     * @param phase
+     */
+    private void logContextMemory(String phase) {
+        long total = 0;
+        int num = 0;
+        for (IntIterator it = contextIndex.keyIterator(); it.hasNext();) {
+            total += contextIndex.get(it.next()).estimateSize();
+            num++;
+        }
+        if (num > 0) {
+            log.debug("Contexts " + phase + ": " + num + " contexts, ~" + (total / num) + " bytes per context, ~"
+                    + (total >> 20) + "MB in total");
+        }
+    }
+
     /**
      * 
      * @param map
@@ -1573,6 +2435,7 @@ public class NormalisedOntology implements Serializable {
      * @return
      */
     public Set<Axiom> getStatedAxioms() {
+        restoreCollections();
         Set<Axiom> res = new HashSet<Axiom>();
         // These terms are of the form A n Bi [ B and are indexed by A.
         for(IntIterator it = ontologyNF1.keyIterator(); it.hasNext(); ) {
@@ -1617,17 +2480,13 @@ public class NormalisedOntology implements Serializable {
         // These terms are of the form r.A [ b and indexed by A.
         for(IntIterator it = ontologyNF3.keyIterator(); it.hasNext(); ) {
             int a = it.next();
-            ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> mc = 
-                    ontologyNF3.get(a);
-            Set<Integer> keys = mc.keySet();
-            for (int i : keys) {
-                Collection<IConjunctionQueueEntry> cc = mc.get(i);
-                for(Iterator<IConjunctionQueueEntry> it2 = cc.iterator(); 
-                        it2.hasNext(); ) {
-                    IConjunctionQueueEntry nf3 = it2.next();
+            ConceptRoleMap.Row mc = ontologyNF3.get(a);
+            long[] cc = mc.getEntries();
+            for (int i = 0; i < mc.size(); i++) {
+                for(int j = mc.start(i); j < mc.end(i); j++) {
                     Object oa = factory.lookupConceptId(a);
-                    String r = factory.lookupRoleId(i).toString();
-                    Object ob = factory.lookupConceptId(nf3.getB());
+                    String r = factory.lookupRoleId(mc.getRole(i)).toString();
+                    Object ob = factory.lookupConceptId(LongQueue.low(cc[j]));
                     res.add(new ConceptInclusion(
                         new au.csiro.ontology.model.Existential(new NamedRole(r), transform(ob)),
                         transform(oa)  
@@ -1758,8 +2617,701 @@ public class NormalisedOntology implements Serializable {
     /**
      * @param numThreads the numThreads to set
      */
-    public void setNumThreads(int numThreads) {
+    public synchronized void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        }
         this.numThreads = numThreads;
+        if (executor != null && executor.getNumThreads() != numThreads) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the executor used to run the parallel phases of the reasoner,
+     * creating it if required.
+     * 
+     * @return ReasonerExecutor
+     */
+    public synchronized ReasonerExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ReasonerExecutor(numThreads, threadKeepAlive);
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the time the threads of the reasoner are kept once idle, so that
+     * later (incremental) classifications reuse them. With 0 they are kept
+     * until {@link #shutdown()}. Defaults to
+     * {@link ReasonerExecutor#DEFAULT_KEEP_ALIVE_MILLIS}.
+     * 
+     * @param keepAliveMillis
+     */
+    public synchronized void setThreadKeepAlive(long keepAliveMillis) {
+        if (keepAliveMillis < 0) {
+            throw new IllegalArgumentException("Invalid keep-alive time: " + keepAliveMillis);
+        }
+        this.threadKeepAlive = keepAliveMillis;
+        if (executor != null) {
+            executor.setKeepAlive(keepAliveMillis);
+        }
+    }
+
+    /**
+     * Returns the time the threads of the reasoner are kept once idle, or 0
+     * if they are kept until {@link #shutdown()}.
+     * 
+     * @return long
+     */
+    public synchronized long getThreadKeepAlive() {
+        return threadKeepAlive;
+    }
+
+    /**
+     * Releases the threads used by the reasoner. They will be created again if
+     * the ontology is classified afterwards.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Selects the saturation scheduler. When set to true every worker thread
+     * owns a deque of active contexts and idle workers steal from the others.
+     * Otherwise all workers share a single queue. Must not be called while a
+     * classification is running.
+     * 
+     * @param workStealing
+     * @throws IllegalStateException If there are contexts waiting to be
+     *             processed.
+     */
+    public void setWorkStealing(boolean workStealing) {
+        if (this.workStealing == workStealing) return;
+        if (!todo.isEmpty()) {
+            throw new IllegalStateException("Cannot change the scheduler while contexts are queued");
+        }
+        this.workStealing = workStealing;
+        todo = workStealing ? new WorkStealingQueue() : new ConcurrentLinkedQueue<Context>();
+    }
+
+    /**
+     * Selects the order in which contexts are first activated. When set to
+     * true the contexts are seeded so that the told dependencies of a concept
+     * (see {@link #computeToldDependencyOrder()}) are usually processed
+     * before it, which avoids most of the reactivations caused by seeding in
+     * concept id order. Reactivated contexts are still processed in FIFO
+     * order. Must not be called while a classification is running.
+     * 
+     * @param toldDependencyOrder
+     */
+    public void setToldDependencyOrder(boolean toldDependencyOrder) {
+        this.toldDependencyOrder = toldDependencyOrder;
+    }
+
+    /**
+     * Indicates if the contexts are seeded in told dependency order.
+     * 
+     * @return boolean
+     */
+    public boolean isToldDependencyOrder() {
+        return toldDependencyOrder;
+    }
+
+    /**
+     * Returns the number of times the last full or incremental classification
+     * processed a context. It is not counted by distributed saturation.
+     * 
+     * @return long
+     */
+    public long getNumProcessedContexts() {
+        return numProcessedContexts;
+    }
+
+    /**
+     * Returns the number of times the last full classification processed a
+     * context again after it had run out of work, which happens when a
+     * context it depends on derives something new later. Seeding in told
+     * dependency order is meant to keep this low. It is not counted by
+     * distributed saturation.
+     * 
+     * @return long
+     */
+    public long getNumReactivations() {
+        return numReactivations;
+    }
+
+    /**
+     * Returns the number of concept queue entries the contexts added, locally
+     * or to other contexts, in the last full or incremental classification.
+     * It includes the ones that were skipped. It is not counted by
+     * distributed saturation.
+     * 
+     * @return long
+     */
+    public long getNumConceptEntries() {
+        return numConceptEntries;
+    }
+
+    /**
+     * Returns the number of concept queue entries that the last full or
+     * incremental classification dropped before queueing them, because they
+     * could not derive anything new. See {@link Outbox}.
+     * 
+     * @return long
+     */
+    public long getNumSkippedConceptEntries() {
+        return numSkippedConceptEntries;
+    }
+
+    /**
+     * Returns the number of told subsumptions added to the contexts before
+     * the last full classification, see
+     * {@link #setToldSubsumerSeeding(boolean)}.
+     * 
+     * @return long
+     */
+    public long getNumSeededSubsumptions() {
+        return numSeededSubsumptions;
+    }
+
+    /**
+     * Returns the largest number of messages a partition held back because
+     * the queues to the other partitions were full, during the last full
+     * classification with {@link #setPartitioned(boolean)}.
+     * 
+     * @return long
+     */
+    public long getMaxPartitionBacklog() {
+        return maxPartitionBacklog;
+    }
+
+    /**
+     * Selects if the contexts of a full classification start with their told
+     * subsumptions. When set to true the transitive closure of the NF1 terms
+     * A [ B is computed before saturation and added to the subsumptions of
+     * each context, see {@link Context#seed(int[])}, instead of being derived
+     * one concept queue entry at a time. The consequences of the told
+     * subsumptions are still derived by the workers. Must not be called while
+     * a classification is running.
+     * 
+     * @param toldSubsumerSeeding
+     */
+    public void setToldSubsumerSeeding(boolean toldSubsumerSeeding) {
+        this.toldSubsumerSeeding = toldSubsumerSeeding;
+    }
+
+    /**
+     * Indicates if the contexts start with their told subsumptions.
+     * 
+     * @return boolean
+     */
+    public boolean isToldSubsumerSeeding() {
+        return toldSubsumerSeeding;
+    }
+
+    /**
+     * Sorts the concepts so that their told dependencies come first. A concept
+     * depends on its told parents (NF1 terms A [ B) and on the fillers of its
+     * told existentials (NF2 terms A [ r.B): a context reads the subsumptions
+     * of its fillers when it creates an edge, so it does not have to be
+     * reactivated for them if they are already saturated. The graph is
+     * traversed depth-first, so cycles only cost the edges that close them.
+     * 
+     * @return The concepts in post-order, dependencies first.
+     */
+    private int[] computeToldDependencyOrder() {
+        final int n = factory.getTotalConcepts();
+        final int[][] graph = computeToldGraph(true);
+        final int[] start = graph[0];
+        final int[] deps = graph[1];
+
+        // Iterative depth-first traversal. A concept is finished after all
+        // its dependencies, except the ones on the stack (cycles).
+        final int[] order = new int[n];
+        final int[] next = new int[n];
+        final byte[] visited = new byte[n];
+        final int[] stack = new int[n];
+        int numFinished = 0;
+        for (int root = 0; root < n; root++) {
+            if (visited[root] != 0)
+                continue;
+            int top = 0;
+            stack[top++] = root;
+            visited[root] = 1;
+            next[root] = start[root];
+            while (top > 0) {
+                final int v = stack[top - 1];
+                if (next[v] < start[v + 1]) {
+                    final int w = deps[next[v]++];
+                    if (visited[w] == 0) {
+                        visited[w] = 1;
+                        next[w] = start[w];
+                        stack[top++] = w;
+                    }
+                    continue;
+                }
+                top--;
+                visited[v] = 2;
+                order[numFinished++] = v;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Computes the told ancestors of every concept: the transitive closure of
+     * the NF1 terms A [ B, without TOP and BOTTOM. The strongly connected
+     * components of the told hierarchy are found with Tarjan's algorithm,
+     * which finishes a component after all the components of its ancestors.
+     * Every member of a component gets the other members, their parents and
+     * the ancestors of those parents, so the members of a told cycle get
+     * each other's ancestors.
+     * 
+     * @return The told ancestors of each concept, or null if it has none.
+     */
+    int[][] computeToldAncestors() {
+        final int n = factory.getTotalConcepts();
+        final int[][] graph = computeToldGraph(false);
+        final int[] start = graph[0];
+        final int[] parents = graph[1];
+
+        final int[][] res = new int[n][];
+        final int[] next = new int[n];
+        // The discovery index of each concept plus one, and the lowest index
+        // reachable from it through concepts not yet in a component
+        final int[] index = new int[n];
+        final int[] low = new int[n];
+        // The component of each concept plus one, set once it is finished
+        final int[] component = new int[n];
+        final int[] stack = new int[n];
+        final int[] members = new int[n];
+        // The component whose ancestors are being merged, plus one
+        final int[] mark = new int[n];
+        int numComponents = 0;
+        int numMembers = 0;
+        int numVisited = 0;
+        int[] buf = new int[16];
+        for (int root = 0; root < n; root++) {
+            if (index[root] != 0)
+                continue;
+            int top = 0;
+            stack[top++] = root;
+            index[root] = low[root] = ++numVisited;
+            members[numMembers++] = root;
+            next[root] = start[root];
+            while (top > 0) {
+                final int v = stack[top - 1];
+                if (next[v] < start[v + 1]) {
+                    final int w = parents[next[v]++];
+                    if (index[w] == 0) {
+                        index[w] = low[w] = ++numVisited;
+                        members[numMembers++] = w;
+                        next[w] = start[w];
+                        stack[top++] = w;
+                    } else if (component[w] == 0 && index[w] < low[v]) {
+                        low[v] = index[w];
+                    }
+                    continue;
+                }
+                top--;
+                if (top > 0 && low[v] < low[stack[top - 1]]) {
+                    low[stack[top - 1]] = low[v];
+                }
+                if (low[v] != index[v])
+                    continue;
+
+                // v is the root of a component: its members are the concepts
+                // discovered after it that are not in a component yet
+                final int c = ++numComponents;
+                int first = numMembers;
+                do {
+                    component[members[--first]] = c;
+                } while (members[first] != v);
+                int size = 0;
+                for (int i = first; i < numMembers; i++) {
+                    final int u = members[i];
+                    for (int k = start[u]; k < start[u + 1]; k++) {
+                        final int w = parents[k];
+                        final int[] ws = component[w] != c ? res[w] : null;
+                        for (int j = -1, m = ws == null ? 0 : ws.length; j < m; j++) {
+                            final int x = j < 0 ? w : ws[j];
+                            if (x == IFactory.TOP_CONCEPT || x == IFactory.BOTTOM_CONCEPT || mark[x] == c)
+                                continue;
+                            mark[x] = c;
+                            if (size == buf.length) {
+                                buf = Arrays.copyOf(buf, size * 2);
+                            }
+                            buf[size++] = x;
+                        }
+                    }
+                }
+                for (int i = first; i < numMembers; i++) {
+                    final int u = members[i];
+                    if (mark[u] != c) {
+                        res[u] = size > 0 ? Arrays.copyOf(buf, size) : null;
+                        continue;
+                    }
+                    // A member of a cycle is among the ancestors
+                    final int[] ancestors = new int[size - 1];
+                    for (int j = 0, k = 0; j < size; j++) {
+                        if (buf[j] != u) {
+                            ancestors[k++] = buf[j];
+                        }
+                    }
+                    res[u] = ancestors.length > 0 ? ancestors : null;
+                }
+                numMembers = first;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Builds the told graph of the ontology in compressed form: the edges of
+     * concept a are <code>edges[start[a]]</code> to
+     * <code>edges[start[a + 1] - 1]</code>. A concept is linked to its told
+     * parents (NF1 terms A [ B) and, if requested, to the fillers of its told
+     * existentials (NF2 terms A [ r.B). Reads the frozen indexes.
+     * 
+     * @param existentials
+     * @return The arrays start and edges.
+     */
+    private int[][] computeToldGraph(boolean existentials) {
+        freeze();
+        final int n = factory.getTotalConcepts();
+        final int[] start = new int[n + 1];
+        final long[] nf1 = packedNF1.getEntries();
+        final long[] nf2 = packedNF2.getEntries();
+        int[] deps = null;
+        int[] fill = null;
+        // Count the dependencies of each concept in the first pass and store
+        // them in the second
+        for (int pass = 0; pass < 2; pass++) {
+            for (int a = 0; a < n; a++) {
+                for (int i = packedNF1.start(a), end = packedNF1.end(a); i < end; i++) {
+                    final int b = LongQueue.low(nf1[i]);
+                    if (LongQueue.high(nf1[i]) != IFactory.TOP_CONCEPT || b == a || b >= n)
+                        continue;
+                    if (pass == 0) {
+                        start[a + 1]++;
+                    } else {
+                        deps[start[a] + fill[a]++] = b;
+                    }
+                }
+            }
+            for (int a = 0; existentials && a < n; a++) {
+                for (int i = packedNF2.start(a), end = packedNF2.end(a); i < end; i++) {
+                    final int b = LongQueue.low(nf2[i]);
+                    if (b == a || b >= n)
+                        continue;
+                    if (pass == 0) {
+                        start[a + 1]++;
+                    } else {
+                        deps[start[a] + fill[a]++] = b;
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int i = 0; i < n; i++) {
+                    start[i + 1] += start[i];
+                }
+                deps = new int[start[n]];
+                fill = new int[n];
+            }
+        }
+        return new int[][] { start, deps };
+    }
+
+    /**
+     * Returns the number of times the saturation workers processed a context.
+     * 
+     * @param workers
+     * @return long
+     */
+    private static long countProcessed(List<Runnable> workers) {
+        long res = 0;
+        for (Runnable r : workers) {
+            if (r instanceof StealingWorker) {
+                res += ((StealingWorker) r).getNumProcessed();
+            } else if (r instanceof Worker) {
+                res += ((Worker) r).getNumProcessed();
+            } else if (r instanceof Partition) {
+                res += ((Partition) r).getNumProcessed();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Records how many of the concept queue entries added by the saturation
+     * workers were dropped before being queued, see
+     * {@link #getNumSkippedConceptEntries()}.
+     * 
+     * @param workers
+     */
+    private void countConceptQueueEntries(List<Runnable> workers) {
+        long added = 0;
+        long skipped = 0;
+        for (Runnable r : workers) {
+            final Outbox outbox;
+            if (r instanceof StealingWorker) {
+                outbox = ((StealingWorker) r).getOutbox();
+            } else if (r instanceof Worker) {
+                outbox = ((Worker) r).getOutbox();
+            } else if (r instanceof Partition) {
+                outbox = ((Partition) r).getOutbox();
+            } else {
+                continue;
+            }
+            added += outbox.getNumConceptEntries();
+            skipped += outbox.getNumSkippedConceptEntries();
+        }
+        numConceptEntries = added;
+        numSkippedConceptEntries = skipped;
+    }
+
+    private void logConceptQueueEntries() {
+        log.info("Skipped " + numSkippedConceptEntries + " of " + numConceptEntries 
+                + " concept queue entries that could not derive anything new");
+    }
+
+    /**
+     * Selects the saturation engine used by full classifications. When set to
+     * true the concepts are split across the worker threads and each thread
+     * processes only the contexts it owns, sending messages for the effects
+     * on the others, see {@link PartitionedSaturation}. The scheduler selected
+     * with {@link #setWorkStealing(boolean)} is then only used by incremental
+     * classifications. Must not be called while a classification is running.
+     * 
+     * @param partitioned
+     */
+    public void setPartitioned(boolean partitioned) {
+        this.partitioned = partitioned;
+    }
+
+    /**
+     * Indicates if full classifications use the owner-computes engine.
+     * 
+     * @return boolean
+     */
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * Sets the number of longs each queue between two partitions can hold,
+     * see {@link #setPartitioned(boolean)}. Must be a power of two, and a
+     * message takes two. A partition
+     * stops processing contexts while it holds back as many messages as fit
+     * in one queue, so this also bounds the memory used by the messages in
+     * flight. Must not be called while a classification is running.
+     * 
+     * @param partitionQueueCapacity
+     */
+    public void setPartitionQueueCapacity(int partitionQueueCapacity) {
+        if (partitionQueueCapacity < 2 || Integer.bitCount(partitionQueueCapacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + partitionQueueCapacity);
+        }
+        this.partitionQueueCapacity = partitionQueueCapacity;
+    }
+
+    /**
+     * Returns the number of longs each queue between two partitions can hold.
+     * 
+     * @return int
+     */
+    public int getPartitionQueueCapacity() {
+        return partitionQueueCapacity;
+    }
+    
+    /**
+     * Selects how conjunctions of more than two concepts on the left hand
+     * side of inclusions are binarised. When set to true the conjuncts of
+     * each conjunction are chained in order of how many of the conjunctions
+     * loaded together use them, so that conjunctions with common conjuncts
+     * share their virtual concepts, see
+     * {@link NormalisationWorker#factor(Collection, IFactory, Collection)}.
+     * This reduces the number of virtual concepts and NF1b terms when many
+     * concepts are defined with overlapping conjunctions. Applies to the
+     * axioms loaded after it is called.
+     * 
+     * @param factorConjunctions
+     */
+    public void setFactorConjunctions(boolean factorConjunctions) {
+        this.factorConjunctions = factorConjunctions;
+    }
+    
+    /**
+     * Sets the maximum number of conjunctions that are kept to be factored
+     * together when axioms are loaded from an iterator, see
+     * {@link #loadAxioms(Iterator, int)}. Once a batch brings the number over
+     * this limit they are factored and indexed, so the memory they take is
+     * bounded but conjuncts are only shared within each window.
+     * 
+     * @param factorWindow
+     */
+    public void setFactorWindow(int factorWindow) {
+        if (factorWindow < 1) {
+            throw new IllegalArgumentException("Invalid factor window: " + factorWindow);
+        }
+        this.factorWindow = factorWindow;
+    }
+    
+    /**
+     * Returns the maximum number of conjunctions factored together when
+     * axioms are loaded from an iterator.
+     * 
+     * @return int
+     */
+    public int getFactorWindow() {
+        return factorWindow;
+    }
+    
+    /**
+     * Indicates if conjunctions are factored during normalisation.
+     * 
+     * @return boolean
+     */
+    public boolean isFactorConjunctions() {
+        return factorConjunctions;
+    }
+    
+    /**
+     * Makes full classifications saturate the ontology in several processes,
+     * see {@link DistributedSaturation}. Incremental classifications still run
+     * in this process, on the contexts gathered from the shards. Set to null
+     * to saturate in this process again.
+     * 
+     * @param distributedSaturation
+     */
+    public void setDistributedSaturation(DistributedSaturation distributedSaturation) {
+        this.distributedSaturation = distributedSaturation;
+    }
+    
+    /**
+     * Sets a cache of normalised inclusions used when axioms are loaded, or
+     * null to normalise every axiom. The cache is updated with the inclusions
+     * that were not in it, and must be saved by the caller.
+     * 
+     * @param normalisationCache
+     */
+    public void setNormalisationCache(NormalisationCache normalisationCache) {
+        this.normalisationCache = normalisationCache;
+    }
+    
+    /**
+     * Returns the normalisation cache, or null if none is used.
+     * 
+     * @return NormalisationCache
+     */
+    public NormalisationCache getNormalisationCache() {
+        return normalisationCache;
+    }
+    
+    /**
+     * Returns a new ontology with the bottom-locality module of a set of
+     * concepts, see {@link ModuleExtractor}. Classifying the module derives
+     * the same subsumptions between those concepts as classifying this
+     * ontology, but only costs as much as the module. The module has its own
+     * factory and uses the same number of threads as this ontology.
+     * 
+     * @param signature The concepts whose subsumptions must be preserved.
+     * @return NormalisedOntology
+     */
+    public NormalisedOntology extractModule(IConceptSet signature) {
+        long start = System.currentTimeMillis();
+        final NormalisedOntology module = new ModuleExtractor(this).extract(signature);
+        module.setNumThreads(numThreads);
+        if (log.isInfoEnabled())
+            log.info("Extracted a module with " + module.getFactory().getTotalConcepts() + " of " 
+                    + factory.getTotalConcepts() + " concepts in " + (System.currentTimeMillis() - start) + " ms");
+        return module;
+    }
+    
+    /**
+     * Writes the terms that the contexts of a set of concepts need to a
+     * stream, with the ids of this ontology: the bottom-locality module of
+     * the concepts with all the roles in its signature, see
+     * {@link ModuleExtractor}. Used by {@link DistributedSaturation} to send
+     * each shard only what its range needs.
+     * 
+     * @param concepts
+     * @param out
+     * @return The number of terms written.
+     * @throws IOException
+     */
+    public long writeModule(IConceptSet concepts, ObjectOutputStream out) throws IOException {
+        return new ModuleExtractor(this).write(concepts, out);
+    }
+    
+    /**
+     * Reads the terms written by {@link #writeModule(IConceptSet, ObjectOutputStream)} into a new ontology that 
+     * shares the ids of the one they were written from.
+     * 
+     * @param factory The factory of the ontology the terms were written from.
+     * @param in
+     * @return NormalisedOntology
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static NormalisedOntology readModule(IFactory factory, ObjectInputStream in) throws IOException, 
+            ClassNotFoundException {
+        final NormalisedOntology res = new NormalisedOntology(factory);
+        NormalFormGCI term;
+        while ((term = (NormalFormGCI) in.readObject()) != null) {
+            res.addTerm(term);
+        }
+        return res;
+    }
+    
+    /**
+     * Stores the predecessors of the contexts collected by a distributed
+     * saturation, which are not needed until the next incremental
+     * classification, see {@link DistributedSaturation#restorePredecessors(IConceptMap)}.
+     */
+    private synchronized void restorePredecessors() {
+        if (predecessorsMissing) {
+            DistributedSaturation.restorePredecessors(contextIndex);
+            predecessorsMissing = false;
+        }
+    }
+    
+    /**
+     * Returns the distributed saturation engine, or null if full
+     * classifications run in this process.
+     * 
+     * @return DistributedSaturation
+     */
+    public DistributedSaturation getDistributedSaturation() {
+        return distributedSaturation;
+    }
+
+    /**
+     * Indicates if the work-stealing scheduler is selected.
+     * 
+     * @return boolean
+     */
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * Creates the saturation worker for the selected scheduler.
+     * 
+     * @param index
+     * @return Runnable
+     */
+    private Runnable createWorker(int index) {
+        if (workStealing) {
+            return new StealingWorker((WorkStealingQueue) todo, index);
+        } else {
+            return new Worker(todo);
+        }
     }
     
     protected void buildTaxonomyConcurrent() {
@@ -1776,21 +3328,11 @@ public class NormalisedOntology implements Serializable {
         final ConcurrentMap<Integer, IConceptSet> direc = 
                 new ConcurrentHashMap<Integer, IConceptSet>();
         
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Runnable> workers = new ArrayList<Runnable>(numThreads);
         for (int j = 0; j < numThreads; j++) {
-            Runnable worker = new TaxonomyWorker1(contextIndex, 
-                    equiv, direc, factory, todo);
-            executor.execute(worker);
-        }
-
-        executor.shutdown();
-        while (!executor.isTerminated()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            workers.add(new TaxonomyWorker1(contextIndex, equiv, direc, factory, todo));
         }
+        getExecutor().runPhase(workers);
         
         assert (todo.isEmpty());
         
@@ -1814,7 +3356,7 @@ public class NormalisedOntology implements Serializable {
         Node top = null;
         Node bottom = null;
         
-        IConceptSet processed = new FastConceptHashSet();
+        IConceptSet processed = IConceptSet.FACTORY.createConceptSet();
         Set<Node> nodeSet = new HashSet<Node>();
         
         for(int key : equiv.keySet()) {
@@ -1853,21 +3395,11 @@ public class NormalisedOntology implements Serializable {
         
         // Step 3 - Connects nodes
         Queue<Node> todo2 = new ConcurrentLinkedQueue<Node>(nodeSet);
-        executor = Executors.newFixedThreadPool(numThreads);
+        workers.clear();
         for (int j = 0; j < numThreads; j++) {
-            Runnable worker = new TaxonomyWorker2(factory, 
-                    conceptNodeIndex, direc, todo2, nodeSet);
-            executor.execute(worker);
-        }
-
-        executor.shutdown();
-        while (!executor.isTerminated()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            workers.add(new TaxonomyWorker2(factory, conceptNodeIndex, direc, todo2, nodeSet));
         }
+        getExecutor().runPhase(workers);
 
         assert (todo2.isEmpty());
         
@@ -1905,7 +3437,7 @@ public class NormalisedOntology implements Serializable {
     private void addToSet(IConceptMap<IConceptSet> map, int key, int val) {
         IConceptSet set = map.get(key);
         if (set == null) {
-            set = new SparseConceptHashSet();
+            set = IConceptSet.FACTORY.createConceptSet();
             map.put(key, set);
         }
         set.add(val);
@@ -1918,7 +3450,7 @@ public class NormalisedOntology implements Serializable {
 
         for (IntIterator itr = subsumptions.keyIterator(); itr.hasNext();) {
             final int X = itr.next();
-            IConceptSet set = new SparseConceptHashSet();
+            IConceptSet set = IConceptSet.FACTORY.createConceptSet();
             cis.put(X, set);
             for (IntIterator it = subsumptions.get(X).iterator(); it.hasNext();) {
                 int next = it.next();
@@ -1942,7 +3474,7 @@ public class NormalisedOntology implements Serializable {
                     boolean isDirect = true;
                     IConceptSet d = direc.get(a);
                     if (d != null) {
-                        IConceptSet toRemove = new SparseConceptHashSet();
+                        IConceptSet toRemove = IConceptSet.FACTORY.createConceptSet();
                         for (IntIterator itr3 = d.iterator(); itr3.hasNext();) {
                             int b = itr3.next();
                             IConceptSet bs = cis.get(b);
@@ -1987,7 +3519,7 @@ public class NormalisedOntology implements Serializable {
             for (IntIterator itr = newConceptSubs.keyIterator(); itr.hasNext();) {
                 final int x = itr.next();
                 if (!factory.isVirtualConcept(x)) {
-                    IConceptSet set = new SparseConceptHashSet();
+                    IConceptSet set = IConceptSet.FACTORY.createConceptSet();
                     allNew.put(x, set);
                     for (IntIterator it = newConceptSubs.get(x).iterator(); it.hasNext();) {
                         int next = it.next();
@@ -2001,7 +3533,7 @@ public class NormalisedOntology implements Serializable {
             for (IntIterator itr = affectedConceptSubs.keyIterator(); itr.hasNext();) {
                 final int x = itr.next();
                 if (!factory.isVirtualConcept(x)) {
-                    IConceptSet set = new SparseConceptHashSet();
+                    IConceptSet set = IConceptSet.FACTORY.createConceptSet();
                     allAffected.put(x, set);
                     for (IntIterator it = affectedConceptSubs.get(x).iterator(); it.hasNext();) {
                         int next = it.next();
@@ -2462,6 +3994,7 @@ public class NormalisedOntology implements Serializable {
     }
     
     private void printNormalisedAxioms() {
+        restoreCollections();
         for(IntIterator it = ontologyNF1.keyIterator(); it.hasNext(); ) {
             int key = it.next();
             MonotonicCollection<IConjunctionQueueEntry> entries = ontologyNF1.get(key);
@@ -2500,14 +4033,14 @@ public class NormalisedOntology implements Serializable {
         
         for(IntIterator it = ontologyNF3.keyIterator(); it.hasNext(); ) {
             int aId = it.next();
-            ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> entries = ontologyNF3.get(aId);
-            for(Integer rId : entries.keySet()) {
+            ConceptRoleMap.Row entries = ontologyNF3.get(aId);
+            for(int i = 0; i < entries.size(); i++) {
                 
                 // These terms are of the form r.A [ b and indexed by A (and then by r)
                 
-                for(IConjunctionQueueEntry entry : entries.get(rId)) {
-                    int bId = entry.getB();
-                    Object r = factory.lookupRoleId(rId.intValue());
+                for(int j = entries.start(i); j < entries.end(i); j++) {
+                    int bId = LongQueue.low(entries.getEntries()[j]);
+                    Object r = factory.lookupRoleId(entries.getRole(i));
                     String rs = (r instanceof String) ? (String) r :  "[" + r.toString() + "]";
                     Object a = factory.lookupConceptId(aId);
                     String as = (a instanceof String) ? (String) a : "[" + a.toString() + "]";
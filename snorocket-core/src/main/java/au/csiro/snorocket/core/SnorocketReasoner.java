@@ -64,7 +64,8 @@ import au.csiro.snorocket.core.model.StringLiteral;
 import au.csiro.snorocket.core.util.IConceptMap;
 import au.csiro.snorocket.core.util.IConceptSet;
 import au.csiro.snorocket.core.util.IntIterator;
-import au.csiro.snorocket.core.util.RoleSet;
+import au.csiro.snorocket.core.util.RoleClosure;
+import au.csiro.snorocket.core.util.SparseConceptSet;
 
 /**
  * This class represents an instance of the reasoner. It uses the internal
@@ -83,11 +84,18 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
 
     private final static Logger log = Logger.getLogger(SnorocketReasoner.class);
 
+    /**
+     * @deprecated Axioms are now loaded from an iterator in batches of
+     *             {@link #getBatchSize()} axioms, which defaults to
+     *             {@link NormalisedOntology#DEFAULT_BATCH_SIZE}.
+     */
+    @Deprecated
     public static final int BUFFER_SIZE = 10;
 
     private NormalisedOntology no = null;
     private IFactory factory = null;
     private boolean isClassified = false;
+    private int batchSize = NormalisedOntology.DEFAULT_BATCH_SIZE;
 
     /**
      * Loads a saved instance of a {@link SnorocketReasoner} from an input
@@ -111,7 +119,6 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
             }
         }
 
-        Context.init(res.no);
         res.no.buildTaxonomy();
         return res;
     }
@@ -126,6 +133,11 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
         no = new NormalisedOntology(factory);
     }
 
+    private SnorocketReasoner(IFactory factory, NormalisedOntology no) {
+        this.factory = factory;
+        this.no = no;
+    }
+
     @Override
     public void prune() {
         // TODO: implement
@@ -485,14 +497,14 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
     final static class Builder {
         final private NormalisedOntology no;
         final private IFactory factory;
-        final private Map<Integer, RoleSet> rc;
+        final private RoleClosure rc;
 
         final private Set<Existential> items = new HashSet<Existential>();
 
         private Builder(NormalisedOntology no) {
             this.no = no;
             this.factory = no.factory;
-            this.rc = no.getRoleClosureCache();
+            this.rc = no.getRoleClosure();
         }
 
         static Concept build(NormalisedOntology no, Concept... concepts) {
@@ -551,7 +563,6 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
             final int cInt = factory.getConcept(((NamedConcept) concept).getId());
             final IConceptSet cAncestorSet = getAncestors(no, cInt);
             final int rInt = factory.getRole(role.getId());
-            final RoleSet rSet = rc.get(rInt);
 
             final List<Existential> remove = new ArrayList<Existential>();
             boolean subsumed = false;
@@ -566,19 +577,18 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
                 final int dInt = factory.getConcept(((NamedConcept) value).getId());
                 final IConceptSet dAncestorSet = getAncestors(no, dInt);
                 final int sInt = factory.getRole(((NamedRole) candidate.getRole()).getId());
-                final RoleSet sSet = rc.get(sInt);
 
                 if (rInt == sInt && cInt == dInt) {
                     subsumed = true;
                 } else {
-                    if (rSet.contains(sInt)) {
+                    if (rc.contains(rInt, sInt)) {
                         if (cAncestorSet.contains(dInt)) {
                             remove.add(candidate);
                             if (log.isTraceEnabled()) log.trace("\tremove " + candidate);
                         }
                     }
 
-                    if (sSet.contains(rInt)) {
+                    if (rc.contains(sInt, rInt)) {
                         if (dAncestorSet.contains(cInt)) {
                             subsumed = true;
                             if (log.isTraceEnabled()) log.trace("\tsubsumed");
@@ -638,27 +648,82 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
         }
     }
 
+    /**
+     * Loads the axioms returned by an iterator as they are read, in batches
+     * of {@link #getBatchSize()} axioms. Each batch is normalised and indexed
+     * before the next one is read.
+     */
     @Override
     public void loadAxioms(Iterator<Axiom> axioms) {
-        Set<Axiom> axiomSet = new HashSet<Axiom>();
-        while(axioms.hasNext()) {
-            Axiom axiom = axioms.next();
-            if(axiom == null) continue;
-            axiomSet.add(axiom);
-            if(axiomSet.size() == BUFFER_SIZE) {
-                loadAxioms(axiomSet);
-                axiomSet.clear();
-            }
-        }
-
-        if(!axiomSet.isEmpty()) {
-            loadAxioms(axiomSet);
+        // Reasoners saved before the batch size existed have it set to 0
+        final int size = batchSize > 0 ? batchSize : NormalisedOntology.DEFAULT_BATCH_SIZE;
+        if(!isClassified) {
+            no.loadAxioms(axioms, size);
+        } else {
+            no.loadIncremental(axioms, size);
         }
     }
 
     @Override
     public void loadAxioms(Ontology ont) {
-        loadAxioms(new HashSet<Axiom>(ont.getStatedAxioms()));
+        loadAxioms(ont.getStatedAxioms().iterator());
+    }
+
+    /**
+     * Sets the number of axioms loaded at a time by
+     * {@link #loadAxioms(Iterator)} and {@link #loadAxioms(Ontology)}. Larger
+     * batches are normalised more efficiently, smaller ones need less memory.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets a cache of normalised axioms, used by the axioms loaded afterwards.
+     * See {@link NormalisedOntology#setNormalisationCache(NormalisationCache)}.
+     *
+     * @param cache
+     */
+    public void setNormalisationCache(NormalisationCache cache) {
+        no.setNormalisationCache(cache);
+    }
+
+    /**
+     * Returns a new reasoner with the part of the axioms of this reasoner
+     * that is needed to classify a set of concepts, for example a single
+     * hierarchy. Classifying the new reasoner gives the same subsumptions
+     * between those concepts as classifying this one, but only classifies the
+     * module. See {@link NormalisedOntology#extractModule(IConceptSet)}.
+     * Concepts that are not in the ontology are ignored.
+     *
+     * @param signature The ids of the concepts.
+     * @return SnorocketReasoner
+     */
+    public SnorocketReasoner extractModule(Set<String> signature) {
+        final IConceptSet ids = new SparseConceptSet();
+        for (String id : signature) {
+            if (factory.conceptExists(id)) {
+                ids.add(factory.getConcept(id));
+            } else {
+                log.warn("Ignoring unknown concept " + id);
+            }
+        }
+        final NormalisedOntology module = no.extractModule(ids);
+        return new SnorocketReasoner(module.getFactory(), module);
+    }
+
+    /**
+     * Returns the number of axioms loaded at a time from an iterator.
+     *
+     * @return int
+     */
+    public int getBatchSize() {
+        return batchSize;
     }
 
     @Override
@@ -672,4 +737,33 @@ final public class SnorocketReasoner implements IReasoner, Serializable {
         return this;
     }
 
+    /**
+     * Sets the number of threads used to classify. The threads are created
+     * once and reused by subsequent (incremental) classifications.
+     *
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads) {
+        no.setNumThreads(numThreads);
+    }
+
+    /**
+     * Sets the time the threads of this reasoner are kept once idle, or 0 to
+     * keep them until {@link #shutdown()}, see
+     * {@link NormalisedOntology#setThreadKeepAlive(long)}.
+     *
+     * @param keepAliveMillis
+     */
+    public void setThreadKeepAlive(long keepAliveMillis) {
+        no.setThreadKeepAlive(keepAliveMillis);
+    }
+
+    /**
+     * Releases the threads used by this reasoner. They are created again if
+     * the reasoner is used to classify afterwards.
+     */
+    public void shutdown() {
+        no.shutdown();
+    }
+
 }
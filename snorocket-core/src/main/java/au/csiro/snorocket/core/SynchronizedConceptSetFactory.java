@@ -0,0 +1,28 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core;
+
+import au.csiro.snorocket.core.util.IConceptSet;
+
+/**
+ * A {@link ConceptSetFactory} that can also create the sets that saturation
+ * reads concurrently. Factories that do not implement it get the default
+ * synchronized set, see
+ * {@link DefaultConceptSetFactory#createSynchronizedConceptSet(ConceptSetFactory)}.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public interface SynchronizedConceptSetFactory extends ConceptSetFactory {
+
+    /**
+     * Creates a set that is filled by one thread while other threads look up
+     * and iterate over its members, like the subsumers of a context during
+     * saturation.
+     * 
+     * @return
+     */
+    IConceptSet createSynchronizedConceptSet();
+}
@@ -180,6 +180,28 @@ public class GCI extends Inclusion {
         return result;
     }
 
+    /**
+     * Indicates if the left hand side is a conjunction of more than two
+     * concepts, which {@link #rule2(IFactory, Inclusion[])} binarises.
+     * 
+     * @return
+     */
+    public boolean isBinarisable() {
+        if (!(lhs instanceof Conjunction)) {
+            return false;
+        }
+        final AbstractConcept[] concepts = ((Conjunction) lhs).getConcepts();
+        if (concepts.length <= 2) {
+            return false;
+        }
+        for (AbstractConcept concept : concepts) {
+            if (!(concept instanceof Concept)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * &#8707;r.C' &#8849; D &rarr; {C' &#8849; A, &#8707;r.A &#8849; D}
      * 
@@ -22,16 +22,21 @@
 package au.csiro.snorocket.core.concurrent;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import au.csiro.snorocket.core.DefaultConceptSetFactory;
+import au.csiro.snorocket.core.util.AdaptiveConceptSet;
 import au.csiro.snorocket.core.util.IConceptSet;
 import au.csiro.snorocket.core.util.ReadonlyConceptSet;
-import au.csiro.snorocket.core.util.SparseConceptSet;
+import au.csiro.snorocket.core.util.SizeEstimates;
 
 /**
- * Concurrent version of R.
+ * Concurrent version of R. Each role has its own concept set, so writers only 
+ * contend when they store pairs for the same role, and the monitor of the CR 
+ * is only taken the first time a role is used. Read-only views of the sets are 
+ * created once per role and returned by {@link #lookupConcept(int)} without 
+ * allocating. The arrays are only allocated when the first pair is stored and
+ * grow with the largest role used, so contexts without edges stay small.
  * 
  * @author Alejandro Metke
  * 
@@ -42,14 +47,38 @@ public final class CR implements Serializable {
      */
     private static final long serialVersionUID = 1L;
     
-    private IConceptSet[] data;
+    /**
+     * Shared by all the instances without roles. Its length is zero so it is 
+     * never written.
+     */
+    private static final AtomicReferenceArray<IConceptSet> EMPTY = 
+            new AtomicReferenceArray<IConceptSet>(0);
+    
+    /**
+     * The concept sets indexed by role. Elements are only set while holding
+     * the monitor of this object.
+     */
+    private volatile AtomicReferenceArray<IConceptSet> data;
+    
+    /**
+     * The read-only views of the concept sets indexed by role.
+     */
+    private volatile AtomicReferenceArray<IConceptSet> views;
 
-    public CR(final int roles) {
-        this.data = new IConceptSet[roles];
+    /**
+     * True if the concept sets are only changed by one thread, see
+     * {@link #setSingleWriter(boolean)}.
+     */
+    private volatile boolean singleWriter = false;
+
+    public CR() {
+        this.data = EMPTY;
+        this.views = EMPTY;
     }
 
     public boolean containsRole(int role) {
-        return data[role] != null;
+        final AtomicReferenceArray<IConceptSet> d = data;
+        return role < d.length() && d.get(role) != null;
     }
 
     /**
@@ -58,13 +87,30 @@ public final class CR implements Serializable {
      * @return
      */
     protected IConceptSet getConcept(int r) {
-        if (r >= data.length) {
-            resizeRoles(r + 1);
+        final AtomicReferenceArray<IConceptSet> d = data;
+        if (r < d.length()) {
+            final IConceptSet set = d.get(r);
+            if (set != null) {
+                return set;
+            }
+        }
+        return createConcept(r);
+    }
+
+    private synchronized IConceptSet createConcept(int r) {
+        final int len = data.length();
+        if (r >= len) {
+            resizeRoles(Math.max(r + 1, len + (len >> 1)));
         }
-        if (null == data[r]) {
-            data[r] = new SparseConceptSet();
+        IConceptSet set = data.get(r);
+        if (null == set) {
+            set = DefaultConceptSetFactory.createSynchronizedConceptSet(IConceptSet.FACTORY);
+            AdaptiveConceptSet.setSingleWriter(set, singleWriter);
+            // Publish the view first so that it is there as soon as the set is
+            views.set(r, new ReadonlyConceptSet(set));
+            data.set(r, set);
         }
-        return data[r];
+        return set;
     }
 
     /**
@@ -76,33 +122,97 @@ public final class CR implements Serializable {
      * @return The set of concepts associated to the concept in the context.
      */
     public IConceptSet lookupConcept(int r) {
-        if (r >= data.length) {
+        final AtomicReferenceArray<IConceptSet> v = views;
+        if (r >= v.length()) {
             return IConceptSet.EMPTY_SET;
         }
 
-        if (null == data[r]) {
+        final IConceptSet view = v.get(r);
+        if (null == view) {
             return IConceptSet.EMPTY_SET;
         } else {
-            return new ReadonlyConceptSet(data[r]);
+            return view;
+        }
+    }
+
+    /**
+     * Selects if the concept sets, current and future, skip their lock when
+     * pairs are stored, see {@link AdaptiveConceptSet#setSingleWriter(boolean)}.
+     * 
+     * @param singleWriter
+     */
+    synchronized void setSingleWriter(boolean singleWriter) {
+        this.singleWriter = singleWriter;
+        final AtomicReferenceArray<IConceptSet> d = data;
+        for (int i = 0; i < d.length(); i++) {
+            final IConceptSet set = d.get(i);
+            if (set != null) {
+                AdaptiveConceptSet.setSingleWriter(set, singleWriter);
+            }
         }
     }
 
-    public void clear() {
-        Arrays.fill(data, null);
+    public synchronized void clear() {
+        data = EMPTY;
+        views = EMPTY;
     }
 
     private void resizeRoles(int maxRole) {
-        final IConceptSet[] oldData = data;
+        final AtomicReferenceArray<IConceptSet> oldData = data;
+        final AtomicReferenceArray<IConceptSet> oldViews = views;
+        final AtomicReferenceArray<IConceptSet> newData = new AtomicReferenceArray<IConceptSet>(maxRole);
+        final AtomicReferenceArray<IConceptSet> newViews = new AtomicReferenceArray<IConceptSet>(maxRole);
+        for (int i = 0; i < oldData.length(); i++) {
+            newViews.set(i, oldViews.get(i));
+            newData.set(i, oldData.get(i));
+        }
+        views = newViews;
+        data = newData;
+    }
 
-        data = new IConceptSet[maxRole];
-        System.arraycopy(oldData, 0, data, 0, oldData.length);
+    /**
+     * Returns an estimate of the heap used by this object and its concept 
+     * sets, in bytes. See {@link SizeEstimates}.
+     * 
+     * @return
+     */
+    public long estimateSize() {
+        return estimateSize(0);
+    }
+
+    /**
+     * Returns {@link #estimateSize()} as if the role arrays had room for at
+     * least numRoles roles, which is how they were sized before they grew on
+     * demand.
+     * 
+     * @param numRoles
+     * @return
+     */
+    public long estimateSize(int numRoles) {
+        final AtomicReferenceArray<IConceptSet> d = data;
+        final int len = Math.max(d.length(), numRoles);
+        long size = SizeEstimates.object(2 * SizeEstimates.REFERENCE);
+        if (len > 0) {
+            // Two atomic arrays and their backing arrays
+            size += 2 * (SizeEstimates.object(SizeEstimates.REFERENCE)
+                    + SizeEstimates.array(len, SizeEstimates.REFERENCE));
+        }
+        for (int i = 0; i < d.length(); i++) {
+            final IConceptSet set = d.get(i);
+            if (set != null) {
+                size += SizeEstimates.conceptSet(set)
+                        + SizeEstimates.object(SizeEstimates.REFERENCE);
+            }
+        }
+        return size;
     }
 
     public String toString() {
         final StringBuilder sb = new StringBuilder();
 
-        for (int index = 0; index < data.length; index++) {
-            IConceptSet cs = data[index];
+        final AtomicReferenceArray<IConceptSet> d = data;
+        for (int index = 0; index < d.length(); index++) {
+            IConceptSet cs = d.get(index);
             if (null != cs) {
                 sb.append(index + "." + cs.toString());
             }
@@ -117,7 +227,7 @@ public final class CR implements Serializable {
      * @param r
      * @param B
      */
-    synchronized void store(int r, int B) {
+    void store(int r, int B) {
         getConcept(r).add(B);
     }
     
@@ -126,16 +236,19 @@ public final class CR implements Serializable {
      * @return
      */
     public int[] getRoles() {
-        List<Integer> roles = new ArrayList<Integer>();
-        for(int i = 0; i < data.length; i++) {
-            if(data[i] != null) {
-                roles.add(i);
+        final AtomicReferenceArray<IConceptSet> d = data;
+        int num = 0;
+        for(int i = 0; i < d.length(); i++) {
+            if(d.get(i) != null) {
+                num++;
             }
         }
         
-        int[] res = new int[roles.size()];
-        for(int i = 0; i < res.length; i++) {
-            res[i] = roles.get(i);
+        int[] res = new int[num];
+        for(int i = 0, j = 0; i < d.length() && j < num; i++) {
+            if(d.get(i) != null) {
+                res[j++] = i;
+            }
         }
         return res;
     }
@@ -1,19 +1,9 @@
 package au.csiro.snorocket.core.concurrent;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import au.csiro.ontology.model.Operator;
-import au.csiro.snorocket.core.CoreFactory;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import au.csiro.snorocket.core.DefaultConceptSetFactory;
 import au.csiro.snorocket.core.IFactory;
 import au.csiro.snorocket.core.IQueue;
 import au.csiro.snorocket.core.NormalisedOntology;
@@ -21,25 +11,27 @@ import au.csiro.snorocket.core.QueueImpl;
 import au.csiro.snorocket.core.axioms.IConjunctionQueueEntry;
 import au.csiro.snorocket.core.axioms.IFeatureQueueEntry;
 import au.csiro.snorocket.core.axioms.IRoleQueueEntry;
-import au.csiro.snorocket.core.axioms.NF2;
-import au.csiro.snorocket.core.axioms.NF4;
-import au.csiro.snorocket.core.axioms.NF5;
 import au.csiro.snorocket.core.axioms.NF7;
-import au.csiro.snorocket.core.axioms.NF8;
-import au.csiro.snorocket.core.model.AbstractLiteral;
 import au.csiro.snorocket.core.model.Datatype;
-import au.csiro.snorocket.core.util.FeatureMap;
-import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.AdaptiveConceptSet;
+import au.csiro.snorocket.core.util.ConceptRoleMap;
+import au.csiro.snorocket.core.util.DatatypeIndex;
 import au.csiro.snorocket.core.util.IConceptSet;
-import au.csiro.snorocket.core.util.IMonotonicCollection;
 import au.csiro.snorocket.core.util.IntIterator;
+import au.csiro.snorocket.core.util.LongQueue;
 import au.csiro.snorocket.core.util.MonotonicCollection;
-import au.csiro.snorocket.core.util.RoleSet;
-import au.csiro.snorocket.core.util.SparseConceptSet;
+import au.csiro.snorocket.core.util.PackedConceptMap;
+import au.csiro.snorocket.core.util.SizeEstimates;
 
 /**
  * Represents a context where derivations associated to one concept are executed.
  * 
+ * <p>
+ * There is a context for every concept, including the ones created during normalisation, so contexts are kept small:
+ * the queues are only created when an entry is added to them and are released when the context becomes inactive with
+ * nothing left to do, and the role maps only grow as edges are stored.
+ * </p>
+ * 
  * @author Alejandro Metke
  * 
  */
@@ -50,36 +42,56 @@ public class Context implements Serializable {
      */
     private static final long serialVersionUID = 1L;
 
+    private static final AtomicIntegerFieldUpdater<Context> ACTIVE = 
+            AtomicIntegerFieldUpdater.newUpdater(Context.class, "active");
+
+    private static final AtomicIntegerFieldUpdater<Context> TRACK = 
+            AtomicIntegerFieldUpdater.newUpdater(Context.class, "track");
+
+    /**
+     * The concept queue entry (TOP, BOTTOM), which adds BOTTOM to the subsumptions of any context.
+     */
+    private static final long[] BOTTOM_ENTRY = { LongQueue.pack(IFactory.TOP_CONCEPT, IFactory.BOTTOM_CONCEPT) };
+
     /**
      * The internal concept id.
      */
     private final int concept;
 
     /**
-     * Flag to indicate if this context is active or not.
+     * Flag to indicate if this context is active (1) or not (0). Updated with {@link #ACTIVE}.
      */
-    private final AtomicBoolean active = new AtomicBoolean(false);
+    private volatile int active = 0;
 
     /**
-     * Queue (List) of ConjunctionQueueEntries indicating work to be done for this concept.
+     * Queue of ConjunctionQueueEntries indicating work to be done for this concept. Each entry (Bi, B) is packed into a 
+     * long. Only used by the thread processing this context. Null until needed, see {@link #conceptQueue()}.
      */
-    private final Queue<IConjunctionQueueEntry> conceptQueue = new ConcurrentLinkedQueue<IConjunctionQueueEntry>();
+    private LongQueue conceptQueue;
 
     /**
-     * Queue (List) of RoleQueueEntries indicating work to be done for this concept.
+     * Queue of RoleQueueEntries indicating work to be done for this concept. Each entry (r, B) is packed into a long.
+     * Null until needed, see {@link #roleQueue()}.
      */
-    private final IQueue<IRoleQueueEntry> roleQueue = new QueueImpl<IRoleQueueEntry>(IRoleQueueEntry.class);
+    private LongQueue roleQueue;
 
     /**
      * Queue (List) of FeatureQueueEntries indicating work to be done for this concept. Queue entries of the form 
-     * A [ f.(o, v).
+     * A [ f.(o, v). Null until needed, see {@link #featureQueue()}.
      */
-    private final IQueue<IFeatureQueueEntry> featureQueue = new QueueImpl<IFeatureQueueEntry>(IFeatureQueueEntry.class);
+    private IQueue<IFeatureQueueEntry> featureQueue;
 
     /**
-     * Queue used to process entries from other contexts that trigger calls to processNewEdge.
+     * Queue of ConjunctionQueueEntries added by other contexts, packed like the entries in the concept queue. Null 
+     * when there are none. Access must be synchronized on this context.
      */
-    private final Queue<IRoleQueueEntry> externalQueue = new ConcurrentLinkedQueue<IRoleQueueEntry>();
+    private LongQueue externalConceptQueue;
+
+    /**
+     * Queue used to process entries from other contexts that trigger calls to processNewEdge. Each entry (r, A) is 
+     * packed into a long. Null when there are none. Access must be synchronized on this context.
+     */
+    private LongQueue externalQueue;
 
     /**
      * Keeps track of the parents of this concept.
@@ -97,9 +109,10 @@ public class Context implements Serializable {
     private final CR succ;
 
     /**
-     * Flag to indicate if changes to the subsumptions of this context should be tracked.
+     * Flag to indicate if changes to the subsumptions of this context should be tracked (1) or not (0). Updated with 
+     * {@link #TRACK}.
      */
-    private AtomicBoolean track = new AtomicBoolean(false);
+    private volatile int track = 0;
 
     /**
      * Flag used to indicate if this context has generated new subsumptions while being tracked.
@@ -107,144 +120,252 @@ public class Context implements Serializable {
     private boolean changed = false;
 
     /**
-     * Reference to the parent context queue. Used to add this context back to the queue when reactivated.
-     */
-    private static Queue<Context> parentTodo;
-
-    /**
-     * Reference to the parent context index. Used to add queue entries to other contexts.
+     * Flag to indicate if BOTTOM is one of the subsumptions of this context. Once it is set all the work for this 
+     * context is discarded, since BOTTOM subsumes everything.
      */
-    private static IConceptMap<Context> contextIndex;
+    private boolean bottom;
 
     /**
-     * Reference to the global role closure cache.
+     * Buffer for the messages sent to other contexts. Only set while the context is being processed.
      */
-    private static Map<Integer, RoleSet> roleClosureCache;
+    private transient Outbox outbox;
 
     /**
-     * Reference to the global factory.
+     * The state shared with the other contexts of the same ontology.
      */
-    private static IFactory factory;
+    private final SaturationState state;
 
     /**
-     * The set of NF1 terms in the ontology.
+     * Constructor.
      * 
-     * These terms are of the form A n Ai [ B and are indexed by A.
+     * @param concept
+     * @param state The state shared by the contexts of the ontology, initialised with
+     *            {@link SaturationState#init(NormalisedOntology)}.
      */
-    private static IConceptMap<MonotonicCollection<IConjunctionQueueEntry>> ontologyNF1;
+    public Context(int concept, SaturationState state) {
+        this.concept = concept;
+        this.state = state;
+        s = DefaultConceptSetFactory.createSynchronizedConceptSet(IConceptSet.FACTORY);
+        s.add(concept);
+        s.add(IFactory.TOP_CONCEPT);
+        bottom = concept == IFactory.BOTTOM_CONCEPT;
 
-    /**
-     * The set of NF2 terms in the ontology.
-     * 
-     * These terms are of the form A [ r.B and are indexed by A.
-     */
-    private static IConceptMap<MonotonicCollection<NF2>> ontologyNF2;
+        pred = new CR();
+        succ = new CR();
+
+        // Prime queues for this context
+        primeQueue();
+    }
 
     /**
-     * The set of NF3 terms in the ontology.
+     * Creates a context with the subsumptions derived in another process, see {@link DistributedSaturation}. The 
+     * queues are not primed and the role maps start empty.
      * 
-     * These terms are of the form r.A [ b and indexed by A.
+     * @param concept
+     * @param state
+     * @param subsumptions
      */
-    private static IConceptMap<ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>>>
-        ontologyNF3;
+    Context(int concept, SaturationState state, int[] subsumptions) {
+        this.concept = concept;
+        this.state = state;
+        s = DefaultConceptSetFactory.createSynchronizedConceptSet(IConceptSet.FACTORY);
+        for (int b : subsumptions) {
+            s.add(b);
+        }
+        bottom = s.contains(IFactory.BOTTOM_CONCEPT);
 
-    /**
-     * The set of NF4 terms in the ontology
-     */
-    private static IMonotonicCollection<NF4> ontologyNF4;
+        pred = new CR();
+        succ = new CR();
+    }
 
-    /**
-     * The set of NF5 terms in the ontology
-     */
-    private static IMonotonicCollection<NF5> ontologyNF5;
+    public int getConcept() {
+        return concept;
+    }
 
-    /**
-     * The set of reflexive roles in the ontology
-     */
-    private static IConceptSet reflexiveRoles = new SparseConceptSet();
+    private LongQueue conceptQueue() {
+        if (conceptQueue == null) {
+            conceptQueue = new LongQueue();
+        }
+        return conceptQueue;
+    }
+
+    private LongQueue roleQueue() {
+        if (roleQueue == null) {
+            roleQueue = new LongQueue();
+        }
+        return roleQueue;
+    }
+
+    private IQueue<IFeatureQueueEntry> featureQueue() {
+        if (featureQueue == null) {
+            featureQueue = new QueueImpl<IFeatureQueueEntry>(IFeatureQueueEntry.class);
+        }
+        return featureQueue;
+    }
 
     /**
-     * The set of NF7 terms in the ontology.
+     * Adds concept queue entries, skipping the ones whose conclusion is already a subsumption of this context. The 
+     * same NF1 and NF3 entries are added many times and most of them would otherwise be dequeued only to find that 
+     * their conclusion is known. The check is repeated when an entry is dequeued, because the conclusion may have 
+     * been derived in between.
      * 
-     * These terms are of the form A [ f.(o, v) and are indexed by A.
+     * <p>
+     * Entries (Bi, B) whose premise Bi is not a subsumption yet are skipped too: the NF1 axioms A1 n A2 [ B are 
+     * indexed by both conjuncts, so if Bi is derived later {@link #processNewSubsumption(int)} adds the mirrored entry.
+     * </p>
+     * 
+     * @param entries
      */
-    private static IConceptMap<MonotonicCollection<NF7>> ontologyNF7;
+    private void addToConceptQueue(
+            MonotonicCollection<IConjunctionQueueEntry> entries) {
+        // The backing array is an Object[]
+        final Object[] data = entries.data;
+        final int n = entries.size();
+        final LongQueue conceptQueue = conceptQueue();
+        int skipped = 0;
+        for (int i = 0; i < n; i++) {
+            final IConjunctionQueueEntry entry = (IConjunctionQueueEntry) data[i];
+            final int b = entry.getB();
+            final int bi = entry.getBi();
+            if (s.contains(b) || !s.contains(bi)) {
+                skipped++;
+            } else {
+                conceptQueue.add(LongQueue.pack(bi, b));
+            }
+        }
+        countConceptQueueEntries(n, skipped);
+    }
 
     /**
-     * The set of NF8 terms in the ontology.
+     * Adds packed concept queue entries, skipping the ones whose conclusion is already a subsumption of this context.
      * 
-     * These terms are of the form f.(o, v) [ A. These are indexed by f.
+     * @param entries
+     * @param from
+     * @param to
      */
-    private static FeatureMap<MonotonicCollection<NF8>> ontologyNF8;
+    private void addToConceptQueue(long[] entries, int from, int to) {
+        final LongQueue conceptQueue = conceptQueue();
+        int skipped = 0;
+        for (int i = from; i < to; i++) {
+            final long entry = entries[i];
+            if (s.contains(LongQueue.low(entry))) {
+                skipped++;
+            } else {
+                conceptQueue.add(entry);
+            }
+        }
+        countConceptQueueEntries(to - from, skipped);
+    }
 
     /**
-     * The map of global affected contexts used in incremental classification.
+     * Records the concept queue entries added while this context is processed. Entries added when the queues are 
+     * primed, outside of a worker, are not counted.
+     * 
+     * @param added
+     * @param skipped
      */
-    private static Set<Context> affectedContexts;
+    private void countConceptQueueEntries(int added, int skipped) {
+        if (outbox != null) {
+            outbox.countConceptQueueEntries(added, skipped);
+        }
+    }
+
+    private void addToRoleQueue(MonotonicCollection<? extends IRoleQueueEntry> entries) {
+        final Object[] data = entries.data;
+        final LongQueue roleQueue = roleQueue();
+        for (int i = 0, n = entries.size(); i < n; i++) {
+            final IRoleQueueEntry entry = (IRoleQueueEntry) data[i];
+            roleQueue.add(LongQueue.pack(entry.getR(), entry.getB()));
+        }
+    }
 
     /**
-     * Initialises the static variables.
+     * Adds the entries (Bi, B) of the NF1 terms A n Bi [ B indexed by a concept, skipping them like 
+     * {@link #addToConceptQueue(MonotonicCollection)}.
      * 
-     * @param ont
+     * @param a
      */
-    public static void init(NormalisedOntology ont) {
-        parentTodo = ont.getTodo();
-        contextIndex = ont.getContextIndex();
-        ontologyNF1 = ont.getOntologyNF1();
-        ontologyNF2 = ont.getOntologyNF2();
-        ontologyNF3 = ont.getOntologyNF3();
-        ontologyNF4 = ont.getOntologyNF4();
-        ontologyNF5 = ont.getOntologyNF5();
-        reflexiveRoles = ont.getReflexiveRoles();
-        ontologyNF7 = ont.getOntologyNF7();
-        ontologyNF8 = ont.getOntologyNF8();
-        roleClosureCache = ont.getRoleClosureCache();
-        factory = ont.getFactory();
-        affectedContexts = ont.getAffectedContexts();
+    private void addNF1Entries(int a) {
+        final PackedConceptMap nf1 = state.ontologyNF1;
+        final int from = nf1.start(a);
+        final int to = nf1.end(a);
+        if (from == to) {
+            return;
+        }
+        final long[] entries = nf1.getEntries();
+        final LongQueue conceptQueue = conceptQueue();
+        int skipped = 0;
+        for (int i = from; i < to; i++) {
+            final long entry = entries[i];
+            if (s.contains(LongQueue.low(entry)) || !s.contains(LongQueue.high(entry))) {
+                skipped++;
+            } else {
+                conceptQueue.add(entry);
+            }
+        }
+        countConceptQueueEntries(to - from, skipped);
     }
 
     /**
-     * Constructor.
+     * Adds the entries (r, B) of the NF2 terms A [ r.B indexed by a concept.
      * 
-     * @param concept
+     * @param a
      */
-    public Context(int concept) {
-        this.concept = concept;
-        s = new SparseConceptSet();
-        s.add(concept);
-        s.add(IFactory.TOP_CONCEPT);
-
-        pred = new CR(factory.getTotalRoles());
-        succ = new CR(factory.getTotalRoles());
-
-        // Prime queues for this context
-        primeQueue();
-    }
-
-    public int getConcept() {
-        return concept;
-    }
-
-    private void addToConceptQueue(
-            MonotonicCollection<IConjunctionQueueEntry> entries) {
-        Iterator<IConjunctionQueueEntry> it = entries.iterator();
-        while (it.hasNext()) {
-            conceptQueue.add(it.next());
+    private void addNF2Entries(int a) {
+        final PackedConceptMap nf2 = state.ontologyNF2;
+        final int from = nf2.start(a);
+        final int to = nf2.end(a);
+        if (from == to) {
+            return;
+        }
+        final long[] entries = nf2.getEntries();
+        final LongQueue roleQueue = roleQueue();
+        for (int i = from; i < to; i++) {
+            roleQueue.add(entries[i]);
         }
     }
 
     private void primeQueue() {
-        final MonotonicCollection<IConjunctionQueueEntry> nf1e = ontologyNF1.get(concept);
-        if (nf1e != null)
-            addToConceptQueue(nf1e);
-
-        final MonotonicCollection<NF2> nf2e = ontologyNF2.get(concept);
-        if (nf2e != null)
-            roleQueue.addAll(nf2e);
+        addNF1Entries(concept);
+        addNF2Entries(concept);
 
-        final MonotonicCollection<NF7> nf7e = ontologyNF7.get(concept);
+        final MonotonicCollection<NF7> nf7e = state.ontologyNF7.get(concept);
         if (nf7e != null)
-            featureQueue.addAll(nf7e);
+            featureQueue().addAll(nf7e);
+    }
+
+    /**
+     * Adds told subsumptions of this concept before it is first processed, see
+     * {@link NormalisedOntology#setToldSubsumerSeeding(boolean)}. The consequences of each subsumption are queued as
+     * if it had been derived, so the result of the saturation does not change. The subsumptions must not include 
+     * BOTTOM.
+     * 
+     * <p>
+     * Must be called on a new context, before it has any predecessors. The consequences that go through the 
+     * predecessors of this context (NF3) are then empty, so only local queue entries are added and no outbox is 
+     * needed.
+     * </p>
+     * 
+     * @param subsumptions
+     */
+    public void seed(int[] subsumptions) {
+        if (pred.getRoles().length > 0) {
+            throw new IllegalStateException("Context " + concept + " already has predecessors");
+        }
+        for (int b : subsumptions) {
+            if (b == IFactory.BOTTOM_CONCEPT) {
+                throw new IllegalArgumentException("Cannot seed context " + concept + " with BOTTOM");
+            }
+            s.add(b);
+        }
+        for (int b : subsumptions) {
+            addNF1Entries(b);
+            addNF2Entries(b);
+            final MonotonicCollection<NF7> nf7Entries = state.ontologyNF7.get(b);
+            if (null != nf7Entries && nf7Entries.size() > 0) {
+                featureQueue().addAll(nf7Entries);
+            }
+        }
     }
 
     /**
@@ -261,9 +382,9 @@ public class Context implements Serializable {
         if (conceptEntries != null)
             addToConceptQueue(conceptEntries);
         if (roleEntries != null)
-            roleQueue.addAll(roleEntries);
+            addToRoleQueue(roleEntries);
         if (featureEntries != null)
-            featureQueue.addAll(featureEntries);
+            featureQueue().addAll(featureEntries);
     }
 
     /**
@@ -275,6 +396,63 @@ public class Context implements Serializable {
         return s;
     }
 
+    /**
+     * Returns an estimate of the heap used by this context, in bytes. See {@link SizeEstimates}. It is only accurate 
+     * when the context is not being processed.
+     * 
+     * @return
+     */
+    public long estimateSize() {
+        long size = SizeEstimates.object(3 * 4 + 1 + 9 * SizeEstimates.REFERENCE);
+        size += SizeEstimates.conceptSet(s) + pred.estimateSize() + succ.estimateSize();
+        final LongQueue cq = conceptQueue;
+        if (cq != null)
+            size += cq.estimateSize();
+        final LongQueue rq = roleQueue;
+        if (rq != null)
+            size += rq.estimateSize();
+        final IQueue<IFeatureQueueEntry> fq = featureQueue;
+        if (fq != null)
+            size += SizeEstimates.object(4 + SizeEstimates.REFERENCE)
+                    + SizeEstimates.array(fq.size(), SizeEstimates.REFERENCE);
+        synchronized (this) {
+            if (externalConceptQueue != null)
+                size += externalConceptQueue.estimateSize();
+            if (externalQueue != null)
+                size += externalQueue.estimateSize();
+        }
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the heap this context would use with the layout it had before its queues and role maps 
+     * were allocated lazily: every queue allocated with a first buffer and both role maps sized to numRoles. It is only 
+     * meant to be compared with {@link #estimateSize()}.
+     * 
+     * @param numRoles
+     * @return
+     */
+    public long estimateEagerSize(int numRoles) {
+        long size = SizeEstimates.object(3 * 4 + 1 + 9 * SizeEstimates.REFERENCE);
+        size += SizeEstimates.conceptSet(s) + pred.estimateSize(numRoles) + succ.estimateSize(numRoles);
+        // The local and external long queues, and the feature queue
+        size += 4 * LongQueue.estimateSize(LongQueue.DEFAULT_ALLOC_SIZE);
+        size += SizeEstimates.object(4 + SizeEstimates.REFERENCE)
+                + SizeEstimates.array(LongQueue.DEFAULT_ALLOC_SIZE, SizeEstimates.REFERENCE);
+        return size;
+    }
+
+    /**
+     * Indicates if this context holds any queue. A context releases its empty queues when it is deactivated, so once 
+     * saturation is finished no context should hold one.
+     * 
+     * @return
+     */
+    public synchronized boolean hasQueues() {
+        return conceptQueue != null || roleQueue != null || featureQueue != null || externalConceptQueue != null 
+                || externalQueue != null;
+    }
+
     /**
      * Returns the data structure used to hold the concepts and roles that point to this concept.
      * 
@@ -300,7 +478,7 @@ public class Context implements Serializable {
      * @return boolean
      */
     public boolean activate() {
-        return active.compareAndSet(false, true);
+        return ACTIVE.compareAndSet(this, 0, 1);
     }
 
     /**
@@ -308,35 +486,89 @@ public class Context implements Serializable {
      * otherwise.
      */
     public void deactivate() {
-        active.set(false);
-        if (!(conceptQueue.isEmpty() && roleQueue.isEmpty() && featureQueue.isEmpty())) {
+        releaseQueues();
+        active = 0;
+        if (!(conceptQueue == null && roleQueue == null && featureQueue == null && externalQueuesEmpty())) {
             if (activate()) {
-                parentTodo.add(this);
+                state.parentTodo.add(this);
             }
         }
     }
 
     /**
-     * Adds an entry to this context's concept queue.
+     * Releases the local queues that are empty. Must only be called by the thread processing this context.
+     */
+    private void releaseQueues() {
+        if (conceptQueue != null && conceptQueue.isEmpty())
+            conceptQueue = null;
+        if (roleQueue != null && roleQueue.isEmpty())
+            roleQueue = null;
+        if (featureQueue != null && featureQueue.isEmpty())
+            featureQueue = null;
+    }
+
+    private synchronized boolean externalQueuesEmpty() {
+        if (externalConceptQueue != null && externalConceptQueue.isEmpty())
+            externalConceptQueue = null;
+        if (externalQueue != null && externalQueue.isEmpty())
+            externalQueue = null;
+        return externalConceptQueue == null && externalQueue == null;
+    }
+
+    /**
+     * Adds an entry to this context's concept queue. Can be called from any thread.
      * 
      * @param entry
      */
-    public void addConceptQueueEntry(IConjunctionQueueEntry entry) {
-        conceptQueue.add(entry);
+    public synchronized void addConceptQueueEntry(IConjunctionQueueEntry entry) {
+        externalConceptQueue().add(LongQueue.pack(entry.getBi(), entry.getB()));
+    }
+
+    /**
+     * Adds entries to this context's concept queue. Can be called from any thread.
+     * 
+     * @param entries Queue entries packed with {@link LongQueue#pack(int, int)}.
+     * @param from The index of the first entry to add.
+     * @param to The index after the last entry to add.
+     */
+    public synchronized void addConceptQueueEntries(long[] entries, int from, int to) {
+        final LongQueue queue = externalConceptQueue();
+        for (int i = from; i < to; i++) {
+            queue.add(entries[i]);
+        }
+    }
+
+    private LongQueue externalConceptQueue() {
+        if (externalConceptQueue == null) {
+            externalConceptQueue = new LongQueue();
+        }
+        return externalConceptQueue;
     }
 
-    public void addConceptQueueEntries(
-            Collection<IConjunctionQueueEntry> entries) {
-        conceptQueue.addAll(entries);
+    private LongQueue externalQueue() {
+        if (externalQueue == null) {
+            externalQueue = new LongQueue();
+        }
+        return externalQueue;
     }
 
     /**
-     * Adds an entry to this context's role queue.
+     * Adds an entry to this context's role queue. Must not be called while the context is being processed.
      * 
      * @param entry
      */
     public void addRoleQueueEntry(IRoleQueueEntry entry) {
-        roleQueue.add(entry);
+        roleQueue().add(LongQueue.pack(entry.getR(), entry.getB()));
+    }
+
+    /**
+     * Adds the entry r.b to this context's role queue. Must not be called while the context is being processed.
+     * 
+     * @param r
+     * @param b
+     */
+    public void addRoleQueueEntry(int r, int b) {
+        roleQueue().add(LongQueue.pack(r, b));
     }
 
     /**
@@ -345,7 +577,7 @@ public class Context implements Serializable {
      * @param entry
      */
     public void addFeatureQueueEntry(IFeatureQueueEntry entry) {
-        featureQueue.add(entry);
+        featureQueue().add(entry);
     }
 
     /**
@@ -354,34 +586,295 @@ public class Context implements Serializable {
      * @param role
      * @param src
      */
-    public void processExternalEdge(final int role, final int src) {
-        externalQueue.add(new IRoleQueueEntry() {
-            /**
-             * Serialisation version.
-             */
-            private static final long serialVersionUID = 1L;
-
-            public int getR() {
-                return role;
+    public synchronized void processExternalEdge(final int role, final int src) {
+        externalQueue().add(LongQueue.pack(role, src));
+    }
+
+    /**
+     * Delivers a batch of messages sent by another context through an {@link Outbox} and activates this context. Can
+     * be called from any thread.
+     * 
+     * @param concepts Concept queue entries packed with {@link LongQueue#pack(int, int)}.
+     * @param edges External edges (r, A) packed with {@link LongQueue#pack(int, int)}.
+     * @param tracking Indicates if this context should start tracking changes.
+     */
+    void receive(LongQueue concepts, LongQueue edges, boolean tracking) {
+        if (!(concepts.isEmpty() && edges.isEmpty())) {
+            synchronized (this) {
+                if (!concepts.isEmpty()) {
+                    externalConceptQueue().addAll(concepts);
+                }
+                if (!edges.isEmpty()) {
+                    externalQueue().addAll(edges);
+                }
+            }
+        }
+        if (tracking) {
+            state.affectedContexts.add(this);
+            startTracking();
+        }
+        if (activate()) {
+            state.parentTodo.add(this);
+        }
+    }
+
+    /**
+     * Moves the entries added by other contexts to the local concept queue. The queue is first checked without 
+     * locking: entries added after the check are found when the context is deactivated.
+     */
+    private void pollExternalConceptQueue() {
+        if (externalConceptQueue == null) {
+            return;
+        }
+        synchronized (this) {
+            final LongQueue external = externalConceptQueue;
+            if (external == null || external.isEmpty()) {
+                return;
+            }
+            if (bottom) {
+                externalConceptQueue = null;
+                return;
+            }
+            if (conceptQueue == null || conceptQueue.isEmpty()) {
+                // Take over the external queue instead of copying it
+                conceptQueue = external;
+                externalConceptQueue = null;
+            } else {
+                conceptQueue.addAll(external);
+                external.reset();
+            }
+        }
+    }
+
+    /**
+     * Removes the next external edge, or returns -1 if there are none. Like the concept queue, the external queue is 
+     * first checked without locking.
+     * 
+     * @return long
+     */
+    private long pollExternalQueue() {
+        if (externalQueue == null) {
+            return -1;
+        }
+        synchronized (this) {
+            if (bottom) {
+                externalQueue = null;
+            }
+            return (externalQueue == null || externalQueue.isEmpty()) ? -1 : externalQueue.remove();
+        }
+    }
+
+    /**
+     * Activates a context that is only scheduled by the thread that owns it, see {@link PartitionedSaturation}. No 
+     * compare-and-set is needed because no other thread changes the flag.
+     * 
+     * @return boolean True if the context was inactive.
+     */
+    boolean activateOwned() {
+        if (active != 0)
+            return false;
+        ACTIVE.lazySet(this, 1);
+        return true;
+    }
+
+    /**
+     * Selects if this context is owned by a single thread, see {@link PartitionedSaturation}. Its concept sets then 
+     * skip their locks, since only the owner changes them. Must be reset before the context is processed by the 
+     * queue based workers.
+     * 
+     * @param owned
+     */
+    void setOwned(boolean owned) {
+        AdaptiveConceptSet.setSingleWriter(s, owned);
+        pred.setSingleWriter(owned);
+        succ.setSingleWriter(owned);
+    }
+
+    /**
+     * Adds a packed entry to the local concept queue. Only called by the thread that owns this context, while it is 
+     * not being processed.
+     * 
+     * @param entry
+     */
+    void addOwnedConceptQueueEntry(long entry) {
+        conceptQueue().add(entry);
+    }
+
+    /**
+     * Processes this context on the thread that owns it, see {@link PartitionedSaturation}. The context is not added 
+     * back to a shared queue when it is deactivated: instead, this method returns true if the outbox delivered new 
+     * work to this context while it was active, and the owner must schedule it again.
+     * 
+     * @param outbox
+     * @return boolean
+     */
+    boolean processOntologyOwned(Outbox outbox) {
+        this.outbox = outbox;
+        try {
+            if (bottom) {
+                discardQueues();
+            } else {
+                processOntologyInternal();
             }
+        } finally {
+            outbox.flush();
+            this.outbox = null;
+        }
+
+        releaseQueues();
+        ACTIVE.lazySet(this, 0);
+        return !(conceptQueue == null && roleQueue == null && featureQueue == null);
+    }
+
+    /**
+     * Stores the predecessor a through role r on the thread that owns this context, see 
+     * {@link PartitionedSaturation} and {@link DistributedSaturation}. The context a read the subsumptions and 
+     * successors of this context before the predecessor was stored, or could not read them at all, so the 
+     * conclusions that depend on them are sent again: BOTTOM, the NF3 entries for r.B' with B' in S, and the edges 
+     * from the role chains r o t [ u that start with an edge t of this context.
+     * 
+     * @param r
+     * @param a
+     * @param outbox
+     */
+    void addPredecessor(int r, int a, Outbox outbox) {
+        if (pred.lookupConcept(r).contains(a))
+            return;
+        pred.store(r, a);
+
+        this.outbox = outbox;
+        try {
+            if (bottom) {
+                sendConceptQueueEntries(a, BOTTOM_ENTRY, 0, 1, false);
+                return;
+            }
+
+            for (final IntIterator itr = s.iterator(); itr.hasNext();) {
+                final ConceptRoleMap.Row row = state.ontologyNF3.get(itr.next());
+                if (null != row) {
+                    final int idx = row.indexOf(r);
+                    if (idx >= 0) {
+                        sendConceptQueueEntries(a, row.getEntries(), row.start(idx), row.end(idx), false);
+                    }
+                }
+            }
+
+            final PackedConceptMap nf5sByR = state.ontologyNF5ByR;
+            final long[] nf5sByRData = nf5sByR.getEntries();
+            for (int i = nf5sByR.start(r), end = nf5sByR.end(r); i < end; i++) {
+                final long nf5 = nf5sByRData[i];
+                final int u = LongQueue.low(nf5);
+                for (final IntIterator itr = succ.lookupConcept(LongQueue.high(nf5)).iterator(); itr.hasNext();) {
+                    sendExternalEdge(a, u, itr.next(), false);
+                }
+            }
+        } finally {
+            this.outbox = null;
+        }
+    }
+
+    /**
+     * Sends concept queue entries to the context of a concept, which lives in another process if it is not in the 
+     * context index (distributed saturation).
+     * 
+     * @param target
+     * @param entries
+     * @param from
+     * @param to
+     * @param tracking
+     */
+    private void sendConceptQueueEntries(int target, long[] entries, int from, int to, boolean tracking) {
+        final Context ctx = state.contextIndex.get(target);
+        if (ctx != null) {
+            outbox.addConceptQueueEntries(ctx, entries, from, to, tracking);
+        } else {
+            outbox.addRemoteConceptQueueEntries(target, entries, from, to);
+        }
+    }
+
+    /**
+     * Sends an external edge to the context of a concept, which lives in another process if it is not in the context 
+     * index (distributed saturation).
+     * 
+     * @param target
+     * @param role
+     * @param src
+     * @param tracking
+     */
+    private void sendExternalEdge(int target, int role, int src, boolean tracking) {
+        final Context ctx = state.contextIndex.get(target);
+        if (ctx != null) {
+            outbox.addExternalEdge(ctx, role, src, tracking);
+        } else {
+            outbox.addRemoteExternalEdge(target, role, src);
+        }
+    }
 
-            public int getB() {
-                return src;
+    /**
+     * Applies the BOTTOM rule after BOTTOM has been added to the subsumptions of this context: the pending work is
+     * discarded and BOTTOM is sent to every predecessor, since A [ r.B and B [ BOTTOM imply A [ BOTTOM. Predecessors
+     * added later get BOTTOM when they create the edge, see {@link #processRole(int, int)}.
+     * 
+     * @param tracking
+     */
+    private void processBottom(boolean tracking) {
+        bottom = true;
+        discardQueues();
+
+        for (final int r : pred.getRoles()) {
+            for (final IntIterator itr = pred.lookupConcept(r).iterator(); itr.hasNext();) {
+                final int aa = itr.next();
+                if (aa != concept) {
+                    sendConceptQueueEntries(aa, BOTTOM_ENTRY, 0, 1, tracking);
+                }
             }
-        });
+        }
+    }
+
+    /**
+     * Discards all the pending work. Used once BOTTOM has been derived.
+     */
+    private void discardQueues() {
+        if (conceptQueue != null)
+            conceptQueue.reset();
+        if (roleQueue != null)
+            roleQueue.reset();
+        featureQueue = null;
+        synchronized (this) {
+            externalConceptQueue = null;
+            externalQueue = null;
+        }
     }
 
     /**
      * Starts the classification process.
      */
     public void processOntology() {
-        // This code is duplicated for performance reasons. When not running in
-        // incremental mode the evaluation of the track flag is only done once
-        // for each time the context is activated.
-        if (track.get()) {
-            processOntologyTracking();
-        } else {
-            processOntologyInternal();
+        processOntology(new Outbox());
+    }
+
+    /**
+     * Starts the classification process. Messages to other contexts are buffered in the worker's outbox, which is
+     * flushed before this context is deactivated.
+     * 
+     * @param outbox
+     */
+    public void processOntology(Outbox outbox) {
+        this.outbox = outbox;
+        try {
+            // This code is duplicated for performance reasons. When not running in
+            // incremental mode the evaluation of the track flag is only done once
+            // for each time the context is activated.
+            if (bottom) {
+                discardQueues();
+            } else if (track != 0) {
+                processOntologyTracking();
+            } else {
+                processOntologyInternal();
+            }
+        } finally {
+            outbox.flush();
+            this.outbox = null;
         }
 
         deactivate();
@@ -393,15 +886,18 @@ public class Context implements Serializable {
         do {
             done = true;
             
+            // Move the entries added by other contexts to the local queue
+            pollExternalConceptQueue();
+
             // Process concept queue
-            if (!conceptQueue.isEmpty()) {
+            if (conceptQueue != null && !conceptQueue.isEmpty()) {
                 do {
                     done = false;
-                    final IConjunctionQueueEntry entry = conceptQueue.remove();
-                    final int b = entry.getB();
+                    final long entry = conceptQueue.remove();
+                    final int b = LongQueue.low(entry);
 
                     if (!s.contains(b)) {
-                        final int bi = entry.getBi();
+                        final int bi = LongQueue.high(entry);
                         if (s.contains(bi)) {
                             s.add(b);
                             processNewSubsumption(b);
@@ -411,7 +907,7 @@ public class Context implements Serializable {
             }
 
             // Process feature queue
-            if (!featureQueue.isEmpty()) {
+            if (featureQueue != null && !featureQueue.isEmpty()) {
                 do {
                     done = false;
                     final IFeatureQueueEntry entry = featureQueue.remove();
@@ -420,242 +916,78 @@ public class Context implements Serializable {
 
                     // Get right hand sides from NF8 expressions that
                     // match d on their left hand side
-                    MonotonicCollection<NF8> entries = ontologyNF8.get(d.getFeature());
+                    final DatatypeIndex.Feature entries = state.ontologyNF8.get(d.getFeature());
 
                     if (entries == null)
                         continue;
 
-                    // Evaluate to determine the ones that match
-                    MonotonicCollection<IConjunctionQueueEntry> res = 
-                            new MonotonicCollection<IConjunctionQueueEntry>(2);
-                    for (final NF8 e : entries) {
-                        Datatype d2 = e.lhsD;
-
-                        // If they match add a conjunction queue entry
-                        // to queueA
-                        if (datatypeMatches(d, d2)) {
-                            res.add(new IConjunctionQueueEntry() {
-                                /**
-                                 * Serialisation version.
-                                 */
-                                private static final long serialVersionUID = 1L;
-
-                                public int getBi() {
-                                    return CoreFactory.TOP_CONCEPT;
-                                }
-
-                                public int getB() {
-                                    return e.rhsB;
-                                }
-                            });
-                        }
-                    }
-
-                    addToConceptQueue(res);
+                    // Add a conjunction queue entry for each one
+                    final LongQueue queue = conceptQueue();
+                    final int before = queue.size();
+                    final int n = entries.match(d, s, queue);
+                    countConceptQueueEntries(n, n - (queue.size() - before));
                 } while (!featureQueue.isEmpty());
             }
 
             // Process role queue
-            if (!roleQueue.isEmpty()) {
+            if (roleQueue != null && !roleQueue.isEmpty()) {
                 done = false;
-                final IRoleQueueEntry entry = roleQueue.remove();
+                final long entry = roleQueue.remove();
+                final int r = LongQueue.high(entry);
+                final int b = LongQueue.low(entry);
 
-                if (!succ.lookupConcept(entry.getR()).contains(entry.getB())) {
-                    processNewEdge(entry.getR(), entry.getB());
+                if (!succ.lookupConcept(r).contains(b)) {
+                    processNewEdge(r, b);
                 }
             }
 
-            if (!externalQueue.isEmpty()) {
+            final long edge = pollExternalQueue();
+            if (edge >= 0) {
                 done = false;
-                final IRoleQueueEntry entry = externalQueue.remove();
-                processNewEdge(entry.getR(), entry.getB());
+                processNewEdge(LongQueue.high(edge), LongQueue.low(edge));
             }
 
         } while (!done);
     }
 
     private void processNewSubsumption(final int b) {
-        // Get the set of parent concepts of (b n x) in the ontology
-        final MonotonicCollection<IConjunctionQueueEntry> bConceptEntries = ontologyNF1.get(b);
-        if (null != bConceptEntries && bConceptEntries.size() > 0) {
-            // Add these to the queue of a
-            addToConceptQueue(bConceptEntries);
-        }
-        final MonotonicCollection<NF2> bRoleEntries = ontologyNF2.get(b);
-        if (null != bRoleEntries) {
-            roleQueue.addAll(bRoleEntries);
+        if (b == IFactory.BOTTOM_CONCEPT) {
+            processBottom(false);
+            return;
         }
 
+        // Get the set of parent concepts of (b n x) in the ontology
+        addNF1Entries(b);
+        addNF2Entries(b);
+
         // inlined ontHat(conceptQueues.get(pairA(p)), r, b) in following
         // to move test and fetch outside innermost loop
         //
-        final ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> map = ontologyNF3.get(b);
-        if (null != map) {
-            final Set<Integer> keySet = map.keySet();
-            for (int r : keySet) {
-                final Collection<IConjunctionQueueEntry> entries = map.get(r);
-
-                if (null != entries) {
-                    final IConceptSet aPrimes = pred.lookupConcept(r);
-                    for (final IntIterator itr = aPrimes.iterator(); itr.hasNext();) {
-                        final int aa = itr.next();
-                        // Add to queue aa
-                        if (concept == aa) {
-                            conceptQueue.addAll(entries);
-                        } else {
-                            // Add to external context concept queue and
-                            // activate
-                            Context oc = contextIndex.get(aa);
-                            oc.addConceptQueueEntries(entries);
-                            if (oc.activate())
-                                parentTodo.add(oc);
-                        }
+        final ConceptRoleMap.Row row = state.ontologyNF3.get(b);
+        if (null != row) {
+            final long[] entries = row.getEntries();
+            for (int i = 0, n = row.size(); i < n; i++) {
+                final int from = row.start(i);
+                final int to = row.end(i);
+                final IConceptSet aPrimes = pred.lookupConcept(row.getRole(i));
+                for (final IntIterator itr = aPrimes.iterator(); itr.hasNext();) {
+                    final int aa = itr.next();
+                    // Add to queue aa
+                    if (concept == aa) {
+                        addToConceptQueue(entries, from, to);
+                    } else {
+                        // Add to external context concept queue and
+                        // activate
+                        sendConceptQueueEntries(aa, entries, from, to, false);
                     }
                 }
             }
         }
         
-        final MonotonicCollection<NF7> nf7Entries = ontologyNF7.get(b);
+        final MonotonicCollection<NF7> nf7Entries = state.ontologyNF7.get(b);
         if (null != nf7Entries && nf7Entries.size() > 0) {
-            featureQueue.addAll(nf7Entries);
-        }
-    }
-
-    /**
-     * Evaluates the equivalence of two {@link Datatype}s. This method assumes that the literals both have the same 
-     * matching literal types.
-     * 
-     * @param d1
-     *            Data type from an NF7 entry.
-     * @param d2
-     *            Data type from an NF8 entry.
-     * @return boolean
-     */
-    private boolean datatypeMatches(Datatype d1, Datatype d2) {
-        assert (d1.getFeature() == d2.getFeature());
-
-        AbstractLiteral lhsLit = d1.getLiteral();
-        AbstractLiteral rhsLit = d2.getLiteral();
-        
-        Operator lhsOp = d1.getOperator();
-        Operator rhsOp = d2.getOperator();
-
-        if (rhsOp == Operator.EQUALS) {
-            // If the rhs operator is =, then the expression will only match
-            // if the lhs operator is also = and the literal values are the
-            // same.
-            if(lhsOp != Operator.EQUALS) {
-                return false;
-            } else {
-                return d1.getLiteral().equals(d2.getLiteral());
-            }
-        } else if (rhsOp == Operator.GREATER_THAN) {
-            if (lhsOp == Operator.LESS_THAN
-                    || lhsOp == Operator.LESS_THAN_EQUALS) {
-                return false;
-            } else if (lhsOp == Operator.EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) > 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.GREATER_THAN) {
-                if (compareLiterals(lhsLit, rhsLit) >= 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.GREATER_THAN_EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) > 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-        } else if (rhsOp == Operator.GREATER_THAN_EQUALS) {
-            if (lhsOp == Operator.LESS_THAN
-                    || lhsOp == Operator.LESS_THAN_EQUALS) {
-                return false;
-            } else if (lhsOp == Operator.EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) >= 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.GREATER_THAN) {
-                if (compareLiterals(lhsLit, rhsLit) >= -1) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.GREATER_THAN_EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) >= 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-        } else if (rhsOp == Operator.LESS_THAN) {
-            if (lhsOp == Operator.GREATER_THAN
-                    || lhsOp == Operator.GREATER_THAN_EQUALS) {
-                return false;
-            } else if (lhsOp == Operator.EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) < 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.LESS_THAN) {
-                if (compareLiterals(lhsLit, rhsLit) <= 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.LESS_THAN_EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) < 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-        } else if (rhsOp == Operator.LESS_THAN_EQUALS) {
-            if (lhsOp == Operator.GREATER_THAN
-                    || lhsOp == Operator.GREATER_THAN_EQUALS) {
-                return false;
-            } else if (lhsOp == Operator.EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) <= 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.LESS_THAN) {
-                if (compareLiterals(lhsLit, rhsLit) <= 1) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (lhsOp == Operator.LESS_THAN_EQUALS) {
-                if (compareLiterals(lhsLit, rhsLit) <= 0) {
-                    return true;
-                } else {
-                    return false;
-                }
-            }
+            featureQueue().addAll(nf7Entries);
         }
-
-        return d1.getLiteral().equals(d2.getLiteral());
-    }
-    
-    /**
-     * Return 0 if both literals are equals. Returns an int > 0 if l1 is greater than l2 and an int < 0 if l1 is less 
-     * than l2.
-     * 
-     * @param l1
-     * @param l2
-     * @return
-     */
-    private int compareLiterals(AbstractLiteral l1, AbstractLiteral l2) {
-        return l1.compareTo(l2);
     }
 
     /**
@@ -666,9 +998,9 @@ public class Context implements Serializable {
      * @param b
      */
     private void processNewEdge(int role, int b) {
-        final RoleSet roleClosure = getRoleClosure(role);
+        final int[] roles = state.roleClosure.get(role);
         processRole(role, b);
-        for (int s = roleClosure.first(); s >= 0; s = roleClosure.next(s + 1)) {
+        for (final int s : roles) {
             if (s == role)
                 continue;
             processRole(s, b);
@@ -681,119 +1013,160 @@ public class Context implements Serializable {
 
         // Add the predecessor to the the corresponding context
         // Is this necessary?
-        Context bContext = contextIndex.get(b);
+        Context bContext = state.contextIndex.get(b);
+        if (bContext == null) {
+            processRemoteRole(s, b);
+            return;
+        }
 
-        bContext.getPred().store(s, concept);
+        outbox.addPredecessor(bContext, s, concept);
 
         // queue(A) := queue(A) u U{B'|B' in S(B)}.O^(s.B')
-        final IConceptSet sb = contextIndex.get(b).getS();
+        final IConceptSet sb = state.contextIndex.get(b).getS();
+
+        // An edge to an unsatisfiable concept makes this concept unsatisfiable
+        if (sb.contains(IFactory.BOTTOM_CONCEPT)) {
+            addToConceptQueue(BOTTOM_ENTRY, 0, 1);
+            return;
+        }
 
         // Computes the minimal set of QueueEntries from s.a [ bb is in O
         for (IntIterator itr = sb.iterator(); itr.hasNext();) {
             final int bb = itr.next();
-            final ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> map = ontologyNF3.get(bb);
+            final ConceptRoleMap.Row row = state.ontologyNF3.get(bb);
 
-            if (null != map) {
-                final Collection<IConjunctionQueueEntry> entries = map.get(s);
-                if (null != entries) {
-                    conceptQueue.addAll(entries);
+            if (null != row) {
+                final int idx = row.indexOf(s);
+                if (idx >= 0) {
+                    addToConceptQueue(row.getEntries(), row.start(idx), row.end(idx));
                 }
             }
         }
 
         // Handle reflexive roles
-        if (reflexiveRoles.contains(s)) {
+        if (state.reflexiveRoles.contains(s)) {
             // check for (a,a) in R(s)
             if (!pred.lookupConcept(s).contains(concept)) {
                 processNewEdge(s, concept);
             }
 
             // check for (b,b) in R(s)
-            Context tc = contextIndex.get(b);
+            Context tc = state.contextIndex.get(b);
             if (!tc.getPred().lookupConcept(s).contains(b)) {
-                tc.processExternalEdge(s, b);
-                if (tc.activate()) {
-                    parentTodo.add(tc);
-                }
+                outbox.addExternalEdge(tc, s, b, false);
             }
         }
 
-        final List<int[]> work = new ArrayList<int[]>();
-        for (final NF5 nf5 : ontologyNF5) {
-            if (s == nf5.getS()) {
-                final int t = nf5.getR();
-                final int u = nf5.getT();
-                final IConceptSet aTPrimes = pred.lookupConcept(t);
-
-                // Again in this case there is a dependency with the
-                // predecessors of an external context.
-                final IConceptSet bUPrimes = contextIndex.get(b).getPred().lookupConcept(u);
-
-                for (final IntIterator itr = aTPrimes.iterator(); 
-                        itr.hasNext();) {
-                    final int aa = itr.next();
-
-                    if (!bUPrimes.contains(aa)) {
-                        work.add(new int[] { aa, u });
-                    }
-
+        final LongQueue work = outbox.getWork();
+        final int from = work.size();
+        final PackedConceptMap nf5sByS = state.ontologyNF5ByS;
+        final long[] nf5sBySData = nf5sByS.getEntries();
+        for (int i = nf5sByS.start(s), end = nf5sByS.end(s); i < end; i++) {
+            final long nf5 = nf5sBySData[i];
+            final int t = LongQueue.high(nf5);
+            final int u = LongQueue.low(nf5);
+            final IConceptSet aTPrimes = pred.lookupConcept(t);
+
+            // Again in this case there is a dependency with the
+            // predecessors of an external context.
+            final IConceptSet bUPrimes = state.contextIndex.get(b).getPred().lookupConcept(u);
+
+            for (final IntIterator itr = aTPrimes.iterator(); 
+                    itr.hasNext();) {
+                final int aa = itr.next();
+
+                if (!bUPrimes.contains(aa)) {
+                    work.add(LongQueue.pack(aa, u));
                 }
+
             }
         }
 
-        for (final int[] pair : work) {
-            if (pair[0] == concept) {
-                processNewEdge(pair[1], b);
+        for (int i = from, end = work.size(); i < end; i++) {
+            final long pair = work.get(i);
+            final int aa = LongQueue.high(pair);
+            final int u = LongQueue.low(pair);
+            if (aa == concept) {
+                processNewEdge(u, b);
             } else {
-                Context tc = contextIndex.get(pair[0]);
-                tc.processExternalEdge(pair[1], b);
-                if (tc.activate()) {
-                    parentTodo.add(tc);
+                sendExternalEdge(aa, u, b, false);
+            }
+        }
+        work.truncate(from);
+
+        final PackedConceptMap nf5sByR = state.ontologyNF5ByR;
+        final long[] nf5sByRData = nf5sByR.getEntries();
+        for (int i = nf5sByR.start(s), end = nf5sByR.end(s); i < end; i++) {
+            final long nf5 = nf5sByRData[i];
+            final int t = LongQueue.high(nf5);
+            final int u = LongQueue.low(nf5);
+            // In this case there is a dependency with the
+            // successors of an external context.
+            final IConceptSet bTPrimes = state.contextIndex.get(b).getSucc().lookupConcept(t);
+            final IConceptSet aUPrimes = succ.lookupConcept(u);
+
+            for (final IntIterator itr = bTPrimes.iterator(); 
+                    itr.hasNext();) {
+                final int bb = itr.next();
+
+                if (!aUPrimes.contains(bb)) {
+                    work.add(LongQueue.pack(u, bb));
                 }
+
             }
         }
+        for (int i = from, end = work.size(); i < end; i++) {
+            final long pair = work.get(i);
+            processNewEdge(LongQueue.high(pair), LongQueue.low(pair));
+        }
+        work.truncate(from);
+    }
 
-        work.clear();
-        for (final NF5 nf5 : ontologyNF5) {
-            if (s == nf5.getR()) {
-                final int t = nf5.getS();
-                final int u = nf5.getT();
-                // In this case there is a dependency with the
-                // successors of an external context.
-                final IConceptSet bTPrimes = contextIndex.get(b).getSucc().lookupConcept(t);
-                final IConceptSet aUPrimes = succ.lookupConcept(u);
-
-                for (final IntIterator itr = bTPrimes.iterator(); 
-                        itr.hasNext();) {
-                    final int bb = itr.next();
-
-                    if (!aUPrimes.contains(bb)) {
-                        work.add(new int[] { u, bb });
-                    }
+    /**
+     * Variant of {@link #processRole(int, int)} for an edge to a concept whose context lives in another process, see 
+     * {@link DistributedSaturation}. The state of b cannot be read here, so the owner of b stores the predecessor and 
+     * sends back the conclusions that depend on the subsumptions and successors of b (see 
+     * {@link #addPredecessor(int, int, Outbox)}), and the edges that are filtered by looking at the predecessors of b 
+     * in the local case are sent anyway.
+     * 
+     * @param s
+     * @param b
+     */
+    private void processRemoteRole(int s, int b) {
+        outbox.addRemotePredecessor(b, s, concept);
 
-                }
+        // Handle reflexive roles
+        if (state.reflexiveRoles.contains(s)) {
+            // check for (a,a) in R(s)
+            if (!pred.lookupConcept(s).contains(concept)) {
+                processNewEdge(s, concept);
             }
+            outbox.addRemoteExternalEdge(b, s, b);
         }
-        for (final int[] pair : work) {
-            processNewEdge(pair[0], pair[1]);
+
+        final LongQueue work = outbox.getWork();
+        final int from = work.size();
+        final PackedConceptMap nf5sByS = state.ontologyNF5ByS;
+        final long[] nf5sBySData = nf5sByS.getEntries();
+        for (int i = nf5sByS.start(s), end = nf5sByS.end(s); i < end; i++) {
+            final long nf5 = nf5sBySData[i];
+            final int u = LongQueue.low(nf5);
+            for (final IntIterator itr = pred.lookupConcept(LongQueue.high(nf5)).iterator(); itr.hasNext();) {
+                work.add(LongQueue.pack(itr.next(), u));
+            }
         }
-    }
 
-    private RoleSet getRoleClosure(final int r) {
-        RoleSet result = roleClosureCache.get(r);
-        if (null == result) {
-            result = new RoleSet();
-            result.add(r);
-            for (final NF4 nf4 : ontologyNF4) {
-                if (r == nf4.getR()) {
-                    result.addAll(getRoleClosure(nf4.getS()));
-                }
+        for (int i = from, end = work.size(); i < end; i++) {
+            final long pair = work.get(i);
+            final int aa = LongQueue.high(pair);
+            final int u = LongQueue.low(pair);
+            if (aa == concept) {
+                processNewEdge(u, b);
+            } else {
+                sendExternalEdge(aa, u, b, false);
             }
-            // We do this after the above recursive call to trigger a stack
-            // overflow in case there's a role-inclusion cycle
-            roleClosureCache.put(r, result);
         }
-        return result;
+        work.truncate(from);
     }
 
     /**
@@ -801,7 +1174,7 @@ public class Context implements Serializable {
      * contexts have been affected by the new axioms.
      */
     public void startTracking() {
-        if (track.compareAndSet(false, true)) {
+        if (TRACK.compareAndSet(this, 0, 1)) {
             changed = false;
         }
     }
@@ -810,7 +1183,7 @@ public class Context implements Serializable {
      * Stops tracking changes to the context's subsumptions.
      */
     public void endTracking() {
-        track.set(false);
+        track = 0;
     }
 
     /**
@@ -831,15 +1204,18 @@ public class Context implements Serializable {
         do {
             done = true;
 
+            // Move the entries added by other contexts to the local queue
+            pollExternalConceptQueue();
+
             // Process concept queue
-            if (!conceptQueue.isEmpty()) {
+            if (conceptQueue != null && !conceptQueue.isEmpty()) {
                 do {
                     done = false;
-                    final IConjunctionQueueEntry entry = conceptQueue.remove();
-                    final int b = entry.getB();
+                    final long entry = conceptQueue.remove();
+                    final int b = LongQueue.low(entry);
 
                     if (!s.contains(b)) {
-                        final int bi = entry.getBi();
+                        final int bi = LongQueue.high(entry);
                         if (s.contains(bi)) {
                             s.add(b);
                             changed = true;
@@ -850,7 +1226,7 @@ public class Context implements Serializable {
             }
 
             // Process feature queue
-            if (!featureQueue.isEmpty()) {
+            if (featureQueue != null && !featureQueue.isEmpty()) {
                 do {
                     done = false;
                     final IFeatureQueueEntry entry = featureQueue.remove();
@@ -859,115 +1235,84 @@ public class Context implements Serializable {
 
                     // Get right hand sides from NF8 expressions that
                     // match d on their left hand side
-                    MonotonicCollection<NF8> entries = 
-                            ontologyNF8.get(d.getFeature());
+                    final DatatypeIndex.Feature entries = state.ontologyNF8.get(d.getFeature());
 
                     if (entries == null)
                         continue;
 
-                    // Evaluate to determine the ones that match
-                    MonotonicCollection<IConjunctionQueueEntry> res = 
-                            new MonotonicCollection<IConjunctionQueueEntry>(2);
-                    for (final NF8 e : entries) {
-                        Datatype d2 = e.lhsD;
-
-                        // If they match add a conjunction queue entry
-                        // to queueA
-                        if (datatypeMatches(d, d2)) {
-                            res.add(new IConjunctionQueueEntry() {
-                                /**
-                                 * Serialisation version.
-                                 */
-                                private static final long serialVersionUID = 1L;
-
-                                public int getBi() {
-                                    return CoreFactory.TOP_CONCEPT;
-                                }
-
-                                public int getB() {
-                                    return e.rhsB;
-                                }
-                            });
-                        }
-                    }
-
-                    addToConceptQueue(res);
+                    // Add a conjunction queue entry for each one
+                    final LongQueue queue = conceptQueue();
+                    final int before = queue.size();
+                    final int n = entries.match(d, s, queue);
+                    countConceptQueueEntries(n, n - (queue.size() - before));
                 } while (!featureQueue.isEmpty());
             }
 
             // Process role queue
-            if (!roleQueue.isEmpty()) {
+            if (roleQueue != null && !roleQueue.isEmpty()) {
                 done = false;
-                final IRoleQueueEntry entry = roleQueue.remove();
+                final long entry = roleQueue.remove();
+                final int r = LongQueue.high(entry);
+                final int b = LongQueue.low(entry);
 
-                if (!succ.lookupConcept(entry.getR()).contains(entry.getB())) {
-                    processNewEdgeTracking(entry.getR(), entry.getB());
+                if (!succ.lookupConcept(r).contains(b)) {
+                    processNewEdgeTracking(r, b);
                 }
             }
 
-            if (!externalQueue.isEmpty()) {
+            final long edge = pollExternalQueue();
+            if (edge >= 0) {
                 done = false;
-                final IRoleQueueEntry entry = externalQueue.remove();
-                processNewEdgeTracking(entry.getR(), entry.getB());
+                processNewEdgeTracking(LongQueue.high(edge), LongQueue.low(edge));
             }
 
         } while (!done);
     }
 
     private void processNewSubsumptionTracking(final int b) {
-        // Get the set of parent concepts of (b n x) in the ontology
-        final MonotonicCollection<IConjunctionQueueEntry> bConceptEntries = ontologyNF1.get(b);
-        if (null != bConceptEntries && bConceptEntries.size() > 0) {
-            // Add these to the queue of a
-            addToConceptQueue(bConceptEntries);
-        }
-        final MonotonicCollection<NF2> bRoleEntries = ontologyNF2.get(b);
-        if (null != bRoleEntries) {
-            roleQueue.addAll(bRoleEntries);
+        if (b == IFactory.BOTTOM_CONCEPT) {
+            processBottom(true);
+            return;
         }
 
+        // Get the set of parent concepts of (b n x) in the ontology
+        addNF1Entries(b);
+        addNF2Entries(b);
+
         // inlined ontHat(conceptQueues.get(pairA(p)), r, b) in following
         // to move test and fetch outside innermost loop
         //
-        final ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> map = ontologyNF3
-                .get(b);
-        if (null != map) {
-            final Set<Integer> keySet = map.keySet();
-            for (int r : keySet) {
-                final Collection<IConjunctionQueueEntry> entries = map.get(r);
-
-                if (null != entries) {
-                    final IConceptSet aPrimes = pred.lookupConcept(r);
-                    for (final IntIterator itr = aPrimes.iterator(); itr.hasNext();) {
-                        final int aa = itr.next();
-                        // Add to queue aa
-                        if (concept == aa) {
-                            conceptQueue.addAll(entries);
-                        } else {
-                            // Add to external context concept queue and
-                            // activate
-                            Context oc = contextIndex.get(aa);
-                            oc.addConceptQueueEntries(entries);
-                            affectedContexts.add(oc);
-                            oc.startTracking();
-                            if (oc.activate())
-                                parentTodo.add(oc);
-                        }
+        final ConceptRoleMap.Row row = state.ontologyNF3.get(b);
+        if (null != row) {
+            final long[] entries = row.getEntries();
+            for (int i = 0, n = row.size(); i < n; i++) {
+                final int from = row.start(i);
+                final int to = row.end(i);
+                final IConceptSet aPrimes = pred.lookupConcept(row.getRole(i));
+                for (final IntIterator itr = aPrimes.iterator(); itr.hasNext();) {
+                    final int aa = itr.next();
+                    // Add to queue aa
+                    if (concept == aa) {
+                        addToConceptQueue(entries, from, to);
+                    } else {
+                        // Add to external context concept queue and
+                        // activate
+                        sendConceptQueueEntries(aa, entries, from, to, true);
                     }
                 }
             }
         }
         
-        final MonotonicCollection<NF7> nf7Entries = ontologyNF7.get(b);
+        final MonotonicCollection<NF7> nf7Entries = state.ontologyNF7.get(b);
         if (null != nf7Entries && nf7Entries.size() > 0) {
-            featureQueue.addAll(nf7Entries);
+            featureQueue().addAll(nf7Entries);
         }
     }
 
     private void processNewEdgeTracking(int role, int b) {
-        final RoleSet roleClosure = getRoleClosure(role);
+        final int[] roles = state.roleClosure.get(role);
         processRoleTracking(role, b);
-        for (int s = roleClosure.first(); s >= 0; s = roleClosure.next(s + 1)) {
+        for (final int s : roles) {
             if (s == role)
                 continue;
             processRoleTracking(s, b);
@@ -980,108 +1325,111 @@ public class Context implements Serializable {
 
         // Add the predecessor to the the corresponding context
         // Is this necessary?
-        Context bContext = contextIndex.get(b);
+        Context bContext = state.contextIndex.get(b);
 
-        bContext.getPred().store(s, concept);
+        outbox.addPredecessor(bContext, s, concept);
 
         // queue(A) := queue(A) u U{B'|B' in S(B)}.O^(s.B')
-        final IConceptSet sb = contextIndex.get(b).getS();
+        final IConceptSet sb = state.contextIndex.get(b).getS();
+
+        // An edge to an unsatisfiable concept makes this concept unsatisfiable
+        if (sb.contains(IFactory.BOTTOM_CONCEPT)) {
+            addToConceptQueue(BOTTOM_ENTRY, 0, 1);
+            return;
+        }
 
         // Computes the minimal set of QueueEntries from s.a [ bb is in O
         for (IntIterator itr = sb.iterator(); itr.hasNext();) {
             final int bb = itr.next();
-            final ConcurrentMap<Integer, Collection<IConjunctionQueueEntry>> map = ontologyNF3.get(bb);
+            final ConceptRoleMap.Row row = state.ontologyNF3.get(bb);
 
-            if (null != map) {
-                final Collection<IConjunctionQueueEntry> entries = map.get(s);
-                if (null != entries) {
-                    conceptQueue.addAll(entries);
+            if (null != row) {
+                final int idx = row.indexOf(s);
+                if (idx >= 0) {
+                    addToConceptQueue(row.getEntries(), row.start(idx), row.end(idx));
                 }
             }
         }
 
         // Handle reflexive roles
-        if (reflexiveRoles.contains(s)) {
+        if (state.reflexiveRoles.contains(s)) {
             // check for (a,a) in R(s)
             if (!pred.lookupConcept(s).contains(concept)) {
                 processNewEdgeTracking(s, concept);
             }
 
             // check for (b,b) in R(s)
-            Context tc = contextIndex.get(b);
+            Context tc = state.contextIndex.get(b);
             if (!tc.getPred().lookupConcept(s).contains(b)) {
-                tc.processExternalEdge(s, b);
-                affectedContexts.add(tc);
-                tc.startTracking();
-                if (tc.activate()) {
-                    parentTodo.add(tc);
-                }
+                outbox.addExternalEdge(tc, s, b, true);
             }
         }
 
-        final List<int[]> work = new ArrayList<int[]>();
-        for (final NF5 nf5 : ontologyNF5) {
-            if (s == nf5.getS()) {
-                final int t = nf5.getR();
-                final int u = nf5.getT();
-                final IConceptSet aTPrimes = pred.lookupConcept(t);
-
-                // Again in this case there is a dependency with the
-                // predecessors of an external context.
-                final IConceptSet bUPrimes = 
-                        contextIndex.get(b).getPred().lookupConcept(u);
-
-                for (final IntIterator itr = aTPrimes.iterator(); 
-                        itr.hasNext();) {
-                    final int aa = itr.next();
-
-                    if (!bUPrimes.contains(aa)) {
-                        work.add(new int[] { aa, u });
-                    }
-
+        final LongQueue work = outbox.getWork();
+        final int from = work.size();
+        final PackedConceptMap nf5sByS = state.ontologyNF5ByS;
+        final long[] nf5sBySData = nf5sByS.getEntries();
+        for (int i = nf5sByS.start(s), end = nf5sByS.end(s); i < end; i++) {
+            final long nf5 = nf5sBySData[i];
+            final int t = LongQueue.high(nf5);
+            final int u = LongQueue.low(nf5);
+            final IConceptSet aTPrimes = pred.lookupConcept(t);
+
+            // Again in this case there is a dependency with the
+            // predecessors of an external context.
+            final IConceptSet bUPrimes = 
+                    state.contextIndex.get(b).getPred().lookupConcept(u);
+
+            for (final IntIterator itr = aTPrimes.iterator(); 
+                    itr.hasNext();) {
+                final int aa = itr.next();
+
+                if (!bUPrimes.contains(aa)) {
+                    work.add(LongQueue.pack(aa, u));
                 }
+
             }
         }
 
-        for (final int[] pair : work) {
-            if (pair[0] == concept) {
-                processNewEdgeTracking(pair[1], b);
+        for (int i = from, end = work.size(); i < end; i++) {
+            final long pair = work.get(i);
+            final int aa = LongQueue.high(pair);
+            final int u = LongQueue.low(pair);
+            if (aa == concept) {
+                processNewEdgeTracking(u, b);
             } else {
-                Context tc = contextIndex.get(pair[0]);
-                tc.processExternalEdge(pair[1], b);
-                affectedContexts.add(tc);
-                tc.startTracking();
-                if (tc.activate()) {
-                    parentTodo.add(tc);
-                }
+                sendExternalEdge(aa, u, b, true);
             }
         }
-
-        work.clear();
-        for (final NF5 nf5 : ontologyNF5) {
-            if (s == nf5.getR()) {
-                final int t = nf5.getS();
-                final int u = nf5.getT();
-                // In this case there is a dependency with the
-                // successors of an external context.
-                final IConceptSet bTPrimes = contextIndex.get(b).getSucc()
-                        .lookupConcept(t);
-                final IConceptSet aUPrimes = succ.lookupConcept(u);
-
-                for (final IntIterator itr = bTPrimes.iterator(); 
-                        itr.hasNext();) {
-                    final int bb = itr.next();
-
-                    if (!aUPrimes.contains(bb)) {
-                        work.add(new int[] { u, bb });
-                    }
-
+        work.truncate(from);
+
+        final PackedConceptMap nf5sByR = state.ontologyNF5ByR;
+        final long[] nf5sByRData = nf5sByR.getEntries();
+        for (int i = nf5sByR.start(s), end = nf5sByR.end(s); i < end; i++) {
+            final long nf5 = nf5sByRData[i];
+            final int t = LongQueue.high(nf5);
+            final int u = LongQueue.low(nf5);
+            // In this case there is a dependency with the
+            // successors of an external context.
+            final IConceptSet bTPrimes = state.contextIndex.get(b).getSucc()
+                    .lookupConcept(t);
+            final IConceptSet aUPrimes = succ.lookupConcept(u);
+
+            for (final IntIterator itr = bTPrimes.iterator(); 
+                    itr.hasNext();) {
+                final int bb = itr.next();
+
+                if (!aUPrimes.contains(bb)) {
+                    work.add(LongQueue.pack(u, bb));
                 }
+
             }
         }
-        for (final int[] pair : work) {
-            processNewEdgeTracking(pair[0], pair[1]);
+        for (int i = from, end = work.size(); i < end; i++) {
+            final long pair = work.get(i);
+            processNewEdgeTracking(LongQueue.high(pair), LongQueue.low(pair));
         }
+        work.truncate(from);
     }
 
 }
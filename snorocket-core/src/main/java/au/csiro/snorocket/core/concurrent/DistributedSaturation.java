@@ -0,0 +1,469 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.apache.log4j.Logger;
+
+import au.csiro.snorocket.core.NormalisedOntology;
+import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.IntIterator;
+
+/**
+ * Runs saturation in several processes, possibly on several machines. The
+ * concepts are split into contiguous id ranges and each range is saturated by
+ * a {@link SaturationShard}, which only holds the contexts of its range.
+ * Derivations for concepts of other ranges are sent to their shards over
+ * sockets.
+ *
+ * <p>
+ * This object is the coordinator. It waits for the shards to connect,
+ * started by a {@link ShardLauncher} or by hand with
+ * <code>java au.csiro.snorocket.core.concurrent.SaturationShard host port</code>,
+ * streams to each one only the terms that the contexts of its range need,
+ * see {@link NormalisedOntology#writeModule(IConceptSet, ObjectOutputStream)},
+ * and detects global quiescence with the
+ * four-counter method: it repeatedly asks every shard if it is idle and how
+ * many messages it has sent and consumed, and stops when two consecutive
+ * rounds find all the shards idle with the same counters and as many
+ * messages consumed as sent. Unchanged counters mean no shard sent or
+ * consumed anything between the rounds, so at some point all of them were
+ * idle with no messages in transit. Finally the subsumptions and successors
+ * of every context are streamed into the context index of the ontology, so
+ * the taxonomy and the inferred axioms work as usual. The predecessors are
+ * the same links in the other direction and are only restored, with
+ * {@link #restorePredecessors(IConceptMap)}, if an incremental
+ * classification needs them.
+ * </p>
+ *
+ * <p>
+ * The sockets are not authenticated, so by default the coordinator and the
+ * shards only listen on the loopback interface. Shards on other machines
+ * need a coordinator created with an explicit bind address and must be
+ * given one too.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class DistributedSaturation {
+
+    private final static Logger log = Logger.getLogger(DistributedSaturation.class);
+
+    static final int PROBE = 1;
+
+    static final int COLLECT = 2;
+
+    static final int BUSY = 0;
+
+    static final int IDLE = 1;
+
+    static final int FAILED = 2;
+
+    /**
+     * Time between two probing rounds.
+     */
+    private static final long PROBE_INTERVAL_MILLIS = 5;
+
+    private final int numShards;
+
+    private final InetAddress bindAddress;
+
+    private final int port;
+
+    private final ShardLauncher launcher;
+
+    private int connectTimeout = 60000;
+
+    /**
+     * The number of terms sent to the shards by the last saturation.
+     */
+    private long numTermsSent = 0;
+
+    /**
+     * Creates a coordinator that launches its shards on this machine and
+     * listens on an ephemeral port.
+     *
+     * @param numShards
+     * @param launcher
+     */
+    public DistributedSaturation(int numShards, ShardLauncher launcher) {
+        this(numShards, 0, launcher);
+    }
+
+    /**
+     * Creates a coordinator that only accepts shards over the loopback
+     * interface.
+     *
+     * @param numShards
+     * @param port The port where the shards connect, or 0 for any free port.
+     * @param launcher Starts the shards, or null if they are started
+     *            separately.
+     */
+    public DistributedSaturation(int numShards, int port, ShardLauncher launcher) {
+        this(numShards, InetAddress.getLoopbackAddress(), port, launcher);
+    }
+
+    /**
+     *
+     * @param numShards
+     * @param bindAddress The address where the shards connect, or null for
+     *            all the interfaces of this machine.
+     * @param port The port where the shards connect, or 0 for any free port.
+     * @param launcher Starts the shards, or null if they are started
+     *            separately.
+     */
+    public DistributedSaturation(int numShards, InetAddress bindAddress, int port, ShardLauncher launcher) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Invalid number of shards: " + numShards);
+        }
+        this.numShards = numShards;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.launcher = launcher;
+    }
+
+    /**
+     * Sets how long to wait for each shard to connect, in milliseconds.
+     *
+     * @param connectTimeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getNumShards() {
+        return numShards;
+    }
+
+    /**
+     * Returns the number of terms sent to the shards by the last saturation,
+     * added over all the shards.
+     *
+     * @return long
+     */
+    public long getNumTermsSent() {
+        return numTermsSent;
+    }
+
+    /**
+     * Saturates an ontology and adds a context with the results for every
+     * concept to its context index.
+     *
+     * @param ont
+     * @param state The saturation state of the ontology, already initialised.
+     */
+    public void saturate(NormalisedOntology ont, SaturationState state) {
+        final Shard[] shards = new Shard[numShards];
+        ServerSocket server = null;
+        numTermsSent = 0;
+        try {
+            server = new ServerSocket(port, numShards, bindAddress);
+            server.setSoTimeout(connectTimeout);
+            if (launcher != null) {
+                final String host = bindAddress == null || bindAddress.isAnyLocalAddress() ? localAddress()
+                        : bindAddress.getHostAddress();
+                launcher.launch(host, server.getLocalPort(), numShards);
+            }
+            for (int i = 0; i < numShards; i++) {
+                shards[i] = new Shard(server.accept());
+            }
+
+            final int numConcepts = ont.getFactory().getTotalConcepts();
+            final int[] bounds = new int[numShards + 1];
+            final String[] hosts = new String[numShards];
+            final int[] ports = new int[numShards];
+            for (int i = 0; i < numShards; i++) {
+                bounds[i] = (int) ((long) numConcepts * i / numShards);
+                hosts[i] = shards[i].socket.getInetAddress().getHostAddress();
+                ports[i] = shards[i].dataPort;
+            }
+            bounds[numShards] = numConcepts;
+            for (int i = 0; i < numShards; i++) {
+                final ObjectOutputStream out = shards[i].out;
+                out.writeInt(i);
+                out.writeObject(bounds);
+                out.writeObject(hosts);
+                out.writeObject(ports);
+                out.writeObject(ont.getFactory());
+                out.reset();
+                final IConceptSet range = IConceptSet.FACTORY.createConceptSet(bounds[i + 1] - bounds[i]);
+                for (int c = bounds[i]; c < bounds[i + 1]; c++) {
+                    range.add(c);
+                }
+                numTermsSent += ont.writeModule(range, out);
+                out.flush();
+            }
+            if (log.isInfoEnabled()) {
+                log.info("Started " + numShards + " shards, sent " + numTermsSent + " terms");
+            }
+
+            awaitQuiescence(shards);
+            collect(shards, ont, state);
+        } catch (IOException e) {
+            throw new RuntimeException("Distributed saturation failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Distributed saturation interrupted", e);
+        } finally {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    log.warn("Could not close server socket", e);
+                }
+            }
+            if (launcher != null) {
+                launcher.close();
+            }
+        }
+    }
+
+    private static String localAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "127.0.0.1";
+        }
+    }
+
+    /**
+     * Probes the shards until they are all done.
+     *
+     * @param shards
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void awaitQuiescence(Shard[] shards) throws IOException, InterruptedException {
+        final QuiescenceDetector detector = new QuiescenceDetector(numShards);
+        while (true) {
+            for (Shard shard : shards) {
+                shard.out.writeInt(PROBE);
+                shard.out.flush();
+            }
+            detector.startRound();
+            for (int i = 0; i < numShards; i++) {
+                final ObjectInputStream in = shards[i].in;
+                final int status = in.readInt();
+                final long s = in.readLong();
+                final long r = in.readLong();
+                if (status == FAILED) {
+                    throw new IOException("Shard " + i + " failed: " + in.readUTF());
+                }
+                detector.report(i, status == IDLE, s, r);
+            }
+            if (detector.endRound()) {
+                if (log.isInfoEnabled()) {
+                    log.info("Shards exchanged " + detector.getTotalSent() + " messages, quiescence detected after "
+                            + detector.getRounds() + " rounds");
+                }
+                return;
+            }
+            Thread.sleep(PROBE_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Collects the results of the shards and rebuilds the contexts, without
+     * their predecessors.
+     *
+     * @param shards
+     * @param ont
+     * @param state
+     * @throws IOException
+     */
+    private void collect(Shard[] shards, NormalisedOntology ont, SaturationState state) throws IOException {
+        final IConceptMap<Context> contextIndex = ont.getContextIndex();
+        final int numConcepts = ont.getFactory().getTotalConcepts();
+        long numProcessed = 0;
+        for (Shard shard : shards) {
+            shard.out.writeInt(COLLECT);
+            shard.out.flush();
+        }
+        for (Shard shard : shards) {
+            final ObjectInputStream in = shard.in;
+            numProcessed += in.readLong();
+            in.readLong();
+            final int n = in.readInt();
+            for (int k = 0; k < n; k++) {
+                final int concept = in.readInt();
+                final Context ctx = new Context(concept, state, readInts(in));
+                contextIndex.put(concept, ctx);
+                final int numRoles = in.readInt();
+                for (int j = 0; j < numRoles; j++) {
+                    final int role = in.readInt();
+                    for (int b : readInts(in)) {
+                        ctx.getSucc().store(role, b);
+                    }
+                }
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Processed contexts " + numProcessed + " times, " + (numProcessed - numConcepts)
+                    + " reactivations");
+        }
+    }
+
+    /**
+     * Stores in every context the predecessors that are implied by the
+     * successors of the others, which is all that is collected from the
+     * shards.
+     *
+     * @param contextIndex
+     */
+    public static void restorePredecessors(IConceptMap<Context> contextIndex) {
+        for (IntIterator it = contextIndex.keyIterator(); it.hasNext();) {
+            final Context a = contextIndex.get(it.next());
+            final CR succ = a.getSucc();
+            for (int role : succ.getRoles()) {
+                for (IntIterator bs = succ.lookupConcept(role).iterator(); bs.hasNext();) {
+                    contextIndex.get(bs.next()).getPred().store(role, a.getConcept());
+                }
+            }
+        }
+    }
+
+    private static int[] readInts(ObjectInputStream in) throws IOException {
+        final int[] res = new int[in.readInt()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = in.readInt();
+        }
+        return res;
+    }
+
+    /**
+     * Decides when the shards are done with the four-counter method, from the
+     * status and message counters reported by every shard in each probing
+     * round. Messages sent and not yet consumed are in transit, so a round
+     * only counts as quiet if every shard is idle and has consumed as many
+     * messages as were sent. A single quiet round is not enough: a shard may
+     * have reported before consuming a message sent by a shard that reported
+     * after sending it. Two consecutive quiet rounds with the same counters
+     * rule that out.
+     */
+    static final class QuiescenceDetector {
+
+        private final long[] sent;
+
+        private final long[] received;
+
+        private boolean previous = false;
+
+        private boolean idle;
+
+        private boolean unchanged;
+
+        private long totalSent;
+
+        private long totalReceived;
+
+        private int rounds = 0;
+
+        QuiescenceDetector(int numShards) {
+            sent = new long[numShards];
+            received = new long[numShards];
+        }
+
+        /**
+         * Starts a probing round.
+         */
+        void startRound() {
+            idle = true;
+            unchanged = true;
+            totalSent = 0;
+            totalReceived = 0;
+        }
+
+        /**
+         * Records the answer of a shard in the current round.
+         *
+         * @param shard
+         * @param shardIdle
+         * @param numSent The messages the shard has sent.
+         * @param numReceived The messages the shard has consumed.
+         */
+        void report(int shard, boolean shardIdle, long numSent, long numReceived) {
+            idle &= shardIdle;
+            unchanged &= numSent == sent[shard] && numReceived == received[shard];
+            sent[shard] = numSent;
+            received[shard] = numReceived;
+            totalSent += numSent;
+            totalReceived += numReceived;
+        }
+
+        /**
+         * Ends the current round and returns true if the shards are done.
+         *
+         * @return boolean
+         */
+        boolean endRound() {
+            rounds++;
+            final boolean quiet = idle && totalSent == totalReceived;
+            final boolean done = quiet && previous && unchanged;
+            previous = quiet;
+            return done;
+        }
+
+        long getTotalSent() {
+            return totalSent;
+        }
+
+        int getRounds() {
+            return rounds;
+        }
+
+    }
+
+    /**
+     * The coordinator's connection to a shard.
+     */
+    private static final class Shard {
+
+        final Socket socket;
+
+        final ObjectOutputStream out;
+
+        final ObjectInputStream in;
+
+        /**
+         * The port where the shard accepts connections from other shards.
+         */
+        final int dataPort;
+
+        Shard(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+            dataPort = in.readInt();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.warn("Could not close shard socket", e);
+            }
+        }
+
+    }
+
+}
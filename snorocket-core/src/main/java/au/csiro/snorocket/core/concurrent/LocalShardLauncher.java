@@ -0,0 +1,120 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the shards of a {@link DistributedSaturation} as child JVMs on this
+ * machine, with the same Java installation and class path as the current
+ * one. The shards connect to the coordinator at the address it gives, accept
+ * connections from each other on that address too, and their output is
+ * logged.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class LocalShardLauncher implements ShardLauncher {
+
+    private final static Logger log = Logger.getLogger(LocalShardLauncher.class);
+
+    /**
+     * Time to wait for the shards to exit on their own in {@link #close()}.
+     */
+    private static final long EXIT_TIMEOUT_MILLIS = 10000;
+
+    private final List<String> jvmArgs;
+
+    private final List<Process> processes = new ArrayList<Process>();
+
+    /**
+     *
+     * @param jvmArgs Options for the child JVMs, for example the heap size.
+     */
+    public LocalShardLauncher(String... jvmArgs) {
+        this.jvmArgs = Arrays.asList(jvmArgs);
+    }
+
+    public void launch(String host, int port, int numShards) throws IOException {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int i = 0; i < numShards; i++) {
+            final List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.addAll(jvmArgs);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(SaturationShard.class.getName());
+            command.add(host);
+            command.add(String.valueOf(port));
+            command.add(host);
+
+            final Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            processes.add(p);
+            log(p, i);
+        }
+    }
+
+    public void close() {
+        final long deadline = System.currentTimeMillis() + EXIT_TIMEOUT_MILLIS;
+        for (Process p : processes) {
+            while (isRunning(p) && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (isRunning(p)) {
+                log.warn("Shard did not exit, destroying it");
+                p.destroy();
+            }
+        }
+        processes.clear();
+    }
+
+    private static boolean isRunning(Process p) {
+        try {
+            p.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Logs the output of a shard from a daemon thread, which also keeps the
+     * shard from blocking on a full pipe.
+     *
+     * @param p
+     * @param index
+     */
+    private static void log(final Process p, final int index) {
+        final Thread t = new Thread(new Runnable() {
+            public void run() {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        log.info("[shard " + index + "] " + line);
+                    }
+                } catch (IOException e) {
+                    // The shard has exited
+                }
+            }
+        }, "shard-output-" + index);
+        t.setDaemon(true);
+        t.start();
+    }
+
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.csiro.snorocket.core.IFactory;
+import au.csiro.snorocket.core.NormalisationCache;
+import au.csiro.snorocket.core.axioms.GCI;
+import au.csiro.snorocket.core.axioms.Inclusion;
+import au.csiro.snorocket.core.model.AbstractConcept;
+import au.csiro.snorocket.core.model.Concept;
+import au.csiro.snorocket.core.model.Conjunction;
+
+/**
+ * Normalises a share of the inclusions of an ontology. The workers of a phase
+ * take blocks of {@link #BLOCK_SIZE} inclusions from a shared array until
+ * none are left, and normalise each block completely. Inclusions are
+ * normalised independently of each other, so the union of the results is the
+ * same as normalising all of them on one thread. The factory must be
+ * thread-safe: it gives every virtual concept a single id, whichever worker
+ * creates it first.
+ *
+ * <p>
+ * If a {@link NormalisationCache} is given, each worker looks up the
+ * inclusions of its blocks in the cache, and normalises and caches the ones
+ * that are not there. The cached normal forms are those before binarisation,
+ * so inclusions with a conjunction of more than two concepts on the left are
+ * always deferred.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class NormalisationWorker implements Runnable {
+
+    /**
+     * The number of inclusions a worker takes at a time.
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    private final Inclusion[] inclusions;
+
+    private final AtomicInteger next;
+
+    private final IFactory factory;
+
+    private final Set<Inclusion> result = new HashSet<Inclusion>();
+
+    private final List<GCI> conjunctions;
+
+    private final NormalisationCache cache;
+
+    /**
+     *
+     * @param inclusions The inclusions to normalise, shared by the workers.
+     * @param next The index of the next block to take, shared by the workers.
+     * @param factory
+     */
+    public NormalisationWorker(Inclusion[] inclusions, AtomicInteger next, IFactory factory) {
+        this(inclusions, next, factory, false);
+    }
+
+    /**
+     *
+     * @param inclusions The inclusions to normalise, shared by the workers.
+     * @param next The index of the next block to take, shared by the workers.
+     * @param factory
+     * @param deferConjunctions Indicates if inclusions with a conjunction of
+     *            more than two concepts on the left are kept for
+     *            {@link #factor(Collection, IFactory, Collection)} instead of
+     *            being binarised.
+     */
+    public NormalisationWorker(Inclusion[] inclusions, AtomicInteger next, IFactory factory,
+            boolean deferConjunctions) {
+        this(inclusions, next, factory, deferConjunctions, null);
+    }
+
+    /**
+     *
+     * @param inclusions The inclusions to normalise, shared by the workers.
+     * @param next The index of the next block to take, shared by the workers.
+     * @param factory
+     * @param deferConjunctions
+     * @param cache The cache of normalised inclusions shared by the workers,
+     *            or null.
+     */
+    public NormalisationWorker(Inclusion[] inclusions, AtomicInteger next, IFactory factory,
+            boolean deferConjunctions, NormalisationCache cache) {
+        this.inclusions = inclusions;
+        this.next = next;
+        this.factory = factory;
+        this.conjunctions = deferConjunctions || cache != null ? new ArrayList<GCI>() : null;
+        this.cache = cache;
+    }
+
+    public void run() {
+        final Set<Inclusion> block = new HashSet<Inclusion>(BLOCK_SIZE * 2);
+        while (true) {
+            final int from = next.getAndAdd(BLOCK_SIZE);
+            if (from >= inclusions.length) {
+                break;
+            }
+            final int to = Math.min(from + BLOCK_SIZE, inclusions.length);
+            block.clear();
+            for (int i = from; i < to; i++) {
+                block.add(inclusions[i]);
+            }
+            if (cache != null) {
+                normaliseCached(block);
+            } else {
+                normalise(block, factory, result, conjunctions);
+            }
+        }
+    }
+
+    /**
+     * Normalises a block of inclusions using the cache. The inclusions that
+     * are not cached are normalised one at a time, so that their normal forms
+     * can be cached.
+     *
+     * @param block
+     */
+    private void normaliseCached(Set<Inclusion> block) {
+        final Set<Inclusion> uncached = new HashSet<Inclusion>();
+        final Set<Inclusion> one = new HashSet<Inclusion>();
+        final List<Inclusion> forms = new ArrayList<Inclusion>();
+        for (Inclusion i : block) {
+            if (!(i instanceof GCI)) {
+                uncached.add(i);
+                continue;
+            }
+            final NormalisationCache.Key key = cache.fingerprint((GCI) i, factory);
+            final Inclusion[] cached = cache.get(key, factory);
+            if (cached != null) {
+                for (Inclusion form : cached) {
+                    addNormalForm(form);
+                }
+            } else {
+                one.clear();
+                one.add(i);
+                forms.clear();
+                normalise(one, factory, forms, forms);
+                cache.put(key, forms, factory);
+                for (Inclusion form : forms) {
+                    addNormalForm(form);
+                }
+            }
+        }
+        normalise(uncached, factory, result);
+    }
+
+    private void addNormalForm(Inclusion form) {
+        if (form instanceof GCI && ((GCI) form).isBinarisable()) {
+            conjunctions.add((GCI) form);
+        } else {
+            result.add(form);
+        }
+    }
+
+    /**
+     * Returns the normalised inclusions. Only valid once the worker has
+     * finished.
+     *
+     * @return Set<Inclusion>
+     */
+    public Set<Inclusion> getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the inclusions that were deferred to be factored, or null if
+     * they were binarised. Only valid once the worker has finished.
+     *
+     * @return List<GCI>
+     */
+    public List<GCI> getConjunctions() {
+        return conjunctions;
+    }
+
+    /**
+     * Exhaustively applies the normalisation rules NF1 to NF4 to a set of
+     * inclusions, then NF5 to NF7, and adds the inclusions that are in
+     * normal form to done. The set of inclusions is used as working space.
+     *
+     * @param inclusions
+     * @param factory
+     * @param done
+     */
+    public static void normalise(Set<Inclusion> inclusions, IFactory factory, Collection<Inclusion> done) {
+        normalise(inclusions, factory, done, null);
+    }
+
+    /**
+     * Normalises a set of inclusions like
+     * {@link #normalise(Set, IFactory, Collection)}, but if conjunctions is
+     * not null the inclusions that reach a conjunction of more than two
+     * concepts on their left hand side are added to it instead of being
+     * binarised, see {@link GCI#isBinarisable()}.
+     *
+     * @param inclusions
+     * @param factory
+     * @param done
+     * @param conjunctions
+     */
+    public static void normalise(Set<Inclusion> inclusions, IFactory factory, Collection<Inclusion> done,
+            Collection<? super GCI> conjunctions) {
+        Set<Inclusion> newIs = inclusions;
+        Set<Inclusion> oldIs = new HashSet<Inclusion>(newIs.size());
+        final Set<Inclusion> done1 = new HashSet<Inclusion>(newIs.size());
+
+        // Exhaustively apply NF1 to NF4
+        do {
+            final Set<Inclusion> tmp = oldIs;
+            oldIs = newIs;
+            newIs = tmp;
+            newIs.clear();
+
+            for (Inclusion i : oldIs) {
+                if (conjunctions != null && i instanceof GCI && ((GCI) i).isBinarisable()) {
+                    conjunctions.add((GCI) i);
+                    continue;
+                }
+                Inclusion[] s = i.normalise1(factory);
+                if (null != s) {
+                    for (int j = 0; j < s.length; j++) {
+                        if (null != s[j]) {
+                            newIs.add(s[j]);
+                        }
+                    }
+                } else {
+                    done1.add(i);
+                }
+            }
+        } while (!newIs.isEmpty());
+
+        newIs.addAll(done1);
+
+        // Then exhaustively apply NF5 to NF7
+        do {
+            final Set<Inclusion> tmp = oldIs;
+            oldIs = newIs;
+            newIs = tmp;
+            newIs.clear();
+
+            for (Inclusion i : oldIs) {
+                Inclusion[] s = i.normalise2(factory);
+                if (null != s) {
+                    for (int j = 0; j < s.length; j++) {
+                        if (null != s[j]) {
+                            newIs.add(s[j]);
+                        }
+                    }
+                } else {
+                    done.add(i);
+                }
+            }
+        } while (!newIs.isEmpty());
+    }
+
+    /**
+     * Binarises inclusions with a conjunction of more than two concepts on
+     * the left hand side so that the conjunctions share their most frequent
+     * subsets. The conjuncts of each inclusion are ordered by the number of
+     * the inclusions that use them, most used first, and A1 + ... + An [ B
+     * is split along the prefixes of that order into A1 + A2 [ V2,
+     * V2 + A3 [ V3, ..., Vn-1 + An [ B, where Vk is the virtual concept of
+     * A1 + ... + Ak. Conjunctions with the same frequent conjuncts share the
+     * same chain, whereas {@link GCI#normalise1(IFactory)} only shares
+     * suffixes in concept id order. The resulting inclusions are normalised
+     * and added to done.
+     *
+     * @param conjunctions The inclusions kept by
+     *            {@link #normalise(Set, IFactory, Collection, Collection)},
+     *            without duplicates.
+     * @param factory
+     * @param done
+     */
+    public static void factor(Collection<GCI> conjunctions, IFactory factory, Collection<Inclusion> done) {
+        final int[] frequency = new int[factory.getTotalConcepts()];
+        for (GCI gci : conjunctions) {
+            for (AbstractConcept c : ((Conjunction) gci.lhs()).getConcepts()) {
+                frequency[c.hashCode()]++;
+            }
+        }
+
+        final Set<Inclusion> chains = new HashSet<Inclusion>();
+        for (GCI gci : conjunctions) {
+            final AbstractConcept[] concepts = ((Conjunction) gci.lhs()).getConcepts();
+            final int n = concepts.length;
+            final int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                // Insertion sort by decreasing frequency, then by id
+                final int c = concepts[i].hashCode();
+                int j = i;
+                while (j > 0 && (frequency[order[j - 1]] < frequency[c]
+                        || (frequency[order[j - 1]] == frequency[c] && order[j - 1] > c))) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = c;
+            }
+
+            final AbstractConcept[] prefix = new AbstractConcept[n];
+            prefix[0] = new Concept(order[0]);
+            AbstractConcept previous = prefix[0];
+            for (int k = 1; k < n; k++) {
+                prefix[k] = new Concept(order[k]);
+                final AbstractConcept lhs = new Conjunction(new AbstractConcept[] { previous, prefix[k] });
+                if (k == n - 1) {
+                    chains.add(new GCI(lhs, gci.rhs()));
+                } else {
+                    final Conjunction key = new Conjunction(Arrays.copyOf(prefix, k + 1));
+                    final boolean alreadyExists = factory.conceptExists(key);
+                    final int v = factory.getConcept(key);
+                    if (!alreadyExists) {
+                        factory.setVirtualConcept(v, true);
+                    }
+                    previous = new Concept(v);
+                    chains.add(new GCI(lhs, previous));
+                }
+            }
+        }
+        normalise(chains, factory, done, null);
+    }
+
+}
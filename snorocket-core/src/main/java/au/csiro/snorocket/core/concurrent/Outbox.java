@@ -0,0 +1,325 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.util.Arrays;
+
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.LongQueue;
+
+/**
+ * Buffers the messages a worker sends to other {@link Context}s while it
+ * processes a context. Messages are grouped by target, so each target is
+ * locked and activated once per flush instead of once per message. The buffer
+ * is flushed when the worker finishes processing a context or when it holds
+ * {@link #FLUSH_THRESHOLD} messages. This class is not thread-safe: each
+ * worker owns one.
+ *
+ * <p>
+ * Subclasses can change how messages reach their targets by overriding
+ * {@link #deliver(Context, LongQueue, LongQueue, boolean)} and
+ * {@link #addPredecessor(Context, int, int)}, see
+ * {@link PartitionedSaturation}, and send messages to other processes by
+ * overriding the <code>addRemote</code> methods, see
+ * {@link DistributedSaturation}.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class Outbox {
+
+    /**
+     * Number of buffered messages that triggers a flush.
+     */
+    static final int FLUSH_THRESHOLD = 1024;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Open addressing table from a target's concept id to its slot + 1. Zero
+     * means empty.
+     */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private Context[] targets = new Context[INITIAL_CAPACITY];
+
+    /**
+     * Packed concept queue entries for each target.
+     */
+    private LongQueue[] conceptEntries = new LongQueue[INITIAL_CAPACITY];
+
+    /**
+     * Packed (role, source) edges for each target.
+     */
+    private LongQueue[] edges = new LongQueue[INITIAL_CAPACITY];
+
+    /**
+     * Indicates if a target must be tracked (incremental classification).
+     */
+    private boolean[] track = new boolean[INITIAL_CAPACITY];
+
+    private int numTargets = 0;
+
+    private int numMessages = 0;
+
+    /**
+     * The number of concept queue entries added, locally or to other
+     * contexts, by the contexts processed with this outbox.
+     */
+    private long numConceptEntries = 0;
+
+    /**
+     * The number of those entries that were dropped before being queued
+     * because their conclusion was already a subsumption of the target.
+     */
+    private long numSkippedConceptEntries = 0;
+
+    /**
+     * Scratch space for the work lists of the contexts processed with this
+     * outbox, see {@link #getWork()}.
+     */
+    private final LongQueue work = new LongQueue();
+
+    /**
+     * Returns a queue the contexts processed with this outbox use as scratch
+     * space, so that their work lists do not allocate. A caller appends its
+     * entries after the current ones, reads them by index and truncates the
+     * queue back to the size it found, which lets nested calls use it too.
+     *
+     * @return
+     */
+    LongQueue getWork() {
+        return work;
+    }
+
+    /**
+     * Buffers concept queue entries for a target context. Entries whose
+     * conclusion is already a subsumption of the target are dropped, and the
+     * target is not activated if all of them are. The subsumptions of a
+     * context only grow, so reading them without locking is safe.
+     *
+     * @param target
+     * @param entries Entries packed with {@link LongQueue#pack(int, int)}.
+     * @param from The index of the first entry to send.
+     * @param to The index after the last entry to send.
+     * @param tracking Indicates if the target should start tracking changes.
+     */
+    public void addConceptQueueEntries(Context target, long[] entries, int from, int to, boolean tracking) {
+        final IConceptSet s = target.getS();
+        LongQueue q = null;
+        int added = 0;
+        for (int i = from; i < to; i++) {
+            final long entry = entries[i];
+            if (!s.contains(LongQueue.low(entry))) {
+                if (q == null) {
+                    // slot() can grow the arrays, so it is called first
+                    final int slot = slot(target, tracking);
+                    q = conceptEntries[slot];
+                }
+                q.add(entry);
+                added++;
+            }
+        }
+        countConceptQueueEntries(to - from, to - from - added);
+        numMessages += added;
+        if (numMessages >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /**
+     * Records concept queue entries added by a context, and how many of them
+     * were dropped because their conclusion was already known.
+     *
+     * @param added
+     * @param skipped
+     */
+    void countConceptQueueEntries(int added, int skipped) {
+        numConceptEntries += added;
+        numSkippedConceptEntries += skipped;
+    }
+
+    /**
+     * Returns the number of concept queue entries added through this outbox.
+     *
+     * @return long
+     */
+    public long getNumConceptEntries() {
+        return numConceptEntries;
+    }
+
+    /**
+     * Returns the number of concept queue entries that were dropped before
+     * being queued because their conclusion was already known.
+     *
+     * @return long
+     */
+    public long getNumSkippedConceptEntries() {
+        return numSkippedConceptEntries;
+    }
+
+    /**
+     * Buffers an external edge for a target context. See
+     * {@link Context#processExternalEdge(int, int)}.
+     *
+     * @param target
+     * @param role
+     * @param src
+     * @param tracking Indicates if the target should start tracking changes.
+     */
+    public void addExternalEdge(Context target, int role, int src, boolean tracking) {
+        final int slot = slot(target, tracking);
+        edges[slot].add(LongQueue.pack(role, src));
+        if (++numMessages >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /**
+     * Records that the context src is linked to the target through role. By
+     * default the target's predecessors are updated straight away.
+     *
+     * @param target
+     * @param role
+     * @param src
+     */
+    public void addPredecessor(Context target, int role, int src) {
+        target.getPred().store(role, src);
+    }
+
+    /**
+     * Sends concept queue entries to a context that lives in another
+     * process. Only supported in distributed saturation, see
+     * {@link DistributedSaturation}.
+     *
+     * @param target
+     * @param entries Entries packed with {@link LongQueue#pack(int, int)}.
+     * @param from The index of the first entry to send.
+     * @param to The index after the last entry to send.
+     */
+    public void addRemoteConceptQueueEntries(int target, long[] entries, int from, int to) {
+        throw new IllegalStateException("No context for concept " + target);
+    }
+
+    /**
+     * Sends an external edge to a context that lives in another process.
+     * Only supported in distributed saturation.
+     *
+     * @param target
+     * @param role
+     * @param src
+     */
+    public void addRemoteExternalEdge(int target, int role, int src) {
+        throw new IllegalStateException("No context for concept " + target);
+    }
+
+    /**
+     * Records that the context src is linked through role to a context that
+     * lives in another process. Only supported in distributed saturation.
+     *
+     * @param target
+     * @param role
+     * @param src
+     */
+    public void addRemotePredecessor(int target, int role, int src) {
+        throw new IllegalStateException("No context for concept " + target);
+    }
+
+    /**
+     * Delivers all the buffered messages and activates their targets.
+     */
+    public void flush() {
+        if (numTargets == 0)
+            return;
+        for (int i = 0; i < numTargets; i++) {
+            deliver(targets[i], conceptEntries[i], edges[i], track[i]);
+            targets[i] = null;
+            conceptEntries[i].reset();
+            edges[i].reset();
+            track[i] = false;
+        }
+        Arrays.fill(table, 0);
+        numTargets = 0;
+        numMessages = 0;
+    }
+
+    /**
+     * Delivers the messages buffered for a target and activates it. The
+     * queues are cleared after this method returns.
+     *
+     * @param target
+     * @param concepts Concept queue entries packed with
+     *            {@link LongQueue#pack(int, int)}.
+     * @param edges External edges (r, A) packed with
+     *            {@link LongQueue#pack(int, int)}.
+     * @param tracking Indicates if the target should start tracking changes.
+     */
+    protected void deliver(Context target, LongQueue concepts, LongQueue edges, boolean tracking) {
+        target.receive(concepts, edges, tracking);
+    }
+
+    /**
+     * Returns true if there are no buffered messages.
+     *
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return numTargets == 0;
+    }
+
+    private int slot(Context target, boolean tracking) {
+        final int concept = target.getConcept();
+        final int mask = table.length - 1;
+        int pos = hash(concept) & mask;
+        while (true) {
+            final int s = table[pos] - 1;
+            if (s < 0) {
+                break;
+            } else if (targets[s] == target) {
+                track[s] |= tracking;
+                return s;
+            }
+            pos = (pos + 1) & mask;
+        }
+
+        if (numTargets == targets.length) {
+            grow();
+            return slot(target, tracking);
+        }
+        final int s = numTargets++;
+        targets[s] = target;
+        if (conceptEntries[s] == null) {
+            conceptEntries[s] = new LongQueue();
+            edges[s] = new LongQueue();
+        }
+        track[s] = tracking;
+        table[pos] = s + 1;
+        return s;
+    }
+
+    private void grow() {
+        final int newSize = targets.length << 1;
+        targets = Arrays.copyOf(targets, newSize);
+        conceptEntries = Arrays.copyOf(conceptEntries, newSize);
+        edges = Arrays.copyOf(edges, newSize);
+        track = Arrays.copyOf(track, newSize);
+        table = new int[newSize * 2];
+        final int mask = table.length - 1;
+        for (int s = 0; s < numTargets; s++) {
+            int pos = hash(targets[s].getConcept()) & mask;
+            while (table[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = s + 1;
+        }
+    }
+
+    private static int hash(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,500 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.LongQueue;
+
+/**
+ * Saturation engine in which every context is owned by one worker thread.
+ * Concept ids are split across {@link Partition}s and only the owner of a
+ * context processes it or changes its queues and predecessors. Effects on
+ * contexts owned by other partitions travel as messages on bounded
+ * {@link SpscLongQueue}s, one for each pair of partitions, so contexts are
+ * scheduled without compare-and-set and their queues are never locked.
+ * While the engine runs, the concept sets of a context are only changed by
+ * its owner, so they skip their locks too, see {@link Context#setOwned(boolean)}.
+ *
+ * <p>
+ * A message is two longs: the message type and the target concept, then the
+ * payload. Messages that do not fit in a full queue are held back by the
+ * sender and retried, so a partition never blocks on another one. Once a
+ * partition holds back as many messages as fit in one queue it stops taking
+ * contexts and only receives and sends until its backlog is flushed.
+ * Receiving never stops, so the queues always drain and the backlog of a
+ * partition never exceeds that limit by more than the messages of one
+ * context run plus the replies to one batch of received predecessors. A
+ * partition that fails stops all the others. Termination is detected with a
+ * single counter that holds the
+ * number of busy partitions plus the number of messages not yet consumed:
+ * senders count messages before they can be seen and idle partitions count
+ * themselves as busy before they consume any, so the counter only reaches
+ * zero once no work is left.
+ * </p>
+ *
+ * <p>
+ * This engine only runs full classifications. The contexts are left in the
+ * same state as with the queue based workers, so incremental classification
+ * can use those afterwards.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class PartitionedSaturation {
+
+    /**
+     * The number of longs each queue between two partitions can hold.
+     */
+    public static final int QUEUE_CAPACITY = 1 << 14;
+
+    /**
+     * Message with a concept queue entry. Also used by
+     * {@link SaturationShard}.
+     */
+    static final int CONCEPT = 0;
+
+    /**
+     * Message with an external edge (r, A).
+     */
+    static final int EDGE = 1;
+
+    /**
+     * Message with a predecessor (r, A), see
+     * {@link Context#addPredecessor(int, int, Outbox)}.
+     */
+    static final int PREDECESSOR = 2;
+
+    private static final int SPINS = 64;
+
+    private final IConceptMap<Context> contextIndex;
+
+    private final Partition[] partitions;
+
+    /**
+     * The number of busy partitions plus the number of messages that have
+     * been sent but not consumed.
+     */
+    private final AtomicLong pending;
+
+    /**
+     * The number of messages a partition can hold back before it stops
+     * processing contexts.
+     */
+    private final int bufferLimit;
+
+    /**
+     * Set when a partition fails, so that the others stop.
+     */
+    private volatile boolean aborted = false;
+
+    /**
+     *
+     * @param numPartitions
+     * @param contextIndex
+     */
+    public PartitionedSaturation(int numPartitions, IConceptMap<Context> contextIndex) {
+        this(numPartitions, contextIndex, QUEUE_CAPACITY);
+    }
+
+    /**
+     *
+     * @param numPartitions
+     * @param contextIndex
+     * @param queueCapacity
+     *            The number of longs each queue between two partitions can
+     *            hold. A partition holds back at most as many messages as fit
+     *            in one queue before it stops processing contexts.
+     */
+    public PartitionedSaturation(int numPartitions, IConceptMap<Context> contextIndex, int queueCapacity) {
+        this.contextIndex = contextIndex;
+        this.pending = new AtomicLong(numPartitions);
+        this.bufferLimit = queueCapacity / 2;
+        partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new Partition(i);
+        }
+        // queues[from][to]
+        for (int from = 0; from < numPartitions; from++) {
+            for (int to = 0; to < numPartitions; to++) {
+                if (from != to) {
+                    final SpscLongQueue q = new SpscLongQueue(queueCapacity);
+                    partitions[from].outgoing[to] = q;
+                    partitions[to].incoming[from] = q;
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules a context on the partition that owns it. Must be called
+     * before the partitions are run. The context is handed back to the queue
+     * based workers when its partition finishes.
+     *
+     * @param ctx
+     */
+    public void add(Context ctx) {
+        final Partition p = partitions[owner(ctx.getConcept())];
+        ctx.setOwned(true);
+        p.owned.add(ctx);
+        p.schedule(ctx);
+    }
+
+    /**
+     * Returns the partitions, which are run one per thread.
+     *
+     * @return List<Partition>
+     */
+    public List<Partition> getPartitions() {
+        final List<Partition> res = new ArrayList<Partition>(partitions.length);
+        for (Partition p : partitions) {
+            res.add(p);
+        }
+        return res;
+    }
+
+    private int owner(int concept) {
+        return concept % partitions.length;
+    }
+
+    /**
+     * The worker that owns the contexts whose concept id modulo the number of
+     * partitions is its index.
+     *
+     * @author Alejandro Metke
+     *
+     */
+    public final class Partition implements Runnable {
+
+        private final int index;
+
+        /**
+         * The active contexts owned by this partition.
+         */
+        private final ArrayDeque<Context> todo = new ArrayDeque<Context>();
+
+        /**
+         * All the contexts owned by this partition.
+         */
+        private final List<Context> owned = new ArrayList<Context>();
+
+        /**
+         * Queues from the other partitions, indexed by sender.
+         */
+        private final SpscLongQueue[] incoming;
+
+        /**
+         * Queues to the other partitions, indexed by receiver.
+         */
+        private final SpscLongQueue[] outgoing;
+
+        /**
+         * Messages waiting to be added to the queues to the other partitions,
+         * indexed by receiver. Messages stay here while the queue is full.
+         */
+        private final LongQueue[] buffered;
+
+        /**
+         * The number of messages in {@link #buffered}.
+         */
+        private long backlog = 0;
+
+        /**
+         * The largest value of {@link #backlog}.
+         */
+        private long maxBacklog = 0;
+
+        /**
+         * Number of messages sent that have not been added to
+         * {@link PartitionedSaturation#pending} yet.
+         */
+        private long uncounted = 0;
+
+        /**
+         * The messages being applied by {@link #receive()}.
+         */
+        private final LongQueue received = new LongQueue();
+
+        private final PartitionOutbox outbox = new PartitionOutbox();
+
+        /**
+         * The number of times this partition has processed a context.
+         */
+        private long numProcessed = 0;
+
+        /**
+         * The number of messages sent to other partitions.
+         */
+        private long numSent = 0;
+
+        Partition(int index) {
+            this.index = index;
+            final int n = partitions.length;
+            incoming = new SpscLongQueue[n];
+            outgoing = new SpscLongQueue[n];
+            buffered = new LongQueue[n];
+            for (int i = 0; i < n; i++) {
+                buffered[i] = new LongQueue();
+            }
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            boolean finished = false;
+            try {
+                saturate();
+                finished = true;
+            } finally {
+                if (!finished) {
+                    // Release this partition and stop the others, which would
+                    // otherwise wait for its messages forever
+                    aborted = true;
+                    pending.decrementAndGet();
+                }
+                for (Context ctx : owned) {
+                    ctx.setOwned(false);
+                }
+            }
+        }
+
+        private void saturate() {
+            while (!aborted) {
+                receive();
+                // No new contexts are processed while the backlog is full
+                final Context ctx = backlog < bufferLimit ? todo.poll() : null;
+                if (ctx != null) {
+                    if (ctx.processOntologyOwned(outbox)) {
+                        schedule(ctx);
+                    }
+                    numProcessed++;
+                    send();
+                } else if (!send()) {
+                    // Wait for the receivers to make room
+                    Thread.yield();
+                } else if (todo.isEmpty() && !awaitWork()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Waits, while idle, until a message arrives or all the partitions
+         * are done or one has failed. Returns false in the latter cases.
+         *
+         * @return boolean
+         */
+        private boolean awaitWork() {
+            if (pending.decrementAndGet() == 0) {
+                return false;
+            }
+            int idle = 0;
+            while (true) {
+                if (hasIncoming()) {
+                    pending.incrementAndGet();
+                    return true;
+                } else if (pending.get() == 0 || aborted) {
+                    return false;
+                } else if (++idle < SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(50000);
+                }
+            }
+        }
+
+        private boolean hasIncoming() {
+            for (SpscLongQueue q : incoming) {
+                if (q != null && !q.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Applies the messages sent by the other partitions.
+         */
+        private void receive() {
+            for (SpscLongQueue q : incoming) {
+                if (q == null) {
+                    continue;
+                }
+                final int n = q.drainTo(received);
+                if (n == 0) {
+                    continue;
+                }
+                while (!received.isEmpty()) {
+                    final long header = received.remove();
+                    final long payload = received.remove();
+                    final Context target = contextIndex.get(LongQueue.low(header));
+                    switch (LongQueue.high(header)) {
+                    case CONCEPT:
+                        target.addOwnedConceptQueueEntry(payload);
+                        schedule(target);
+                        break;
+                    case EDGE:
+                        target.addRoleQueueEntry(LongQueue.high(payload), LongQueue.low(payload));
+                        schedule(target);
+                        break;
+                    case PREDECESSOR:
+                        target.addPredecessor(LongQueue.high(payload), LongQueue.low(payload), outbox);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown message type " + LongQueue.high(header));
+                    }
+                }
+                outbox.flush();
+                // The messages sent in reply are counted before these are
+                // released
+                countSent();
+                pending.addAndGet(-(n / 2));
+            }
+        }
+
+        /**
+         * Moves the buffered messages to the queues of their receivers.
+         * Returns false if some did not fit.
+         *
+         * @return boolean
+         */
+        private boolean send() {
+            countSent();
+            boolean res = true;
+            for (int i = 0; i < buffered.length; i++) {
+                final LongQueue buffer = buffered[i];
+                final SpscLongQueue q = outgoing[i];
+                while (!buffer.isEmpty()) {
+                    // Peeking is not supported, so the pair is put back at
+                    // the end if it does not fit
+                    final long header = buffer.remove();
+                    final long payload = buffer.remove();
+                    if (!q.offer(header, payload)) {
+                        buffer.add(header);
+                        buffer.add(payload);
+                        res = false;
+                        break;
+                    }
+                    backlog--;
+                }
+            }
+            return res;
+        }
+
+        private void countSent() {
+            if (uncounted > 0) {
+                pending.addAndGet(uncounted);
+                uncounted = 0;
+            }
+        }
+
+        private void post(int to, int type, int target, long payload) {
+            buffered[to].add(LongQueue.pack(type, target));
+            buffered[to].add(payload);
+            uncounted++;
+            numSent++;
+            if (++backlog > maxBacklog) {
+                maxBacklog = backlog;
+            }
+        }
+
+        private void schedule(Context ctx) {
+            if (ctx.activateOwned()) {
+                todo.add(ctx);
+            }
+        }
+
+        /**
+         * Returns the number of times this partition has processed a context.
+         * Only valid once the partition has finished.
+         *
+         * @return long
+         */
+        public long getNumProcessed() {
+            return numProcessed;
+        }
+
+        /**
+         * Returns the number of messages this partition sent to the others.
+         * Only valid once the partition has finished.
+         *
+         * @return long
+         */
+        public long getNumSent() {
+            return numSent;
+        }
+
+        /**
+         * Returns the largest number of messages this partition held back
+         * because the queues of their receivers were full. Only valid once
+         * the partition has finished.
+         *
+         * @return long
+         */
+        public long getMaxBacklog() {
+            return maxBacklog;
+        }
+
+        /**
+         * Returns the outbox used by this partition.
+         *
+         * @return Outbox
+         */
+        public Outbox getOutbox() {
+            return outbox;
+        }
+
+        /**
+         * Delivers messages to the contexts of this partition directly and
+         * posts the rest to their owners.
+         */
+        private final class PartitionOutbox extends Outbox {
+
+            @Override
+            public void addPredecessor(Context target, int role, int src) {
+                final int to = owner(target.getConcept());
+                if (to == index) {
+                    target.getPred().store(role, src);
+                } else {
+                    post(to, PREDECESSOR, target.getConcept(), LongQueue.pack(role, src));
+                }
+            }
+
+            @Override
+            protected void deliver(Context target, LongQueue concepts, LongQueue edges, boolean tracking) {
+                assert !tracking;
+                final int to = owner(target.getConcept());
+                if (to == index) {
+                    while (!concepts.isEmpty()) {
+                        target.addOwnedConceptQueueEntry(concepts.remove());
+                    }
+                    while (!edges.isEmpty()) {
+                        final long edge = edges.remove();
+                        target.addRoleQueueEntry(LongQueue.high(edge), LongQueue.low(edge));
+                    }
+                    schedule(target);
+                } else {
+                    final int concept = target.getConcept();
+                    while (!concepts.isEmpty()) {
+                        post(to, CONCEPT, concept, concepts.remove());
+                    }
+                    while (!edges.isEmpty()) {
+                        post(to, EDGE, concept, edges.remove());
+                    }
+                }
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Long-lived pool of threads used to run the parallel phases of the reasoner
+ * (saturation and taxonomy construction). A phase is a list of tasks that are
+ * started together; {@link #runPhase(List)} returns as soon as the last task
+ * finishes. The calling thread runs one of the tasks itself, so a phase with
+ * a single task never waits for a hand-off.
+ *
+ * <p>
+ * The threads are daemons. They are kept between phases and between
+ * classifications, so that incremental classifications do not pay for
+ * starting them again, and exit after a keep-alive time without work,
+ * {@link #DEFAULT_KEEP_ALIVE_MILLIS} by default. With a keep-alive of 0 they
+ * are kept until {@link #shutdown()}. An executor that is never shut down
+ * does not prevent the JVM from exiting and, once its threads have timed
+ * out, can be garbage collected with its reasoner.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class ReasonerExecutor {
+
+    /**
+     * The default time an idle thread waits for a new phase before it exits,
+     * long enough for the incremental classifications of an editing session
+     * to find the threads of the previous one.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 10 * 60 * 1000;
+
+    private static final AtomicInteger poolCount = new AtomicInteger(0);
+
+    private final int numThreads;
+
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicInteger threadCount = new AtomicInteger(0);
+
+    /**
+     * Creates a new executor able to run phases of up to numThreads tasks
+     * concurrently, with the default keep-alive time.
+     *
+     * @param numThreads
+     */
+    public ReasonerExecutor(int numThreads) {
+        this(numThreads, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * Creates a new executor able to run phases of up to numThreads tasks
+     * concurrently.
+     *
+     * @param numThreads
+     * @param keepAliveMillis The time an idle thread is kept, or 0 to keep
+     *            the threads until {@link #shutdown()}.
+     */
+    public ReasonerExecutor(int numThreads, long keepAliveMillis) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+        }
+        this.numThreads = numThreads;
+        final int poolId = poolCount.incrementAndGet();
+        // The calling thread takes part in every phase
+        final int poolSize = Math.max(1, numThreads - 1);
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "snorocket-" + poolId + "-worker-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        setKeepAlive(keepAliveMillis);
+    }
+
+    /**
+     * Sets the time an idle thread is kept before it exits, or 0 to keep the
+     * threads until {@link #shutdown()}.
+     *
+     * @param keepAliveMillis
+     */
+    public void setKeepAlive(long keepAliveMillis) {
+        if (keepAliveMillis < 0) {
+            throw new IllegalArgumentException("Invalid keep-alive time: " + keepAliveMillis);
+        }
+        if (keepAliveMillis > 0) {
+            pool.setKeepAliveTime(keepAliveMillis, TimeUnit.MILLISECONDS);
+            pool.allowCoreThreadTimeOut(true);
+        } else {
+            pool.allowCoreThreadTimeOut(false);
+        }
+    }
+
+    /**
+     * Returns the time an idle thread is kept, or 0 if the threads are kept
+     * until {@link #shutdown()}.
+     *
+     * @return long
+     */
+    public long getKeepAlive() {
+        return pool.allowsCoreThreadTimeOut() ? pool.getKeepAliveTime(TimeUnit.MILLISECONDS) : 0;
+    }
+
+    /**
+     * Returns the number of tasks this executor is meant to run concurrently.
+     *
+     * @return int
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Runs all the tasks concurrently and blocks until every one of them has
+     * finished. If any task throws an exception it is rethrown once the phase
+     * is complete.
+     *
+     * @param tasks
+     */
+    public void runPhase(List<? extends Runnable> tasks) {
+        if (tasks.isEmpty())
+            return;
+
+        final int n = tasks.size();
+        final CountDownLatch done = new CountDownLatch(n - 1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int i = 1; i < n; i++) {
+            final Runnable task = tasks.get(i);
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            tasks.get(0).run();
+        } catch (Throwable t) {
+            error.compareAndSet(null, t);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        final Throwable t = error.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Stops the threads of this executor. Phases must not be run after this
+     * method is called.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Indicates if this executor has been shut down.
+     *
+     * @return boolean
+     */
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    /**
+     * Returns the number of threads the executor currently holds.
+     *
+     * @return int
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * Returns the number of threads the executor has started, including the
+     * ones that have exited since.
+     *
+     * @return int
+     */
+    public int getNumThreadsStarted() {
+        return threadCount.get();
+    }
+
+}
@@ -0,0 +1,549 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import au.csiro.snorocket.core.IFactory;
+import au.csiro.snorocket.core.NormalisedOntology;
+import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.LongQueue;
+
+/**
+ * A worker process of {@link DistributedSaturation}. It owns the contexts of
+ * a range of concept ids and saturates them on a single thread, like a
+ * partition of {@link PartitionedSaturation}, exchanging messages with the
+ * other shards over sockets.
+ *
+ * <p>
+ * The shard connects to the coordinator, reports the port where it accepts
+ * connections from the other shards and receives its index, the ranges and
+ * addresses of all the shards, the factory and the terms that its contexts
+ * need, see {@link NormalisedOntology#readModule(IFactory, ObjectInputStream)}.
+ * Each pair of shards
+ * is then linked by one socket, opened by the shard with the higher index.
+ * Messages travel in frames: the number of longs followed by the longs, two
+ * per message, encoded as in {@link PartitionedSaturation}. One thread per
+ * socket reads frames into an unbounded inbox, so a shard can always write.
+ * The shard only accepts those connections on the loopback interface unless
+ * it is given another bind address.
+ * </p>
+ *
+ * <p>
+ * The coordinator then probes the shard, which replies with its state and
+ * the number of messages it has sent and consumed, until it detects that all
+ * the shards are done. Finally it collects the subsumptions and successors of
+ * every context, and the shard exits.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class SaturationShard {
+
+    private final static Logger log = Logger.getLogger(SaturationShard.class);
+
+    /**
+     * The maximum number of longs in a frame.
+     */
+    static final int FRAME_SIZE = 1 << 12;
+
+    /**
+     * Time an idle shard waits for messages before checking if it has been
+     * stopped.
+     */
+    private static final long IDLE_WAIT_MILLIS = 10;
+
+    /**
+     * The maximum length of the failure cause reported to the coordinator.
+     */
+    private static final int MAX_CAUSE_LENGTH = 1024;
+
+    private final int index;
+
+    /**
+     * Shard i owns the concepts in [bounds[i], bounds[i + 1]).
+     */
+    private final int[] bounds;
+
+    private final NormalisedOntology ont;
+
+    private final IConceptMap<Context> contextIndex;
+
+    private final SaturationState state = new SaturationState();
+
+    /**
+     * The active contexts of this shard.
+     */
+    private final ArrayDeque<Context> todo = new ArrayDeque<Context>();
+
+    /**
+     * Sockets to the other shards, indexed by shard.
+     */
+    private final Socket[] sockets;
+
+    private final DataOutputStream[] peers;
+
+    /**
+     * Messages waiting to be written to the other shards, indexed by shard.
+     */
+    private final LongQueue[] buffered;
+
+    /**
+     * Frames read from the other shards.
+     */
+    private final BlockingQueue<long[]> inbox = new LinkedBlockingQueue<long[]>();
+
+    private final ShardOutbox outbox = new ShardOutbox();
+
+    private volatile boolean stopped = false;
+
+    private volatile Throwable failure;
+
+    /**
+     * Number of messages written to the other shards. Only used by the
+     * saturation thread.
+     */
+    private long numWritten = 0;
+
+    /**
+     * The number of messages written when the shard last became idle, as
+     * reported to the coordinator. Guarded by this shard.
+     */
+    private long sent = 0;
+
+    /**
+     * The number of messages consumed. Guarded by this shard.
+     */
+    private long received = 0;
+
+    /**
+     * Indicates if the shard has no work left. Guarded by this shard.
+     */
+    private boolean idle = false;
+
+    /**
+     * The number of times this shard has processed a context.
+     */
+    private long numProcessed = 0;
+
+    private SaturationShard(int index, int[] bounds, NormalisedOntology ont) {
+        this.index = index;
+        this.bounds = bounds;
+        this.ont = ont;
+        this.contextIndex = ont.getContextIndex();
+        final int n = bounds.length - 1;
+        sockets = new Socket[n];
+        peers = new DataOutputStream[n];
+        buffered = new LongQueue[n];
+        for (int i = 0; i < n; i++) {
+            buffered[i] = new LongQueue();
+        }
+    }
+
+    /**
+     * Runs a shard.
+     *
+     * @param args The host and port of the coordinator and, optionally, the
+     *            address where the other shards connect.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("Usage: SaturationShard <coordinator host> <coordinator port> [bind address]");
+            System.exit(2);
+        }
+        try {
+            final InetAddress bindAddress = args.length == 3 ? InetAddress.getByName(args[2])
+                    : InetAddress.getLoopbackAddress();
+            run(args[0], Integer.parseInt(args[1]), bindAddress);
+            System.exit(0);
+        } catch (Throwable t) {
+            log.error("Shard failed", t);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connects to the coordinator and runs the shard it assigns until the
+     * results have been collected. The other shards can only connect over
+     * the loopback interface.
+     *
+     * @param host
+     * @param port
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    public static void run(String host, int port) throws IOException, ClassNotFoundException,
+            InterruptedException {
+        run(host, port, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Connects to the coordinator and runs the shard it assigns until the
+     * results have been collected.
+     *
+     * @param host
+     * @param port
+     * @param bindAddress The address where the other shards connect, or null
+     *            for all the interfaces of this machine.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    public static void run(String host, int port, InetAddress bindAddress) throws IOException,
+            ClassNotFoundException, InterruptedException {
+        final ServerSocket server = new ServerSocket(0, 50, bindAddress);
+        final Socket control = new Socket(host, port);
+        try {
+            control.setTcpNoDelay(true);
+            final ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(control.getOutputStream()));
+            out.writeInt(server.getLocalPort());
+            out.flush();
+            final ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(control.getInputStream()));
+
+            final int index = in.readInt();
+            final int[] bounds = (int[]) in.readObject();
+            final String[] hosts = (String[]) in.readObject();
+            final int[] ports = (int[]) in.readObject();
+            final IFactory factory = (IFactory) in.readObject();
+            final NormalisedOntology ont = NormalisedOntology.readModule(factory, in);
+            ont.freeze();
+
+            final SaturationShard shard = new SaturationShard(index, bounds, ont);
+            shard.connect(server, hosts, ports);
+            shard.serve(in, out);
+        } finally {
+            control.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Links this shard with the others: it connects to the shards with a
+     * lower index and accepts connections from the rest.
+     *
+     * @param server
+     * @param hosts
+     * @param ports
+     * @throws IOException
+     */
+    private void connect(ServerSocket server, String[] hosts, int[] ports) throws IOException {
+        final int n = bounds.length - 1;
+        for (int i = 0; i < index; i++) {
+            final Socket s = new Socket(hosts[i], ports[i]);
+            final DataOutputStream dos = open(i, s);
+            dos.writeInt(index);
+            dos.flush();
+        }
+        for (int k = index + 1; k < n; k++) {
+            final Socket s = server.accept();
+            final int i = new DataInputStream(s.getInputStream()).readInt();
+            open(i, s);
+        }
+    }
+
+    private DataOutputStream open(final int peer, Socket s) throws IOException {
+        s.setTcpNoDelay(true);
+        sockets[peer] = s;
+        peers[peer] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final int n;
+                        try {
+                            n = in.readInt();
+                        } catch (EOFException e) {
+                            return;
+                        }
+                        final long[] frame = new long[n];
+                        for (int i = 0; i < n; i++) {
+                            frame[i] = in.readLong();
+                        }
+                        inbox.add(frame);
+                    }
+                } catch (IOException e) {
+                    if (!stopped) {
+                        failure = e;
+                    }
+                }
+            }
+        }, "shard-" + index + "-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+        return peers[peer];
+    }
+
+    /**
+     * Creates the contexts of this shard, saturates them on a separate thread
+     * and answers the requests of the coordinator.
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void serve(ObjectInputStream in, ObjectOutputStream out) throws IOException, InterruptedException {
+        state.init(ont);
+        for (int c = bounds[index]; c < bounds[index + 1]; c++) {
+            final Context ctx = new Context(c, state);
+            contextIndex.put(c, ctx);
+            schedule(ctx);
+        }
+
+        final Thread saturation = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    saturate();
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+        }, "shard-" + index);
+        saturation.start();
+
+        try {
+            while (true) {
+                final int command = in.readInt();
+                if (command == DistributedSaturation.PROBE) {
+                    synchronized (this) {
+                        out.writeInt(failure != null ? DistributedSaturation.FAILED
+                                : idle ? DistributedSaturation.IDLE : DistributedSaturation.BUSY);
+                        out.writeLong(sent);
+                        out.writeLong(received);
+                    }
+                    if (failure != null) {
+                        final String cause = failure.toString();
+                        out.writeUTF(cause.length() > MAX_CAUSE_LENGTH ? cause.substring(0, MAX_CAUSE_LENGTH)
+                                : cause);
+                    }
+                    out.flush();
+                } else if (command == DistributedSaturation.COLLECT) {
+                    stopped = true;
+                    saturation.join();
+                    writeResults(out);
+                    out.flush();
+                    return;
+                } else {
+                    throw new IOException("Unknown command " + command);
+                }
+            }
+        } finally {
+            stopped = true;
+            for (Socket s : sockets) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes the contexts of this shard and the messages from the other
+     * shards until the coordinator stops it.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void saturate() throws IOException, InterruptedException {
+        while (true) {
+            long[] frame = inbox.poll();
+            if (frame == null) {
+                final Context ctx = todo.poll();
+                if (ctx != null) {
+                    if (ctx.processOntologyOwned(outbox)) {
+                        schedule(ctx);
+                    }
+                    numProcessed++;
+                    write(false);
+                    continue;
+                }
+
+                // Nothing left: report the messages sent and wait
+                write(true);
+                synchronized (this) {
+                    sent = numWritten;
+                    idle = true;
+                }
+                while ((frame = inbox.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+            }
+
+            synchronized (this) {
+                idle = false;
+                received += frame.length / 2;
+            }
+            receive(frame);
+        }
+    }
+
+    /**
+     * Applies the messages in a frame.
+     *
+     * @param frame
+     */
+    private void receive(long[] frame) {
+        for (int i = 0; i < frame.length; i += 2) {
+            final long header = frame[i];
+            final long payload = frame[i + 1];
+            final Context target = contextIndex.get(LongQueue.low(header));
+            switch (LongQueue.high(header)) {
+            case PartitionedSaturation.CONCEPT:
+                target.addOwnedConceptQueueEntry(payload);
+                schedule(target);
+                break;
+            case PartitionedSaturation.EDGE:
+                target.addRoleQueueEntry(LongQueue.high(payload), LongQueue.low(payload));
+                schedule(target);
+                break;
+            case PartitionedSaturation.PREDECESSOR:
+                target.addPredecessor(LongQueue.high(payload), LongQueue.low(payload), outbox);
+                break;
+            default:
+                throw new IllegalStateException("Unknown message type " + LongQueue.high(header));
+            }
+        }
+        outbox.flush();
+    }
+
+    /**
+     * Writes the buffered messages to the other shards. Unless all is true,
+     * only full frames are written and the streams are not flushed.
+     *
+     * @param all
+     * @throws IOException
+     */
+    private void write(boolean all) throws IOException {
+        for (int i = 0; i < buffered.length; i++) {
+            final LongQueue buffer = buffered[i];
+            final DataOutputStream dos = peers[i];
+            while (buffer.size() >= FRAME_SIZE || (all && !buffer.isEmpty())) {
+                final int n = Math.min(buffer.size(), FRAME_SIZE);
+                dos.writeInt(n);
+                for (int j = 0; j < n; j++) {
+                    dos.writeLong(buffer.remove());
+                }
+                numWritten += n / 2;
+            }
+            if (all && dos != null) {
+                dos.flush();
+            }
+        }
+    }
+
+    /**
+     * Writes, for every context of this shard, its concept, its subsumptions
+     * and its successors by role.
+     *
+     * @param out
+     * @throws IOException
+     */
+    private void writeResults(ObjectOutputStream out) throws IOException {
+        out.writeLong(numProcessed);
+        out.writeLong(numWritten);
+        out.writeInt(bounds[index + 1] - bounds[index]);
+        for (int c = bounds[index]; c < bounds[index + 1]; c++) {
+            final Context ctx = contextIndex.get(c);
+            out.writeInt(c);
+            writeInts(out, ctx.getS().toArray());
+            final CR succ = ctx.getSucc();
+            final int[] roles = succ.getRoles();
+            out.writeInt(roles.length);
+            for (int r : roles) {
+                out.writeInt(r);
+                writeInts(out, succ.lookupConcept(r).toArray());
+            }
+        }
+    }
+
+    private static void writeInts(ObjectOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    private int owner(int concept) {
+        int i = bounds.length - 2;
+        while (concept < bounds[i]) {
+            i--;
+        }
+        return i;
+    }
+
+    private void post(int target, int type, long payload) {
+        final LongQueue buffer = buffered[owner(target)];
+        buffer.add(LongQueue.pack(type, target));
+        buffer.add(payload);
+    }
+
+    private void schedule(Context ctx) {
+        if (ctx.activateOwned()) {
+            todo.add(ctx);
+        }
+    }
+
+    /**
+     * Delivers messages to the contexts of this shard directly and buffers
+     * the rest for their shards.
+     */
+    private final class ShardOutbox extends Outbox {
+
+        @Override
+        protected void deliver(Context target, LongQueue concepts, LongQueue edges, boolean tracking) {
+            assert !tracking;
+            while (!concepts.isEmpty()) {
+                target.addOwnedConceptQueueEntry(concepts.remove());
+            }
+            while (!edges.isEmpty()) {
+                final long edge = edges.remove();
+                target.addRoleQueueEntry(LongQueue.high(edge), LongQueue.low(edge));
+            }
+            schedule(target);
+        }
+
+        @Override
+        public void addRemoteConceptQueueEntries(int target, long[] entries, int from, int to) {
+            for (int i = from; i < to; i++) {
+                post(target, PartitionedSaturation.CONCEPT, entries[i]);
+            }
+        }
+
+        @Override
+        public void addRemoteExternalEdge(int target, int role, int src) {
+            post(target, PartitionedSaturation.EDGE, LongQueue.pack(role, src));
+        }
+
+        @Override
+        public void addRemotePredecessor(int target, int role, int src) {
+            post(target, PartitionedSaturation.PREDECESSOR, LongQueue.pack(role, src));
+        }
+
+    }
+
+}
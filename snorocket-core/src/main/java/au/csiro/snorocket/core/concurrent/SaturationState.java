@@ -0,0 +1,139 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.Set;
+
+import au.csiro.snorocket.core.NormalisedOntology;
+import au.csiro.snorocket.core.axioms.NF7;
+import au.csiro.snorocket.core.util.ConceptRoleMap;
+import au.csiro.snorocket.core.util.DatatypeIndex;
+import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.MonotonicCollection;
+import au.csiro.snorocket.core.util.PackedConceptMap;
+import au.csiro.snorocket.core.util.RoleClosure;
+import au.csiro.snorocket.core.util.SparseConceptSet;
+
+/**
+ * The state shared by all the {@link Context}s of a {@link NormalisedOntology}
+ * during saturation: the work queue, the context index and the normalised
+ * axiom indexes. Each ontology owns one, so several ontologies can be
+ * classified at the same time in the same JVM.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class SaturationState implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Reference to the parent context queue. Used to add contexts back to the
+     * queue when reactivated.
+     */
+    Queue<Context> parentTodo;
+
+    /**
+     * Reference to the parent context index. Used to add queue entries to
+     * other contexts.
+     */
+    IConceptMap<Context> contextIndex;
+
+    /**
+     * Reference to the role closure.
+     */
+    RoleClosure roleClosure;
+
+    /**
+     * The set of NF1 terms in the ontology.
+     *
+     * These terms are of the form A n Ai [ B and are indexed by A. The
+     * entries are (Ai, B).
+     */
+    PackedConceptMap ontologyNF1;
+
+    /**
+     * The set of NF2 terms in the ontology.
+     *
+     * These terms are of the form A [ r.B and are indexed by A. The entries
+     * are (r, B).
+     */
+    PackedConceptMap ontologyNF2;
+
+    /**
+     * The set of NF3 terms in the ontology.
+     *
+     * These terms are of the form r.A [ b and indexed by A and then by r.
+     */
+    ConceptRoleMap ontologyNF3;
+
+    /**
+     * The set of NF5 terms r o s [ t in the ontology indexed by their first
+     * role. The entries are (s, t).
+     */
+    PackedConceptMap ontologyNF5ByR;
+
+    /**
+     * The set of NF5 terms r o s [ t in the ontology indexed by their second
+     * role. The entries are (r, t).
+     */
+    PackedConceptMap ontologyNF5ByS;
+
+    /**
+     * The set of reflexive roles in the ontology
+     */
+    IConceptSet reflexiveRoles = new SparseConceptSet();
+
+    /**
+     * The set of NF7 terms in the ontology.
+     *
+     * These terms are of the form A [ f.(o, v) and are indexed by A.
+     */
+    IConceptMap<MonotonicCollection<NF7>> ontologyNF7;
+
+    /**
+     * The set of NF8 terms in the ontology.
+     *
+     * These terms are of the form f.(o, v) [ A. These are indexed by f, and
+     * then by o and v.
+     */
+    DatatypeIndex ontologyNF8;
+
+    /**
+     * The set of affected contexts used in incremental classification.
+     */
+    Set<Context> affectedContexts;
+
+    /**
+     * Takes the current queue, indexes and role closure of an ontology. Must
+     * be called before each saturation, while no context is being processed,
+     * because the ontology may have replaced some of them. The NF1, NF2, NF5
+     * and NF8 indexes are the frozen ones, see
+     * {@link NormalisedOntology#freeze()}.
+     *
+     * @param ont
+     */
+    public void init(NormalisedOntology ont) {
+        parentTodo = ont.getTodo();
+        contextIndex = ont.getContextIndex();
+        ontologyNF1 = ont.getPackedNF1();
+        ontologyNF2 = ont.getPackedNF2();
+        ontologyNF3 = ont.getOntologyNF3();
+        ontologyNF5ByR = ont.getPackedNF5ByR();
+        ontologyNF5ByS = ont.getPackedNF5ByS();
+        reflexiveRoles = ont.getReflexiveRoles();
+        ontologyNF7 = ont.getOntologyNF7();
+        ontologyNF8 = ont.getDatatypeIndex();
+        roleClosure = ont.getRoleClosure();
+        affectedContexts = ont.getAffectedContexts();
+    }
+
+}
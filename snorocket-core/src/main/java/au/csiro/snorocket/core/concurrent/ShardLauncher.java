@@ -0,0 +1,34 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.io.IOException;
+
+/**
+ * Starts the worker processes of a {@link DistributedSaturation}. Each one
+ * must run {@link SaturationShard#main(String[])} with the host and port of
+ * the coordinator.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public interface ShardLauncher {
+
+    /**
+     * Starts the shards.
+     *
+     * @param host An address of the coordinator.
+     * @param port The port of the coordinator.
+     * @param numShards
+     * @throws IOException
+     */
+    void launch(String host, int port, int numShards) throws IOException;
+
+    /**
+     * Releases the shards once saturation has finished or failed.
+     */
+    void close();
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.csiro.snorocket.core.util.LongQueue;
+
+/**
+ * A bounded ring buffer of longs with a single producer thread and a single
+ * consumer thread. Values are added in pairs so that a message made of two
+ * longs is never seen half written. Neither side locks: the producer
+ * publishes new values by advancing the tail and the consumer releases slots
+ * by advancing the head, both with ordered writes.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class SpscLongQueue {
+
+    private final long[] buffer;
+
+    private final int mask;
+
+    /**
+     * The index of the next value to read. Only written by the consumer.
+     */
+    private final PaddedLong head = new PaddedLong();
+
+    /**
+     * The index of the next value to write. Only written by the producer.
+     */
+    private final PaddedLong tail = new PaddedLong();
+
+    /**
+     * The last head seen by the producer, so that it only reads the
+     * consumer's counter when the buffer looks full.
+     */
+    private long producerHead = 0;
+
+    /**
+     *
+     * @param capacity The number of longs the queue can hold. Must be a power
+     *            of two.
+     */
+    public SpscLongQueue(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        buffer = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds a pair of values. Returns false if the queue is full. Must only be
+     * called by the producer.
+     *
+     * @param first
+     * @param second
+     * @return boolean
+     */
+    public boolean offer(long first, long second) {
+        final long t = tail.get();
+        if (t + 2 - producerHead > buffer.length) {
+            producerHead = head.get();
+            if (t + 2 - producerHead > buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = first;
+        buffer[(int) (t + 1) & mask] = second;
+        tail.lazySet(t + 2);
+        return true;
+    }
+
+    /**
+     * Moves all the available values to a queue and returns how many were
+     * moved. Must only be called by the consumer.
+     *
+     * @param dst
+     * @return int
+     */
+    public int drainTo(LongQueue dst) {
+        final long h = head.get();
+        final long t = tail.get();
+        for (long i = h; i < t; i++) {
+            dst.add(buffer[(int) i & mask]);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+
+    /**
+     * Indicates if there are no values to read. Can be called from any
+     * thread.
+     *
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * An {@link AtomicLong} padded to its own cache line, so that the
+     * producer and the consumer do not invalidate each other's counter.
+     */
+    private static final class PaddedLong extends AtomicLong {
+
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Represents a worker in charge of deriving axioms in a {@link Context} that
+ * takes its work from a {@link WorkStealingQueue}. Unlike {@link Worker}, an
+ * idle worker does not exit as soon as it finds no work because other workers
+ * may still activate contexts. It only exits once every context added to the
+ * queue has been processed.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class StealingWorker implements Runnable {
+
+    /**
+     * Number of failed attempts to find work before the worker starts parking.
+     */
+    private static final int SPINS = 64;
+
+    private final WorkStealingQueue todo;
+
+    private final int index;
+
+    /**
+     * Buffers the messages sent to other contexts.
+     */
+    private final Outbox outbox = new Outbox();
+
+    /**
+     * The number of times this worker has processed a context.
+     */
+    private long numProcessed = 0;
+
+    /**
+     *
+     * @param todo
+     * @param index The index of the deque owned by this worker.
+     */
+    public StealingWorker(WorkStealingQueue todo, int index) {
+        this.todo = todo;
+        this.index = index;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        todo.register(index);
+        try {
+            int idle = 0;
+            while (true) {
+                if (todo.isAborted()) {
+                    break;
+                }
+                Context ctx = todo.poll();
+                if (ctx != null) {
+                    idle = 0;
+                    boolean processed = false;
+                    try {
+                        ctx.processOntology(outbox);
+                        processed = true;
+                    } finally {
+                        todo.done();
+                        if (!processed) {
+                            // Releases the other workers, the phase rethrows
+                            todo.abort();
+                        }
+                    }
+                    numProcessed++;
+                } else if (todo.isQuiescent()) {
+                    break;
+                } else if (++idle < SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(50000);
+                }
+            }
+        } finally {
+            todo.unregister();
+        }
+    }
+
+    /**
+     * Returns the number of times this worker has processed a context. Only
+     * valid once the worker has finished.
+     *
+     * @return long
+     */
+    public long getNumProcessed() {
+        return numProcessed;
+    }
+
+    /**
+     * Returns the outbox used by this worker, which also counts the concept
+     * queue entries added while processing contexts.
+     *
+     * @return Outbox
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+}
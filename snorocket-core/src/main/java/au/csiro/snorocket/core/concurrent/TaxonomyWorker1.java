@@ -8,7 +8,6 @@ import java.util.Queue;
 import java.util.concurrent.ConcurrentMap;
 
 import au.csiro.snorocket.core.IFactory;
-import au.csiro.snorocket.core.util.FastConceptHashSet;
 import au.csiro.snorocket.core.util.IConceptMap;
 import au.csiro.snorocket.core.util.IConceptSet;
 import au.csiro.snorocket.core.util.IntIterator;
@@ -108,7 +107,7 @@ public class TaxonomyWorker1 implements Runnable {
             int key, int val) {
         IConceptSet valSet = set.get(key);
         if(valSet == null) {
-            IConceptSet temp = new FastConceptHashSet();
+            IConceptSet temp = IConceptSet.FACTORY.createConceptSet();
             valSet = set.putIfAbsent(key, temp);
             if(valSet == null) {
                 temp.add(val);
@@ -0,0 +1,313 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of active {@link Context}s backed by one deque per worker thread. A
+ * context added by a registered {@link StealingWorker} goes onto that worker's
+ * own deque and is taken back in LIFO order. Idle workers steal the oldest
+ * contexts from the other deques. Contexts added by any other thread (e.g.
+ * when the ontology primes the contexts before saturation starts) go onto a
+ * shared queue that every worker drains.
+ *
+ * <p>
+ * {@link #peek()}, {@link #size()} and {@link #iterator()} are weakly
+ * consistent: they look at the shared queue and at each deque in turn, so
+ * they may miss contexts that are moved or added concurrently.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class WorkStealingQueue extends AbstractQueue<Context> implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Contexts added by threads that are not workers.
+     */
+    private final Queue<Context> shared = new ConcurrentLinkedQueue<Context>();
+
+    /**
+     * Number of contexts that have been added and not yet fully processed.
+     * Saturation is finished when this reaches zero.
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    /**
+     * Number of successful steals in the current run.
+     */
+    private final AtomicLong steals = new AtomicLong(0);
+
+    /**
+     * Set when a worker fails, so that the others stop waiting for the
+     * contexts that will never be processed.
+     */
+    private volatile boolean aborted = false;
+
+    /**
+     * The per-worker deques of the current run.
+     */
+    private transient volatile ContextDeque[] deques = new ContextDeque[0];
+
+    /**
+     * The deque owned by the current thread, if it is a registered worker.
+     */
+    private transient ThreadLocal<ContextDeque> local;
+
+    /**
+     * Creates the deques for a new run with the given number of workers. Must
+     * be called before the workers are started.
+     *
+     * @param numWorkers
+     */
+    public void init(int numWorkers) {
+        ContextDeque[] ds = new ContextDeque[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            ds[i] = new ContextDeque();
+        }
+        local = new ThreadLocal<ContextDeque>();
+        steals.set(0);
+        aborted = false;
+        deques = ds;
+    }
+
+    /**
+     * Binds the calling thread to the deque with the given index.
+     *
+     * @param index
+     */
+    void register(int index) {
+        local.set(deques[index]);
+    }
+
+    /**
+     * Unbinds the calling thread from its deque. Pooled threads must not keep
+     * pushing onto a deque after their worker has finished.
+     */
+    void unregister() {
+        local.remove();
+    }
+
+    /**
+     * Signals that a context returned by {@link #poll()} has been processed.
+     */
+    void done() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Signals that a worker has failed. The other workers stop as if every
+     * context had been processed.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Returns true if every context that was added has been processed, or if
+     * a worker has failed.
+     *
+     * @return boolean
+     */
+    boolean isQuiescent() {
+        return pending.get() == 0 || aborted;
+    }
+
+    /**
+     * Indicates if a worker has failed since the last call to
+     * {@link #init(int)}.
+     *
+     * @return boolean
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Returns the number of contexts stolen from other workers since the last
+     * call to {@link #init(int)}.
+     *
+     * @return long
+     */
+    public long getSteals() {
+        return steals.get();
+    }
+
+    public boolean offer(Context ctx) {
+        pending.incrementAndGet();
+        final ThreadLocal<ContextDeque> tl = local;
+        final ContextDeque own = (tl != null) ? tl.get() : null;
+        if (own != null) {
+            own.push(ctx);
+        } else {
+            shared.add(ctx);
+        }
+        return true;
+    }
+
+    public Context poll() {
+        final ThreadLocal<ContextDeque> tl = local;
+        final ContextDeque own = (tl != null) ? tl.get() : null;
+        Context ctx = null;
+        if (own != null) {
+            ctx = own.pop();
+            if (ctx != null)
+                return ctx;
+        }
+
+        ctx = shared.poll();
+        if (ctx != null)
+            return ctx;
+
+        // Try to steal, starting at a victim that depends on the thief so
+        // that idle workers do not all hit the same deque
+        final ContextDeque[] ds = deques;
+        final int n = ds.length;
+        if (n == 0)
+            return null;
+        final int start = (own != null) ? own.hashCode() : 0;
+        for (int i = 0; i < n; i++) {
+            ContextDeque victim = ds[((start + i) & Integer.MAX_VALUE) % n];
+            if (victim == own)
+                continue;
+            ctx = victim.steal();
+            if (ctx != null) {
+                steals.incrementAndGet();
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    public Context peek() {
+        final ThreadLocal<ContextDeque> tl = local;
+        final ContextDeque own = (tl != null) ? tl.get() : null;
+        Context ctx = null;
+        if (own != null) {
+            ctx = own.peekLast();
+            if (ctx != null)
+                return ctx;
+        }
+
+        ctx = shared.peek();
+        if (ctx != null)
+            return ctx;
+
+        for (ContextDeque d : deques) {
+            if (d == own)
+                continue;
+            ctx = d.peekFirst();
+            if (ctx != null)
+                return ctx;
+        }
+        return null;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the contexts in the shared queue
+     * and then in each deque. The iterator does not support removal.
+     */
+    @Override
+    public Iterator<Context> iterator() {
+        final List<Context> snapshot = new ArrayList<Context>(shared);
+        for (ContextDeque d : deques) {
+            d.copyTo(snapshot);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    @Override
+    public int size() {
+        int size = shared.size();
+        for (ContextDeque d : deques) {
+            size += d.size();
+        }
+        return size;
+    }
+
+    private Object readResolve() {
+        deques = new ContextDeque[0];
+        return this;
+    }
+
+    /**
+     * A double-ended queue of contexts. The owner pushes and pops at the tail
+     * and thieves take from the head. All operations lock the deque, which is
+     * almost never contended because only steals touch another worker's deque.
+     */
+    private static final class ContextDeque {
+
+        private Context[] items = new Context[32];
+        private int head = 0;
+        private int size = 0;
+
+        synchronized void push(Context ctx) {
+            if (size == items.length) {
+                Context[] newItems = new Context[items.length * 2];
+                for (int i = 0; i < size; i++) {
+                    newItems[i] = items[(head + i) % items.length];
+                }
+                items = newItems;
+                head = 0;
+            }
+            items[(head + size) % items.length] = ctx;
+            size++;
+        }
+
+        synchronized Context pop() {
+            if (size == 0)
+                return null;
+            size--;
+            final int idx = (head + size) % items.length;
+            final Context ctx = items[idx];
+            items[idx] = null;
+            return ctx;
+        }
+
+        synchronized Context steal() {
+            if (size == 0)
+                return null;
+            final Context ctx = items[head];
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+            return ctx;
+        }
+
+        synchronized Context peekFirst() {
+            return size == 0 ? null : items[head];
+        }
+
+        synchronized Context peekLast() {
+            return size == 0 ? null : items[(head + size - 1) % items.length];
+        }
+
+        synchronized void copyTo(List<Context> list) {
+            for (int i = 0; i < size; i++) {
+                list.add(items[(head + i) % items.length]);
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+
+}
@@ -16,6 +16,16 @@ public class Worker implements Runnable {
 
     private final Queue<Context> todo;
 
+    /**
+     * Buffers the messages sent to other contexts.
+     */
+    private final Outbox outbox = new Outbox();
+
+    /**
+     * The number of times this worker has processed a context.
+     */
+    private long numProcessed = 0;
+
     /**
      * 
      * @param todo
@@ -33,8 +43,29 @@ public class Worker implements Runnable {
             Context ctx = todo.poll();
             if (ctx == null)
                 break;
-            ctx.processOntology();
+            ctx.processOntology(outbox);
+            numProcessed++;
         }
     }
 
+    /**
+     * Returns the number of times this worker has processed a context. Only
+     * valid once the worker has finished.
+     *
+     * @return long
+     */
+    public long getNumProcessed() {
+        return numProcessed;
+    }
+
+    /**
+     * Returns the outbox used by this worker, which also counts the concept
+     * queue entries added while processing contexts.
+     *
+     * @return Outbox
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
 }
@@ -4,12 +4,65 @@
  */
 package au.csiro.snorocket.core.model;
 
+import java.io.Serializable;
+
 /**
  * Represents a literal in a data property expression.
  * 
  * @author Alejandro Metke
  * 
  */
-public abstract class AbstractLiteral implements Comparable<AbstractLiteral> {
+public abstract class AbstractLiteral implements Comparable<AbstractLiteral>, Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Indicates if this literal has a primitive key that orders it among the
+     * literals of the same class like {@link #compareTo(Object)}. Keys are
+     * computed when literals are created: integers and dates are encoded as
+     * longs, and decimals as ordered doubles when the double is exact. Other
+     * literals, like strings, are only compared with compareTo.
+     * 
+     * @return
+     */
+    public boolean hasKey() {
+        return false;
+    }
+
+    /**
+     * Returns the key of this literal. Only valid if {@link #hasKey()}
+     * returns true.
+     * 
+     * @return
+     */
+    public long getKey() {
+        return 0;
+    }
+
+    /**
+     * Compares two keys, returning -1, 0 or 1.
+     * 
+     * @param k1
+     * @param k2
+     * @return
+     */
+    public static int compareKeys(long k1, long k2) {
+        return (k1 < k2 ? -1 : (k1 == k2 ? 0 : 1));
+    }
+
+    /**
+     * Returns a key that orders doubles like {@link Double#compare(double, double)}.
+     * 
+     * @param d
+     * @return
+     */
+    protected static long orderedKey(double d) {
+        final long bits = Double.doubleToLongBits(d);
+        // Reverses the order of negative values
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -13,6 +13,11 @@ import java.math.BigInteger;
 public class BigIntegerLiteral extends AbstractLiteral {
     private final BigInteger value;
 
+    /**
+     * Indicates if the value fits in a long, see {@link #hasKey()}.
+     */
+    private final boolean hasKey;
+
     /**
      * Constructor.
      * 
@@ -20,6 +25,7 @@ public class BigIntegerLiteral extends AbstractLiteral {
      */
     public BigIntegerLiteral(BigInteger value) {
         this.value = value;
+        hasKey = value != null && value.bitLength() < 64;
     }
 
     /**
@@ -59,7 +65,21 @@ public class BigIntegerLiteral extends AbstractLiteral {
         return String.valueOf(value);
     }
 
+    @Override
+    public boolean hasKey() {
+        return hasKey;
+    }
+
+    @Override
+    public long getKey() {
+        return hasKey ? value.longValue() : 0;
+    }
+
     public int compareTo(AbstractLiteral o) {
-        return value.compareTo(((BigIntegerLiteral) o).value);
+        final BigIntegerLiteral other = (BigIntegerLiteral) o;
+        if (hasKey && other.hasKey) {
+            return compareKeys(value.longValue(), other.value.longValue());
+        }
+        return value.compareTo(other.value);
     }
 }
@@ -16,8 +16,21 @@ public class DateLiteral extends AbstractLiteral {
     private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
     private final Calendar value;
 
+    /**
+     * Indicates if there is a value, see {@link #hasKey()}.
+     */
+    private final boolean hasKey;
+
+    /**
+     * The time of the value in milliseconds, which is what Calendars are
+     * compared by.
+     */
+    private final long key;
+
     public DateLiteral(Calendar value) {
         this.value = value;
+        hasKey = value != null;
+        key = hasKey ? value.getTimeInMillis() : 0;
     }
 
     /**
@@ -57,8 +70,21 @@ public class DateLiteral extends AbstractLiteral {
         return sdf.format(value.getTime());
     }
 
+    @Override
+    public boolean hasKey() {
+        return hasKey;
+    }
+
+    @Override
+    public long getKey() {
+        return key;
+    }
+
     public int compareTo(AbstractLiteral o) {
         DateLiteral dl = (DateLiteral) o;
+        if (hasKey && dl.hasKey) {
+            return compareKeys(key, dl.key);
+        }
         Calendar otherValue = dl.value;
         return value.compareTo(otherValue);
     }
@@ -16,6 +16,13 @@ public class DecimalLiteral extends AbstractLiteral {
 
     private final BigDecimal value;
 
+    /**
+     * Indicates if the value is exactly a double, see {@link #hasKey()}.
+     */
+    private final boolean hasKey;
+
+    private final long key;
+
     /**
      * Constructor.
      * 
@@ -23,6 +30,9 @@ public class DecimalLiteral extends AbstractLiteral {
      */
     public DecimalLiteral(BigDecimal value) {
         this.value = value;
+        final double d = value != null ? value.doubleValue() : Double.NaN;
+        hasKey = !Double.isNaN(d) && !Double.isInfinite(d) && new BigDecimal(d).compareTo(value) == 0;
+        key = hasKey ? orderedKey(d) : 0;
     }
 
     /**
@@ -62,8 +72,22 @@ public class DecimalLiteral extends AbstractLiteral {
         return String.valueOf(value);
     }
 
+    @Override
+    public boolean hasKey() {
+        return hasKey;
+    }
+
+    @Override
+    public long getKey() {
+        return key;
+    }
+
     public int compareTo(AbstractLiteral o) {
-        return value.compareTo(((DecimalLiteral) o).value);
+        final DecimalLiteral other = (DecimalLiteral) o;
+        if (hasKey && other.hasKey) {
+            return compareKeys(key, other.key);
+        }
+        return value.compareTo(other.value);
     }
     
 }
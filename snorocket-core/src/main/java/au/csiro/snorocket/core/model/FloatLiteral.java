@@ -58,6 +58,17 @@ public class FloatLiteral extends AbstractLiteral {
         return String.valueOf(value);
     }
 
+    @Override
+    public boolean hasKey() {
+        return true;
+    }
+
+    @Override
+    public long getKey() {
+        // Widening is exact and keeps the order of Float.compare
+        return orderedKey(value);
+    }
+
     public int compareTo(AbstractLiteral o) {
         return Float.compare(value, ((FloatLiteral) o).value);
     }
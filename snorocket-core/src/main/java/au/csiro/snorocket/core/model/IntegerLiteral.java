@@ -58,6 +58,16 @@ public class IntegerLiteral extends AbstractLiteral {
         return String.valueOf(value);
     }
 
+    @Override
+    public boolean hasKey() {
+        return true;
+    }
+
+    @Override
+    public long getKey() {
+        return value;
+    }
+
     public int compareTo(AbstractLiteral o) {
         int thisVal = this.value;
         int anotherVal = ((IntegerLiteral) o).value;
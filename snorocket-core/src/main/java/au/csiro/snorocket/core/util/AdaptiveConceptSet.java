@@ -0,0 +1,512 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+import java.io.Serializable;
+
+/**
+ * Implementation of the IConceptSet API that splits concept ids into chunks
+ * of 65536 values (by their upper 16 bits) and stores each chunk in the
+ * container that suits its density, in the style of roaring bitmaps. A chunk
+ * with up to {@link #ARRAY_MAX} members is a sorted array of its lower 16
+ * bits, which grows geometrically. Denser chunks become a fixed 8KB bitmap, so
+ * large sets get constant time inserts and lookups.
+ *
+ * <p>
+ * Like {@link SparseConceptSet}, updates are synchronized and lookups are not,
+ * so that other threads can test membership without locking while the set is
+ * being filled. Iterators do not lock or copy either: they walk the live
+ * containers, bounded by each container's cardinality, and are weakly
+ * consistent. A member present when the iterator was created is always
+ * returned, exactly once, while members added concurrently may or may not be.
+ * This does not hold for concurrent removals, which saturation never does.
+ * </p>
+ *
+ * <p>
+ * A set that only one thread changes can skip the lock altogether, see
+ * {@link #setSingleWriter(boolean)}.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class AdaptiveConceptSet implements IConceptSet {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of members of an array container. Above this a bitmap
+     * uses less memory.
+     */
+    static final int ARRAY_MAX = 4096;
+
+    /**
+     * A bitmap container becomes an array again when it drops below this
+     * size. The gap with {@link #ARRAY_MAX} avoids converting back and forth.
+     */
+    static final int ARRAY_MIN = ARRAY_MAX / 2;
+
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private static final Container[] NO_CONTAINERS = new Container[0];
+
+    /**
+     * The containers sorted by key. Replaced, never modified, when a
+     * container is added or removed.
+     */
+    private volatile Container[] containers = NO_CONTAINERS;
+
+    private int size = 0;
+
+    /**
+     * True if additions do not take the lock.
+     */
+    private volatile boolean singleWriter = false;
+
+    public AdaptiveConceptSet() {
+    }
+
+    /**
+     *
+     * @param capacity
+     *            Ignored, containers are sized as members are added.
+     */
+    public AdaptiveConceptSet(final int capacity) {
+    }
+
+    /**
+     * Selects if additions skip the lock, which is only safe while a single
+     * thread changes the set. Lookups and iterators never lock, so other
+     * threads can still read it. The switch itself must be published to the
+     * writer, for example by starting or joining the threads involved.
+     *
+     * @param singleWriter
+     */
+    public void setSingleWriter(boolean singleWriter) {
+        this.singleWriter = singleWriter;
+    }
+
+    /**
+     * Calls {@link #setSingleWriter(boolean)} if the set is an
+     * AdaptiveConceptSet. Other sets keep locking.
+     *
+     * @param set
+     * @param singleWriter
+     */
+    public static void setSingleWriter(IConceptSet set, boolean singleWriter) {
+        if (set instanceof AdaptiveConceptSet) {
+            ((AdaptiveConceptSet) set).setSingleWriter(singleWriter);
+        }
+    }
+
+    public void add(final int concept) {
+        if (singleWriter) {
+            addUnlocked(concept);
+        } else {
+            synchronized (this) {
+                addUnlocked(concept);
+            }
+        }
+    }
+
+    private void addUnlocked(final int concept) {
+        final Container[] cs = containers;
+        final int key = concept >>> 16;
+        int idx = indexOf(cs, key);
+        if (idx < 0) {
+            idx = -idx - 1;
+            final Container[] newCs = new Container[cs.length + 1];
+            System.arraycopy(cs, 0, newCs, 0, idx);
+            newCs[idx] = new Container(key);
+            newCs[idx].add((char) concept);
+            System.arraycopy(cs, idx, newCs, idx + 1, cs.length - idx);
+            containers = newCs;
+            size++;
+        } else if (cs[idx].add((char) concept)) {
+            size++;
+        }
+    }
+
+    public void addAll(final IConceptSet set) {
+        for (final IntIterator itr = set.iterator(); itr.hasNext();) {
+            add(itr.next());
+        }
+    }
+
+    public synchronized void clear() {
+        containers = NO_CONTAINERS;
+        size = 0;
+    }
+
+    public boolean contains(final int concept) {
+        final Container[] cs = containers;
+        final int idx = indexOf(cs, concept >>> 16);
+        return idx >= 0 && cs[idx].contains((char) concept);
+    }
+
+    public boolean containsAll(final IConceptSet concepts) {
+        for (final IntIterator itr = concepts.iterator(); itr.hasNext();) {
+            if (!contains(itr.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void remove(final int concept) {
+        final Container[] cs = containers;
+        final int idx = indexOf(cs, concept >>> 16);
+        if (idx < 0 || !cs[idx].remove((char) concept)) {
+            return;
+        }
+        size--;
+        if (cs[idx].cardinality == 0) {
+            final Container[] newCs = new Container[cs.length - 1];
+            System.arraycopy(cs, 0, newCs, 0, idx);
+            System.arraycopy(cs, idx + 1, newCs, idx, cs.length - idx - 1);
+            containers = newCs;
+        }
+    }
+
+    public void removeAll(final IConceptSet set) {
+        for (final IntIterator itr = set.iterator(); itr.hasNext();) {
+            remove(itr.next());
+        }
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Does nothing: containers are sized as members are added.
+     */
+    public void grow(int newSize) {
+    }
+
+    public IntIterator iterator() {
+        return new LiveIterator(containers);
+    }
+
+    public int[] toArray() {
+        int[] res = new int[size];
+        int n = 0;
+        for (final IntIterator itr = iterator(); itr.hasNext();) {
+            // Members may be added while iterating
+            if (n == res.length) {
+                final int[] newRes = new int[res.length + (res.length >> 1) + 1];
+                System.arraycopy(res, 0, newRes, 0, n);
+                res = newRes;
+            }
+            res[n++] = itr.next();
+        }
+        if (n < res.length) {
+            final int[] newRes = new int[n];
+            System.arraycopy(res, 0, newRes, 0, n);
+            res = newRes;
+        }
+        return res;
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{");
+        for (final IntIterator itr = iterator(); itr.hasNext();) {
+            sb.append(itr.next());
+            if (itr.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     * Binary search for a key. Returns -(insertion point) - 1 if not found.
+     */
+    private static int indexOf(final Container[] cs, final int key) {
+        int lo = 0;
+        int hi = cs.length - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int k = cs[mid].key;
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Holds the members of the set that share their upper 16 bits, either as
+     * a sorted array or as a bitmap. Exactly one of values and bitmap is
+     * non-null, except while converting, when the new one is set first.
+     *
+     * <p>
+     * Additions keep the array readable without locking: the first
+     * cardinality values are always members in non-decreasing order, and a
+     * value only ever moves right while another is inserted before it. A
+     * grown array is published after the cardinality, so a reader that sees
+     * it also sees its size, and an array that has been replaced is never
+     * written again.
+     * </p>
+     */
+    private static final class Container implements Serializable {
+
+        /**
+         * Serialisation version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        final int key;
+
+        volatile char[] values = new char[4];
+
+        volatile long[] bitmap;
+
+        volatile int cardinality = 0;
+
+        Container(int key) {
+            this.key = key;
+        }
+
+        boolean contains(final char v) {
+            while (true) {
+                final char[] vs = values;
+                if (vs != null) {
+                    return search(vs, Math.min(cardinality, vs.length), v) >= 0;
+                }
+                final long[] bm = bitmap;
+                // Null only if the container has just become an array again
+                if (bm != null) {
+                    return (bm[v >>> 6] & (1L << v)) != 0;
+                }
+            }
+        }
+
+        /**
+         * Returns true if the value was not already present.
+         */
+        boolean add(final char v) {
+            final char[] vs = values;
+            if (vs == null) {
+                final long[] bm = bitmap;
+                final int w = v >>> 6;
+                final long bit = 1L << v;
+                if ((bm[w] & bit) != 0) {
+                    return false;
+                }
+                bm[w] |= bit;
+                cardinality++;
+                return true;
+            }
+
+            int pos = search(vs, cardinality, v);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (cardinality == ARRAY_MAX) {
+                toBitmap(vs);
+                return add(v);
+            }
+            final int n = cardinality;
+            if (n == vs.length) {
+                final char[] newVs = new char[Math.min(vs.length << 1, ARRAY_MAX)];
+                System.arraycopy(vs, 0, newVs, 0, pos);
+                newVs[pos] = v;
+                System.arraycopy(vs, pos, newVs, pos + 1, n - pos);
+                cardinality = n + 1;
+                values = newVs;
+            } else if (pos == n) {
+                vs[n] = v;
+                cardinality = n + 1;
+            } else {
+                // Copy the last value into the free slot before counting it,
+                // then shift the rest, so that readers see every member
+                vs[n] = vs[n - 1];
+                cardinality = n + 1;
+                System.arraycopy(vs, pos, vs, pos + 1, n - 1 - pos);
+                vs[pos] = v;
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the value was present.
+         */
+        boolean remove(final char v) {
+            final char[] vs = values;
+            if (vs == null) {
+                final long[] bm = bitmap;
+                final int w = v >>> 6;
+                final long bit = 1L << v;
+                if ((bm[w] & bit) == 0) {
+                    return false;
+                }
+                bm[w] &= ~bit;
+                cardinality--;
+                if (cardinality < ARRAY_MIN) {
+                    toArray(bm);
+                }
+                return true;
+            }
+
+            final int pos = search(vs, cardinality, v);
+            if (pos < 0) {
+                return false;
+            }
+            cardinality--;
+            System.arraycopy(vs, pos + 1, vs, pos, cardinality - pos);
+            return true;
+        }
+
+        private void toBitmap(final char[] vs) {
+            final long[] bm = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                final char v = vs[i];
+                bm[v >>> 6] |= 1L << v;
+            }
+            // Publish the bitmap before readers can see a null array
+            bitmap = bm;
+            values = null;
+        }
+
+        private void toArray(final long[] bm) {
+            final char[] vs = new char[ARRAY_MAX];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = bm[w];
+                while (word != 0) {
+                    final int bit = Long.numberOfTrailingZeros(word);
+                    vs[n++] = (char) ((w << 6) + bit);
+                    word &= word - 1;
+                }
+            }
+            values = vs;
+            bitmap = null;
+        }
+
+        private static int search(final char[] vs, final int n, final char v) {
+            int lo = 0;
+            int hi = n - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final char m = vs[mid];
+                if (m < v) {
+                    lo = mid + 1;
+                } else if (m > v) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+    }
+
+    /**
+     * Iterates over the live containers in ascending order. The bound of an
+     * array is re-read on every step, and values that are not greater than
+     * the last one returned are skipped, because a value being shifted right
+     * can be seen twice.
+     */
+    private static final class LiveIterator implements IntIterator {
+
+        private final Container[] cs;
+
+        private int container = -1;
+        private int key;
+        private char[] values;
+        private long[] bitmap;
+        private int pos;
+        private int last;
+        private long word;
+        private int next = -1;
+
+        LiveIterator(Container[] cs) {
+            this.cs = cs;
+            advance();
+        }
+
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        public int next() {
+            final int res = next;
+            if (res >= 0) {
+                advance();
+            }
+            return res;
+        }
+
+        private void advance() {
+            while (true) {
+                if (values != null) {
+                    final char[] vs = values;
+                    final Container c = cs[container];
+                    while (pos < Math.min(c.cardinality, vs.length)) {
+                        final char v = vs[pos++];
+                        if (v > last) {
+                            last = v;
+                            next = key | v;
+                            return;
+                        }
+                    }
+                } else if (bitmap != null) {
+                    final long[] bm = bitmap;
+                    while (word == 0 && pos < BITMAP_WORDS) {
+                        word = bm[pos++];
+                    }
+                    if (word != 0) {
+                        final int bit = Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                        next = key | (((pos - 1) << 6) + bit);
+                        return;
+                    }
+                }
+                if (++container == cs.length) {
+                    values = null;
+                    bitmap = null;
+                    next = -1;
+                    return;
+                }
+                open(cs[container]);
+            }
+        }
+
+        private void open(final Container c) {
+            key = c.key << 16;
+            pos = 0;
+            last = -1;
+            word = 0;
+            while (true) {
+                values = c.values;
+                if (values != null) {
+                    bitmap = null;
+                    return;
+                }
+                bitmap = c.bitmap;
+                // Null only if the container has just become an array again
+                if (bitmap != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
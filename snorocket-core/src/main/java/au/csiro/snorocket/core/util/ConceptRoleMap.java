@@ -0,0 +1,360 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Maps a (concept, role) pair to an array of conjunction queue entries, each
+ * packed into a long with {@link LongQueue#pack(int, int)}. It is used to
+ * index the NF3 terms (r.A [ B) by A and then by r.
+ *
+ * <p>
+ * While axioms are loaded the entries of a concept are appended to a
+ * growable buffer per role, and an entry that is already there for the same
+ * concept and role is ignored. {@link #compact()} then turns the buffers into
+ * a single immutable {@link Row} per concept: the sorted roles, the offsets
+ * of each role's entries and the entries themselves in one contiguous array,
+ * so readers see a compact layout and can walk it with plain index loops.
+ * Adding to a compacted concept copies its row back into buffers once.
+ * {@link #get(int)} compacts the row it returns, so it must not be called
+ * concurrently with {@link #add(int, int, long)}. Entries are only expected
+ * to be added while loading axioms, when no saturation is running.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class ConceptRoleMap implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private Row[] rows;
+
+    /**
+     * The buffers of the concepts with entries that have not been compacted
+     * yet.
+     */
+    private Builder[] builders;
+
+    private int size = 0;
+
+    private int numBuilders = 0;
+
+    /**
+     *
+     * @param capacity
+     *            estimated maximum concept id + 1
+     */
+    public ConceptRoleMap(final int capacity) {
+        rows = new Row[Math.max(capacity, 1)];
+        builders = new Builder[rows.length];
+    }
+
+    /**
+     * Returns the entries indexed by a concept or null if there are none.
+     *
+     * @param a
+     * @return
+     */
+    public Row get(int a) {
+        if (a >= rows.length) {
+            return null;
+        }
+        final Builder builder = builders[a];
+        if (builder != null) {
+            rows[a] = builder.toRow();
+            builders[a] = null;
+            numBuilders--;
+        }
+        return rows[a];
+    }
+
+    /**
+     * Adds an entry for the given concept and role, unless it is already
+     * there.
+     *
+     * @param a
+     * @param r
+     * @param entry A queue entry packed with {@link LongQueue#pack(int, int)}.
+     * @return true if the entry was added.
+     */
+    public boolean add(int a, int r, long entry) {
+        if (a >= rows.length) {
+            int newSize = rows.length << 1;
+            while (newSize <= a) {
+                newSize <<= 1;
+            }
+            final Row[] newRows = new Row[newSize];
+            System.arraycopy(rows, 0, newRows, 0, rows.length);
+            rows = newRows;
+            final Builder[] newBuilders = new Builder[newSize];
+            System.arraycopy(builders, 0, newBuilders, 0, builders.length);
+            builders = newBuilders;
+        }
+        Builder builder = builders[a];
+        if (builder == null) {
+            if (rows[a] == null) {
+                size++;
+            }
+            builder = new Builder(rows[a]);
+            builders[a] = builder;
+            rows[a] = null;
+            numBuilders++;
+        }
+        return builder.add(r, entry);
+    }
+
+    /**
+     * Turns the buffers of the concepts that have new entries into rows.
+     */
+    public void compact() {
+        for (int a = 0; numBuilders > 0 && a < builders.length; a++) {
+            if (builders[a] != null) {
+                get(a);
+            }
+        }
+    }
+
+    /**
+     * Indicates if an entry has been added for the given concept and role.
+     *
+     * @param a
+     * @param r
+     * @param entry A queue entry packed with {@link LongQueue#pack(int, int)}.
+     * @return
+     */
+    public boolean contains(int a, int r, long entry) {
+        if (a >= rows.length) {
+            return false;
+        }
+        final Builder builder = builders[a];
+        if (builder != null) {
+            return builder.contains(r, entry);
+        }
+        final Row row = rows[a];
+        if (row == null) {
+            return false;
+        }
+        final int idx = row.indexOf(r);
+        if (idx < 0) {
+            return false;
+        }
+        for (int j = row.start(idx); j < row.end(idx); j++) {
+            if (row.entries[j] == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of concepts with entries.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    public IntIterator keyIterator() {
+        return new IntIterator() {
+
+            int next = 0;
+
+            public boolean hasNext() {
+                while (next < rows.length && null == rows[next] && null == builders[next]) {
+                    next++;
+                }
+                return next < rows.length;
+            }
+
+            public int next() {
+                return hasNext() ? next++ : -1;
+            }
+
+        };
+    }
+
+    /**
+     * The entries of a single concept, grouped by role. The entries for the
+     * role at index i are in {@link #getEntries()} from {@link #start(int)}
+     * (inclusive) to {@link #end(int)} (exclusive).
+     */
+    public static final class Row implements Serializable {
+
+        /**
+         * Serialisation version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        private final int[] roles;
+        private final int[] offsets;
+        private final long[] entries;
+
+        private Row(int[] roles, int[] offsets, long[] entries) {
+            this.roles = roles;
+            this.offsets = offsets;
+            this.entries = entries;
+        }
+
+        /**
+         * Returns the number of roles in this row.
+         *
+         * @return
+         */
+        public int size() {
+            return roles.length;
+        }
+
+        public int getRole(int i) {
+            return roles[i];
+        }
+
+        public int start(int i) {
+            return offsets[i];
+        }
+
+        public int end(int i) {
+            return offsets[i + 1];
+        }
+
+        /**
+         * Returns the packed entries of this row. The array must not be
+         * modified.
+         *
+         * @return
+         */
+        public long[] getEntries() {
+            return entries;
+        }
+
+        /**
+         * Returns the index of a role in this row or -1 if it is not present.
+         *
+         * @param r
+         * @return
+         */
+        public int indexOf(int r) {
+            int lo = 0;
+            int hi = roles.length - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int v = roles[mid];
+                if (v < r) {
+                    lo = mid + 1;
+                } else if (v > r) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The growable buffers of the entries of a single concept while it is
+     * loaded: the sorted roles and, for each one, its entries.
+     */
+    private static final class Builder implements Serializable {
+
+        /**
+         * Serialisation version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        private int[] roles;
+        private long[][] entries;
+        private int[] counts;
+        private int numRoles;
+
+        /**
+         * Creates the buffers of a concept with the entries of its row, if
+         * it has one.
+         */
+        private Builder(Row row) {
+            final int n = row != null ? row.size() : 0;
+            roles = new int[Math.max(n, 2)];
+            entries = new long[roles.length][];
+            counts = new int[roles.length];
+            for (int i = 0; i < n; i++) {
+                roles[i] = row.roles[i];
+                counts[i] = row.end(i) - row.start(i);
+                entries[i] = new long[Math.max(counts[i], 2)];
+                System.arraycopy(row.entries, row.start(i), entries[i], 0, counts[i]);
+            }
+            numRoles = n;
+        }
+
+        private int indexOf(int r) {
+            return Arrays.binarySearch(roles, 0, numRoles, r);
+        }
+
+        private boolean contains(int r, long entry) {
+            final int idx = indexOf(r);
+            if (idx < 0) {
+                return false;
+            }
+            final long[] es = entries[idx];
+            for (int j = 0, n = counts[idx]; j < n; j++) {
+                if (es[j] == entry) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean add(int r, long entry) {
+            int idx = indexOf(r);
+            if (idx < 0) {
+                // New role: insert it keeping the roles sorted
+                idx = -idx - 1;
+                if (numRoles == roles.length) {
+                    final int newSize = numRoles << 1;
+                    roles = Arrays.copyOf(roles, newSize);
+                    entries = Arrays.copyOf(entries, newSize);
+                    counts = Arrays.copyOf(counts, newSize);
+                }
+                System.arraycopy(roles, idx, roles, idx + 1, numRoles - idx);
+                System.arraycopy(entries, idx, entries, idx + 1, numRoles - idx);
+                System.arraycopy(counts, idx, counts, idx + 1, numRoles - idx);
+                roles[idx] = r;
+                entries[idx] = new long[2];
+                counts[idx] = 0;
+                numRoles++;
+            } else if (contains(r, entry)) {
+                return false;
+            }
+            final int n = counts[idx];
+            if (n == entries[idx].length) {
+                entries[idx] = Arrays.copyOf(entries[idx], n << 1);
+            }
+            entries[idx][n] = entry;
+            counts[idx] = n + 1;
+            return true;
+        }
+
+        /**
+         * Copies the entries into a compact row.
+         */
+        private Row toRow() {
+            final int[] offsets = new int[numRoles + 1];
+            for (int i = 0; i < numRoles; i++) {
+                offsets[i + 1] = offsets[i] + counts[i];
+            }
+            final long[] es = new long[offsets[numRoles]];
+            for (int i = 0; i < numRoles; i++) {
+                System.arraycopy(entries[i], 0, es, offsets[i], counts[i]);
+            }
+            return new Row(Arrays.copyOf(roles, numRoles), offsets, es);
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.csiro.ontology.model.Operator;
+import au.csiro.snorocket.core.IFactory;
+import au.csiro.snorocket.core.axioms.NF8;
+import au.csiro.snorocket.core.model.AbstractLiteral;
+import au.csiro.snorocket.core.model.Datatype;
+
+/**
+ * A frozen index of the NF8 terms f.(o, v) [ B by feature, used to find the
+ * terms whose left hand side is implied by a datatype f.(o', v') without
+ * testing every term of the feature. The terms of a feature are split by
+ * operator. The ones with = are hashed by literal, and the others are sorted
+ * by literal, so the terms implied by a datatype are a prefix or a suffix of
+ * each sorted partition that is found with a binary search. The partitions
+ * are also split by literal class, because only literals of the same class
+ * can be compared.
+ *
+ * <p>
+ * The matches are the same as those of the pairwise test the contexts used
+ * before, except for f.(>, v') with f.(>=, v) and f.(<, v') with f.(<=, v).
+ * That test accepted them for any two literals of the same class, which
+ * derived for example f.(>=, 100) from f.(>, 5). They now match when
+ * v' >= v and v' <= v respectively.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class DatatypeIndex implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private static final Comparator<NF8> BY_LITERAL = new Comparator<NF8>() {
+        public int compare(NF8 o1, NF8 o2) {
+            return o1.lhsD.getLiteral().compareTo(o2.lhsD.getLiteral());
+        }
+    };
+
+    private final Feature[] features;
+
+    private DatatypeIndex(Feature[] features) {
+        this.features = features;
+    }
+
+    /**
+     * Builds a new index from the NF8 terms of an ontology, indexed by
+     * feature. If old is not null only the features in touched are indexed
+     * again, and the rest are shared with old.
+     *
+     * @param old The previous index or null.
+     * @param nf8s
+     * @param touched The features with new terms, ignored if old is null.
+     * @return
+     */
+    public static DatatypeIndex build(DatatypeIndex old, FeatureMap<MonotonicCollection<NF8>> nf8s,
+            FeatureSet touched) {
+        final FeatureSet keys = nf8s.keySet();
+        final int n = keys.length();
+        final Feature[] features = new Feature[Math.max(n, old != null ? old.features.length : 0)];
+        if (old != null) {
+            System.arraycopy(old.features, 0, features, 0, old.features.length);
+        }
+        final FeatureSet changed = old != null ? touched : keys;
+        for (int f = changed.nextSetBit(0); f >= 0; f = changed.nextSetBit(f + 1)) {
+            final MonotonicCollection<NF8> terms = nf8s.get(f);
+            features[f] = terms != null ? new Feature(terms) : null;
+        }
+        return new DatatypeIndex(features);
+    }
+
+    /**
+     * Returns the index of the NF8 terms of a feature or null if there are
+     * none.
+     *
+     * @param feature
+     * @return
+     */
+    public Feature get(int feature) {
+        return feature < features.length ? features[feature] : null;
+    }
+
+    /**
+     * The NF8 terms of a single feature.
+     */
+    public static final class Feature implements Serializable {
+
+        /**
+         * Serialisation version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The conclusions of the terms f.(=, v) [ B by v, as (TOP, B) queue
+         * entries packed with {@link LongQueue#pack(int, int)}.
+         */
+        private final Map<AbstractLiteral, long[]> equals = new HashMap<AbstractLiteral, long[]>();
+
+        private final Partition[] greaterThan;
+
+        private final Partition[] greaterThanEquals;
+
+        private final Partition[] lessThan;
+
+        private final Partition[] lessThanEquals;
+
+        private Feature(MonotonicCollection<NF8> terms) {
+            final List<NF8> gt = new ArrayList<NF8>();
+            final List<NF8> gte = new ArrayList<NF8>();
+            final List<NF8> lt = new ArrayList<NF8>();
+            final List<NF8> lte = new ArrayList<NF8>();
+            for (NF8 nf8 : terms) {
+                final Operator op = nf8.lhsD.getOperator();
+                if (op == Operator.EQUALS) {
+                    final AbstractLiteral lit = nf8.lhsD.getLiteral();
+                    final long[] entries = equals.get(lit);
+                    final long entry = LongQueue.pack(IFactory.TOP_CONCEPT, nf8.rhsB);
+                    if (entries == null) {
+                        equals.put(lit, new long[] { entry });
+                    } else {
+                        final long[] newEntries = new long[entries.length + 1];
+                        System.arraycopy(entries, 0, newEntries, 0, entries.length);
+                        newEntries[entries.length] = entry;
+                        equals.put(lit, newEntries);
+                    }
+                } else if (op == Operator.GREATER_THAN) {
+                    gt.add(nf8);
+                } else if (op == Operator.GREATER_THAN_EQUALS) {
+                    gte.add(nf8);
+                } else if (op == Operator.LESS_THAN) {
+                    lt.add(nf8);
+                } else if (op == Operator.LESS_THAN_EQUALS) {
+                    lte.add(nf8);
+                }
+            }
+            greaterThan = Partition.create(gt);
+            greaterThanEquals = Partition.create(gte);
+            lessThan = Partition.create(lt);
+            lessThanEquals = Partition.create(lte);
+        }
+
+        /**
+         * Adds to a queue the entries (TOP, B) of the terms f.(o, v) [ B whose
+         * left hand side is implied by a datatype, unless B is in known.
+         *
+         * @param d A datatype with this feature.
+         * @param known
+         * @param queue
+         * @return The number of matching terms, including the ones that were
+         *         not added.
+         */
+        public int match(Datatype d, IConceptSet known, LongQueue queue) {
+            final AbstractLiteral lit = d.getLiteral();
+            final Operator op = d.getOperator();
+            int count = 0;
+            if (op == Operator.EQUALS) {
+                final long[] entries = equals.get(lit);
+                if (entries != null) {
+                    count += add(entries, 0, entries.length, known, queue);
+                }
+                // v' > v, v' >= v, v' < v and v' <= v
+                for (Partition p : greaterThan) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, 0, p.lowerBound(lit), known, queue);
+                    }
+                }
+                for (Partition p : greaterThanEquals) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, 0, p.upperBound(lit), known, queue);
+                    }
+                }
+                for (Partition p : lessThan) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, p.upperBound(lit), p.entries.length, known, queue);
+                    }
+                }
+                for (Partition p : lessThanEquals) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, p.lowerBound(lit), p.entries.length, known, queue);
+                    }
+                }
+            } else if (op == Operator.GREATER_THAN) {
+                for (Partition p : greaterThan) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, 0, p.upperBound(lit), known, queue);
+                    }
+                }
+                // x > v' implies x >= v for v <= v'
+                for (Partition p : greaterThanEquals) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, 0, p.upperBound(lit), known, queue);
+                    }
+                }
+            } else if (op == Operator.GREATER_THAN_EQUALS) {
+                for (Partition p : greaterThan) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, 0, p.lowerBound(lit), known, queue);
+                    }
+                }
+                for (Partition p : greaterThanEquals) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, 0, p.upperBound(lit), known, queue);
+                    }
+                }
+            } else if (op == Operator.LESS_THAN) {
+                for (Partition p : lessThan) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, p.lowerBound(lit), p.entries.length, known, queue);
+                    }
+                }
+                // x < v' implies x <= v for v >= v'
+                for (Partition p : lessThanEquals) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, p.lowerBound(lit), p.entries.length, known, queue);
+                    }
+                }
+            } else if (op == Operator.LESS_THAN_EQUALS) {
+                for (Partition p : lessThan) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, p.upperBound(lit), p.entries.length, known, queue);
+                    }
+                }
+                for (Partition p : lessThanEquals) {
+                    if (p.accepts(lit)) {
+                        count += add(p.entries, p.lowerBound(lit), p.entries.length, known, queue);
+                    }
+                }
+            }
+            return count;
+        }
+
+        private static int add(long[] entries, int from, int to, IConceptSet known, LongQueue queue) {
+            for (int i = from; i < to; i++) {
+                final long entry = entries[i];
+                if (!known.contains(LongQueue.low(entry))) {
+                    queue.add(entry);
+                }
+            }
+            return to - from;
+        }
+
+    }
+
+    /**
+     * The terms of a feature with the same operator and literal class,
+     * sorted by literal.
+     */
+    private static final class Partition implements Serializable {
+
+        /**
+         * Serialisation version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        private static final Partition[] NONE = {};
+
+        final Class<?> type;
+
+        final AbstractLiteral[] literals;
+
+        /**
+         * The keys of the literals, or null if some literal has no key, see
+         * {@link AbstractLiteral#hasKey()}.
+         */
+        final long[] keys;
+
+        /**
+         * The conclusions of the terms, as (TOP, B) queue entries in the same
+         * order as the literals.
+         */
+        final long[] entries;
+
+        private Partition(List<NF8> terms) {
+            Collections.sort(terms, BY_LITERAL);
+            type = terms.get(0).lhsD.getLiteral().getClass();
+            literals = new AbstractLiteral[terms.size()];
+            entries = new long[terms.size()];
+            boolean hasKeys = true;
+            for (int i = 0; i < literals.length; i++) {
+                final NF8 nf8 = terms.get(i);
+                literals[i] = nf8.lhsD.getLiteral();
+                entries[i] = LongQueue.pack(IFactory.TOP_CONCEPT, nf8.rhsB);
+                hasKeys &= literals[i].hasKey();
+            }
+            if (hasKeys) {
+                keys = new long[literals.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = literals[i].getKey();
+                }
+            } else {
+                keys = null;
+            }
+        }
+
+        /**
+         * Splits terms with the same operator by literal class.
+         */
+        static Partition[] create(List<NF8> terms) {
+            if (terms.isEmpty()) {
+                return NONE;
+            }
+            final Map<Class<?>, List<NF8>> byType = new HashMap<Class<?>, List<NF8>>();
+            for (NF8 nf8 : terms) {
+                final Class<?> type = nf8.lhsD.getLiteral().getClass();
+                List<NF8> list = byType.get(type);
+                if (list == null) {
+                    list = new ArrayList<NF8>();
+                    byType.put(type, list);
+                }
+                list.add(nf8);
+            }
+            final Partition[] res = new Partition[byType.size()];
+            int i = 0;
+            for (List<NF8> list : byType.values()) {
+                res[i++] = new Partition(list);
+            }
+            return res;
+        }
+
+        boolean accepts(AbstractLiteral lit) {
+            return lit.getClass() == type;
+        }
+
+        /**
+         * Returns the index of the first literal that is not less than lit.
+         */
+        int lowerBound(AbstractLiteral lit) {
+            return bound(lit, false);
+        }
+
+        /**
+         * Returns the index of the first literal that is greater than lit.
+         */
+        int upperBound(AbstractLiteral lit) {
+            return bound(lit, true);
+        }
+
+        private int bound(AbstractLiteral lit, boolean upper) {
+            int lo = 0;
+            int hi = literals.length;
+            if (keys != null && lit.hasKey()) {
+                final long key = lit.getKey();
+                while (lo < hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    if (keys[mid] < key || (upper && keys[mid] == key)) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+            } else {
+                while (lo < hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    final int c = literals[mid].compareTo(lit);
+                    if (c < 0 || (upper && c == 0)) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+            }
+            return lo;
+        }
+
+    }
+
+}
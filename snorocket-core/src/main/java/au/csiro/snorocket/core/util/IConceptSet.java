@@ -24,31 +24,12 @@ package au.csiro.snorocket.core.util;
 import java.io.Serializable;
 
 import au.csiro.snorocket.core.ConceptSetFactory;
+import au.csiro.snorocket.core.DefaultConceptSetFactory;
 
 public interface IConceptSet extends Serializable {
     final static IConceptSet EMPTY_SET = new EmptyConceptSet();
 
-    public static ConceptSetFactory FACTORY = new ConceptSetFactory() {
-
-        public IConceptSet createConceptSet() {
-            return new SparseConceptHashSet();
-        }
-
-        public IConceptSet createConceptSet(final int size) {
-            return new SparseConceptHashSet(size);
-        }
-
-        public IConceptSet createConceptSet(final IConceptSet initial) {
-            final IConceptSet result;
-            if (null == initial) {
-                result = createConceptSet();
-            } else {
-                result = createConceptSet(initial.size());
-                result.addAll(initial);
-            }
-            return result;
-        }
-    };
+    public static ConceptSetFactory FACTORY = new DefaultConceptSetFactory();
 
     public void add(int concept);
 
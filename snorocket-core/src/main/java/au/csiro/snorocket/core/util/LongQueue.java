@@ -0,0 +1,201 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+import java.io.Serializable;
+
+/**
+ * A FIFO queue of primitive longs stored in a growable ring buffer. Pairs of
+ * ids (e.g. a role and a concept) are packed into a single long with
+ * {@link #pack(int, int)} so that adding and removing entries does not
+ * allocate. This class is not thread-safe.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class LongQueue implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private static final long[] EMPTY = {};
+
+    /**
+     * The size of the buffer allocated by the first add.
+     */
+    public static final int DEFAULT_ALLOC_SIZE = 8;
+
+    /**
+     * Buffer, always empty or with a length that is a power of two.
+     */
+    private long[] items = EMPTY;
+
+    /**
+     * Index of the next entry to remove.
+     */
+    private int head = 0;
+
+    private int size = 0;
+
+    /**
+     * Packs two non-negative ints into a long. The result is non-negative.
+     *
+     * @param hi
+     * @param lo
+     * @return
+     */
+    public static long pack(int hi, int lo) {
+        return ((long) hi << 32) | (lo & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the first int of a packed pair.
+     *
+     * @param entry
+     * @return
+     */
+    public static int high(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    /**
+     * Returns the second int of a packed pair.
+     *
+     * @param entry
+     * @return
+     */
+    public static int low(long entry) {
+        return (int) entry;
+    }
+
+    public void add(long entry) {
+        if (size == items.length) {
+            grow(size + 1);
+        }
+        items[(head + size) & (items.length - 1)] = entry;
+        size++;
+    }
+
+    /**
+     * Adds all the entries in another queue, in FIFO order, without removing
+     * them from it.
+     *
+     * @param queue
+     */
+    public void addAll(LongQueue queue) {
+        final int n = queue.size;
+        if (n == 0)
+            return;
+        if (size + n > items.length) {
+            grow(size + n);
+        }
+        final long[] src = queue.items;
+        final int srcMask = src.length - 1;
+        final int mask = items.length - 1;
+        for (int i = 0; i < n; i++) {
+            items[(head + size + i) & mask] = src[(queue.head + i) & srcMask];
+        }
+        size += n;
+    }
+
+    /**
+     * Removes the oldest entry. The queue must not be empty.
+     *
+     * @return
+     */
+    public long remove() {
+        assert size > 0;
+        final long entry = items[head];
+        head = (head + 1) & (items.length - 1);
+        size--;
+        return entry;
+    }
+
+    /**
+     * Returns an entry without removing it, where 0 is the oldest entry.
+     *
+     * @param index
+     * @return
+     */
+    public long get(int index) {
+        assert index >= 0 && index < size;
+        return items[(head + index) & (items.length - 1)];
+    }
+
+    /**
+     * Removes the newest entries so that only the oldest size remain. The
+     * buffer is kept for reuse.
+     *
+     * @param size
+     */
+    public void truncate(int size) {
+        assert size >= 0 && size <= this.size;
+        this.size = size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the entries but keeps the buffer for reuse.
+     */
+    public void reset() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Removes all the entries and releases the buffer.
+     */
+    public void clear() {
+        items = EMPTY;
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns an estimate of the heap used by this queue, in bytes. See
+     * {@link SizeEstimates}.
+     *
+     * @return
+     */
+    public long estimateSize() {
+        return estimateSize(items.length);
+    }
+
+    /**
+     * Returns an estimate of the heap used by a queue with a buffer of the
+     * given capacity, in bytes.
+     *
+     * @param capacity
+     * @return
+     */
+    public static long estimateSize(int capacity) {
+        return SizeEstimates.object(SizeEstimates.REFERENCE + 8)
+                + (capacity == 0 ? 0 : SizeEstimates.array(capacity, 8));
+    }
+
+    private void grow(int minCapacity) {
+        int newSize = items.length == 0 ? DEFAULT_ALLOC_SIZE : items.length << 1;
+        while (newSize < minCapacity) {
+            newSize <<= 1;
+        }
+        final long[] newItems = new long[newSize];
+        final int mask = items.length - 1;
+        for (int i = 0; i < size; i++) {
+            newItems[i] = items[(head + i) & mask];
+        }
+        items = newItems;
+        head = 0;
+    }
+
+}
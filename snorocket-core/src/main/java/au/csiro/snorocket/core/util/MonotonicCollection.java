@@ -120,4 +120,18 @@ public final class MonotonicCollection<T> implements IMonotonicCollection<T> {
         count = 0;
     }
 
+    /**
+     * Shrinks the backing array to the number of elements, keeping room for
+     * one so that the collection can still grow.
+     */
+    @SuppressWarnings("unchecked")
+    public void trimToSize() {
+        final int size = Math.max(count, 1);
+        if (data.length > size) {
+            T[] newData = (T[]) new Object[size];
+            System.arraycopy(data, 0, newData, 0, count);
+            data = newData;
+        }
+    }
+
 }
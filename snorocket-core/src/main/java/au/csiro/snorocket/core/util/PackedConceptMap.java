@@ -0,0 +1,280 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+import java.io.Serializable;
+
+/**
+ * A frozen copy of an index from concepts (or roles) to collections of
+ * entries, in compressed sparse row layout: the entries of all the keys are
+ * packed into longs with {@link LongQueue#pack(int, int)} and stored in a
+ * single array, and the entries of key a are the ones from {@link #start(int)}
+ * (inclusive) to {@link #end(int)} (exclusive). Readers walk contiguous memory
+ * with plain index loops instead of following a reference per collection and
+ * per entry.
+ *
+ * <p>
+ * Instances are immutable. When some keys of the source index change, use
+ * {@link #repack(PackedConceptMap, IConceptMap, int, IConceptSet, Packer)} to
+ * build a new copy that only repacks those rows.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class PackedConceptMap implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Packs the entries of a source index into longs.
+     *
+     * @param <T>
+     */
+    public interface Packer<T> {
+        long pack(T entry);
+    }
+
+    /**
+     * Rebuilds the entries of a source index from the longs they were packed
+     * into.
+     *
+     * @param <T>
+     */
+    public interface Unpacker<T> {
+        T unpack(int key, long entry);
+    }
+
+    /**
+     * The start of the entries of each key, plus the total number of entries
+     * at the end.
+     */
+    private final int[] offsets;
+
+    private final long[] entries;
+
+    private PackedConceptMap(int[] offsets, long[] entries) {
+        this.offsets = offsets;
+        this.entries = entries;
+    }
+
+    /**
+     * Packs all the entries of an index.
+     *
+     * @param map
+     * @param capacity The maximum key + 1.
+     * @param packer
+     * @return
+     */
+    public static <T> PackedConceptMap pack(IConceptMap<MonotonicCollection<T>> map, int capacity,
+            Packer<? super T> packer) {
+        return repack(null, map, capacity, null, packer);
+    }
+
+    /**
+     * Builds a new copy of an index that was packed before and has changed
+     * since. The rows of the keys in touched are packed from the index, and
+     * the runs of rows in between are copied from the old copy in bulk.
+     *
+     * @param old The previous copy, or null to pack every row.
+     * @param map
+     * @param capacity The maximum key + 1.
+     * @param touched The keys whose entries have changed, ignored if old is
+     *            null.
+     * @param packer
+     * @return
+     */
+    public static <T> PackedConceptMap repack(PackedConceptMap old, IConceptMap<MonotonicCollection<T>> map,
+            int capacity, IConceptSet touched, Packer<? super T> packer) {
+        final int n = Math.max(capacity, old != null ? old.capacity() : 0);
+        final boolean[] dirty = new boolean[n];
+        if (old == null) {
+            for (final IntIterator itr = map.keyIterator(); itr.hasNext();) {
+                final int a = itr.next();
+                if (a < n) {
+                    dirty[a] = true;
+                }
+            }
+        } else {
+            for (final IntIterator itr = touched.iterator(); itr.hasNext();) {
+                final int a = itr.next();
+                if (a < n) {
+                    dirty[a] = true;
+                }
+            }
+        }
+
+        final int[] offsets = new int[n + 1];
+        for (int a = 0; a < n; a++) {
+            final int size;
+            if (dirty[a]) {
+                final MonotonicCollection<T> row = map.get(a);
+                size = row != null ? row.size() : 0;
+            } else {
+                size = old != null ? old.end(a) - old.start(a) : 0;
+            }
+            offsets[a + 1] = offsets[a] + size;
+        }
+
+        final long[] entries = new long[offsets[n]];
+        int a = 0;
+        while (a < n) {
+            if (dirty[a]) {
+                final MonotonicCollection<T> row = map.get(a);
+                if (row != null) {
+                    final Object[] data = row.data;
+                    int pos = offsets[a];
+                    for (int i = 0, size = row.size(); i < size; i++) {
+                        @SuppressWarnings("unchecked")
+                        final T entry = (T) data[i];
+                        entries[pos++] = packer.pack(entry);
+                    }
+                }
+                a++;
+            } else {
+                // Copies the run of clean rows that starts here in one go
+                int b = a + 1;
+                while (b < n && !dirty[b]) {
+                    b++;
+                }
+                if (old != null) {
+                    final int from = old.offset(a);
+                    System.arraycopy(old.entries, from, entries, offsets[a], old.offset(b) - from);
+                }
+                a = b;
+            }
+        }
+        return new PackedConceptMap(offsets, entries);
+    }
+
+    /**
+     * Returns the number of entries of the keys before a, which is the total
+     * for keys beyond the capacity.
+     */
+    private int offset(int a) {
+        return offsets[Math.min(a, offsets.length - 1)];
+    }
+
+    /**
+     * Returns the index of the first entry of a key.
+     *
+     * @param a
+     * @return
+     */
+    public int start(int a) {
+        return a < offsets.length - 1 ? offsets[a] : 0;
+    }
+
+    /**
+     * Returns the index after the last entry of a key. It is equal to
+     * {@link #start(int)} if the key has no entries.
+     *
+     * @param a
+     * @return
+     */
+    public int end(int a) {
+        return a < offsets.length - 1 ? offsets[a + 1] : 0;
+    }
+
+    /**
+     * Indicates if a key has a packed entry.
+     *
+     * @param a
+     * @param entry
+     * @return
+     */
+    public boolean contains(int a, long entry) {
+        for (int i = start(a), end = end(a); i < end; i++) {
+            if (entries[i] == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rebuilds the row of a key of the source index, trimmed to its size.
+     *
+     * @param a
+     * @param unpacker
+     * @return The entries, or null if the key has none.
+     */
+    public <T> MonotonicCollection<T> unpack(int a, Unpacker<? extends T> unpacker) {
+        final int start = start(a);
+        final int end = end(a);
+        if (start == end) {
+            return null;
+        }
+        final MonotonicCollection<T> row = new MonotonicCollection<T>(end - start);
+        for (int i = start; i < end; i++) {
+            row.add(unpacker.unpack(a, entries[i]));
+        }
+        return row;
+    }
+
+    /**
+     * Returns the packed entries of all the keys. The array must not be
+     * modified.
+     *
+     * @return
+     */
+    public long[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the maximum key + 1.
+     *
+     * @return
+     */
+    public int capacity() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Returns the total number of entries.
+     *
+     * @return
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Returns an estimate of the heap used by this map, in bytes.
+     *
+     * @return
+     */
+    public long estimateSize() {
+        return SizeEstimates.object(2 * SizeEstimates.REFERENCE) + SizeEstimates.array(offsets.length, 4)
+                + SizeEstimates.array(entries.length, 8);
+    }
+
+    /**
+     * Returns an estimate of the heap used by an index of collections, in
+     * bytes: the map slots, the collections, their arrays and one small
+     * object per entry. It is meant to be compared with
+     * {@link #estimateSize()}.
+     *
+     * @param map
+     * @return
+     */
+    public static long estimateSize(IConceptMap<? extends MonotonicCollection<?>> map) {
+        long size = 0;
+        for (final IntIterator itr = map.keyIterator(); itr.hasNext();) {
+            final MonotonicCollection<?> row = map.get(itr.next());
+            size += 4 + SizeEstimates.REFERENCE + SizeEstimates.object(SizeEstimates.REFERENCE + 4);
+            if (row != null) {
+                size += SizeEstimates.array(row.data.length, SizeEstimates.REFERENCE);
+                size += row.size() * SizeEstimates.object(8);
+            }
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import au.csiro.snorocket.core.axioms.NF4;
+
+/**
+ * The reflexive-transitive closure of the role hierarchy (the NF4 axioms of
+ * the form r [ s). For each role the closure holds the sorted ids of the role
+ * itself and all of its super-roles, so looking it up is a plain array read.
+ *
+ * <p>
+ * Role-inclusion cycles are handled by collapsing the strongly connected
+ * components of the hierarchy: equivalent roles share the same array.
+ * </p>
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class RoleClosure implements Serializable {
+
+    /**
+     * Serialisation version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The closure of each role, indexed by role id.
+     */
+    private final int[][] closure;
+
+    /**
+     * The number of groups of two or more equivalent roles found.
+     */
+    private final int numCycles;
+
+    /**
+     * Computes the closure of the roles 0..numRoles-1.
+     *
+     * @param numRoles
+     * @param nf4s
+     */
+    public RoleClosure(final int numRoles, final IMonotonicCollection<NF4> nf4s) {
+        // Build the adjacency lists r -> s in compressed form
+        final int[] degree = new int[numRoles + 1];
+        for (final NF4 nf4 : nf4s) {
+            checkRole(nf4.getR(), numRoles);
+            checkRole(nf4.getS(), numRoles);
+            degree[nf4.getR() + 1]++;
+        }
+        for (int i = 0; i < numRoles; i++) {
+            degree[i + 1] += degree[i];
+        }
+        final int[] edges = new int[degree[numRoles]];
+        final int[] fill = new int[numRoles];
+        for (final NF4 nf4 : nf4s) {
+            final int r = nf4.getR();
+            edges[degree[r] + fill[r]++] = nf4.getS();
+        }
+
+        // Iterative Tarjan. Components are completed in reverse topological
+        // order, so the components reachable from a new component are always
+        // finished before it.
+        final int[] index = new int[numRoles];
+        final int[] lowLink = new int[numRoles];
+        final int[] component = new int[numRoles];
+        Arrays.fill(index, -1);
+        final int[] stack = new int[numRoles];
+        int stackSize = 0;
+        final boolean[] onStack = new boolean[numRoles];
+        final int[] callStack = new int[numRoles];
+        final int[] nextEdge = new int[numRoles];
+        final BitSet[] componentClosures = new BitSet[numRoles];
+        int numComponents = 0;
+        int cycles = 0;
+        int counter = 0;
+
+        closure = new int[numRoles][];
+
+        for (int root = 0; root < numRoles; root++) {
+            if (index[root] >= 0)
+                continue;
+            int depth = 0;
+            callStack[depth++] = root;
+            index[root] = lowLink[root] = counter++;
+            nextEdge[root] = degree[root];
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth > 0) {
+                final int v = callStack[depth - 1];
+                if (nextEdge[v] < degree[v + 1]) {
+                    final int w = edges[nextEdge[v]++];
+                    if (index[w] < 0) {
+                        index[w] = lowLink[w] = counter++;
+                        nextEdge[w] = degree[w];
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        callStack[depth++] = w;
+                    } else if (onStack[w] && index[w] < lowLink[v]) {
+                        lowLink[v] = index[w];
+                    }
+                    continue;
+                }
+
+                depth--;
+                if (depth > 0) {
+                    final int parent = callStack[depth - 1];
+                    if (lowLink[v] < lowLink[parent]) {
+                        lowLink[parent] = lowLink[v];
+                    }
+                }
+
+                if (lowLink[v] == index[v]) {
+                    // v is the root of a component: pop its members and
+                    // merge the closures of the components they point to
+                    final int c = numComponents++;
+                    final BitSet set = new BitSet();
+                    int start = stackSize;
+                    do {
+                        start--;
+                        final int m = stack[start];
+                        onStack[m] = false;
+                        component[m] = c;
+                        set.set(m);
+                    } while (stack[start] != v);
+                    for (int i = start; i < stackSize; i++) {
+                        final int m = stack[i];
+                        for (int e = degree[m]; e < degree[m + 1]; e++) {
+                            final int d = component[edges[e]];
+                            if (d != c) {
+                                set.or(componentClosures[d]);
+                            }
+                        }
+                    }
+                    if (stackSize - start > 1) {
+                        cycles++;
+                    }
+                    componentClosures[c] = set;
+
+                    final int[] roles = toArray(set);
+                    for (int i = start; i < stackSize; i++) {
+                        closure[stack[i]] = roles;
+                    }
+                    stackSize = start;
+                }
+            }
+        }
+        numCycles = cycles;
+    }
+
+    private static void checkRole(int r, int numRoles) {
+        if (r < 0 || r >= numRoles) {
+            throw new IllegalArgumentException("Invalid role id " + r + ", expected a value in [0, " + numRoles + ")");
+        }
+    }
+
+    private static int[] toArray(BitSet set) {
+        final int[] res = new int[set.cardinality()];
+        int i = 0;
+        for (int r = set.nextSetBit(0); r >= 0; r = set.nextSetBit(r + 1)) {
+            res[i++] = r;
+        }
+        return res;
+    }
+
+    /**
+     * Returns the sorted ids of role r and all its super-roles. The returned
+     * array must not be modified.
+     *
+     * @param r
+     * @return
+     */
+    public int[] get(int r) {
+        if (r < closure.length) {
+            return closure[r];
+        }
+        // A role created after the closure was computed has no super-roles
+        return new int[] { r };
+    }
+
+    /**
+     * Returns true if s is r or one of its super-roles.
+     *
+     * @param r
+     * @param s
+     * @return
+     */
+    public boolean contains(int r, int s) {
+        return Arrays.binarySearch(get(r), s) >= 0;
+    }
+
+    /**
+     * Returns the number of roles covered by this closure.
+     *
+     * @return
+     */
+    public int size() {
+        return closure.length;
+    }
+
+    /**
+     * Returns the number of groups of equivalent roles, i.e. role-inclusion
+     * cycles, found in the hierarchy.
+     *
+     * @return
+     */
+    public int getNumCycles() {
+        return numCycles;
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.util;
+
+/**
+ * Rough heap size estimates, in bytes, for a 64-bit JVM with compressed
+ * references: 12 byte object headers, 16 byte array headers, 4 byte
+ * references and 8 byte alignment. They are only meant for memory reports.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public final class SizeEstimates {
+
+    public static final int OBJECT_HEADER = 12;
+
+    public static final int ARRAY_HEADER = 16;
+
+    public static final int REFERENCE = 4;
+
+    private SizeEstimates() {
+    }
+
+    /**
+     * Rounds a size up to the object alignment.
+     *
+     * @param bytes
+     * @return
+     */
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Returns the size of an object whose fields take the given number of
+     * bytes.
+     *
+     * @param fieldBytes
+     * @return
+     */
+    public static long object(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    /**
+     * Returns the size of an array.
+     *
+     * @param length
+     * @param elementBytes
+     * @return
+     */
+    public static long array(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    /**
+     * Returns the size of a concept set, counting four bytes per member. This
+     * is exact for the sorted array sets and close for the others.
+     *
+     * @param set
+     * @return
+     */
+    public static long conceptSet(IConceptSet set) {
+        return object(2 * REFERENCE + 4) + array(set.size(), 4);
+    }
+
+}
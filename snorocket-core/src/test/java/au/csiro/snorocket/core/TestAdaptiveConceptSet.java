@@ -0,0 +1,152 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import au.csiro.snorocket.core.util.AdaptiveConceptSet;
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.IntIterator;
+import au.csiro.snorocket.core.util.SparseConceptSet;
+
+public class TestAdaptiveConceptSet extends TestIConceptSet {
+
+    @Override
+    IConceptSet createSet(int capacity) {
+        return new AdaptiveConceptSet(capacity);
+    }
+
+    @Override
+    boolean supportsRemove() {
+        return true;
+    }
+
+    /**
+     * Fills a chunk past the array limit so that it becomes a bitmap, then
+     * removes enough members for it to become an array again, checking the
+     * contents and the iteration order against a TreeSet.
+     */
+    @Test
+    public void testContainerConversions() {
+        final IConceptSet set = createSet(0);
+        final TreeSet<Integer> expected = new TreeSet<Integer>();
+        // Two members in other chunks
+        set.add(7);
+        expected.add(7);
+        set.add(3 << 16);
+        expected.add(3 << 16);
+        for (int i = 0; i < 10000; i++) {
+            final int val = (1 << 16) + (i * 7) % 65536;
+            set.add(val);
+            expected.add(val);
+        }
+        assertSame(expected, set);
+
+        for (int i = 0; i < 9000; i++) {
+            final int val = (1 << 16) + (i * 7) % 65536;
+            set.remove(val);
+            expected.remove(val);
+        }
+        assertSame(expected, set);
+        assertFalse(set.contains(1 << 16));
+        assertTrue(set.contains((1 << 16) + 9999 * 7 % 65536));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.iterator().hasNext());
+    }
+
+    /**
+     * Checks that factories that only implement {@link ConceptSetFactory}
+     * still get synchronized sets.
+     */
+    @Test
+    public void testSynchronizedSetFallback() {
+        final ConceptSetFactory plain = new ConceptSetFactory() {
+            public IConceptSet createConceptSet() {
+                return new AdaptiveConceptSet();
+            }
+
+            public IConceptSet createConceptSet(int size) {
+                return new AdaptiveConceptSet(size);
+            }
+
+            public IConceptSet createConceptSet(IConceptSet initial) {
+                return new AdaptiveConceptSet(initial.size());
+            }
+        };
+        assertTrue(DefaultConceptSetFactory.createSynchronizedConceptSet(plain) instanceof SparseConceptSet);
+        assertTrue(DefaultConceptSetFactory.createSynchronizedConceptSet(
+                new DefaultConceptSetFactory(DefaultConceptSetFactory.ADAPTIVE)) instanceof AdaptiveConceptSet);
+    }
+
+    /**
+     * Iterates while another thread adds members in random order, across
+     * array growth and the conversion to a bitmap. Every member added before
+     * an iterator was created must be returned, once and in order.
+     */
+    @Test
+    public void testIterateWhileAdding() throws InterruptedException {
+        final IConceptSet set = createSet(0);
+        final int[] values = new int[20000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i % 2) << 16 | (i * 7919) % 65536;
+        }
+        final Random rnd = new Random(42);
+        for (int i = values.length - 1; i > 0; i--) {
+            final int j = rnd.nextInt(i + 1);
+            final int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+        final AtomicInteger added = new AtomicInteger();
+        final Thread writer = new Thread() {
+            public void run() {
+                for (int i = 0; i < values.length; i++) {
+                    set.add(values[i]);
+                    added.set(i + 1);
+                }
+            }
+        };
+        writer.start();
+        int k;
+        do {
+            k = added.get();
+            final TreeSet<Integer> seen = new TreeSet<Integer>();
+            int prev = -1;
+            for (final IntIterator itr = set.iterator(); itr.hasNext();) {
+                final int val = itr.next();
+                assertTrue(val > prev);
+                prev = val;
+                seen.add(val);
+            }
+            for (int i = 0; i < k; i++) {
+                assertTrue(seen.contains(values[i]));
+            }
+        } while (k < values.length);
+        writer.join();
+        assertEquals(set.size(), set.toArray().length);
+    }
+
+    private void assertSame(TreeSet<Integer> expected, IConceptSet set) {
+        assertEquals(expected.size(), set.size());
+        final IntIterator itr = set.iterator();
+        for (int val : expected) {
+            assertTrue(itr.hasNext());
+            assertEquals(val, itr.next());
+            assertTrue(set.contains(val));
+        }
+        assertFalse(itr.hasNext());
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import au.csiro.snorocket.core.util.ConceptRoleMap;
+import au.csiro.snorocket.core.util.IntIterator;
+import au.csiro.snorocket.core.util.LongQueue;
+
+public class TestConceptRoleMap {
+
+    /**
+     * Checks that an entry is only added once per concept and role, also
+     * after the map has been compacted, and that the rows keep the roles
+     * sorted.
+     */
+    @Test
+    public void testDuplicates() {
+        final ConceptRoleMap map = new ConceptRoleMap(2);
+        final long e1 = LongQueue.pack(0, 10);
+        final long e2 = LongQueue.pack(0, 11);
+        assertTrue(map.add(1, 5, e1));
+        assertFalse(map.add(1, 5, e1));
+        assertTrue(map.add(1, 3, e1));
+        assertTrue(map.add(1, 5, e2));
+        assertTrue(map.add(7, 5, e1));
+        assertTrue(map.contains(1, 3, e1));
+        assertFalse(map.contains(1, 3, e2));
+        map.compact();
+
+        assertFalse(map.add(1, 5, e2));
+        assertTrue(map.add(1, 4, e2));
+        assertTrue(map.contains(1, 5, e2));
+        map.compact();
+
+        final ConceptRoleMap.Row row = map.get(1);
+        assertEquals(3, row.size());
+        assertEquals(3, row.getRole(0));
+        assertEquals(4, row.getRole(1));
+        assertEquals(5, row.getRole(2));
+        assertEquals(1, row.end(0) - row.start(0));
+        assertEquals(1, row.end(1) - row.start(1));
+        assertEquals(2, row.end(2) - row.start(2));
+        assertEquals(4, row.getEntries().length);
+        assertEquals(e1, row.getEntries()[row.start(2)]);
+        assertEquals(e2, row.getEntries()[row.start(2) + 1]);
+
+        assertEquals(2, map.size());
+        final IntIterator it = map.keyIterator();
+        assertEquals(1, it.next());
+        assertEquals(7, it.next());
+        assertFalse(it.hasNext());
+        assertNull(map.get(2));
+        assertNull(map.get(100));
+    }
+
+    /**
+     * Loads many entries for the same concept and role, which takes
+     * quadratic time if the row is copied on every addition.
+     */
+    @Test
+    public void testLargeRow() {
+        final ConceptRoleMap map = new ConceptRoleMap(1);
+        final int n = 100000;
+        for (int i = 0; i < n; i++) {
+            assertTrue(map.add(0, i % 3, LongQueue.pack(0, i)));
+        }
+        map.compact();
+        final ConceptRoleMap.Row row = map.get(0);
+        assertEquals(3, row.size());
+        assertEquals(n, row.getEntries().length);
+        for (int r = 0; r < 3; r++) {
+            for (int j = row.start(r); j < row.end(r); j++) {
+                assertEquals(r, LongQueue.low(row.getEntries()[j]) % 3);
+            }
+        }
+    }
+
+}
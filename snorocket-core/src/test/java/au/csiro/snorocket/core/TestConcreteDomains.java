@@ -6,6 +6,9 @@ package au.csiro.snorocket.core;
 
 import static org.junit.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -710,4 +713,68 @@ public class TestConcreteDomains {
         Assert.assertTrue(ctNode.getParents().iterator().next().getEquivalentConcepts().contains("2MgTablet")); 
     }
 
+    /**
+     * Checks that the primitive keys of literals order them like compareTo,
+     * and that decimals that are not exact doubles have no key.
+     */
+    @Test
+    public void testLiteralKeys() {
+        String[] decimals = { "-1e300", "-2.5", "-0.5", "0", "0.00", "0.5", "0.1", "3", "2.5", "1e-320", "1e400" };
+        BigDecimal[] bds = new BigDecimal[decimals.length];
+        au.csiro.snorocket.core.model.AbstractLiteral[] ls = 
+                new au.csiro.snorocket.core.model.AbstractLiteral[decimals.length];
+        for (int i = 0; i < decimals.length; i++) {
+            bds[i] = new BigDecimal(decimals[i]);
+            ls[i] = new au.csiro.snorocket.core.model.DecimalLiteral(bds[i]);
+        }
+        Assert.assertFalse(ls[6].hasKey());
+        Assert.assertFalse(ls[10].hasKey());
+        Assert.assertTrue(ls[3].hasKey());
+        assertKeysOrdered(ls, bds);
+
+        Float[] floats = { Float.NEGATIVE_INFINITY, -3f, -0f, 0f, 1e-45f, 2.5f, Float.POSITIVE_INFINITY, Float.NaN };
+        ls = new au.csiro.snorocket.core.model.AbstractLiteral[floats.length];
+        for (int i = 0; i < floats.length; i++) {
+            ls[i] = new au.csiro.snorocket.core.model.FloatLiteral(floats[i]);
+        }
+        assertKeysOrdered(ls, floats);
+
+        BigInteger[] ints = { BigInteger.valueOf(Long.MIN_VALUE), BigInteger.valueOf(-7), BigInteger.ZERO,
+                BigInteger.valueOf(Long.MAX_VALUE), BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE) };
+        ls = new au.csiro.snorocket.core.model.AbstractLiteral[ints.length];
+        for (int i = 0; i < ints.length; i++) {
+            ls[i] = new au.csiro.snorocket.core.model.BigIntegerLiteral(ints[i]);
+        }
+        Assert.assertFalse(ls[4].hasKey());
+        assertKeysOrdered(ls, ints);
+
+        Calendar[] dates = new Calendar[3];
+        ls = new au.csiro.snorocket.core.model.AbstractLiteral[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = Calendar.getInstance();
+            dates[i].clear();
+            dates[i].set(1999 + i * 10, Calendar.JANUARY, 1);
+            ls[i] = new au.csiro.snorocket.core.model.DateLiteral(dates[i]);
+        }
+        assertKeysOrdered(ls, dates);
+    }
+
+    /**
+     * Checks that the keys of the literals order them like their values.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void assertKeysOrdered(au.csiro.snorocket.core.model.AbstractLiteral[] ls, Comparable[] values) {
+        for (int i = 0; i < ls.length; i++) {
+            for (int j = 0; j < ls.length; j++) {
+                if (ls[i].hasKey() && ls[j].hasKey()) {
+                    Assert.assertEquals(values[i] + " " + values[j], Integer.signum(values[i].compareTo(values[j])), 
+                            au.csiro.snorocket.core.model.AbstractLiteral.compareKeys(ls[i].getKey(), 
+                                    ls[j].getKey()));
+                }
+                Assert.assertEquals(Integer.signum(values[i].compareTo(values[j])), 
+                        Integer.signum(ls[i].compareTo(ls[j])));
+            }
+        }
+    }
+
 }
@@ -5,10 +5,22 @@
 package au.csiro.snorocket.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
-
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -26,7 +38,21 @@ import au.csiro.ontology.model.NamedRole;
 import au.csiro.ontology.model.Operator;
 import au.csiro.ontology.model.Role;
 import au.csiro.ontology.model.RoleInclusion;
+import au.csiro.snorocket.core.axioms.GCI;
 import au.csiro.snorocket.core.axioms.Inclusion;
+import au.csiro.snorocket.core.axioms.NF2;
+import au.csiro.snorocket.core.concurrent.CR;
+import au.csiro.snorocket.core.concurrent.Context;
+import au.csiro.snorocket.core.concurrent.DistributedSaturation;
+import au.csiro.snorocket.core.concurrent.LocalShardLauncher;
+import au.csiro.snorocket.core.concurrent.ReasonerExecutor;
+import au.csiro.snorocket.core.concurrent.WorkStealingQueue;
+import au.csiro.snorocket.core.model.AbstractConcept;
+import au.csiro.snorocket.core.util.ConceptRoleMap;
+import au.csiro.snorocket.core.util.IConceptMap;
+import au.csiro.snorocket.core.util.IConceptSet;
+import au.csiro.snorocket.core.util.IntIterator;
+import au.csiro.snorocket.core.util.MonotonicCollection;
 
 /**
  * Main unit tests for Snorocket.
@@ -270,6 +296,300 @@ public class TestNormalisedOntology {
         assertEquals(12, norms.size());
     }
 
+    /**
+     * Checks that loading axioms from an iterator in small batches, both
+     * before and after classifying, gives the same results as loading them
+     * all at once.
+     */
+    @Test
+    public void testStreamingLoad() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+        axioms.add(null);
+
+        NormalisedOntology actual = new NormalisedOntology(factory);
+        actual.loadAxioms(axioms.iterator(), 64);
+        axioms.remove(null);
+        actual.classify();
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), 
+                new Existential(new NamedRole("part-of"), new NamedConcept("C498"))));
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New2"), new NamedConcept("New")));
+        actual.loadIncremental(incAxioms.iterator(), 1);
+        actual.classifyIncremental();
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        expected = new NormalisedOntology(factory, all);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+    }
+
+    /**
+     * Checks that inclusions normalised with an empty cache are found in it
+     * by another factory after it has been saved, with the same results, that
+     * the normalisation workers look them up in parallel, and that the cache
+     * is bounded.
+     */
+    @Test
+    public void testNormalisationCache() throws IOException {
+        File file = File.createTempFile("normalisation", ".cache");
+        file.delete();
+        file.deleteOnExit();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+        axioms.add(new ConceptInclusion(new NamedConcept("D"), new Datatype(new NamedFeature("f"), 
+                Operator.EQUALS, new IntegerLiteral(3))));
+
+        IFactory factory = new CoreFactory();
+        NormalisationCache cache = new NormalisationCache(file, 100000);
+        NormalisedOntology actual = new NormalisedOntology(factory);
+        actual.setNormalisationCache(cache);
+        actual.loadAxioms(axioms);
+        actual.classify();
+        cache.save();
+        assertEquals(0, cache.getHits());
+        assertTrue(cache.size() > 0);
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+
+        factory = new CoreFactory();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        NormalisationCache reopened = new NormalisationCache(file, 100000) {
+            @Override
+            public Inclusion[] get(Key key, IFactory factory) {
+                threads.add(Thread.currentThread());
+                // Slow enough for every worker to take a block
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.get(key, factory);
+            }
+        };
+        assertEquals(cache.size(), reopened.size());
+        actual = new NormalisedOntology(factory);
+        actual.setNumThreads(4);
+        actual.setNormalisationCache(reopened);
+        actual.loadAxioms(axioms);
+        assertTrue(threads.size() > 1);
+        actual.classify();
+        assertEquals(cache.size(), reopened.getHits());
+        assertEquals(0, reopened.getMisses());
+
+        expected = new NormalisedOntology(factory, axioms);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+
+        assertEquals(10, new NormalisationCache(file, 10).size());
+    }
+
+    /**
+     * Checks that normal forms shared by several batches are only indexed
+     * once and that conjunctions are factored across the batches of a
+     * window.
+     */
+    @Test
+    public void testStreamingLoadAcrossBatches() {
+        NamedConcept a = new NamedConcept("A");
+        NamedConcept b = new NamedConcept("B");
+        List<Axiom> axioms = new ArrayList<Axiom>();
+        axioms.add(new ConceptInclusion(a, new Conjunction(new Concept[] { b, new NamedConcept("C") })));
+        axioms.add(new ConceptInclusion(a, new Conjunction(new Concept[] { b, new NamedConcept("D") })));
+        axioms.add(new ConceptInclusion(a, b));
+        NamedRole r = new NamedRole("r");
+        Existential rb = new Existential(r, b);
+        axioms.add(new ConceptInclusion(a, new Conjunction(new Concept[] { rb, new NamedConcept("C") })));
+        axioms.add(new ConceptInclusion(a, rb));
+        axioms.add(new ConceptInclusion(rb, new Conjunction(new Concept[] { a, new NamedConcept("C") })));
+        axioms.add(new ConceptInclusion(rb, a));
+
+        IFactory factory = new CoreFactory();
+        NormalisedOntology ont = new NormalisedOntology(factory);
+        ont.loadAxioms(axioms.iterator(), 1);
+        assertEquals(3, ont.getOntologyNF1().get(factory.getConcept("A")).size());
+        assertEquals(1, ont.getOntologyNF2().get(factory.getConcept("A")).size());
+        ConceptRoleMap.Row row = ont.getOntologyNF3().get(factory.getConcept("B"));
+        assertEquals(2, row.end(row.indexOf(factory.getRole("r"))) - row.start(row.indexOf(factory.getRole("r"))));
+
+        // Each R is used by 5 conjunctions but only once per batch, where it
+        // ties with the Q, which have lower ids
+        NamedConcept p = new NamedConcept("P");
+        axioms.clear();
+        for (int i = 0; i < 40; i++) {
+            Conjunction def = new Conjunction(new Concept[] { p, new NamedConcept("R" + i % 8), 
+                    new NamedConcept("Q" + i) });
+            axioms.add(new ConceptInclusion(def, new NamedConcept("D" + i)));
+        }
+
+        IFactory ef = createFactory(40);
+        NormalisedOntology expected = new NormalisedOntology(ef);
+        expected.setNumThreads(1);
+        expected.setFactorConjunctions(true);
+        expected.loadAxioms(new HashSet<Axiom>(axioms));
+
+        IFactory af = createFactory(40);
+        NormalisedOntology actual = new NormalisedOntology(af);
+        actual.setNumThreads(1);
+        actual.setFactorConjunctions(true);
+        actual.loadAxioms(axioms.iterator(), 5);
+        assertEquals(ef.getTotalConcepts(), af.getTotalConcepts());
+
+        expected.classify();
+        actual.classify();
+        assertSameSubsumptions(expected, actual);
+
+        // Factored in windows of at most 10 conjunctions, the R are only
+        // shared within each window
+        IFactory wf = createFactory(40);
+        NormalisedOntology windowed = new NormalisedOntology(wf);
+        windowed.setNumThreads(1);
+        windowed.setFactorConjunctions(true);
+        windowed.setFactorWindow(10);
+        windowed.loadAxioms(axioms.iterator(), 5);
+        assertTrue(wf.getTotalConcepts() > af.getTotalConcepts());
+        windowed.classify();
+        assertSameNamedSubsumptions(expected, windowed);
+    }
+
+    private static IFactory createFactory(int numQ) {
+        IFactory factory = new CoreFactory();
+        for (int i = 0; i < numQ; i++) {
+            factory.getConcept("Q" + i);
+        }
+        return factory;
+    }
+
+    /**
+     * Checks that normalising on several threads gives the same normal forms
+     * as on one thread, with one virtual concept per distinct complex
+     * concept.
+     */
+    @Test
+    public void testParallelNormalisation() {
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+
+        IFactory sf = new CoreFactory();
+        NormalisedOntology sequential = new NormalisedOntology(sf);
+        sequential.setNumThreads(1);
+        Set<Inclusion> expected = sequential.normalise(axioms);
+
+        IFactory pf = new CoreFactory();
+        NormalisedOntology parallel = new NormalisedOntology(pf);
+        parallel.setNumThreads(4);
+        Set<Inclusion> actual = parallel.normalise(axioms);
+        parallel.shutdown();
+
+        assertEquals(expected.size(), actual.size());
+        assertEquals(sf.getTotalConcepts(), pf.getTotalConcepts());
+        for (Inclusion i : actual) {
+            assertTrue(expected.contains(rename(i, pf, sf)));
+        }
+    }
+
+    /**
+     * Checks that factoring conjunctions derives the same subsumptions
+     * between named concepts with fewer virtual concepts.
+     */
+    @Test
+    public void testConjunctionFactoring() {
+        NamedConcept[] ps = new NamedConcept[20];
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        for (int i = 0; i < ps.length; i++) {
+            ps[i] = new NamedConcept("P" + i);
+            if (i > 0) {
+                axioms.add(new ConceptInclusion(ps[i], ps[(i - 1) / 2]));
+            }
+        }
+        NamedRole r = new NamedRole("r");
+        for (int i = 0; i < 200; i++) {
+            NamedConcept d = new NamedConcept("D" + i);
+            // Every definition uses P0 and P1, and most of them P2
+            Conjunction def = new Conjunction(new Concept[] { ps[0], ps[1], ps[i % 3 == 0 ? 3 : 2], 
+                    ps[4 + i % 16], new Existential(r, ps[i % 7]) });
+            axioms.add(new ConceptInclusion(d, def));
+            axioms.add(new ConceptInclusion(def, d));
+        }
+
+        IFactory ef = new CoreFactory();
+        NormalisedOntology expected = new NormalisedOntology(ef, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        IFactory af = new CoreFactory();
+        NormalisedOntology actual = new NormalisedOntology(af);
+        actual.setNumThreads(1);
+        actual.setFactorConjunctions(true);
+        actual.loadAxioms(axioms);
+        actual.classify();
+
+        assertTrue(af.getTotalConcepts() < ef.getTotalConcepts());
+        IConceptMap<IConceptSet> es = expected.getSubsumptions();
+        IConceptMap<IConceptSet> as = actual.getSubsumptions();
+        int numNamed = 0;
+        for (int id = 0; id < ef.getTotalConcepts(); id++) {
+            if (ef.isVirtualConcept(id)) {
+                continue;
+            }
+            numNamed++;
+            assertEquals(namedSubsumers(es.get(id), ef), 
+                    namedSubsumers(as.get(af.getConcept(ef.lookupConceptId(id))), af));
+        }
+        assertEquals(222, numNamed);
+    }
+
+    private Set<Object> namedSubsumers(IConceptSet s, IFactory factory) {
+        Set<Object> res = new HashSet<Object>();
+        for (IntIterator it = s.iterator(); it.hasNext();) {
+            int id = it.next();
+            if (!factory.isVirtualConcept(id)) {
+                res.add(factory.lookupConceptId(id));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns an inclusion with the ids of one factory replaced by the ids of
+     * the same concepts in another factory.
+     */
+    private Inclusion rename(Inclusion i, IFactory from, IFactory to) {
+        if (!(i instanceof GCI)) {
+            return i;
+        }
+        GCI gci = (GCI) i;
+        return new GCI(rename(gci.lhs(), from, to), rename(gci.rhs(), from, to));
+    }
+
+    private AbstractConcept rename(AbstractConcept c, IFactory from, IFactory to) {
+        if (c instanceof au.csiro.snorocket.core.model.Concept) {
+            Object key = from.lookupConceptId(c.hashCode());
+            if (key instanceof AbstractConcept) {
+                key = rename((AbstractConcept) key, from, to);
+            }
+            return new au.csiro.snorocket.core.model.Concept(to.getConcept(key));
+        } else if (c instanceof au.csiro.snorocket.core.model.Conjunction) {
+            AbstractConcept[] cs = ((au.csiro.snorocket.core.model.Conjunction) c).getConcepts();
+            AbstractConcept[] res = new AbstractConcept[cs.length];
+            for (int j = 0; j < cs.length; j++) {
+                res[j] = rename(cs[j], from, to);
+            }
+            return new au.csiro.snorocket.core.model.Conjunction(res);
+        } else if (c instanceof au.csiro.snorocket.core.model.Existential) {
+            au.csiro.snorocket.core.model.Existential e = (au.csiro.snorocket.core.model.Existential) c;
+            return new au.csiro.snorocket.core.model.Existential(e.getRole(), rename(e.getConcept(), from, to));
+        } else {
+            return c;
+        }
+    }
+
     /**
      * Tests incremental classification functionality for correctness by doing
      * the following:
@@ -445,4 +765,1004 @@ public class TestNormalisedOntology {
         assertTrue(criticalDiseaseRes.contains(o.getTopNode()));
     }
     
+    /**
+     * Checks that unsatisfiability propagates to the predecessors of an
+     * unsatisfiable concept, including edges created after BOTTOM was
+     * derived and incremental additions.
+     */
+    @Test
+    public void testBottomPropagation() {
+        NamedRole r = new NamedRole("r");
+        NamedRole s = new NamedRole("s");
+        NamedConcept a = new NamedConcept("A");
+        NamedConcept b = new NamedConcept("B");
+        NamedConcept c = new NamedConcept("C");
+        NamedConcept d = new NamedConcept("D");
+        NamedConcept e = new NamedConcept("E");
+        NamedConcept f = new NamedConcept("F");
+        NamedConcept g = new NamedConcept("G");
+
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        // B [ C [ BOTTOM, so A [ r.B and D [ s.A are unsatisfiable
+        axioms.add(new ConceptInclusion(a, new Existential(r, b)));
+        axioms.add(new ConceptInclusion(b, c));
+        axioms.add(new ConceptInclusion(c, NamedConcept.BOTTOM_CONCEPT));
+        axioms.add(new ConceptInclusion(d, new Existential(s, a)));
+        // E [ r.BOTTOM is unsatisfiable, F [ r.G is not
+        axioms.add(new ConceptInclusion(e, new Existential(r, NamedConcept.BOTTOM_CONCEPT)));
+        axioms.add(new ConceptInclusion(f, new Existential(r, g)));
+
+        IFactory factory = new CoreFactory();
+        NormalisedOntology o = new NormalisedOntology(factory, axioms);
+        o.classify();
+        o.buildTaxonomy();
+
+        Node bottom = o.getBottomNode();
+        assertTrue(bottom.getEquivalentConcepts().contains(a.getId()));
+        assertTrue(bottom.getEquivalentConcepts().contains(b.getId()));
+        assertTrue(bottom.getEquivalentConcepts().contains(c.getId()));
+        assertTrue(bottom.getEquivalentConcepts().contains(d.getId()));
+        assertTrue(bottom.getEquivalentConcepts().contains(e.getId()));
+        assertTrue(!bottom.getEquivalentConcepts().contains(f.getId()));
+        assertTrue(!bottom.getEquivalentConcepts().contains(g.getId()));
+
+        // G becomes unsatisfiable, so F does too
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(g, b));
+        o.loadIncremental(incAxioms);
+        o.classifyIncremental();
+        o.buildTaxonomy();
+
+        bottom = o.getBottomNode();
+        assertTrue(bottom.getEquivalentConcepts().contains(f.getId()));
+        assertTrue(bottom.getEquivalentConcepts().contains(g.getId()));
+    }
+
+    /**
+     * Builds a synthetic ontology with a told hierarchy, existentials, a
+     * transitive role and a role chain so that saturation activates many
+     * contexts from several threads.
+     * 
+     * @param size
+     * @return
+     */
+    private Set<Axiom> createSyntheticAxioms(int size) {
+        NamedRole partOf = new NamedRole("part-of");
+        NamedRole hasLoc = new NamedRole("has-loc");
+        NamedConcept[] cs = new NamedConcept[size];
+        for (int i = 0; i < size; i++) {
+            cs[i] = new NamedConcept("C" + i);
+        }
+
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        for (int i = 1; i < size; i++) {
+            axioms.add(new ConceptInclusion(cs[i], cs[(i - 1) / 2]));
+            if (i % 3 == 0) {
+                axioms.add(new ConceptInclusion(cs[i], new Existential(partOf, cs[i / 3])));
+            }
+            if (i % 5 == 0) {
+                axioms.add(new ConceptInclusion(cs[i], new Existential(hasLoc, cs[i - 1])));
+            }
+            if (i % 7 == 0) {
+                axioms.add(new ConceptInclusion(new Conjunction(
+                        new Concept[] { cs[i / 7], new Existential(hasLoc, cs[i]) }), cs[i - 1]));
+            }
+            if (i % 11 == 0) {
+                axioms.add(new ConceptInclusion(new Existential(partOf, cs[i]), cs[i + 1 < size ? i + 1 : 0]));
+            }
+        }
+        axioms.add(new RoleInclusion(new Role[] { partOf, partOf }, partOf));
+        axioms.add(new RoleInclusion(new Role[] { hasLoc, partOf }, hasLoc));
+        return axioms;
+    }
+
+    private void assertSameSubsumptions(NormalisedOntology expected, NormalisedOntology actual) {
+        assertSameSubsumptions(expected, actual, false);
+    }
+
+    /**
+     * Checks that two ontologies have the same subsumptions. If bottomOnly is
+     * true, unsatisfiable concepts are only checked for BOTTOM: a context
+     * stops deriving once it has BOTTOM, so the rest of its subsumptions
+     * depend on what it had before, e.g. its seeded told subsumers.
+     *
+     * @param expected
+     * @param actual
+     * @param bottomOnly
+     */
+    private void assertSameSubsumptions(NormalisedOntology expected, NormalisedOntology actual,
+            boolean bottomOnly) {
+        IConceptMap<IConceptSet> es = expected.getSubsumptions();
+        IConceptMap<IConceptSet> as = actual.getSubsumptions();
+        assertEquals(es.size(), as.size());
+        for (IntIterator it = es.keyIterator(); it.hasNext();) {
+            int key = it.next();
+            IConceptSet e = es.get(key);
+            IConceptSet a = as.get(key);
+            if (bottomOnly && e.contains(IFactory.BOTTOM_CONCEPT)) {
+                assertTrue(a.contains(IFactory.BOTTOM_CONCEPT));
+                continue;
+            }
+            assertEquals(e.size(), a.size());
+            for (IntIterator it2 = e.iterator(); it2.hasNext();) {
+                assertTrue(a.contains(it2.next()));
+            }
+        }
+    }
+
+    /**
+     * Checks that the named concepts of two ontologies, which may have
+     * different ids and virtual concepts, have the same named subsumers.
+     *
+     * @param expected
+     * @param actual
+     */
+    private void assertSameNamedSubsumptions(NormalisedOntology expected, NormalisedOntology actual) {
+        IConceptMap<IConceptSet> es = expected.getSubsumptions();
+        IConceptMap<IConceptSet> as = actual.getSubsumptions();
+        IFactory ef = expected.getFactory();
+        IFactory af = actual.getFactory();
+        int numNamed = 0;
+        for (IntIterator it = es.keyIterator(); it.hasNext();) {
+            int key = it.next();
+            if (!(ef.lookupConceptId(key) instanceof String)) {
+                continue;
+            }
+            numNamed++;
+            Set<Object> e = new HashSet<Object>();
+            for (IntIterator it2 = es.get(key).iterator(); it2.hasNext();) {
+                Object id = ef.lookupConceptId(it2.next());
+                if (id instanceof String) {
+                    e.add(id);
+                }
+            }
+            Set<Object> a = new HashSet<Object>();
+            for (IntIterator it2 = as.get(af.getConcept(ef.lookupConceptId(key))).iterator(); it2.hasNext();) {
+                Object id = af.lookupConceptId(it2.next());
+                if (id instanceof String) {
+                    a.add(id);
+                }
+            }
+            assertEquals(e, a);
+        }
+        assertTrue(numNamed > 0);
+    }
+
+    /**
+     * Checks that the work-stealing scheduler derives the same subsumptions as
+     * the shared queue, both in full and incremental classification.
+     */
+    @Test
+    public void testWorkStealing() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        actual.setNumThreads(4);
+        actual.setWorkStealing(true);
+        actual.classify();
+        assertSameSubsumptions(expected, actual);
+
+        // Add a new concept incrementally
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), 
+                new Existential(new NamedRole("part-of"), new NamedConcept("C498"))));
+        actual.loadIncremental(incAxioms);
+        actual.classifyIncremental();
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        expected = new NormalisedOntology(factory, all);
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+    }
+
+    /**
+     * Checks that a context that fails makes a work-stealing classification
+     * fail instead of leaving the other workers waiting for it.
+     */
+    @Test
+    public void testWorkStealingFailure() throws InterruptedException {
+        NormalisedOntology ont = createFailingOntology();
+        ont.setNumThreads(4);
+        ont.setWorkStealing(true);
+        assertClassificationFails(ont);
+    }
+
+    /**
+     * Returns a chain of existentials with an NF2 term whose filler has no
+     * context, so that the context of its left hand side fails when it is
+     * processed.
+     */
+    private NormalisedOntology createFailingOntology() {
+        IFactory factory = new CoreFactory();
+        NamedRole partOf = new NamedRole("part-of");
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        for (int i = 0; i < 50; i++) {
+            axioms.add(new ConceptInclusion(new NamedConcept("C" + i), 
+                    new Existential(partOf, new NamedConcept("C" + (i + 1)))));
+        }
+        NormalisedOntology ont = new NormalisedOntology(factory, axioms);
+        ont.addTerm(NF2.getInstance(factory.getConcept("C10"), factory.getRole("part-of"), 
+                factory.getTotalConcepts() + 1000));
+        return ont;
+    }
+
+    /**
+     * Classifies an ontology on another thread and checks that it fails
+     * within a minute.
+     */
+    private void assertClassificationFails(final NormalisedOntology ont) throws InterruptedException {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ont.classify();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        t.join(60000);
+        assertTrue("Classification hangs", !t.isAlive());
+        assertTrue("Classification succeeds", error.get() != null);
+    }
+
+    /**
+     * Checks that the work-stealing queue can be inspected like any other
+     * queue, and that the scheduler cannot be changed while contexts are
+     * queued.
+     */
+    @Test
+    public void testWorkStealingQueueView() {
+        IFactory factory = new CoreFactory();
+        NormalisedOntology ont = new NormalisedOntology(factory, createSyntheticAxioms(10));
+        ont.classify();
+        IntIterator keys = ont.getContextIndex().keyIterator();
+        Context c1 = ont.getContextIndex().get(keys.next());
+        Context c2 = ont.getContextIndex().get(keys.next());
+
+        WorkStealingQueue queue = new WorkStealingQueue();
+        queue.init(2);
+        assertNull(queue.peek());
+        queue.add(c1);
+        queue.add(c2);
+        assertEquals(2, queue.size());
+        assertTrue(queue.peek() == c1);
+        Iterator<Context> it = queue.iterator();
+        assertTrue(it.next() == c1);
+        assertTrue(it.next() == c2);
+        assertTrue(!it.hasNext());
+        assertTrue(queue.poll() == c1);
+        assertTrue(queue.peek() == c2);
+
+        ont.getTodo().add(c1);
+        try {
+            ont.setWorkStealing(true);
+            fail("Changed the scheduler with queued contexts");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        ont.getTodo().clear();
+        ont.setWorkStealing(true);
+        assertTrue(ont.isWorkStealing());
+    }
+
+    /**
+     * Checks that seeding the contexts in told dependency order derives the
+     * same subsumptions as the concept id order, both in full and incremental
+     * classification.
+     */
+    @Test
+    public void testToldDependencyOrder() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        actual.setNumThreads(4);
+        actual.setToldDependencyOrder(true);
+        actual.classify();
+        assertSameSubsumptions(expected, actual);
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), new NamedConcept("C250")));
+        incAxioms.add(new ConceptInclusion(new NamedConcept("C499"), new NamedConcept("New")));
+        actual.loadIncremental(incAxioms);
+        actual.classifyIncremental();
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        expected = new NormalisedOntology(factory, all);
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+    }
+
+    /**
+     * Checks that seeding in told dependency order avoids the reactivations
+     * of seeding in id order. Each concept in the chain depends on the next
+     * one, which has a higher id, and the conclusion at the end of the chain
+     * flows back to the start.
+     */
+    @Test
+    public void testToldDependencyOrderReactivations() {
+        final int n = 50;
+        long[] reactivations = new long[2];
+        for (int k = 0; k < 2; k++) {
+            IFactory factory = new CoreFactory();
+            for (int i = 0; i < n; i++) {
+                factory.getConcept("C" + i);
+            }
+            NamedRole r = new NamedRole("r");
+            NamedConcept d = new NamedConcept("D");
+            Set<Axiom> axioms = new HashSet<Axiom>();
+            for (int i = 0; i < n - 1; i++) {
+                axioms.add(new ConceptInclusion(new NamedConcept("C" + i),
+                        new Existential(r, new NamedConcept("C" + (i + 1)))));
+            }
+            axioms.add(new ConceptInclusion(new NamedConcept("C" + (n - 1)), d));
+            axioms.add(new ConceptInclusion(new Existential(r, d), d));
+
+            NormalisedOntology ont = new NormalisedOntology(factory, axioms);
+            ont.setNumThreads(1);
+            ont.setToldDependencyOrder(k == 1);
+            ont.classify();
+            assertTrue(ont.getSubsumptions().get(factory.getConcept("C0")).contains(factory.getConcept("D")));
+            assertEquals(factory.getTotalConcepts() + ont.getNumReactivations(), ont.getNumProcessedContexts());
+            reactivations[k] = ont.getNumReactivations();
+        }
+        assertTrue(reactivations[0] >= n - 1);
+        assertTrue(reactivations[1] < reactivations[0]);
+    }
+
+    /**
+     * Checks that dropping concept queue entries that cannot derive anything
+     * new does not lose conclusions of A1 + A2 [ B, whichever conjunct a
+     * context derives first. X_i gets A1 through a chain of i told subsumers
+     * and A2 through an edge to Y_i, which gets Z after k - i steps. W_i is
+     * the mirror image.
+     */
+    @Test
+    public void testSkippedConceptEntries() {
+        final int k = 6;
+        for (int numThreads = 1; numThreads <= 4; numThreads += 3) {
+            IFactory factory = new CoreFactory();
+            // A2 gets the lower id
+            factory.getConcept("A2");
+            factory.getConcept("A1");
+            NamedRole r = new NamedRole("r");
+            NamedConcept a1 = new NamedConcept("A1");
+            NamedConcept a2 = new NamedConcept("A2");
+            NamedConcept b = new NamedConcept("B");
+            Set<Axiom> axioms = new HashSet<Axiom>();
+            axioms.add(new ConceptInclusion(new Conjunction(new Concept[] { a1, a2 }), b));
+            axioms.add(new ConceptInclusion(new Existential(r, new NamedConcept("Z1")), a2));
+            axioms.add(new ConceptInclusion(new Existential(r, new NamedConcept("Z2")), a1));
+            for (int i = 0; i <= k; i++) {
+                addChain(axioms, "X" + i, i, a1);
+                axioms.add(new ConceptInclusion(new NamedConcept("X" + i),
+                        new Existential(r, new NamedConcept("Y" + i))));
+                addChain(axioms, "Y" + i, k - i, new NamedConcept("Z1"));
+
+                addChain(axioms, "W" + i, i, a2);
+                axioms.add(new ConceptInclusion(new NamedConcept("W" + i),
+                        new Existential(r, new NamedConcept("V" + i))));
+                addChain(axioms, "V" + i, k - i, new NamedConcept("Z2"));
+            }
+
+            NormalisedOntology ont = new NormalisedOntology(factory, axioms);
+            ont.setNumThreads(numThreads);
+            ont.classify();
+            IConceptMap<IConceptSet> subs = ont.getSubsumptions();
+            int bId = factory.getConcept("B");
+            for (int i = 0; i <= k; i++) {
+                assertTrue(subs.get(factory.getConcept("X" + i)).contains(bId));
+                assertTrue(subs.get(factory.getConcept("W" + i)).contains(bId));
+                assertTrue(!subs.get(factory.getConcept("Y" + i)).contains(bId));
+                assertTrue(!subs.get(factory.getConcept("V" + i)).contains(bId));
+            }
+            assertTrue(!subs.get(bId).contains(factory.getConcept("A1")));
+            assertTrue(ont.getNumSkippedConceptEntries() > 0);
+            assertTrue(ont.getNumSkippedConceptEntries() < ont.getNumConceptEntries());
+        }
+    }
+
+    /**
+     * Adds the told subsumptions name [ name_1 [ ... [ name_length [ end.
+     */
+    private void addChain(Set<Axiom> axioms, String name, int length, NamedConcept end) {
+        NamedConcept prev = new NamedConcept(name);
+        for (int j = 1; j <= length; j++) {
+            NamedConcept next = new NamedConcept(name + "_" + j);
+            axioms.add(new ConceptInclusion(prev, next));
+            prev = next;
+        }
+        axioms.add(new ConceptInclusion(prev, end));
+    }
+
+    /**
+     * Checks that seeding the contexts with their told subsumptions derives
+     * the same subsumptions, including unsatisfiable concepts and told cycles,
+     * and that incremental classification works afterwards.
+     */
+    @Test
+    public void testToldSubsumerSeeding() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+        axioms.add(new ConceptInclusion(new NamedConcept("C301"), NamedConcept.BOTTOM_CONCEPT));
+        axioms.add(new ConceptInclusion(new NamedConcept("C5"), new NamedConcept("C400")));
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        actual.setNumThreads(4);
+        actual.setToldSubsumerSeeding(true);
+        actual.classify();
+        assertSameSubsumptions(expected, actual, true);
+        assertEquals(0, expected.getNumSeededSubsumptions());
+        assertTrue(actual.getNumSeededSubsumptions() > 0);
+        assertTrue(actual.getNumConceptEntries() < expected.getNumConceptEntries());
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), new NamedConcept("C250")));
+        incAxioms.add(new ConceptInclusion(new NamedConcept("C499"), new NamedConcept("New")));
+        actual.loadIncremental(incAxioms);
+        actual.classifyIncremental();
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        expected = new NormalisedOntology(factory, all);
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual, true);
+    }
+
+    /**
+     * Checks that seeding saves the concept queue entries that derive the told
+     * ancestors of a chain. Both runs use one thread, so the counts are exact.
+     */
+    @Test
+    public void testToldSubsumerSeedingSavesEntries() {
+        final int n = 100;
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        addChain(axioms, "X", n - 1, new NamedConcept("End"));
+
+        long[] entries = new long[2];
+        for (int k = 0; k < 2; k++) {
+            IFactory factory = new CoreFactory();
+            NormalisedOntology ont = new NormalisedOntology(factory, axioms);
+            ont.setNumThreads(1);
+            ont.setToldSubsumerSeeding(k == 1);
+            ont.classify();
+            assertTrue(ont.getSubsumptions().get(factory.getConcept("X")).contains(factory.getConcept("End")));
+            assertEquals(k == 1 ? n * (n + 1) / 2 : 0, ont.getNumSeededSubsumptions());
+            entries[k] = ont.getNumConceptEntries();
+        }
+        // Without seeding each concept of the chain queues one entry per
+        // ancestor beyond its direct parent, with seeding none are left
+        assertEquals(n * (n - 1) / 2, entries[0]);
+        assertEquals(0, entries[1]);
+    }
+
+    /**
+     * Checks that the members of a told cycle get each other's told
+     * ancestors, and so do their descendants.
+     */
+    @Test
+    public void testToldCycleAncestors() {
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        axioms.add(new ConceptInclusion(new NamedConcept("X"), new NamedConcept("A")));
+        axioms.add(new ConceptInclusion(new NamedConcept("A"), new NamedConcept("B")));
+        axioms.add(new ConceptInclusion(new NamedConcept("B"), new NamedConcept("C")));
+        axioms.add(new ConceptInclusion(new NamedConcept("C"), new NamedConcept("A")));
+        axioms.add(new ConceptInclusion(new NamedConcept("A"), new NamedConcept("P")));
+        axioms.add(new ConceptInclusion(new NamedConcept("C"), new NamedConcept("Q")));
+        axioms.add(new ConceptInclusion(new NamedConcept("Q"), new NamedConcept("R")));
+
+        IFactory factory = new CoreFactory();
+        NormalisedOntology ont = new NormalisedOntology(factory, axioms);
+        int[][] told = ont.computeToldAncestors();
+        assertToldAncestors(factory, told, "X", "A", "B", "C", "P", "Q", "R");
+        assertToldAncestors(factory, told, "A", "B", "C", "P", "Q", "R");
+        assertToldAncestors(factory, told, "B", "A", "C", "P", "Q", "R");
+        assertToldAncestors(factory, told, "C", "A", "B", "P", "Q", "R");
+        assertToldAncestors(factory, told, "Q", "R");
+        assertNull(told[factory.getConcept("R")]);
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.classify();
+        ont.setToldSubsumerSeeding(true);
+        ont.classify();
+        assertSameSubsumptions(expected, ont);
+    }
+
+    private static void assertToldAncestors(IFactory factory, int[][] told, String concept, String... ancestors) {
+        Set<Integer> expected = new HashSet<Integer>();
+        for (String a : ancestors) {
+            expected.add(factory.getConcept(a));
+        }
+        Set<Integer> actual = new HashSet<Integer>();
+        for (int a : told[factory.getConcept(concept)]) {
+            actual.add(a);
+        }
+        assertEquals(expected, actual);
+        assertEquals(ancestors.length, told[factory.getConcept(concept)].length);
+    }
+
+    /**
+     * Checks that the frozen indexes hold every NF1, NF2 and NF5 entry, that
+     * freezing releases the collections the terms were loaded into, and that
+     * repacking the rows touched by an incremental load gives the same
+     * results as classifying everything.
+     */
+    @Test
+    public void testFrozenIndexes() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        actual.setNumThreads(2);
+        long loaded = actual.estimateIndexSize();
+        actual.freeze();
+        long frozen = actual.estimateIndexSize();
+        assertTrue(frozen < loaded);
+        assertEquals(countEntries(actual.getOntologyNF1()), actual.getPackedNF1().size());
+        assertEquals(countEntries(actual.getOntologyNF2()), actual.getPackedNF2().size());
+        assertEquals(countEntries(actual.getOntologyNF5ByR()), actual.getPackedNF5ByR().size());
+        assertEquals(countEntries(actual.getOntologyNF5ByS()), actual.getPackedNF5ByS().size());
+        assertTrimmed(actual.getOntologyNF1());
+        assertTrimmed(actual.getOntologyNF2());
+        assertTrue(actual.estimateIndexSize() > frozen);
+        actual.classify();
+        assertEquals(frozen, actual.estimateIndexSize());
+
+        NamedRole partOf = new NamedRole("part-of");
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), new Existential(partOf, new NamedConcept("C7"))));
+        incAxioms.add(new ConceptInclusion(new Conjunction(
+                new Concept[] { new NamedConcept("C20"), new NamedConcept("C301") }), new NamedConcept("New")));
+        incAxioms.add(new ConceptInclusion(new NamedConcept("C301"), new NamedConcept("C20")));
+        incAxioms.add(new RoleInclusion(new Role[] { partOf, new NamedRole("has-loc") }, partOf));
+        actual.loadIncremental(incAxioms);
+        actual.classifyIncremental();
+        assertEquals(countEntries(actual.getOntologyNF1()), actual.getPackedNF1().size());
+        assertEquals(countEntries(actual.getOntologyNF2()), actual.getPackedNF2().size());
+        assertEquals(countEntries(actual.getOntologyNF5ByR()), actual.getPackedNF5ByR().size());
+        assertEquals(countEntries(actual.getOntologyNF5ByS()), actual.getPackedNF5ByS().size());
+        assertTrimmed(actual.getOntologyNF1());
+        assertTrimmed(actual.getOntologyNF2());
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        NormalisedOntology expected = new NormalisedOntology(factory, all);
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+    }
+
+    /**
+     * Checks the NF8 terms found by the datatype index for every combination
+     * of operators, and that a feature with new NF8 terms is indexed again
+     * in an incremental classification.
+     */
+    @Test
+    public void testDatatypeIndex() {
+        NamedFeature f = new NamedFeature("f");
+        Operator[] ops = Operator.values();
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        for (Operator op : ops) {
+            for (int k = 0; k < 40; k++) {
+                axioms.add(new ConceptInclusion(new Datatype(f, op, new IntegerLiteral(k)),
+                        new NamedConcept(op + "_" + k)));
+            }
+            axioms.add(new ConceptInclusion(new NamedConcept("Q_" + op),
+                    new Datatype(f, op, new IntegerLiteral(20))));
+        }
+
+        IFactory factory = new CoreFactory();
+        NormalisedOntology o = new NormalisedOntology(factory, axioms);
+        o.setNumThreads(2);
+        o.classify();
+        IConceptMap<IConceptSet> subs = o.getSubsumptions();
+        for (Operator q : ops) {
+            IConceptSet s = subs.get(factory.getConcept("Q_" + q));
+            for (Operator op : ops) {
+                for (int k = 0; k < 40; k++) {
+                    assertEquals(q + " " + op + " " + k, implies(q, 20, op, k),
+                            s.contains(factory.getConcept(op + "_" + k)));
+                }
+            }
+        }
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new Datatype(f, Operator.GREATER_THAN_EQUALS, new IntegerLiteral(15)),
+                new NamedConcept("New")));
+        o.loadIncremental(incAxioms);
+        o.classifyIncremental();
+        subs = o.getSubsumptions();
+        int n = factory.getConcept("New");
+        assertTrue(subs.get(factory.getConcept("Q_" + Operator.EQUALS)).contains(n));
+        assertTrue(subs.get(factory.getConcept("Q_" + Operator.GREATER_THAN_EQUALS)).contains(n));
+        assertTrue(!subs.get(factory.getConcept("Q_" + Operator.LESS_THAN)).contains(n));
+    }
+
+    /**
+     * Returns true if f.(q, v) implies f.(op, k). Like the matching, it does
+     * not use the fact that the literals are integers, so for example
+     * f.(>, 4) does not imply f.(>=, 5).
+     */
+    private boolean implies(Operator q, int v, Operator op, int k) {
+        if (q == Operator.EQUALS) {
+            switch (op) {
+            case EQUALS: return v == k;
+            case GREATER_THAN: return v > k;
+            case GREATER_THAN_EQUALS: return v >= k;
+            case LESS_THAN: return v < k;
+            default: return v <= k;
+            }
+        } else if (q == Operator.GREATER_THAN || q == Operator.GREATER_THAN_EQUALS) {
+            if (op == Operator.GREATER_THAN) {
+                return q == Operator.GREATER_THAN ? v >= k : v > k;
+            } else if (op == Operator.GREATER_THAN_EQUALS) {
+                return v >= k;
+            }
+            return false;
+        } else {
+            if (op == Operator.LESS_THAN) {
+                return q == Operator.LESS_THAN ? v <= k : v < k;
+            } else if (op == Operator.LESS_THAN_EQUALS) {
+                return v <= k;
+            }
+            return false;
+        }
+    }
+
+    private void assertTrimmed(IConceptMap<? extends MonotonicCollection<?>> map) {
+        for (IntIterator itr = map.keyIterator(); itr.hasNext();) {
+            MonotonicCollection<?> row = map.get(itr.next());
+            if (row != null) {
+                assertEquals(Math.max(row.size(), 1), row.data.length);
+            }
+        }
+    }
+
+    private int countEntries(IConceptMap<? extends MonotonicCollection<?>> map) {
+        int count = 0;
+        for (IntIterator it = map.keyIterator(); it.hasNext();) {
+            count += map.get(it.next()).size();
+        }
+        return count;
+    }
+
+    /**
+     * Checks that the owner-computes engine derives the same subsumptions as
+     * the shared queue, including unsatisfiable concepts, and that
+     * incremental classification works afterwards.
+     */
+    @Test
+    public void testPartitionedSaturation() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+        axioms.add(new ConceptInclusion(new NamedConcept("C301"), NamedConcept.BOTTOM_CONCEPT));
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        for (int numThreads = 1; numThreads <= 4; numThreads++) {
+            NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+            actual.setNumThreads(numThreads);
+            actual.setPartitioned(true);
+            actual.classify();
+            assertSameSubsumptions(expected, actual);
+        }
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        actual.setNumThreads(3);
+        actual.setPartitioned(true);
+        actual.classify();
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), 
+                new Existential(new NamedRole("part-of"), new NamedConcept("C498"))));
+        actual.loadIncremental(incAxioms);
+        actual.classifyIncremental();
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        expected = new NormalisedOntology(factory, all);
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+    }
+
+    /**
+     * Checks that the partitions still derive the same subsumptions when the
+     * queues between them are tiny, and that a partition stops processing
+     * contexts instead of buffering messages without bound when its
+     * receivers fall behind.
+     */
+    @Test
+    public void testPartitionBackPressure() {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        actual.setNumThreads(4);
+        actual.setPartitioned(true);
+        actual.setPartitionQueueCapacity(8);
+        actual.classify();
+        assertSameSubsumptions(expected, actual);
+        // Without back-pressure a partition buffers more than a thousand
+        // messages here
+        assertTrue(actual.getMaxPartitionBacklog() < 300);
+    }
+
+    /**
+     * Checks that a failing partition stops the others instead of leaving
+     * them waiting for its messages.
+     */
+    @Test
+    public void testPartitionedSaturationFailure() throws InterruptedException {
+        NormalisedOntology ont = createFailingOntology();
+        ont.setNumThreads(4);
+        ont.setPartitioned(true);
+        assertClassificationFails(ont);
+    }
+
+    /**
+     * Checks that saturating in separate processes gives the same results as
+     * saturating in this one, and that incremental classification works on
+     * the gathered contexts.
+     */
+    @Test
+    public void testDistributedSaturation() throws IOException {
+        IFactory factory = new CoreFactory();
+        Set<Axiom> axioms = createSyntheticAxioms(500);
+        axioms.add(new ConceptInclusion(new NamedConcept("C301"), NamedConcept.BOTTOM_CONCEPT));
+        // The shards also need the literals of the ontology
+        NamedFeature dose = new NamedFeature("dose");
+        axioms.add(new ConceptInclusion(new NamedConcept("C10"),
+                new Datatype(dose, Operator.EQUALS, new IntegerLiteral(5))));
+        axioms.add(new ConceptInclusion(new Datatype(dose, Operator.GREATER_THAN_EQUALS,
+                new IntegerLiteral(5)), new NamedConcept("C20")));
+
+        NormalisedOntology expected = new NormalisedOntology(factory, axioms);
+        expected.setNumThreads(1);
+        expected.classify();
+
+        NormalisedOntology actual = new NormalisedOntology(factory, axioms);
+        DistributedSaturation distributed = new DistributedSaturation(2, new LocalShardLauncher());
+        actual.setDistributedSaturation(distributed);
+        actual.classify();
+        assertSameSubsumptions(expected, actual);
+
+        // Each shard only gets the terms that its range needs
+        IConceptSet concepts = IConceptSet.FACTORY.createConceptSet();
+        for (int i = 0; i < factory.getTotalConcepts(); i++) {
+            concepts.add(i);
+        }
+        long numTerms = actual.writeModule(concepts, new ObjectOutputStream(new ByteArrayOutputStream()));
+        // Sending the whole ontology to both shards would send 2 * numTerms
+        assertTrue(distributed.getNumTermsSent() < 2 * numTerms);
+
+        // Only the successors are collected, the predecessors are restored
+        // from them
+        IConceptMap<Context> expectedContexts = expected.getContextIndex();
+        actual.getRelationships();
+        for (IntIterator it = expectedContexts.keyIterator(); it.hasNext();) {
+            int concept = it.next();
+            CR expectedPred = expectedContexts.get(concept).getPred();
+            CR actualPred = actual.getContextIndex().get(concept).getPred();
+            assertEquals(Arrays.toString(expectedPred.getRoles()),
+                    Arrays.toString(actualPred.getRoles()));
+            for (int role : expectedPred.getRoles()) {
+                assertEquals(Arrays.toString(expectedPred.lookupConcept(role).toArray()),
+                        Arrays.toString(actualPred.lookupConcept(role).toArray()));
+            }
+        }
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"), 
+                new Existential(new NamedRole("part-of"), new NamedConcept("C498"))));
+        actual.loadIncremental(incAxioms);
+        actual.classifyIncremental();
+
+        Set<Axiom> all = new HashSet<Axiom>(axioms);
+        all.addAll(incAxioms);
+        expected = new NormalisedOntology(factory, all);
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual);
+    }
+
+    /**
+     * Checks that contexts release their queues once saturation is finished,
+     * also after an incremental classification, and that they take less
+     * memory than with every queue and role map allocated up front.
+     */
+    @Test
+    public void testLazyContextQueues() {
+        IFactory factory = new CoreFactory();
+        NormalisedOntology ont = new NormalisedOntology(factory, createSyntheticAxioms(500));
+        ont.setNumThreads(4);
+        ont.classify();
+        assertNoQueues(ont);
+
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new ConceptInclusion(new NamedConcept("New"),
+                new Existential(new NamedRole("part-of"), new NamedConcept("C498"))));
+        ont.loadIncremental(incAxioms);
+        ont.classifyIncremental();
+        assertNoQueues(ont);
+
+        long lazy = 0;
+        long eager = 0;
+        IConceptMap<Context> contexts = ont.getContextIndex();
+        for (IntIterator it = contexts.keyIterator(); it.hasNext();) {
+            Context ctx = contexts.get(it.next());
+            lazy += ctx.estimateSize();
+            eager += ctx.estimateEagerSize(factory.getTotalRoles());
+        }
+        assertTrue(lazy > 0);
+        assertTrue(lazy < eager);
+    }
+
+    private void assertNoQueues(NormalisedOntology ont) {
+        IConceptMap<Context> contexts = ont.getContextIndex();
+        for (IntIterator it = contexts.keyIterator(); it.hasNext();) {
+            assertTrue(!contexts.get(it.next()).hasQueues());
+        }
+    }
+
+    /**
+     * Checks that the threads of a reasoner that is not shut down exit once
+     * it has been idle for longer than the keep-alive time.
+     */
+    @Test
+    public void testIdleExecutorReleasesThreads() throws InterruptedException {
+        IFactory factory = new CoreFactory();
+        NormalisedOntology ont = new NormalisedOntology(factory, createSyntheticAxioms(100));
+        ont.setNumThreads(4);
+        long keepAlive = 200;
+        ont.setThreadKeepAlive(keepAlive);
+        ont.classify();
+        ReasonerExecutor executor = ont.getExecutor();
+        assertTrue(executor.getPoolSize() > 0);
+
+        long deadline = System.currentTimeMillis() + 20 * keepAlive;
+        while (executor.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(keepAlive / 4);
+        }
+        assertEquals(0, executor.getPoolSize());
+        assertTrue(!executor.isShutdown());
+    }
+
+    /**
+     * Checks that back-to-back incremental classifications, with pauses
+     * longer than a short keep-alive would allow, run on the threads started
+     * by the first classification.
+     */
+    @Test
+    public void testExecutorReusesThreads() throws InterruptedException {
+        IFactory factory = new CoreFactory();
+        NormalisedOntology ont = new NormalisedOntology(factory, createSyntheticAxioms(500));
+        ont.setNumThreads(4);
+        assertEquals(ReasonerExecutor.DEFAULT_KEEP_ALIVE_MILLIS, ont.getThreadKeepAlive());
+        ont.classify();
+        ReasonerExecutor executor = ont.getExecutor();
+        int started = executor.getNumThreadsStarted();
+        assertEquals(3, started);
+
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(300);
+            Set<Axiom> incAxioms = new HashSet<Axiom>();
+            incAxioms.add(new ConceptInclusion(new NamedConcept("New" + i),
+                    new Existential(new NamedRole("part-of"), new NamedConcept("C" + (400 + i)))));
+            ont.loadIncremental(incAxioms);
+            ont.classifyIncremental();
+            assertTrue(executor == ont.getExecutor());
+            assertEquals(started, executor.getNumThreadsStarted());
+            assertEquals(3, executor.getPoolSize());
+        }
+
+        ont.shutdown();
+        assertTrue(executor.isShutdown());
+    }
+
+    /**
+     * Checks that independent ontologies can be classified at the same time
+     * in the same JVM.
+     */
+    @Test
+    public void testConcurrentOntologies() throws InterruptedException {
+        final NormalisedOntology[] actual = new NormalisedOntology[] {
+                new NormalisedOntology(new CoreFactory(), createSyntheticAxioms(500)),
+                new NormalisedOntology(new CoreFactory(), createSyntheticAxioms(300)) };
+        Thread[] threads = new Thread[actual.length];
+        for (int i = 0; i < actual.length; i++) {
+            final NormalisedOntology o = actual[i];
+            o.setNumThreads(2);
+            threads[i] = new Thread() {
+                public void run() {
+                    o.classify();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        NormalisedOntology expected = new NormalisedOntology(new CoreFactory(), createSyntheticAxioms(500));
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual[0]);
+
+        expected = new NormalisedOntology(new CoreFactory(), createSyntheticAxioms(300));
+        expected.setNumThreads(1);
+        expected.classify();
+        assertSameSubsumptions(expected, actual[1]);
+    }
+
+    /**
+     * Checks that role-inclusion cycles are handled: equivalent roles share
+     * their super-roles, including ones added incrementally.
+     */
+    @Test
+    public void testRoleCycle() {
+        NamedRole r = new NamedRole("r");
+        NamedRole s = new NamedRole("s");
+        NamedRole t = new NamedRole("t");
+        NamedConcept a = new NamedConcept("A");
+        NamedConcept b = new NamedConcept("B");
+        NamedConcept c = new NamedConcept("C");
+        NamedConcept d = new NamedConcept("D");
+        NamedConcept e = new NamedConcept("E");
+
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        axioms.add(new RoleInclusion(r, s));
+        axioms.add(new RoleInclusion(s, r));
+        axioms.add(new RoleInclusion(s, t));
+        axioms.add(new ConceptInclusion(a, new Existential(r, b)));
+        axioms.add(new ConceptInclusion(d, new Existential(s, b)));
+        axioms.add(new ConceptInclusion(new Existential(t, b), c));
+
+        IFactory factory = new CoreFactory();
+        NormalisedOntology o = new NormalisedOntology(factory, axioms);
+        o.classify();
+
+        IConceptMap<IConceptSet> subsumptions = o.getSubsumptions();
+        assertTrue(subsumptions.get(factory.getConcept("A")).contains(factory.getConcept("C")));
+        assertTrue(subsumptions.get(factory.getConcept("D")).contains(factory.getConcept("C")));
+
+        // A new super-role of t
+        Set<Axiom> incAxioms = new HashSet<Axiom>();
+        incAxioms.add(new RoleInclusion(t, new NamedRole("u")));
+        incAxioms.add(new ConceptInclusion(new Existential(new NamedRole("u"), b), e));
+        o.loadIncremental(incAxioms);
+        o.classifyIncremental();
+
+        subsumptions = o.getSubsumptions();
+        assertTrue(subsumptions.get(factory.getConcept("A")).contains(factory.getConcept("E")));
+        assertTrue(subsumptions.get(factory.getConcept("D")).contains(factory.getConcept("E")));
+    }
+    
 }
@@ -676,5 +676,74 @@ public class TestSnorocketReasoner {
         assertTrue(bottomParents.size() == 1);
         assertTrue(bottomParents.contains(aNode));
     }
-    
+
+    /**
+     * Checks that classifying the module of one hierarchy gives the same
+     * parents for its concepts as classifying the whole ontology, and that
+     * the module leaves out an unrelated hierarchy.
+     */
+    @Test
+    public void testModuleExtraction() {
+        NamedRole hasIngredient = new NamedRole("has-ingredient");
+        NamedRole findingSite = new NamedRole("finding-site");
+        NamedRole partOf = new NamedRole("part-of");
+        Set<Axiom> axioms = new HashSet<Axiom>();
+        Set<String> signature = new HashSet<String>();
+        for (int i = 0; i < 200; i++) {
+            NamedConcept drug = new NamedConcept("Drug" + i);
+            NamedConcept disorder = new NamedConcept("Disorder" + i);
+            signature.add(drug.getId());
+            if (i > 0) {
+                axioms.add(new ConceptInclusion(drug, new NamedConcept("Drug" + ((i - 1) / 2))));
+                axioms.add(new ConceptInclusion(disorder, new NamedConcept("Disorder" + ((i - 1) / 2))));
+            }
+            axioms.add(new ConceptInclusion(drug, 
+                    new Existential(hasIngredient, new NamedConcept("Substance" + (i % 20)))));
+            axioms.add(new ConceptInclusion(disorder, 
+                    new Existential(findingSite, new NamedConcept("Site" + (i % 30)))));
+        }
+        for (int i = 0; i < 30; i++) {
+            axioms.add(new ConceptInclusion(new NamedConcept("Site" + i), 
+                    new Existential(partOf, new NamedConcept("Site" + (i / 2)))));
+        }
+        for (int i = 0; i < 20; i++) {
+            axioms.add(new ConceptInclusion(new NamedConcept("Substance" + i), new NamedConcept("Substance")));
+        }
+        Conjunction def = new Conjunction(new Concept[] { new NamedConcept("Drug1"), 
+                new Existential(hasIngredient, new NamedConcept("Substance")) });
+        axioms.add(new ConceptInclusion(new NamedConcept("Painkiller"), def));
+        axioms.add(new ConceptInclusion(def, new NamedConcept("Painkiller")));
+        axioms.add(new RoleInclusion(new Role[] { partOf, partOf }, partOf));
+        axioms.add(new RoleInclusion(new Role[] { findingSite, partOf }, findingSite));
+        signature.add("Painkiller");
+        signature.add("Unknown");
+
+        SnorocketReasoner sr = new SnorocketReasoner();
+        sr.loadAxioms(axioms);
+        sr.classify();
+        Ontology full = sr.getClassifiedOntology();
+
+        SnorocketReasoner mr = sr.extractModule(signature);
+        mr.classify();
+        Ontology module = mr.getClassifiedOntology();
+
+        for (String id : signature) {
+            if (id.equals("Unknown")) {
+                continue;
+            }
+            Set<String> expected = new HashSet<String>();
+            for (Node n : full.getNode(id).getParents()) {
+                expected.addAll(n.getEquivalentConcepts());
+            }
+            Set<String> actual = new HashSet<String>();
+            for (Node n : module.getNode(id).getParents()) {
+                actual.addAll(n.getEquivalentConcepts());
+            }
+            Assert.assertEquals(expected, actual);
+        }
+        Assert.assertTrue(module.getNode("Drug3").getParents().contains(module.getNode("Painkiller")));
+        Assert.assertNull(module.getNode("Disorder0"));
+        Assert.assertNull(module.getNode("Site0"));
+    }
+
 }
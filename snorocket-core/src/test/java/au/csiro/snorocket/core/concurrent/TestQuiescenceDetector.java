@@ -0,0 +1,84 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import au.csiro.snorocket.core.concurrent.DistributedSaturation.QuiescenceDetector;
+
+public class TestQuiescenceDetector {
+
+    /**
+     * Runs a probing round with the given status and counters of each shard.
+     */
+    private static boolean round(QuiescenceDetector detector, boolean[] idle, long[] sent, long[] received) {
+        detector.startRound();
+        for (int i = 0; i < idle.length; i++) {
+            detector.report(i, idle[i], sent[i], received[i]);
+        }
+        return detector.endRound();
+    }
+
+    /**
+     * Checks that the shards are not done while a message is in transit,
+     * even if all of them are idle and nothing changes between rounds.
+     */
+    @Test
+    public void testMessageInTransit() {
+        final QuiescenceDetector detector = new QuiescenceDetector(2);
+        final boolean[] idle = { true, true };
+        final long[] sent = { 3, 0 };
+        final long[] received = { 0, 2 };
+        for (int i = 0; i < 5; i++) {
+            assertFalse(round(detector, idle, sent, received));
+        }
+
+        // Shard 1 consumes the last message
+        received[1] = 3;
+        assertFalse(round(detector, new boolean[] { true, false }, sent, received));
+        assertFalse(round(detector, idle, sent, received));
+        assertTrue(round(detector, idle, sent, received));
+        assertEquals(3, detector.getTotalSent());
+        assertEquals(8, detector.getRounds());
+    }
+
+    /**
+     * Checks that a quiet round is not enough when the counters changed since
+     * the previous one, e.g. when a shard reported before consuming a message
+     * that another shard sent before reporting.
+     */
+    @Test
+    public void testChangedCounters() {
+        final QuiescenceDetector detector = new QuiescenceDetector(2);
+        final boolean[] idle = { true, true };
+        assertFalse(round(detector, idle, new long[] { 1, 0 }, new long[] { 0, 1 }));
+        assertFalse(round(detector, idle, new long[] { 1, 1 }, new long[] { 1, 1 }));
+        assertFalse(round(detector, idle, new long[] { 2, 1 }, new long[] { 1, 2 }));
+        assertTrue(round(detector, idle, new long[] { 2, 1 }, new long[] { 1, 2 }));
+    }
+
+    /**
+     * Checks that idle shards that never exchanged anything are done after
+     * two rounds, and that a busy shard delays it.
+     */
+    @Test
+    public void testNoMessages() {
+        final long[] zero = { 0, 0, 0 };
+        QuiescenceDetector detector = new QuiescenceDetector(3);
+        assertFalse(round(detector, new boolean[] { true, true, true }, zero, zero));
+        assertTrue(round(detector, new boolean[] { true, true, true }, zero, zero));
+
+        detector = new QuiescenceDetector(3);
+        assertFalse(round(detector, new boolean[] { true, true, true }, zero, zero));
+        assertFalse(round(detector, new boolean[] { true, false, true }, zero, zero));
+        assertFalse(round(detector, new boolean[] { true, true, true }, zero, zero));
+        assertTrue(round(detector, new boolean[] { true, true, true }, zero, zero));
+    }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestWorkStealingQueue {
+
+    private static Context createContext(int concept) {
+        return new Context(concept, null, new int[] { concept });
+    }
+
+    /**
+     * Checks that a worker takes its own contexts back in LIFO order, that an
+     * idle worker steals the oldest context of another one and that the
+     * steal is counted.
+     */
+    @Test
+    public void testSteal() {
+        final WorkStealingQueue queue = new WorkStealingQueue();
+        queue.init(2);
+        final Context[] ctxs = new Context[3];
+        queue.register(0);
+        for (int i = 0; i < ctxs.length; i++) {
+            ctxs[i] = createContext(i);
+            queue.add(ctxs[i]);
+        }
+        assertTrue(ctxs[2] == queue.poll());
+        assertEquals(0, queue.getSteals());
+
+        queue.register(1);
+        assertTrue(ctxs[0] == queue.poll());
+        assertEquals(1, queue.getSteals());
+        assertTrue(ctxs[1] == queue.poll());
+        assertEquals(2, queue.getSteals());
+        assertNull(queue.poll());
+        queue.unregister();
+
+        for (int i = 0; i < ctxs.length; i++) {
+            assertFalse(queue.isQuiescent());
+            queue.done();
+        }
+        assertTrue(queue.isQuiescent());
+
+        queue.init(2);
+        assertEquals(0, queue.getSteals());
+    }
+
+    /**
+     * Checks that a worker thread with nothing to do takes every context
+     * queued by another worker, counting one steal for each.
+     */
+    @Test
+    public void testStealFromOtherThread() throws InterruptedException {
+        final int n = 100;
+        final WorkStealingQueue queue = new WorkStealingQueue();
+        queue.init(2);
+        queue.register(0);
+        for (int i = 0; i < n; i++) {
+            queue.add(createContext(i));
+        }
+        queue.unregister();
+
+        final AtomicInteger taken = new AtomicInteger(0);
+        final Thread thief = new Thread(new Runnable() {
+            public void run() {
+                queue.register(1);
+                try {
+                    Context ctx;
+                    int expected = 0;
+                    while ((ctx = queue.poll()) != null) {
+                        // Steals take the oldest context first
+                        if (ctx.getConcept() == expected) {
+                            taken.incrementAndGet();
+                        }
+                        expected++;
+                        queue.done();
+                    }
+                } finally {
+                    queue.unregister();
+                }
+            }
+        });
+        thief.start();
+        thief.join();
+
+        assertEquals(n, taken.get());
+        assertEquals(n, queue.getSteals());
+        assertTrue(queue.isQuiescent());
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ * All rights reserved. Use is subject to license terms and conditions.
+ */
+package au.csiro.snorocket.core.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import au.csiro.ontology.Ontology;
+import au.csiro.ontology.importer.rf1.RF1Importer;
+import au.csiro.ontology.model.Axiom;
+import au.csiro.ontology.util.NullProgressMonitor;
+import au.csiro.snorocket.core.CoreFactory;
+import au.csiro.snorocket.core.NormalisedOntology;
+
+/**
+ * Compares the saturation engines on the same ontology: the shared queue
+ * used by the {@link au.csiro.snorocket.core.concurrent.Worker}s and the
+ * owner-computes {@link au.csiro.snorocket.core.concurrent.PartitionedSaturation}.
+ * Each engine classifies the ontology with 1, 2, 4, ... threads up to the
+ * number of available processors, or the number given as the second argument.
+ * Only the saturation is timed. Scaling can only be judged on a multi-core
+ * machine, so the number of processors is recorded with every row.
+ *
+ * @author Alejandro Metke
+ *
+ */
+public class BenchmarkEngines {
+
+    final static String OUT_DIR = "src/site/resources/";
+
+    public static final String VERSION = "2.2.0";
+
+    private final Set<Axiom> axioms;
+
+    public BenchmarkEngines(Set<Axiom> axioms) {
+        this.axioms = axioms;
+    }
+
+    /**
+     * Loads and saturates the ontology with the selected engine and returns
+     * the time spent saturating, in milliseconds.
+     *
+     * @param numThreads
+     * @param partitioned
+     * @return
+     */
+    public long runSaturation(int numThreads, boolean partitioned) {
+        NormalisedOntology no = new NormalisedOntology(new CoreFactory());
+        no.setNumThreads(numThreads);
+        no.setPartitioned(partitioned);
+        no.loadAxioms(axioms);
+        long start = System.currentTimeMillis();
+        no.classify();
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Loads the stated axioms of the SNOMED CT release used by
+     * {@link Benchmark}.
+     *
+     * @return
+     */
+    public static Set<Axiom> loadRF1() {
+        String version = "20110731";
+        RF1Importer imp = new RF1Importer(
+                BenchmarkEngines.class.getResourceAsStream(
+                        "/sct1_Concepts_Core_INT_20110731.txt"),
+                BenchmarkEngines.class.getResourceAsStream(
+                        "/res1_StatedRelationships_Core_INT_20110731.txt"),
+                version);
+
+        Iterator<Ontology> it = imp.getOntologyVersions(new NullProgressMonitor());
+        while(it.hasNext()) {
+            Ontology o = it.next();
+            if(o.getVersion().equals("snomed")) {
+                return new HashSet<Axiom>(o.getStatedAxioms());
+            }
+        }
+        throw new RuntimeException("Could not find version " + version + " in input files");
+    }
+
+    public static void main(String[] args) {
+        int numRuns = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int processors = Runtime.getRuntime().availableProcessors();
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : processors;
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH_mm_ss");
+        String outputFile = OUT_DIR + "benchmark_engines_" + VERSION + "_"
+                + sdf.format(Calendar.getInstance().getTime()) + ".csv";
+
+        System.out.println("Importing axioms");
+        BenchmarkEngines b = new BenchmarkEngines(loadRF1());
+
+        // Warm up both engines once
+        b.runSaturation(maxThreads, false);
+        b.runSaturation(maxThreads, true);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Date,Processors,Threads,Engine,Snomed Version," +
+                "Snorocket Version,Classification Time(ms)\n");
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads <<= 1) {
+            for (int j = 0; j < numRuns; j++) {
+                for (int e = 0; e < 2; e++) {
+                    boolean partitioned = e == 1;
+                    System.gc();
+                    long time = b.runSaturation(numThreads, partitioned);
+                    String engine = partitioned ? "partitioned" : "worker";
+                    System.out.println(numThreads + " threads, " + engine +
+                            ": " + time + " ms");
+
+                    sb.append(sdf.format(Calendar.getInstance().getTime()));
+                    sb.append(",");
+                    sb.append(processors);
+                    sb.append(",");
+                    sb.append(numThreads);
+                    sb.append(",");
+                    sb.append(engine);
+                    sb.append(",");
+                    sb.append("SNOMED_20110731");
+                    sb.append(",");
+                    sb.append(VERSION);
+                    sb.append(",");
+                    sb.append(time);
+                    sb.append("\n");
+                }
+            }
+        }
+
+        BufferedWriter bw = null;
+        try {
+            bw = new BufferedWriter(new FileWriter(
+                    new File(outputFile).getAbsoluteFile()));
+            bw.write(sb.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if(bw != null) {
+                try { bw.close(); } catch(Exception e) {}
+            }
+        }
+    }
+
+}